@@ -0,0 +1,99 @@
+#!/bin/bash
+#
+# Makes a delta package to update an installed old package to the new one:
+#
+#   make_delta.sh old.zip new.zip
+#
+# The delta is written next to the new package as new.zip.from-<old version>.delta,
+# make_packages.sh adds it to the repo index. Changed files are stored as bsdiff
+# patches, the package manager checks the installed files and the result by sha1
+# and installs the full package if the delta can't be applied.
+#
+
+set -e
+
+if [ $# -ne 2 ]; then
+    echo "Usage: $0 old.zip new.zip"
+    exit 1
+fi
+
+if ! which bsdiff >/dev/null 2>&1; then
+    echo "bsdiff not found"
+    exit 1
+fi
+
+OLD_ZIP=$(readlink -f $1)
+NEW_ZIP=$(readlink -f $2)
+
+TMP_DIR=$(mktemp -d)
+trap "rm -rf $TMP_DIR" EXIT
+
+mkdir -p $TMP_DIR/old $TMP_DIR/new $TMP_DIR/delta
+unzip -q $OLD_ZIP -d $TMP_DIR/old
+unzip -q $NEW_ZIP -d $TMP_DIR/new
+
+from=$(sed -n -e 's|.*<version>\(.*\)</version>.*|\1|p' $TMP_DIR/old/pkgdesc)
+if [ "x$from" = "x" ]; then
+    echo "No version in $1"
+    exit 1
+fi
+
+# Links are unpacked by the package manager only, so they can't be in a delta
+if [ "$(cd $TMP_DIR/old; find . -type l | sort; find . -type l -exec readlink {} \;)" != \
+     "$(cd $TMP_DIR/new; find . -type l | sort; find . -type l -exec readlink {} \;)" ]; then
+    echo "Symbolic links differ, no delta for $2"
+    exit 1
+fi
+
+MANIFEST=$TMP_DIR/delta/DELTA
+
+add_file() {
+    local f=$1
+    mkdir -p $TMP_DIR/delta/add/$(dirname $f)
+    cp -p $TMP_DIR/new/$f $TMP_DIR/delta/add/$f
+    printf "add\t%s\t%s\t%s\n" $(stat -c %a $TMP_DIR/new/$f) \
+	$(sha1sum $TMP_DIR/new/$f | awk '{ print $1 }') $f >> $MANIFEST
+}
+
+: > $MANIFEST
+
+for f in $(cd $TMP_DIR/new; find . -type f | sed -e 's|^\./||' | sort); do
+    case $f in
+    pkgdesc|postinst|prerm)
+	# Package info files are always moved away after install
+	add_file $f
+	continue
+	;;
+    esac
+    if [ ! -f $TMP_DIR/old/$f ]; then
+	add_file $f
+    elif ! cmp -s $TMP_DIR/old/$f $TMP_DIR/new/$f; then
+	mkdir -p $TMP_DIR/delta/patch/$(dirname $f)
+	bsdiff $TMP_DIR/old/$f $TMP_DIR/new/$f $TMP_DIR/delta/patch/$f
+	if [ $(stat -c %s $TMP_DIR/delta/patch/$f) -ge $(stat -c %s $TMP_DIR/new/$f) ]; then
+	    rm -f $TMP_DIR/delta/patch/$f
+	    add_file $f
+	else
+	    printf "patch\t%s\t%s\t%s\t%s\n" $(stat -c %a $TMP_DIR/new/$f) \
+		$(sha1sum $TMP_DIR/old/$f | awk '{ print $1 }') \
+		$(sha1sum $TMP_DIR/new/$f | awk '{ print $1 }') $f >> $MANIFEST
+	fi
+    fi
+done
+
+for f in $(cd $TMP_DIR/old; find . -type f | sed -e 's|^\./||' | sort); do
+    case $f in
+    pkgdesc|postinst|prerm)
+	continue
+	;;
+    esac
+    if [ ! -e $TMP_DIR/new/$f ]; then
+	printf "delete\t%s\n" $f >> $MANIFEST
+    fi
+done
+
+DELTA_FILE=${NEW_ZIP}.from-${from}.delta
+rm -f $DELTA_FILE
+(cd $TMP_DIR/delta; zip -q -r -9 $DELTA_FILE .)
+
+echo "$(basename $DELTA_FILE): $(du -b $DELTA_FILE | awk '{ print $1 }') bytes, full package $(du -b $NEW_ZIP | awk '{ print $1 }') bytes"
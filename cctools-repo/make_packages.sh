@@ -6,8 +6,20 @@ for f in *.zip; do
     unzip $f pkgdesc
     size=`du -b $f | awk '{ print $1}'`
     sed -i -e "s|@SIZE@|$size|" pkgdesc
+    # Deltas from older versions made by make_delta.sh
+    for d in $f.from-*.delta; do
+	if [ -f $d ]; then
+	    from=${d#$f.from-}
+	    from=${from%.delta}
+	    dsize=`du -b $d | awk '{ print $1}'`
+	    sed -i -e "s|^\( *\)</package>|\t<delta from=\"$from\" filesize=\"$dsize\">$d</delta>\n\1</package>|" pkgdesc
+	fi
+    done
     cat pkgdesc >> Packages
     rm -f pkgdesc
 done
 
 echo "</repo>" >> Packages
+
+gzip -9 -n -c Packages > Packages.gz
+bzip2 -9 -c Packages > Packages.bz2
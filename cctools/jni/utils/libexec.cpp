@@ -10,6 +10,7 @@
 #include <sys/wait.h>
 #include <termios.h>
 #include <signal.h>
+#include <poll.h>
 #include <android/log.h>
 
 # include <unistd.h>
@@ -39,6 +40,15 @@ extern "C" {
 
     JNIEXPORT jint Java_com_pdaxrom_utils_Utils_writeByte(JNIEnv *env, jobject clazz, jobject fileDescriptor, jint byte);
 
+    JNIEXPORT jint Java_com_pdaxrom_utils_Utils_read(JNIEnv *env, jobject clazz, jobject fileDescriptor,
+	jbyteArray buffer, jint offset, jint length);
+
+    JNIEXPORT jint Java_com_pdaxrom_utils_Utils_write(JNIEnv *env, jobject clazz, jobject fileDescriptor,
+	jbyteArray buffer, jint offset, jint length);
+
+    JNIEXPORT jint Java_com_pdaxrom_utils_Utils_poll(JNIEnv *env, jobject clazz, jobject fileDescriptor,
+	jint events, jint timeout);
+
     JNIEXPORT void Java_com_pdaxrom_utils_Utils_close(JNIEnv *env, jobject clazz, jobject fileDescriptor);
 
     JNIEXPORT void Java_com_pdaxrom_utils_Utils_hangupProcessGroup(JNIEnv *env, jobject clazz,
@@ -352,6 +362,112 @@ JNIEXPORT jint Java_com_pdaxrom_utils_Utils_writeByte(JNIEnv *env, jobject clazz
     return (l != 1) ? -1: 1;
 }
 
+#define IO_CHUNK_SIZE 16384
+
+static int getDescriptor(JNIEnv *env, jobject fileDescriptor)
+{
+    if (!field_fileDescriptor_descriptor) {
+        jclass class_fileDescriptor = env->FindClass("java/io/FileDescriptor");
+        field_fileDescriptor_descriptor = env->GetFieldID(class_fileDescriptor, "descriptor", "I");
+    }
+
+    return env->GetIntField(fileDescriptor, field_fileDescriptor_descriptor);
+}
+
+JNIEXPORT jint Java_com_pdaxrom_utils_Utils_read(JNIEnv *env, jobject clazz, jobject fileDescriptor,
+    jbyteArray buffer, jint offset, jint length)
+{
+    int fd;
+    char buf[IO_CHUNK_SIZE];
+
+    fd = getDescriptor(env, fileDescriptor);
+
+    if (env->ExceptionOccurred() != NULL) {
+        return -1;
+    }
+
+    if (length > IO_CHUNK_SIZE) {
+        length = IO_CHUNK_SIZE;
+    }
+
+    /* read into a local buffer, the java array must not stay pinned while blocked */
+    int l;
+    do {
+        l = read(fd, buf, length);
+    } while (l < 0 && errno == EINTR);
+
+    /* EIO on the master side means the slave side is closed */
+    if (l <= 0) {
+        return -1;
+    }
+
+    env->SetByteArrayRegion(buffer, offset, l, (const jbyte *) buf);
+
+    return l;
+}
+
+JNIEXPORT jint Java_com_pdaxrom_utils_Utils_write(JNIEnv *env, jobject clazz, jobject fileDescriptor,
+    jbyteArray buffer, jint offset, jint length)
+{
+    int fd;
+    char buf[IO_CHUNK_SIZE];
+    int written = 0;
+
+    fd = getDescriptor(env, fileDescriptor);
+
+    if (env->ExceptionOccurred() != NULL) {
+        return -1;
+    }
+
+    while (written < length) {
+        int chunk = length - written;
+        if (chunk > IO_CHUNK_SIZE) {
+            chunk = IO_CHUNK_SIZE;
+        }
+        env->GetByteArrayRegion(buffer, offset + written, chunk, (jbyte *) buf);
+
+        int pos = 0;
+        while (pos < chunk) {
+            int l = write(fd, buf + pos, chunk - pos);
+            if (l < 0) {
+                if (errno == EINTR) {
+                    continue;
+                }
+                return -1;
+            }
+            pos += l;
+        }
+        written += chunk;
+    }
+
+    return written;
+}
+
+JNIEXPORT jint Java_com_pdaxrom_utils_Utils_poll(JNIEnv *env, jobject clazz, jobject fileDescriptor,
+    jint events, jint timeout)
+{
+    struct pollfd pfd;
+
+    pfd.fd = getDescriptor(env, fileDescriptor);
+    pfd.events = events;
+    pfd.revents = 0;
+
+    if (env->ExceptionOccurred() != NULL) {
+        return -1;
+    }
+
+    int l;
+    do {
+        l = poll(&pfd, 1, timeout);
+    } while (l < 0 && errno == EINTR);
+
+    if (l < 0) {
+        return -1;
+    }
+
+    return pfd.revents;
+}
+
 JNIEXPORT void Java_com_pdaxrom_utils_Utils_close(JNIEnv *env, jobject clazz, jobject fileDescriptor)
 {
     int fd;
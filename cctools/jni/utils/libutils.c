@@ -45,6 +45,22 @@ JNIEXPORT jint Java_com_pdaxrom_utils_Utils_chmod(JNIEnv*  env,
     return ret;
 }
 
+JNIEXPORT jint Java_com_pdaxrom_utils_Utils_symlink(JNIEnv*  env,
+                                      jobject  this,
+                                      jstring oldpath,
+                                      jstring newpath)
+{
+    const char *_oldpath = (*env)->GetStringUTFChars(env, oldpath, 0);
+    const char *_newpath = (*env)->GetStringUTFChars(env, newpath, 0);
+    int ret = symlink(_oldpath, _newpath);
+    if (ret) {
+	LOGE("symlink(%s, %s) failed: %s", _oldpath, _newpath, strerror(errno));
+    }
+    (*env)->ReleaseStringUTFChars(env, oldpath, _oldpath);
+    (*env)->ReleaseStringUTFChars(env, newpath, _newpath);
+    return ret;
+}
+
 JNIEXPORT jint Java_com_pdaxrom_utils_Utils_unzippedSize(JNIEnv*  env,
                                       jobject  this,
                                       jstring file)
@@ -24,7 +24,6 @@ import com.android.sdklib.internal.build.DebugKeyProvider.KeytoolException;
 import com.android.sdklib.internal.build.SignedJarBuilder.IZipEntryFilter;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
@@ -79,7 +78,7 @@ public final class ApkBuilder {
     /**
      * Custom {@link IZipEntryFilter} to filter out everything that is not a standard java
      * resources, and also record whether the zip file contains native libraries.
-     * <p/>Used in {@link SignedJarBuilder#writeZip(java.io.InputStream, IZipEntryFilter)} when
+     * <p/>Used in {@link SignedJarBuilder#writeZip(File, IZipEntryFilter)} when
      * we only want the java resources from external jars.
      */
     private final class JavaAndNativeResourceFilter implements IZipEntryFilter {
@@ -155,6 +154,7 @@ public final class ApkBuilder {
     private final File mApkFile;
     private final File mResFile;
     private final File mDexFile;
+    private final File mPreviousApkFile;
     private final PrintStream mVerboseStream;
     private final SignedJarBuilder mBuilder;
     private boolean mDebugMode = false;
@@ -239,6 +239,93 @@ public final class ApkBuilder {
      */
     public ApkBuilder(File apkFile, File resFile, File dexFile, String storeOsPath,
             PrintStream verboseStream) throws ApkCreationException {
+        this(apkFile, resFile, dexFile, storeOsPath, null /*key*/, null /*certificate*/,
+                false /*incremental*/, verboseStream);
+    }
+
+    /**
+     * Creates a new instance signed with the debug key, optionally updating an existing APK.
+     *
+     * See {@link #ApkBuilder(File, File, File, String, PrintStream)} for the debug keystore and
+     * {@link #ApkBuilder(File, File, File, PrivateKey, X509Certificate, boolean, PrintStream)}
+     * for the incremental mode.
+     *
+     * @param apkFile the file to create or update
+     * @param resFile the file representing the packaged resource file.
+     * @param dexFile the file representing the dex file. This can be null for apk with no code.
+     * @param storeOsPath the OS path to the debug keystore, if needed or null.
+     * @param incremental whether to reuse the content of an existing <var>apkFile</var>.
+     * @param verboseStream the stream to which verbose output should go. If null, verbose mode
+     *                      is not enabled.
+     * @throws ApkCreationException
+     */
+    public ApkBuilder(File apkFile, File resFile, File dexFile, String storeOsPath,
+            boolean incremental, PrintStream verboseStream) throws ApkCreationException {
+        this(apkFile, resFile, dexFile, storeOsPath, null /*key*/, null /*certificate*/,
+                incremental, verboseStream);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * This creates a new builder that will create the specified output file, using the two
+     * mandatory given input files.
+     *
+     * Optional {@link PrivateKey} and {@link X509Certificate} objects can be provided to sign
+     * the APK while it is written, so it does not need to go through a separate signing tool.
+     *
+     * An optional {@link PrintStream} can also be provided for verbose output. If null, there will
+     * be no output.
+     *
+     * @param apkFile the file to create
+     * @param resFile the file representing the packaged resource file.
+     * @param dexFile the file representing the dex file. This can be null for apk with no code.
+     * @param key the private key used to sign the package. Can be null.
+     * @param certificate the certificate used to sign the package. Can be null.
+     * @param verboseStream the stream to which verbose output should go. If null, verbose mode
+     *                      is not enabled.
+     * @throws ApkCreationException
+     */
+    public ApkBuilder(File apkFile, File resFile, File dexFile, PrivateKey key,
+            X509Certificate certificate, PrintStream verboseStream) throws ApkCreationException {
+        this(apkFile, resFile, dexFile, null /*storeOsPath*/, key, certificate,
+                false /*incremental*/, verboseStream);
+    }
+
+    /**
+     * Creates a new instance, optionally updating an existing APK.
+     *
+     * In incremental mode, if the output file already exists it is used as the previous version
+     * of the APK: entries whose size and CRC did not change are copied from it as they are,
+     * and only new or modified entries are compressed and digested. The central directory and
+     * the signature are always generated again.
+     *
+     * @param apkFile the file to create or update
+     * @param resFile the file representing the packaged resource file.
+     * @param dexFile the file representing the dex file. This can be null for apk with no code.
+     * @param key the private key used to sign the package. Can be null.
+     * @param certificate the certificate used to sign the package. Can be null.
+     * @param incremental whether to reuse the content of an existing <var>apkFile</var>.
+     * @param verboseStream the stream to which verbose output should go. If null, verbose mode
+     *                      is not enabled.
+     * @throws ApkCreationException
+     */
+    public ApkBuilder(File apkFile, File resFile, File dexFile, PrivateKey key,
+            X509Certificate certificate, boolean incremental, PrintStream verboseStream)
+            throws ApkCreationException {
+        this(apkFile, resFile, dexFile, null /*storeOsPath*/, key, certificate, incremental,
+                verboseStream);
+    }
+
+    private ApkBuilder(File apkFile, File resFile, File dexFile, String storeOsPath,
+            PrivateKey key, X509Certificate certificate, boolean incremental,
+            PrintStream verboseStream) throws ApkCreationException {
+        if (incremental && apkFile.isFile() && apkFile.length() > 0) {
+            mPreviousApkFile = new File(apkFile.getPath() + ".prev");
+        } else {
+            mPreviousApkFile = null;
+        }
+
         checkOutputFile(mApkFile = apkFile);
         checkInputFile(mResFile = resFile, true /*throwIfDoesntExist*/);
         if (dexFile != null) {
@@ -249,6 +336,14 @@ public final class ApkBuilder {
         mVerboseStream = verboseStream;
 
         try {
+            if (mPreviousApkFile != null) {
+                // move the previous APK away, it is read while the new one is written.
+                mPreviousApkFile.delete();
+                if (apkFile.renameTo(mPreviousApkFile) == false) {
+                    throw new ApkCreationException("Failed to rename %s", apkFile);
+                }
+            }
+
             File storeFile = null;
             if (storeOsPath != null) {
                 storeFile = new File(storeOsPath);
@@ -275,8 +370,8 @@ public final class ApkBuilder {
                 DebugKeyProvider keyProvider = new DebugKeyProvider(
                         storeOsPath, null /*store type*/, keygenOutput);
 
-                PrivateKey key = keyProvider.getDebugKey();
-                X509Certificate certificate = (X509Certificate)keyProvider.getCertificate();
+                key = keyProvider.getDebugKey();
+                certificate = (X509Certificate)keyProvider.getCertificate();
 
                 if (key == null) {
                     throw new ApkCreationException("Unable to get debug signature key");
@@ -293,9 +388,24 @@ public final class ApkBuilder {
                         new FileOutputStream(mApkFile, false /* append */), key,
                         certificate);
             } else {
+                if (key != null) {
+                    verbosePrintln("Signing with: %s",
+                            certificate.getSubjectX500Principal().getName());
+                }
+
                 mBuilder = new SignedJarBuilder(
                         new FileOutputStream(mApkFile, false /* append */),
-                        null /* key */, null /* certificate */);
+                        key, certificate);
+            }
+
+            if (mPreviousApkFile != null) {
+                try {
+                    mBuilder.setPreviousArchive(mPreviousApkFile);
+                    verbosePrintln("Updating %s", mApkFile.getName());
+                } catch (IOException e) {
+                    verbosePrintln("Previous APK unusable (%s), packaging everything",
+                            e.getMessage());
+                }
             }
 
             verbosePrintln("Packaging %s", mApkFile.getName());
@@ -309,6 +419,7 @@ public final class ApkBuilder {
             }
 
         } catch (KeytoolException e) {
+            abort();
             if (e.getJavaHome() == null) {
                 throw new ApkCreationException(e.getMessage() +
                         "\nJAVA_HOME seems undefined, setting it will help locating keytool automatically\n" +
@@ -321,6 +432,7 @@ public final class ApkBuilder {
                         e.getCommandLine());
             }
         } catch (Exception e) {
+            abort();
             if (e instanceof ApkCreationException) {
                 throw (ApkCreationException)e;
             }
@@ -364,8 +476,10 @@ public final class ApkBuilder {
         try {
             doAddFile(file, archivePath);
         } catch (DuplicateFileException e) {
+            abort();
             throw e;
         } catch (Exception e) {
+            abort();
             throw new ApkCreationException(e, "Failed to add %s", file);
         }
     }
@@ -392,11 +506,12 @@ public final class ApkBuilder {
             mNullFilter.reset(zipFile);
 
             // ask the builder to add the content of the file.
-            FileInputStream fis = new FileInputStream(zipFile);
-            mBuilder.writeZip(fis, mNullFilter);
+            mBuilder.writeZip(zipFile, mNullFilter);
         } catch (DuplicateFileException e) {
+            abort();
             throw e;
         } catch (Exception e) {
+            abort();
             throw new ApkCreationException(e, "Failed to add %s", zipFile);
         }
     }
@@ -425,15 +540,16 @@ public final class ApkBuilder {
 
             // ask the builder to add the content of the file, filtered to only let through
             // the java resources.
-            FileInputStream fis = new FileInputStream(jarFile);
-            mBuilder.writeZip(fis, mFilter);
+            mBuilder.writeZip(jarFile, mFilter);
 
             // check if native libraries were found in the external library. This should
             // constitutes an error or warning depending on if they are in lib/
             return new JarStatusImpl(mFilter.getNativeLibs(), mFilter.getNativeLibsConflict());
         } catch (DuplicateFileException e) {
+            abort();
             throw e;
         } catch (Exception e) {
+            abort();
             throw new ApkCreationException(e, "Failed to add %s", jarFile);
         }
     }
@@ -460,15 +576,19 @@ public final class ApkBuilder {
                     processFileForResource(file, null);
                 }
             } catch (DuplicateFileException e) {
+                abort();
                 throw e;
             } catch (Exception e) {
+                abort();
                 throw new ApkCreationException(e, "Failed to add %s", sourceFolder);
             }
         } else {
             // not a directory? check if it's a file or doesn't exist
             if (sourceFolder.exists()) {
+                abort();
                 throw new ApkCreationException("%s is not a folder", sourceFolder);
             } else {
+                abort();
                 throw new ApkCreationException("%s does not exist", sourceFolder);
             }
         }
@@ -499,8 +619,10 @@ public final class ApkBuilder {
         if (nativeFolder.isDirectory() == false) {
             // not a directory? check if it's a file or doesn't exist
             if (nativeFolder.exists()) {
+                abort();
                 throw new ApkCreationException("%s is not a folder", nativeFolder);
             } else {
+                abort();
                 throw new ApkCreationException("%s does not exist", nativeFolder);
             }
         }
@@ -538,7 +660,11 @@ public final class ApkBuilder {
 
                                 try {
                                     doAddFile(lib, path);
+                                } catch (DuplicateFileException e) {
+                                    abort();
+                                    throw e;
                                 } catch (IOException e) {
+                                    abort();
                                     throw new ApkCreationException(e, "Failed to add %s", lib);
                                 }
                             }
@@ -564,11 +690,33 @@ public final class ApkBuilder {
         try {
             mBuilder.close();
             mIsSealed = true;
+
+            if (mPreviousApkFile != null) {
+                verbosePrintln("%d entries unchanged", mBuilder.getUnchangedEntryCount());
+                mPreviousApkFile.delete();
+            }
         } catch (Exception e) {
+            abort();
             throw new ApkCreationException(e, "Failed to seal APK");
         }
     }
 
+    /**
+     * Stops the packaging after an error. In incremental mode the previous APK is put back in
+     * place of the partial one.
+     */
+    private void abort() {
+        if (mBuilder != null) {
+            mBuilder.cleanUp();
+        }
+        if (mPreviousApkFile != null && mPreviousApkFile.isFile()) {
+            mApkFile.delete();
+            if (mPreviousApkFile.renameTo(mApkFile) == false) {
+                verbosePrintln("Failed to restore %1$s from %2$s", mApkFile, mPreviousApkFile);
+            }
+        }
+    }
+
     /**
      * Output a given message if the verbose mode is enabled.
      * @param format the format string for {@link String#format(String, Object...)}
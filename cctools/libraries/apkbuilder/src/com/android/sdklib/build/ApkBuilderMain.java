@@ -16,9 +16,11 @@
 
 package com.android.sdklib.build;
 
+import com.android.sdklib.internal.build.SigningKeyProvider;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.regex.Pattern;
 
@@ -55,6 +57,13 @@ public class ApkBuilderMain {
             boolean verbose = false;
             boolean signed = true;
             boolean debug = false;
+            boolean testKey = false;
+            boolean incremental = false;
+            String storeType = null;
+            String keyStore = null;
+            String storePassword = null;
+            String keyAlias = null;
+            String keyPassword = null;
 
             int index = 1;
             do {
@@ -114,7 +123,39 @@ public class ApkBuilderMain {
                         printAndExit("Missing value for -storetype");
                     }
 
-                    // FIXME
+                    storeType = args[index++];
+                } else if ("-tk".equals(argument)) {
+                    testKey = true;
+                } else if ("-inc".equals(argument)) {
+                    incremental = true;
+                } else if ("-ks".equals(argument)) {
+                    // quick check on the next argument.
+                    if (index == args.length) {
+                        printAndExit("Missing value for -ks");
+                    }
+
+                    keyStore = args[index++];
+                } else if ("-kspass".equals(argument)) {
+                    // quick check on the next argument.
+                    if (index == args.length) {
+                        printAndExit("Missing value for -kspass");
+                    }
+
+                    storePassword = args[index++];
+                } else if ("-ksalias".equals(argument)) {
+                    // quick check on the next argument.
+                    if (index == args.length) {
+                        printAndExit("Missing value for -ksalias");
+                    }
+
+                    keyAlias = args[index++];
+                } else if ("-keypass".equals(argument)) {
+                    // quick check on the next argument.
+                    if (index == args.length) {
+                        printAndExit("Missing value for -keypass");
+                    }
+
+                    keyPassword = args[index++];
                 } else {
                     printAndExit("Unknown argument: " + argument);
                 }
@@ -125,9 +166,27 @@ public class ApkBuilderMain {
             }
 
             // create the builder with the basic files.
-            ApkBuilder builder = new ApkBuilder(outApk, zipArchives.get(0), dexFile,
-                    signed ? ApkBuilder.getDebugKeystore() : null,
-                    verbose ? System.out : null);
+            ApkBuilder builder;
+            if (signed && (testKey || keyStore != null)) {
+                SigningKeyProvider key = null;
+                if (keyStore != null) {
+                    if (storePassword == null || keyAlias == null) {
+                        printAndExit("-ks requires -kspass and -ksalias");
+                    }
+                    key = SigningKeyProvider.fromKeyStore(keyStore, storeType, storePassword,
+                            keyAlias, keyPassword);
+                } else {
+                    key = SigningKeyProvider.fromTestKey();
+                }
+
+                builder = new ApkBuilder(outApk, zipArchives.get(0), dexFile,
+                        key.getKey(), key.getCertificate(), incremental,
+                        verbose ? System.out : null);
+            } else {
+                builder = new ApkBuilder(outApk, zipArchives.get(0), dexFile,
+                        signed ? ApkBuilder.getDebugKeystore() : null, incremental,
+                        verbose ? System.out : null);
+            }
             builder.setDebugMode(debug);
 
             // add the rest of the files.
@@ -172,6 +231,8 @@ public class ApkBuilderMain {
                     e.getArchivePath(), e.getFile1(), e.getFile2()));
         } catch (SealedApkException e) {
             printAndExit(e.getMessage());
+        } catch (GeneralSecurityException e) {
+            printAndExit("Failed to load the signing key: " + e.getMessage());
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -186,13 +247,19 @@ public class ApkBuilderMain {
         System.err.println("recent build improvements including library projects.");
         System.err.println(">>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>\n\n");
         System.err.println("A command line tool to package an Android application from various sources.");
-        System.err.println("Usage: apkbuilder <out archive> [-v][-u][-storetype STORE_TYPE] [-z inputzip]");
+        System.err.println("Usage: apkbuilder <out archive> [-v][-u][-inc][-storetype STORE_TYPE] [-z inputzip]");
         System.err.println("            [-f inputfile] [-rf input-folder] [-rj -input-path]");
+        System.err.println("            [-tk | -ks keystore -kspass pass -ksalias alias [-keypass pass]]");
         System.err.println("");
         System.err.println("    -v      Verbose.");
         System.err.println("    -d      Debug Mode: Includes debug files in the APK file.");
         System.err.println("    -u      Creates an unsigned package.");
+        System.err.println("    -inc    Updates an existing package, only compressing changed files.");
         System.err.println("    -storetype Forces the KeyStore type. If ommited the default is used.");
+        System.err.println("    -tk     Signs the package with the test key instead of the debug key.");
+        System.err.println("    -ks     Followed by the path to a keystore. Signs the package with the");
+        System.err.println("            key -ksalias of this keystore, using the passwords -kspass and");
+        System.err.println("            -keypass (defaults to -kspass).");
         System.err.println("");
         System.err.println("    -z      Followed by the path to a zip archive.");
         System.err.println("            Adds the content of the application package.");
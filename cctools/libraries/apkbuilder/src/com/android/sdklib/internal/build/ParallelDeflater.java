@@ -0,0 +1,185 @@
+package com.android.sdklib.internal.build;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates data on a pool of worker threads.
+ * <p/>Data is split in blocks that are compressed independently. Each block is primed with the
+ * last 32KB of the block before it, so the ratio stays close to the one of a single stream,
+ * and ends with a sync flush so the compressed blocks can simply be concatenated.
+ * <p/>Sync flush is only available from Java 7 and Android API 19. On older runtimes each job is
+ * deflated as a single block, which still lets several entries be compressed at the same time.
+ */
+public class ParallelDeflater {
+    private static final int BLOCK_SIZE = 128 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int SYNC_FLUSH = 2; // Deflater.SYNC_FLUSH
+
+    private static final Method sDeflateWithFlush;
+
+    static {
+        Method method = null;
+        try {
+            method = Deflater.class.getMethod("deflate",
+                    byte[].class, int.class, int.class, int.class);
+        } catch (NoSuchMethodException e) {
+            // no sync flush support, blocks won't be split.
+        }
+        sDeflateWithFlush = method;
+    }
+
+    /**
+     * The result of {@link ParallelDeflater#deflate(byte[], int)}.
+     */
+    public static final class Job {
+        private final List<Future<byte[]>> mBlocks;
+
+        private Job(List<Future<byte[]>> blocks) {
+            mBlocks = blocks;
+        }
+
+        /**
+         * Returns the compressed size, waiting for all the blocks to be compressed.
+         */
+        public long getCompressedSize() throws IOException {
+            long size = 0;
+            for (Future<byte[]> block : mBlocks) {
+                size += getBlock(block).length;
+            }
+            return size;
+        }
+
+        /**
+         * Writes the compressed data, waiting for each block as needed.
+         */
+        public void writeTo(RawZipWriter writer) throws IOException {
+            for (Future<byte[]> block : mBlocks) {
+                byte[] data = getBlock(block);
+                writer.write(data, 0, data.length);
+            }
+        }
+
+        private static byte[] getBlock(Future<byte[]> block) throws IOException {
+            try {
+                return block.get();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while deflating");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    private final int mLevel;
+    private final ExecutorService mExecutor;
+
+    /**
+     * Creates a deflater with one worker thread per available processor.
+     * @param level the compression level, 0-9.
+     */
+    public ParallelDeflater(int level) {
+        this(level, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a deflater.
+     * @param level the compression level, 0-9.
+     * @param threads the number of worker threads.
+     */
+    public ParallelDeflater(int level, int threads) {
+        mLevel = level;
+        mExecutor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ParallelDeflater");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queues data for compression. The array must not be modified until the job is done.
+     * @param data the data to compress.
+     * @param length the number of bytes of data to compress.
+     * @return a {@link Job} giving access to the raw deflated data.
+     */
+    public Job deflate(final byte[] data, final int length) {
+        List<Future<byte[]>> blocks = new ArrayList<Future<byte[]>>();
+
+        int blockSize = sDeflateWithFlush != null ? BLOCK_SIZE : Math.max(length, 1);
+        int offset = 0;
+        do {
+            final int start = offset;
+            final int end = Math.min(length, start + blockSize);
+            blocks.add(mExecutor.submit(new Callable<byte[]>() {
+                public byte[] call() throws Exception {
+                    return deflateBlock(data, start, end - start, end == length);
+                }
+            }));
+            offset = end;
+        } while (offset < length);
+
+        return new Job(blocks);
+    }
+
+    /**
+     * Stops the worker threads. Pending jobs are still completed.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    private byte[] deflateBlock(byte[] data, int offset, int length, boolean last)
+            throws IOException {
+        Deflater deflater = new Deflater(mLevel, true /*nowrap*/);
+        try {
+            if (offset > 0) {
+                int dictLength = Math.min(offset, DICTIONARY_SIZE);
+                deflater.setDictionary(data, offset - dictLength, dictLength);
+            }
+            deflater.setInput(data, offset, length);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[16384];
+            if (last) {
+                deflater.finish();
+                while (deflater.finished() == false) {
+                    int count = deflater.deflate(buffer);
+                    out.write(buffer, 0, count);
+                }
+            } else {
+                // keep flushing while the output buffer gets filled.
+                int count;
+                do {
+                    count = (Integer) sDeflateWithFlush.invoke(deflater,
+                            buffer, 0, buffer.length, SYNC_FLUSH);
+                    out.write(buffer, 0, count);
+                } while (count == buffer.length);
+            }
+
+            return out.toByteArray();
+        } catch (IllegalAccessException e) {
+            throw new IOException("Sync flush unavailable: " + e);
+        } catch (InvocationTargetException e) {
+            throw new IOException("Deflate failed: " + e.getCause());
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package com.android.sdklib.internal.build;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * A read-only view of a Zip archive that gives access to the raw, still compressed, content of
+ * its entries.
+ * <p/>The entries are read from the central directory, so their CRC and sizes are known before
+ * any data is read. This allows entries to be copied into another archive without being
+ * inflated and deflated again.
+ * <p/>Zip64 archives and encrypted entries are not supported.
+ */
+public class RawZipReader {
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIR_SIG = 0x06054b50;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_OF_CENTRAL_DIR_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    private static final int FLAG_ENCRYPTED = 1;
+
+    /**
+     * An entry of the archive, as described by the central directory.
+     */
+    public static final class Entry {
+        private final String mName;
+        private final int mFlags;
+        private final int mMethod;
+        private final int mDosTime;
+        private final long mCrc;
+        private final long mCompressedSize;
+        private final long mSize;
+        private final long mLocalHeaderOffset;
+        private long mDataOffset = -1;
+
+        private Entry(String name, int flags, int method, int dosTime, long crc,
+                long compressedSize, long size, long localHeaderOffset) {
+            mName = name;
+            mFlags = flags;
+            mMethod = method;
+            mDosTime = dosTime;
+            mCrc = crc;
+            mCompressedSize = compressedSize;
+            mSize = size;
+            mLocalHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public boolean isDirectory() {
+            return mName.endsWith("/");
+        }
+
+        /** Returns the general purpose flags of the entry. */
+        public int getFlags() {
+            return mFlags;
+        }
+
+        /** Returns the compression method, {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}. */
+        public int getMethod() {
+            return mMethod;
+        }
+
+        /** Returns the modification time and date, in MS-DOS format (date in the high word). */
+        public int getDosTime() {
+            return mDosTime;
+        }
+
+        public long getCrc() {
+            return mCrc;
+        }
+
+        public long getCompressedSize() {
+            return mCompressedSize;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        /** Returns the offset of the local file header of the entry inside the archive. */
+        public long getLocalHeaderOffset() {
+            return mLocalHeaderOffset;
+        }
+    }
+
+    /** An {@link InputStream} reading a region of the archive file. */
+    private final class RegionInputStream extends InputStream {
+        private long mPosition;
+        private long mRemaining;
+        private boolean mAddDummyByte;
+
+        RegionInputStream(long offset, long length, boolean addDummyByte) {
+            mPosition = offset;
+            mRemaining = length;
+            mAddDummyByte = addDummyByte;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining <= 0) {
+                // the nowrap Inflater needs an extra byte past the end of the deflated data.
+                if (mAddDummyByte) {
+                    mAddDummyByte = false;
+                    b[off] = 0;
+                    return 1;
+                }
+                return -1;
+            }
+
+            if (len > mRemaining) {
+                len = (int) mRemaining;
+            }
+
+            int count;
+            synchronized (mFile) {
+                mFile.seek(mPosition);
+                count = mFile.read(b, off, len);
+            }
+            if (count == -1) {
+                throw new ZipException("Unexpected end of archive in " + mPath);
+            }
+
+            mPosition += count;
+            mRemaining -= count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(mRemaining, Integer.MAX_VALUE);
+        }
+    }
+
+    private final File mPath;
+    private final RandomAccessFile mFile;
+    private final List<Entry> mEntries = new ArrayList<Entry>();
+    private final Map<String, Entry> mEntryMap = new HashMap<String, Entry>();
+
+    /**
+     * Opens an archive and reads its central directory.
+     * @param file the archive to open.
+     * @throws IOException if the file cannot be read or is not a valid Zip archive.
+     */
+    public RawZipReader(File file) throws IOException {
+        mPath = file;
+        mFile = new RandomAccessFile(file, "r");
+        try {
+            readCentralDirectory();
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the entries of the archive, in central directory order.
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(mEntries);
+    }
+
+    /**
+     * Returns the entry with the given name, or <code>null</code> if there is none.
+     */
+    public Entry getEntry(String name) {
+        return mEntryMap.get(name);
+    }
+
+    /**
+     * Returns a stream on the data of the entry, as stored in the archive.
+     * @param entry the entry to read.
+     */
+    public InputStream getRawInputStream(Entry entry) throws IOException {
+        return new RegionInputStream(getDataOffset(entry), entry.getCompressedSize(),
+                false /*addDummyByte*/);
+    }
+
+    /**
+     * Returns a stream on the uncompressed data of the entry.
+     * @param entry the entry to read.
+     */
+    public InputStream getInputStream(Entry entry) throws IOException {
+        switch (entry.getMethod()) {
+            case ZipEntry.STORED:
+                return getRawInputStream(entry);
+            case ZipEntry.DEFLATED:
+                return new InflaterInputStream(
+                        new RegionInputStream(getDataOffset(entry), entry.getCompressedSize(),
+                                true /*addDummyByte*/),
+                        new Inflater(true /*nowrap*/));
+            default:
+                throw new ZipException(String.format("%1$s: unsupported compression method %2$d",
+                        entry.getName(), entry.getMethod()));
+        }
+    }
+
+    /**
+     * Closes the archive.
+     */
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    /**
+     * Returns the offset of the entry data, reading the local header if needed.
+     */
+    private long getDataOffset(Entry entry) throws IOException {
+        if (entry.mDataOffset == -1) {
+            byte[] header = new byte[LOCAL_HEADER_SIZE];
+            synchronized (mFile) {
+                mFile.seek(entry.getLocalHeaderOffset());
+                mFile.readFully(header);
+            }
+            if (getInt(header, 0) != LOCAL_HEADER_SIG) {
+                throw new ZipException(String.format("%1$s: bad local header for %2$s",
+                        mPath, entry.getName()));
+            }
+
+            entry.mDataOffset = entry.getLocalHeaderOffset() + LOCAL_HEADER_SIZE +
+                    getShort(header, 26) + getShort(header, 28);
+        }
+
+        return entry.mDataOffset;
+    }
+
+    private void readCentralDirectory() throws IOException {
+        long length = mFile.length();
+        if (length < END_OF_CENTRAL_DIR_SIZE) {
+            throw new ZipException(mPath + " is not a zip archive");
+        }
+
+        // the end of central directory record is followed by an optional comment.
+        int scanSize = (int) Math.min(length, END_OF_CENTRAL_DIR_SIZE + MAX_COMMENT_SIZE);
+        byte[] tail = new byte[scanSize];
+        mFile.seek(length - scanSize);
+        mFile.readFully(tail);
+
+        int eocd = -1;
+        for (int i = scanSize - END_OF_CENTRAL_DIR_SIZE; i >= 0; i--) {
+            if (getInt(tail, i) == END_OF_CENTRAL_DIR_SIG) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd == -1) {
+            throw new ZipException(mPath + " is not a zip archive");
+        }
+
+        int count = getShort(tail, eocd + 10);
+        long cdSize = getUnsignedInt(tail, eocd + 12);
+        long cdOffset = getUnsignedInt(tail, eocd + 16);
+        if (cdOffset == 0xffffffffL || count == 0xffff) {
+            throw new ZipException(mPath + ": Zip64 archives are not supported");
+        }
+
+        byte[] cd = new byte[(int) cdSize];
+        mFile.seek(cdOffset);
+        mFile.readFully(cd);
+
+        int pos = 0;
+        for (int i = 0 ; i < count ; i++) {
+            if (pos + CENTRAL_HEADER_SIZE > cd.length || getInt(cd, pos) != CENTRAL_HEADER_SIG) {
+                throw new ZipException(mPath + ": corrupted central directory");
+            }
+
+            int flags = getShort(cd, pos + 8);
+            int method = getShort(cd, pos + 10);
+            int dosTime = getInt(cd, pos + 12);
+            long crc = getUnsignedInt(cd, pos + 16);
+            long compressedSize = getUnsignedInt(cd, pos + 20);
+            long size = getUnsignedInt(cd, pos + 24);
+            int nameLength = getShort(cd, pos + 28);
+            int extraLength = getShort(cd, pos + 30);
+            int commentLength = getShort(cd, pos + 32);
+            long offset = getUnsignedInt(cd, pos + 42);
+            String name = new String(cd, pos + CENTRAL_HEADER_SIZE, nameLength, "UTF-8");
+
+            if ((flags & FLAG_ENCRYPTED) != 0) {
+                throw new ZipException(String.format("%1$s: %2$s is encrypted", mPath, name));
+            }
+
+            Entry entry = new Entry(name, flags, method, dosTime, crc, compressedSize, size,
+                    offset);
+            mEntries.add(entry);
+            mEntryMap.put(name, entry);
+
+            pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+    }
+
+    private static int getShort(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8;
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return getShort(b, off) | getShort(b, off + 2) << 16;
+    }
+
+    private static long getUnsignedInt(byte[] b, int off) {
+        return getInt(b, off) & 0xffffffffL;
+    }
+}
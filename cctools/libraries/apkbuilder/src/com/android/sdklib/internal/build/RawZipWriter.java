@@ -0,0 +1,216 @@
+package com.android.sdklib.internal.build;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * A Zip archive writer for entries whose CRC and sizes are known before their data is written.
+ * <p/>The data of each entry is written as is, which allows copying already compressed entries
+ * from another archive, or writing data that was deflated somewhere else. Since the sizes are
+ * known, the local headers never need a data descriptor.
+ */
+public class RawZipWriter {
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIR_SIG = 0x06054b50;
+
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    private static final int FLAG_UTF8 = 1 << 11;
+
+    private static final int VERSION_STORED = 10;
+    private static final int VERSION_DEFLATED = 20;
+
+    private static final int MAX_ENTRIES = 0xffff;
+
+    private final OutputStream mOut;
+    private final ByteArrayOutputStream mCentralDirectory = new ByteArrayOutputStream();
+    private final Set<String> mNames = new HashSet<String>();
+    private final byte[] mBuffer = new byte[8192];
+
+    private long mOffset = 0;
+    private int mEntryCount = 0;
+
+    private String mCurrentName;
+    private long mCurrentRemaining;
+
+    public RawZipWriter(OutputStream out) {
+        mOut = new BufferedOutputStream(out, 65536);
+    }
+
+    /**
+     * Starts a new entry. The data must then be written with {@link #write(byte[], int, int)}
+     * or {@link #write(InputStream)}, followed by a call to {@link #closeEntry()}.
+     * @param name the path of the entry inside the archive.
+     * @param method the compression method of the data, {@link ZipEntry#STORED} or
+     * {@link ZipEntry#DEFLATED}.
+     * @param dosTime the modification time and date in MS-DOS format.
+     * @param crc the CRC32 of the uncompressed data.
+     * @param compressedSize the size of the data as it is written.
+     * @param size the uncompressed size of the data.
+     * @throws ZipException if an entry with the same name was already written.
+     */
+    public void putEntry(String name, int method, int dosTime, long crc, long compressedSize,
+            long size) throws IOException {
+        if (mCurrentName != null) {
+            closeEntry();
+        }
+        if (mNames.add(name) == false) {
+            throw new ZipException("duplicate entry: " + name);
+        }
+        if (mEntryCount == MAX_ENTRIES || mOffset > 0xffffffffL || size > 0xffffffffL ||
+                compressedSize > 0xffffffffL) {
+            throw new ZipException("Zip64 archives are not supported: " + name);
+        }
+
+        byte[] nameBytes = name.getBytes("UTF-8");
+        int flags = nameBytes.length != name.length() ? FLAG_UTF8 : 0;
+        int version = method == ZipEntry.STORED ? VERSION_STORED : VERSION_DEFLATED;
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream(30 + nameBytes.length);
+        writeInt(header, LOCAL_HEADER_SIG);
+        writeShort(header, version);
+        writeShort(header, flags & ~FLAG_DATA_DESCRIPTOR);
+        writeShort(header, method);
+        writeInt(header, dosTime);
+        writeInt(header, (int) crc);
+        writeInt(header, (int) compressedSize);
+        writeInt(header, (int) size);
+        writeShort(header, nameBytes.length);
+        writeShort(header, 0); // extra field length
+        header.write(nameBytes);
+
+        writeInt(mCentralDirectory, CENTRAL_HEADER_SIG);
+        writeShort(mCentralDirectory, VERSION_DEFLATED); // made by
+        writeShort(mCentralDirectory, version);
+        writeShort(mCentralDirectory, flags);
+        writeShort(mCentralDirectory, method);
+        writeInt(mCentralDirectory, dosTime);
+        writeInt(mCentralDirectory, (int) crc);
+        writeInt(mCentralDirectory, (int) compressedSize);
+        writeInt(mCentralDirectory, (int) size);
+        writeShort(mCentralDirectory, nameBytes.length);
+        writeShort(mCentralDirectory, 0); // extra field length
+        writeShort(mCentralDirectory, 0); // comment length
+        writeShort(mCentralDirectory, 0); // disk number
+        writeShort(mCentralDirectory, 0); // internal attributes
+        writeInt(mCentralDirectory, 0);   // external attributes
+        writeInt(mCentralDirectory, (int) mOffset);
+        mCentralDirectory.write(nameBytes);
+
+        header.writeTo(mOut);
+        mOffset += header.size();
+        mEntryCount++;
+
+        mCurrentName = name;
+        mCurrentRemaining = compressedSize;
+    }
+
+    /**
+     * Writes data for the current entry.
+     */
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (mCurrentName == null) {
+            throw new ZipException("no current entry");
+        }
+        if (len > mCurrentRemaining) {
+            throw new ZipException("too much data for entry " + mCurrentName);
+        }
+
+        mOut.write(b, off, len);
+        mOffset += len;
+        mCurrentRemaining -= len;
+    }
+
+    /**
+     * Writes the content of a stream as data for the current entry.
+     */
+    public void write(InputStream input) throws IOException {
+        int count;
+        while ((count = input.read(mBuffer)) != -1) {
+            write(mBuffer, 0, count);
+        }
+    }
+
+    /**
+     * Closes the current entry, making sure all its data was written.
+     */
+    public void closeEntry() throws IOException {
+        if (mCurrentName != null && mCurrentRemaining != 0) {
+            throw new ZipException(String.format("%1$s: %2$d bytes missing",
+                    mCurrentName, mCurrentRemaining));
+        }
+        mCurrentName = null;
+    }
+
+    /**
+     * Writes the central directory and closes the underlying stream.
+     */
+    public void close() throws IOException {
+        closeEntry();
+
+        long cdOffset = mOffset;
+        mCentralDirectory.writeTo(mOut);
+
+        ByteArrayOutputStream end = new ByteArrayOutputStream(22);
+        writeInt(end, END_OF_CENTRAL_DIR_SIG);
+        writeShort(end, 0); // disk number
+        writeShort(end, 0); // disk with the central directory
+        writeShort(end, mEntryCount);
+        writeShort(end, mEntryCount);
+        writeInt(end, mCentralDirectory.size());
+        writeInt(end, (int) cdOffset);
+        writeShort(end, 0); // comment length
+        end.writeTo(mOut);
+
+        mOut.close();
+    }
+
+    /**
+     * Closes the underlying stream without writing the central directory, after an error.
+     */
+    public void abort() {
+        try {
+            mOut.close();
+        } catch (IOException e) {
+            // the archive is dropped anyway.
+        }
+    }
+
+    /**
+     * Converts a Java time into the MS-DOS time and date format used in Zip archives.
+     * @param time the time in milliseconds since the epoch.
+     */
+    public static int toDosTime(long time) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        int year = c.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16); // 1980-01-01 00:00
+        }
+
+        return (year - 1980) << 25 |
+                (c.get(Calendar.MONTH) + 1) << 21 |
+                c.get(Calendar.DAY_OF_MONTH) << 16 |
+                c.get(Calendar.HOUR_OF_DAY) << 11 |
+                c.get(Calendar.MINUTE) << 5 |
+                c.get(Calendar.SECOND) >> 1;
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value & 0xff);
+        out.write((value >> 8) & 0xff);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        writeShort(out, value & 0xffff);
+        writeShort(out, (value >> 16) & 0xffff);
+    }
+}
@@ -20,12 +20,6 @@ import com.android.sdklib.internal.build.SignedJarBuilder.IZipEntryFilter.ZipAbo
 
 import sun.misc.BASE64Encoder;
 
-/*import sun.security.pkcs.ContentInfo;
-import sun.security.pkcs.PKCS7;
-import sun.security.pkcs.SignerInfo;
-import sun.security.x509.AlgorithmId;
-import sun.security.x509.X500Name;*/
-
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -42,17 +36,20 @@ import java.security.PrivateKey;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.security.cert.X509Certificate;
+import java.util.LinkedList;
 import java.util.Map;
 import java.util.jar.Attributes;
-import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 /**
  * A Jar file builder with signature support.
+ * <p/>New entries are deflated in parallel, while entries copied from other archives keep their
+ * compressed data.
  */
 public class SignedJarBuilder {
     private static final String DIGEST_ALGORITHM = "SHA1";
@@ -85,17 +82,63 @@ public class SignedJarBuilder {
             } catch (SignatureException e) {
                 throw new IOException("SignatureException: " + e);
             }
-            super.write(b, off, len);
+            out.write(b, off, len);
+        }
+    }
+
+    /**
+     * An entry waiting to be written in the archive, either queued for compression or to be
+     * copied from the previous version of the archive.
+     */
+    private static final class PendingEntry {
+        final String mName;
+        final int mDosTime;
+        final long mCrc;
+        final byte[] mData;
+        final int mSize;
+        final ParallelDeflater.Job mJob;
+        final RawZipReader.Entry mPreviousEntry;
+
+        PendingEntry(String name, int dosTime, long crc, byte[] data, int size,
+                ParallelDeflater.Job job) {
+            mName = name;
+            mDosTime = dosTime;
+            mCrc = crc;
+            mData = data;
+            mSize = size;
+            mJob = job;
+            mPreviousEntry = null;
+        }
+
+        PendingEntry(RawZipReader.Entry previousEntry) {
+            mName = previousEntry.getName();
+            mDosTime = previousEntry.getDosTime();
+            mCrc = previousEntry.getCrc();
+            mData = null;
+            mSize = 0; // nothing held in memory
+            mJob = null;
+            mPreviousEntry = previousEntry;
         }
     }
 
-    private JarOutputStream mOutputJar;
+    /** Maximum amount of uncompressed data held in memory while waiting to be written. */
+    private static final int MAX_PENDING_SIZE = 16 * 1024 * 1024;
+
+    private RawZipWriter mOutputJar;
+    private ParallelDeflater mDeflater;
     private PrivateKey mKey;
     private X509Certificate mCertificate;
     private Manifest mManifest;
     private BASE64Encoder mBase64Encoder;
     private MessageDigest mMessageDigest;
 
+    private final LinkedList<PendingEntry> mPending = new LinkedList<PendingEntry>();
+    private long mPendingSize = 0;
+
+    private RawZipReader mPreviousArchive;
+    private Manifest mPreviousManifest;
+    private int mUnchangedCount = 0;
+
     private byte[] mBuffer = new byte[4096];
 
     /**
@@ -152,8 +195,8 @@ public class SignedJarBuilder {
      */
     public SignedJarBuilder(OutputStream out, PrivateKey key, X509Certificate certificate)
             throws IOException, NoSuchAlgorithmException {
-        mOutputJar = new JarOutputStream(out);
-        mOutputJar.setLevel(9);
+        mOutputJar = new RawZipWriter(out);
+        mDeflater = new ParallelDeflater(Deflater.BEST_COMPRESSION);
         mKey = key;
         mCertificate = certificate;
 
@@ -168,6 +211,42 @@ public class SignedJarBuilder {
         }
     }
 
+    /**
+     * Sets a previous version of the archive being built.
+     * <p/>Entries whose name, size and CRC did not change since then are not compressed again:
+     * their data is copied from the previous archive, and their digest is taken from its
+     * manifest when it has one. This must be called before any entry is written.
+     * @param previous the previous archive. It must not be the file being written.
+     * @throws IOException if the previous archive cannot be read.
+     */
+    public void setPreviousArchive(File previous) throws IOException {
+        RawZipReader zip = new RawZipReader(previous);
+        try {
+            RawZipReader.Entry manifest = zip.getEntry(JarFile.MANIFEST_NAME);
+            if (manifest != null && mManifest != null) {
+                InputStream is = zip.getInputStream(manifest);
+                try {
+                    mPreviousManifest = new Manifest(is);
+                } finally {
+                    is.close();
+                }
+            }
+        } catch (IOException e) {
+            zip.close();
+            throw e;
+        }
+
+        mPreviousArchive = zip;
+    }
+
+    /**
+     * Returns the number of entries found unchanged in the archive given to
+     * {@link #setPreviousArchive(File)}.
+     */
+    public int getUnchangedEntryCount() {
+        return mUnchangedCount;
+    }
+
     /**
      * Writes a new {@link File} into the archive.
      * @param inputFile the {@link File} to write.
@@ -178,12 +257,15 @@ public class SignedJarBuilder {
         // Get an input stream on the file.
         FileInputStream fis = new FileInputStream(inputFile);
         try {
+            byte[] data = new byte[(int) inputFile.length()];
+            int size = 0;
+            int count;
+            while (size < data.length &&
+                    (count = fis.read(data, size, data.length - size)) != -1) {
+                size += count;
+            }
 
-            // create the zip entry
-            JarEntry entry = new JarEntry(jarPath);
-            entry.setTime(inputFile.lastModified());
-
-            writeEntry(fis, entry);
+            writeEntry(data, size, jarPath, RawZipWriter.toDosTime(inputFile.lastModified()));
         } finally {
             // close the file stream used to read the file
             fis.close();
@@ -192,6 +274,73 @@ public class SignedJarBuilder {
 
     /**
      * Copies the content of a Jar/Zip archive into the receiver archive.
+     * <p/>The entries are copied as they are stored in the input archive, without being
+     * inflated and compressed again. Their data is only inflated to compute the digest when
+     * the archive is signed.
+     * <p/>An optional {@link IZipEntryFilter} allows to selectively choose which files
+     * to copy over.
+     * @param input the Jar/Zip {@link File} to copy.
+     * @param filter the filter or <code>null</code>
+     * @throws IOException
+     * @throws ZipAbortException if the {@link IZipEntryFilter} filter indicated that the write
+     *                           must be aborted.
+     */
+    public void writeZip(File input, IZipEntryFilter filter)
+            throws IOException, ZipAbortException {
+        RawZipReader zip = new RawZipReader(input);
+
+        try {
+            // loop on the entries of the intermediary package and put them in the final package.
+            for (RawZipReader.Entry entry : zip.getEntries()) {
+                String name = entry.getName();
+
+                // do not take directories or anything inside a potential META-INF folder.
+                if (entry.isDirectory() || name.startsWith("META-INF/")) {
+                    continue;
+                }
+
+                // if we have a filter, we check the entry against it
+                if (filter != null && filter.checkEntry(name) == false) {
+                    continue;
+                }
+
+                RawZipReader.Entry previous = findUnchangedEntry(name, entry.getCrc(),
+                        entry.getSize());
+
+                if (mManifest != null) {
+                    String digest = getPreviousDigest(previous);
+                    if (digest == null) {
+                        InputStream is = zip.getInputStream(entry);
+                        try {
+                            int count;
+                            while ((count = is.read(mBuffer)) != -1) {
+                                mMessageDigest.update(mBuffer, 0, count);
+                            }
+                        } finally {
+                            is.close();
+                        }
+                        digest = mBase64Encoder.encode(mMessageDigest.digest());
+                    }
+                    updateManifest(name, digest);
+                }
+
+                // keep the output in order with the entries still being compressed.
+                flushPending(0);
+
+                mOutputJar.putEntry(name, entry.getMethod(), entry.getDosTime(), entry.getCrc(),
+                        entry.getCompressedSize(), entry.getSize());
+                mOutputJar.write(zip.getRawInputStream(entry));
+                mOutputJar.closeEntry();
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Copies the content of a Jar/Zip archive into the receiver archive.
+     * <p/>Unlike {@link #writeZip(File, IZipEntryFilter)}, every entry is inflated and
+     * compressed again.
      * <p/>An optional {@link IZipEntryFilter} allows to selectively choose which files
      * to copy over.
      * @param input the {@link InputStream} for the Jar/Zip to copy.
@@ -220,17 +369,14 @@ public class SignedJarBuilder {
                     continue;
                 }
 
-                JarEntry newEntry;
-
-                // Preserve the STORED method of the input entry.
-                if (entry.getMethod() == JarEntry.STORED) {
-                    newEntry = new JarEntry(entry);
-                } else {
-                    // Create a new entry so that the compressed len is recomputed.
-                    newEntry = new JarEntry(name);
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                int count;
+                while ((count = zis.read(mBuffer)) != -1) {
+                    data.write(mBuffer, 0, count);
                 }
 
-                writeEntry(zis, newEntry);
+                writeEntry(data.toByteArray(), data.size(), name,
+                        RawZipWriter.toDosTime(entry.getTime()));
 
                 zis.closeEntry();
             }
@@ -246,57 +392,178 @@ public class SignedJarBuilder {
      */
     public void close() throws IOException, GeneralSecurityException {
         if (mManifest != null) {
+            int dosTime = RawZipWriter.toDosTime(System.currentTimeMillis());
+
             // write the manifest to the jar file
-            mOutputJar.putNextEntry(new JarEntry(JarFile.MANIFEST_NAME));
-            mManifest.write(mOutputJar);
+            ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+            mManifest.write(manifest);
+            writeMetaEntry(JarFile.MANIFEST_NAME, manifest, dosTime);
 
             // CERT.SF
             Signature signature = Signature.getInstance("SHA1with" + mKey.getAlgorithm());
             signature.initSign(mKey);
-            mOutputJar.putNextEntry(new JarEntry("META-INF/CERT.SF"));
-            writeSignatureFile(new SignatureOutputStream(mOutputJar, signature));
+            ByteArrayOutputStream sf = new ByteArrayOutputStream();
+            writeSignatureFile(new SignatureOutputStream(sf, signature));
+            writeMetaEntry("META-INF/CERT.SF", sf, dosTime);
 
             // CERT.*
-            mOutputJar.putNextEntry(new JarEntry("META-INF/CERT." + mKey.getAlgorithm()));
-            writeSignatureBlock(signature, mCertificate, mKey);
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            writeSignatureBlock(block, signature, mCertificate, mKey);
+            writeMetaEntry("META-INF/CERT." + mKey.getAlgorithm(), block, dosTime);
         }
 
-        mOutputJar.close();
+        try {
+            flushPending(0);
+            mOutputJar.close();
+        } finally {
+            mDeflater.shutdown();
+            if (mPreviousArchive != null) {
+                mPreviousArchive.close();
+            }
+        }
     }
 
     /**
-     * Adds an entry to the output jar, and write its content from the {@link InputStream}
-     * @param input The input stream from where to write the entry content.
-     * @param entry the entry to write in the jar.
-     * @throws IOException
+     * Stops writing the archive after an error, without finishing it. The output stream and
+     * the previous archive are closed.
      */
-    private void writeEntry(InputStream input, JarEntry entry) throws IOException {
-        // add the entry to the jar archive
-        mOutputJar.putNextEntry(entry);
-
-        // read the content of the entry from the input stream, and write it into the archive.
-        int count;
-        while ((count = input.read(mBuffer)) != -1) {
-            mOutputJar.write(mBuffer, 0, count);
-
-            // update the digest
-            if (mMessageDigest != null) {
-                mMessageDigest.update(mBuffer, 0, count);
+    public void cleanUp() {
+        mDeflater.shutdown();
+        mOutputJar.abort();
+        if (mPreviousArchive != null) {
+            try {
+                mPreviousArchive.close();
+            } catch (IOException e) {
+                // nothing to do, the archive was only read.
             }
         }
+    }
 
-        // close the entry for this file
-        mOutputJar.closeEntry();
+    /**
+     * Adds an entry to the output jar. The content is digested right away and queued for
+     * compression, the entry itself is written once its compressed data is ready.
+     * @param data the content of the entry.
+     * @param size the number of bytes of content in <var>data</var>.
+     * @param name the path of the entry in the jar.
+     * @param dosTime the modification time of the entry, in MS-DOS format.
+     * @throws IOException
+     */
+    private void writeEntry(byte[] data, int size, String name, int dosTime) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, size);
+
+        RawZipReader.Entry previous = findUnchangedEntry(name, crc.getValue(), size);
 
+        // update the digest
         if (mManifest != null) {
-            // update the manifest for this entry.
-            Attributes attr = mManifest.getAttributes(entry.getName());
-            if (attr == null) {
-                attr = new Attributes();
-                mManifest.getEntries().put(entry.getName(), attr);
+            String digest = getPreviousDigest(previous);
+            if (digest == null) {
+                mMessageDigest.update(data, 0, size);
+                digest = mBase64Encoder.encode(mMessageDigest.digest());
+            }
+            updateManifest(name, digest);
+        }
+
+        if (previous != null) {
+            // unchanged since the previous build, reuse the compressed data.
+            mPending.add(new PendingEntry(previous));
+            return;
+        }
+
+        mPending.add(new PendingEntry(name, dosTime, crc.getValue(), data, size,
+                mDeflater.deflate(data, size)));
+        mPendingSize += size;
+
+        // bound the memory used by the entries waiting for their compressed data.
+        flushPending(MAX_PENDING_SIZE);
+    }
+
+    /** Writes one of the META-INF entries created while signing the archive. */
+    private void writeMetaEntry(String name, ByteArrayOutputStream data, int dosTime)
+            throws IOException {
+        byte[] bytes = data.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+
+        mPending.add(new PendingEntry(name, dosTime, crc.getValue(), bytes, bytes.length,
+                mDeflater.deflate(bytes, bytes.length)));
+        mPendingSize += bytes.length;
+    }
+
+    /**
+     * Writes the pending entries, in the order they were added, until the size of the data
+     * still waiting to be written is at most <var>maxPendingSize</var>.
+     */
+    private void flushPending(long maxPendingSize) throws IOException {
+        while (mPending.isEmpty() == false && mPendingSize > maxPendingSize) {
+            PendingEntry entry = mPending.removeFirst();
+            mPendingSize -= entry.mSize;
+
+            if (entry.mPreviousEntry != null) {
+                RawZipReader.Entry previous = entry.mPreviousEntry;
+                mOutputJar.putEntry(entry.mName, previous.getMethod(), entry.mDosTime,
+                        entry.mCrc, previous.getCompressedSize(), previous.getSize());
+                mOutputJar.write(mPreviousArchive.getRawInputStream(previous));
+                mOutputJar.closeEntry();
+                continue;
+            }
+
+            long compressedSize = entry.mJob.getCompressedSize();
+            if (compressedSize < entry.mSize) {
+                mOutputJar.putEntry(entry.mName, ZipEntry.DEFLATED, entry.mDosTime, entry.mCrc,
+                        compressedSize, entry.mSize);
+                entry.mJob.writeTo(mOutputJar);
+            } else {
+                // deflating did not help, store the entry as is.
+                mOutputJar.putEntry(entry.mName, ZipEntry.STORED, entry.mDosTime, entry.mCrc,
+                        entry.mSize, entry.mSize);
+                mOutputJar.write(entry.mData, 0, entry.mSize);
             }
-            attr.putValue(DIGEST_ATTR, mBase64Encoder.encode(mMessageDigest.digest()));
+            mOutputJar.closeEntry();
+        }
+    }
+
+    /** Records the digest of the content of an entry in the manifest. */
+    private void updateManifest(String name, String digest) {
+        // update the manifest for this entry.
+        Attributes attr = mManifest.getAttributes(name);
+        if (attr == null) {
+            attr = new Attributes();
+            mManifest.getEntries().put(name, attr);
         }
+        attr.putValue(DIGEST_ATTR, digest);
+    }
+
+    /**
+     * Returns the entry of the previous archive with the given name, if its content has
+     * the same size and CRC, or <code>null</code>.
+     */
+    private RawZipReader.Entry findUnchangedEntry(String name, long crc, long size) {
+        if (mPreviousArchive == null) {
+            return null;
+        }
+
+        RawZipReader.Entry entry = mPreviousArchive.getEntry(name);
+        if (entry != null && entry.getCrc() == crc && entry.getSize() == size &&
+                (entry.getMethod() == ZipEntry.STORED || entry.getMethod() == ZipEntry.DEFLATED)) {
+            mUnchangedCount++;
+            return entry;
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the digest recorded in the manifest of the previous archive for an unchanged
+     * entry, or <code>null</code> if it needs to be computed.
+     */
+    private String getPreviousDigest(RawZipReader.Entry previous) {
+        if (previous == null || mPreviousManifest == null) {
+            return null;
+        }
+
+        Attributes attr = mPreviousManifest.getAttributes(previous.getName());
+        return attr != null ? attr.getValue(DIGEST_ATTR) : null;
     }
 
     /** Writes a .SF file with a digest to the manifest. */
@@ -336,25 +603,95 @@ public class SignedJarBuilder {
         sf.write(out);
     }
 
-    /** Write the certificate file with a digital signature. */
-    private void writeSignatureBlock(Signature signature, X509Certificate publicKey,
-            PrivateKey privateKey)
+    /**
+     * Write the certificate file with a digital signature.
+     * <p/>The PKCS#7 SignedData block is encoded here rather than with sun.security.pkcs,
+     * which is not available on Android.
+     */
+    private void writeSignatureBlock(OutputStream out, Signature signature,
+            X509Certificate publicKey, PrivateKey privateKey)
             throws IOException, GeneralSecurityException {
-         //SPARTACUS - This needs sun.security working.. which it isn't
-        /*SignerInfo signerInfo = new SignerInfo(
-                new X500Name(publicKey.getIssuerX500Principal().getName()),
-                publicKey.getSerialNumber(),
-                AlgorithmId.get(DIGEST_ALGORITHM),
-                AlgorithmId.get(privateKey.getAlgorithm()),
-                signature.sign());
-
-        PKCS7 pkcs7 = new PKCS7(
-                new AlgorithmId[] { AlgorithmId.get(DIGEST_ALGORITHM) },
-                new ContentInfo(ContentInfo.DATA_OID, null),
-                new X509Certificate[] { publicKey },
-                new SignerInfo[] { signerInfo });
-
-        pkcs7.encodeSignedData(mOutputJar);
-         */
+        byte[] sha1 = derAlgorithm(OID_SHA1, true /*nullParams*/);
+        byte[] encryption;
+        if ("RSA".equals(privateKey.getAlgorithm())) {
+            encryption = derAlgorithm(OID_RSA, true /*nullParams*/);
+        } else if ("DSA".equals(privateKey.getAlgorithm())) {
+            encryption = derAlgorithm(OID_DSA, false /*nullParams*/);
+        } else {
+            throw new GeneralSecurityException(
+                    "Unsupported key algorithm: " + privateKey.getAlgorithm());
+        }
+
+        byte[] signerInfo = der(DER_SEQUENCE,
+                der(DER_INTEGER, new byte[] { 1 }),
+                der(DER_SEQUENCE,
+                        publicKey.getIssuerX500Principal().getEncoded(),
+                        der(DER_INTEGER, publicKey.getSerialNumber().toByteArray())),
+                sha1,
+                encryption,
+                der(DER_OCTET_STRING, signature.sign()));
+
+        byte[] signedData = der(DER_SEQUENCE,
+                der(DER_INTEGER, new byte[] { 1 }),
+                der(DER_SET, sha1),
+                der(DER_SEQUENCE, der(DER_OID, OID_DATA)),
+                der(DER_CONTEXT_0, publicKey.getEncoded()),
+                der(DER_SET, signerInfo));
+
+        out.write(der(DER_SEQUENCE,
+                der(DER_OID, OID_SIGNED_DATA),
+                der(DER_CONTEXT_0, signedData)));
+    }
+
+    private static final int DER_INTEGER = 0x02;
+    private static final int DER_OCTET_STRING = 0x04;
+    private static final int DER_NULL = 0x05;
+    private static final int DER_OID = 0x06;
+    private static final int DER_SEQUENCE = 0x30;
+    private static final int DER_SET = 0x31;
+    private static final int DER_CONTEXT_0 = 0xa0;
+
+    private static final byte[] OID_DATA = { // 1.2.840.113549.1.7.1
+        0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x01, 0x07, 0x01 };
+    private static final byte[] OID_SIGNED_DATA = { // 1.2.840.113549.1.7.2
+        0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x01, 0x07, 0x02 };
+    private static final byte[] OID_SHA1 = { // 1.3.14.3.2.26
+        0x2b, 0x0e, 0x03, 0x02, 0x1a };
+    private static final byte[] OID_RSA = { // 1.2.840.113549.1.1.1
+        0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x01, 0x01, 0x01 };
+    private static final byte[] OID_DSA = { // 1.2.840.10040.4.1
+        0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x38, 0x04, 0x01 };
+
+    /** Encodes a DER AlgorithmIdentifier. */
+    private static byte[] derAlgorithm(byte[] oid, boolean nullParams) {
+        if (nullParams) {
+            return der(DER_SEQUENCE, der(DER_OID, oid), der(DER_NULL));
+        }
+        return der(DER_SEQUENCE, der(DER_OID, oid));
+    }
+
+    /** Encodes a DER element whose content is the concatenation of <var>contents</var>. */
+    private static byte[] der(int tag, byte[]... contents) {
+        int length = 0;
+        for (byte[] content : contents) {
+            length += content.length;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length + 6);
+        out.write(tag);
+        if (length < 0x80) {
+            out.write(length);
+        } else {
+            int bytes = length < 0x100 ? 1 : length < 0x10000 ? 2 : length < 0x1000000 ? 3 : 4;
+            out.write(0x80 | bytes);
+            for (int i = bytes - 1 ; i >= 0 ; i--) {
+                out.write(length >> (i * 8));
+            }
+        }
+        for (byte[] content : contents) {
+            out.write(content, 0, content.length);
+        }
+
+        return out.toByteArray();
     }
 }
@@ -0,0 +1,116 @@
+package com.android.sdklib.internal.build;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+
+/**
+ * A provider of the key and certificate used to sign an application, loaded either from a
+ * keystore or from the test key bundled with zipsigner.
+ * <p/>Unlike {@link DebugKeyProvider}, this never creates keys, so it does not need keytool.
+ */
+public class SigningKeyProvider {
+
+    private static final String TEST_KEY = "/keys/testkey.pk8";
+    private static final String TEST_CERTIFICATE = "/keys/testkey.x509.pem";
+
+    private final PrivateKey mKey;
+    private final X509Certificate mCertificate;
+
+    private SigningKeyProvider(PrivateKey key, X509Certificate certificate) {
+        mKey = key;
+        mCertificate = certificate;
+    }
+
+    /**
+     * Returns a provider for the platform test key, the one <code>apksigner</code> uses.
+     * <p/>The key is looked up in the class path, where the zipsigner library puts it.
+     * @throws FileNotFoundException if the test key is not in the class path.
+     */
+    public static SigningKeyProvider fromTestKey() throws IOException, GeneralSecurityException {
+        byte[] key = readResource(TEST_KEY);
+        PrivateKey privateKey = KeyFactory.getInstance("RSA").generatePrivate(
+                new PKCS8EncodedKeySpec(key));
+
+        InputStream is = SigningKeyProvider.class.getResourceAsStream(TEST_CERTIFICATE);
+        if (is == null) {
+            throw new FileNotFoundException("Test certificate not found: " + TEST_CERTIFICATE);
+        }
+        try {
+            X509Certificate certificate = (X509Certificate)
+                    CertificateFactory.getInstance("X.509").generateCertificate(is);
+            return new SigningKeyProvider(privateKey, certificate);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Returns a provider for a key stored in a keystore.
+     * @param osKeyStorePath the OS path to the keystore.
+     * @param storeType an optional keystore type, or <code>null</code> if the default is to
+     * be used.
+     * @param storePassword the password of the keystore.
+     * @param alias the alias of the key.
+     * @param keyPassword the password of the key, or <code>null</code> if it is the same as
+     * <var>storePassword</var>.
+     */
+    public static SigningKeyProvider fromKeyStore(String osKeyStorePath, String storeType,
+            String storePassword, String alias, String keyPassword)
+            throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(
+                storeType != null ? storeType : KeyStore.getDefaultType());
+        FileInputStream fis = new FileInputStream(osKeyStorePath);
+        try {
+            keyStore.load(fis, storePassword.toCharArray());
+        } finally {
+            fis.close();
+        }
+
+        char[] password = (keyPassword != null ? keyPassword : storePassword).toCharArray();
+        KeyStore.PrivateKeyEntry entry = (KeyStore.PrivateKeyEntry) keyStore.getEntry(
+                alias, new KeyStore.PasswordProtection(password));
+        if (entry == null) {
+            throw new GeneralSecurityException(String.format("No key '%1$s' in %2$s",
+                    alias, osKeyStorePath));
+        }
+
+        return new SigningKeyProvider(entry.getPrivateKey(),
+                (X509Certificate) entry.getCertificate());
+    }
+
+    public PrivateKey getKey() {
+        return mKey;
+    }
+
+    public X509Certificate getCertificate() {
+        return mCertificate;
+    }
+
+    private static byte[] readResource(String name) throws IOException {
+        InputStream is = SigningKeyProvider.class.getResourceAsStream(name);
+        if (is == null) {
+            throw new FileNotFoundException("Test key not found: " + name);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -68,6 +68,9 @@ public class ZipArchiveInputStream extends ArchiveInputStream {
     private ZipArchiveEntry current = null;
     private boolean closed = false;
     private boolean hitCentralDirectory = false;
+    private byte[] centralDirectoryStart = null;
+    private int centralDirectoryEntries = 0;
+    private boolean hitEndOfCentralDirectory = false;
     private int offsetInBuffer = 0;
     private long readBytesOfEntry = 0, bytesReadFromStream = 0;
     private int lengthOfLastRead = 0;
@@ -143,6 +146,7 @@ public class ZipArchiveInputStream extends ArchiveInputStream {
         ZipLong sig = new ZipLong(lfh);
         if (sig.equals(ZipLong.CFH_SIG)) {
             hitCentralDirectory = true;
+            centralDirectoryStart = lfh;
             return null;
         }
         if (!sig.equals(ZipLong.LFH_SIG)) {
@@ -207,6 +211,166 @@ public class ZipArchiveInputStream extends ArchiveInputStream {
         return current;
     }
 
+    /*
+      central file header signature   4 bytes  (0x02014b50)
+      version made by                 2 bytes
+      version needed to extract       2 bytes
+      general purpose bit flag        2 bytes
+      compression method              2 bytes
+      last mod file time              2 bytes
+      last mod file date              2 bytes
+      crc-32                          4 bytes
+      compressed size                 4 bytes
+      uncompressed size               4 bytes
+      file name length                2 bytes
+      extra field length              2 bytes
+      file comment length             2 bytes
+      disk number start               2 bytes
+      internal file attributes        2 bytes
+      external file attributes        4 bytes
+      relative offset of local header 4 bytes
+    */
+    private static final int CFH_LEN = 46;
+
+    /*
+      end of central dir signature    4 bytes
+      number of this disk             2 bytes
+      disk with the central directory 2 bytes
+      entries on this disk            2 bytes
+      total entries                   2 bytes
+      size of the central directory   4 bytes
+      offset of the central directory 4 bytes
+      comment length                  2 bytes
+    */
+    private static final int EOCD_LEN = 22;
+
+    /**
+     * Reads the next entry of the central directory.
+     *
+     * <p>Only available once {@link #getNextZipEntry} has returned
+     * null because it reached the central directory.  The entries
+     * returned know the data that is only stored in the central
+     * directory, like the external attributes that hold the unix
+     * permissions, but have no extra fields.</p>
+     *
+     * <p>Null is also returned if the archive ends before the end of
+     * central directory record, use {@link
+     * #hitEndOfCentralDirectory} to tell a complete archive from a
+     * truncated one.</p>
+     *
+     * @return the next central directory entry or null if there are
+     * no more entries
+     */
+    public ZipArchiveEntry getNextCentralDirectoryEntry() throws IOException {
+        if (closed || !hitCentralDirectory) {
+            return null;
+        }
+        byte[] cfh = new byte[CFH_LEN];
+        if (centralDirectoryStart != null) {
+            // The first header was read as a local file header
+            System.arraycopy(centralDirectoryStart, 0, cfh, 0, LFH_LEN);
+            centralDirectoryStart = null;
+            byte[] rest = new byte[CFH_LEN - LFH_LEN];
+            readFully(rest);
+            System.arraycopy(rest, 0, cfh, LFH_LEN, rest.length);
+        } else {
+            byte[] sig = new byte[WORD];
+            try {
+                readFully(sig);
+            } catch (EOFException e) {
+                return null;
+            }
+            if (!ZipLong.CFH_SIG.equals(new ZipLong(sig))) {
+                if (checksig(sig, ZipArchiveOutputStream.EOCD_SIG)) {
+                    readEndOfCentralDirectory();
+                }
+                return null;
+            }
+            byte[] rest = new byte[CFH_LEN - WORD];
+            readFully(rest);
+            System.arraycopy(sig, 0, cfh, 0, WORD);
+            System.arraycopy(rest, 0, cfh, WORD, rest.length);
+        }
+
+        int off = WORD;
+        ZipArchiveEntry ze = new ZipArchiveEntry();
+
+        int versionMadeBy = ZipShort.getValue(cfh, off);
+        off += SHORT;
+        ze.setPlatform((versionMadeBy >> ZipFile.BYTE_SHIFT)
+                       & ZipFile.NIBLET_MASK);
+
+        off += SHORT; // skip version info
+
+        final GeneralPurposeBit gpFlag = GeneralPurposeBit.parse(cfh, off);
+        final ZipEncoding entryEncoding = gpFlag.usesUTF8ForNames()
+            ? ZipEncodingHelper.UTF8_ZIP_ENCODING : zipEncoding;
+        ze.setGeneralPurposeBit(gpFlag);
+        off += SHORT;
+
+        ze.setMethod(ZipShort.getValue(cfh, off));
+        off += SHORT;
+
+        ze.setTime(ZipUtil.dosToJavaTime(ZipLong.getValue(cfh, off)));
+        off += WORD;
+
+        ze.setCrc(ZipLong.getValue(cfh, off));
+        off += WORD;
+
+        ze.setCompressedSize(ZipLong.getValue(cfh, off));
+        off += WORD;
+
+        ze.setSize(ZipLong.getValue(cfh, off));
+        off += WORD;
+
+        int fileNameLen = ZipShort.getValue(cfh, off);
+        off += SHORT;
+
+        int extraLen = ZipShort.getValue(cfh, off);
+        off += SHORT;
+
+        int commentLen = ZipShort.getValue(cfh, off);
+        off += SHORT;
+
+        off += SHORT; // disk number
+
+        ze.setInternalAttributes(ZipShort.getValue(cfh, off));
+        off += SHORT;
+
+        ze.setExternalAttributes(ZipLong.getValue(cfh, off));
+
+        byte[] fileName = new byte[fileNameLen];
+        readFully(fileName);
+        ze.setName(entryEncoding.decode(fileName), fileName);
+
+        readFully(new byte[extraLen]);
+        readFully(new byte[commentLen]);
+        centralDirectoryEntries++;
+        return ze;
+    }
+
+    /**
+     * Whether the end of central directory record has been read by
+     * {@link #getNextCentralDirectoryEntry}, so the archive wasn't
+     * truncated.
+     */
+    public boolean hitEndOfCentralDirectory() {
+        return hitEndOfCentralDirectory;
+    }
+
+    private void readEndOfCentralDirectory() throws IOException {
+        byte[] eocd = new byte[EOCD_LEN - WORD];
+        readFully(eocd);
+        int totalEntries = ZipShort.getValue(eocd, 3 * SHORT);
+        if (totalEntries != centralDirectoryEntries) {
+            throw new ZipException("central directory has " + centralDirectoryEntries
+                                   + " entries, end of central directory record says "
+                                   + totalEntries);
+        }
+        readFully(new byte[ZipShort.getValue(eocd, EOCD_LEN - WORD - SHORT)]);
+        hitEndOfCentralDirectory = true;
+    }
+
     /** {@inheritDoc} */
     public ArchiveEntry getNextEntry() throws IOException {
         return getNextZipEntry();
@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.commons.compress.compressors.bzip2;
+
+/**
+ * A growable sequence of bits, most significant bit of each byte first
+ * like in the bzip2 format.
+ *
+ * <p>Used by the parallel bzip2 streams to move compressed blocks,
+ * which don't start or end at byte boundaries, between streams.</p>
+ * @NotThreadSafe
+ */
+final class BitBuffer {
+
+    private byte[] data;
+    private long length = 0;
+
+    BitBuffer(final int capacity) {
+        data = new byte[Math.max(capacity, 16)];
+    }
+
+    /**
+     * Returns the number of bits in the buffer.
+     */
+    long length() {
+        return length;
+    }
+
+    /**
+     * Appends the low n bits of v, 0 &lt;= n &lt;= 32.
+     */
+    void write(int n, final int v) {
+        ensureCapacity(length + n);
+        while (n > 0) {
+            final int free = 8 - (int) (length & 7);
+            final int take = Math.min(free, n);
+            final int chunk = (v >>> (n - take)) & ((1 << take) - 1);
+            data[(int) (length >>> 3)] |= chunk << (free - take);
+            length += take;
+            n -= take;
+        }
+    }
+
+    /**
+     * Appends count bits of src starting at bit offset from.
+     */
+    void write(final byte[] src, long from, long count) {
+        ensureCapacity(length + count);
+        if ((from & 7) == 0 && (length & 7) == 0) {
+            final int bytes = (int) (count >>> 3);
+            System.arraycopy(src, (int) (from >>> 3), data, (int) (length >>> 3), bytes);
+            length += (long) bytes << 3;
+            from += (long) bytes << 3;
+            count -= (long) bytes << 3;
+        }
+        while (count >= 8) {
+            write(8, get(src, from, 8));
+            from += 8;
+            count -= 8;
+        }
+        if (count > 0) {
+            write((int) count, get(src, from, (int) count));
+        }
+    }
+
+    /**
+     * Appends the bits of another buffer.
+     */
+    void write(final BitBuffer other) {
+        write(other.data, 0, other.length);
+    }
+
+    /**
+     * Returns the bits padded with zero bits to whole bytes.
+     */
+    byte[] toByteArray() {
+        final byte[] result = new byte[(int) ((length + 7) >>> 3)];
+        System.arraycopy(data, 0, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * Returns the bytes backing the buffer, the bits after length()
+     * are zero.
+     */
+    byte[] getData() {
+        return data;
+    }
+
+    private void ensureCapacity(final long bits) {
+        final long bytes = (bits + 7) >>> 3;
+        if (bytes > data.length) {
+            final byte[] newData = new byte[(int) Math.max(bytes, (long) data.length * 2)];
+            System.arraycopy(data, 0, newData, 0, data.length);
+            data = newData;
+        }
+    }
+
+    /**
+     * Reads n bits, 0 &lt;= n &lt;= 32, at bit offset from of src.
+     */
+    static int get(final byte[] src, long from, int n) {
+        int v = 0;
+        while (n > 0) {
+            final int avail = 8 - (int) (from & 7);
+            final int take = Math.min(avail, n);
+            final int b = src[(int) (from >>> 3)] & 0xff;
+            v = (v << take) | ((b >>> (avail - take)) & ((1 << take) - 1));
+            from += take;
+            n -= take;
+        }
+        return v;
+    }
+
+    /**
+     * Reads the 48 bits of a block or end of stream magic.
+     */
+    static long get48(final byte[] src, final long from) {
+        return ((long) get(src, from, 24) << 24) | get(src, from + 24, 24);
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.commons.compress.compressors.bzip2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.compress.compressors.CompressorInputStream;
+
+/**
+ * An input stream that decompresses from the BZip2 format using several
+ * threads.
+ *
+ * <p>The compressed data is scanned for the 48 bit magic numbers that
+ * start every block and end every stream.  Each block is turned into a
+ * bzip2 stream of its own and decompressed on a pool of worker threads,
+ * the results are returned in order.  The block CRCs and the combined
+ * CRC of every stream are checked.  At most two blocks per thread are in
+ * progress, which bounds the memory used.</p>
+ *
+ * <p>Unlike {@link BZip2CompressorInputStream} this stream also reads
+ * concatenated bzip2 streams, as written by pbzip2, until the end of the
+ * input or until the data after a stream is no bzip2 stream.</p>
+ *
+ * <p>The magic numbers may also occur by chance inside a compressed
+ * block.  A block that fails to decompress is joined with the next one
+ * and decompressed again.</p>
+ *
+ * @NotThreadSafe
+ */
+public class ParallelBZip2CompressorInputStream extends CompressorInputStream {
+
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long EOS_MAGIC = 0x177245385090L;
+    private static final long MAGIC_MASK = 0xffffffffffffL;
+
+    /* magic number and block CRC */
+    private static final int BLOCK_HEADER_BITS = 48 + 32;
+
+    /* blocks joined at most when a block fails to decompress */
+    private static final int MAX_JOINED = 4;
+
+    /* larger compressed blocks are considered corrupted data */
+    private static final int MAX_BLOCK_BYTES = 4 * 1024 * 1024;
+
+    private InputStream in;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final LinkedList<Segment> pending = new LinkedList<Segment>();
+
+    /* compressed data being scanned, bit positions are relative to it */
+    private byte[] buf = new byte[1024 * 1024];
+    private int bufLength = 0;
+    private boolean inputEnd = false;
+    private long segmentStart;
+    private long scanPos;
+    private long window;
+    private boolean streamsEnd = false;
+    private int blockSize100k;
+
+    private int combinedCRC = 0;
+    private byte[] block = null;
+    private int blockPos = 0;
+
+    /**
+     * A compressed block or the end of a stream.
+     */
+    private static final class Segment {
+        private final BitBuffer bits;
+        private final int crc;
+        private final int blockSize100k;
+        private Future<byte[]> result;
+
+        private Segment(final BitBuffer bits, final int crc, final int blockSize100k) {
+            this.bits = bits;
+            this.crc = crc;
+            this.blockSize100k = blockSize100k;
+        }
+
+        private boolean isEndOfStream() {
+            return bits == null;
+        }
+    }
+
+    /**
+     * Constructs a new stream using one thread per available processor.
+     *
+     * @throws IOException if the stream content is malformed or an I/O
+     * error occurs.
+     */
+    public ParallelBZip2CompressorInputStream(final InputStream in)
+        throws IOException {
+        this(in, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs a new stream.
+     *
+     * @param threads the number of decompressing threads.
+     * @throws IOException if the stream content is malformed or an I/O
+     * error occurs.
+     */
+    public ParallelBZip2CompressorInputStream(final InputStream in,
+                                              final int threads)
+        throws IOException {
+        if (in == null) {
+            throw new NullPointerException();
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads(" + threads + ") < 1");
+        }
+        this.in = in;
+        this.maxPending = threads * 2;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    Thread t = new Thread(r, "bzip2 decompressor");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        if (!startStream(0)) {
+            executor.shutdownNow();
+            throw new IOException("Stream is not BZip2 formatted");
+        }
+    }
+
+    /** {@inheritDoc} */
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    /** {@inheritDoc} */
+    public int read(final byte[] dest, final int offs, final int len)
+        throws IOException {
+        if (offs < 0 || len < 0 || offs + len > dest.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (in == null) {
+            throw new IOException("stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        while (block == null || blockPos == block.length) {
+            if (!nextBlock()) {
+                return -1;
+            }
+        }
+        final int n = Math.min(len, block.length - blockPos);
+        System.arraycopy(block, blockPos, dest, offs, n);
+        blockPos += n;
+        count(n);
+        return n;
+    }
+
+    /** {@inheritDoc} */
+    public void close() throws IOException {
+        InputStream inShadow = this.in;
+        if (inShadow != null) {
+            try {
+                executor.shutdownNow();
+                if (inShadow != System.in) {
+                    inShadow.close();
+                }
+            } finally {
+                this.in = null;
+                this.buf = null;
+                this.block = null;
+                pending.clear();
+            }
+        }
+    }
+
+    /**
+     * Takes the next decompressed block, returns false at the end.
+     */
+    private boolean nextBlock() throws IOException {
+        while (true) {
+            fillPending();
+            if (pending.isEmpty()) {
+                return false;
+            }
+            Segment segment = pending.removeFirst();
+            if (segment.isEndOfStream()) {
+                if (segment.crc != combinedCRC) {
+                    throw new IOException("BZip2 CRC error");
+                }
+                combinedCRC = 0;
+                continue;
+            }
+            block = getResult(segment);
+            blockPos = 0;
+            combinedCRC = (combinedCRC << 1) | (combinedCRC >>> 31);
+            combinedCRC ^= segment.crc;
+            return true;
+        }
+    }
+
+    private byte[] getResult(final Segment segment) throws IOException {
+        try {
+            return segment.result.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted");
+        } catch (ExecutionException e) {
+            // a magic number in the data may have split the block
+            BitBuffer joined = segment.bits;
+            for (int i = 0; i < MAX_JOINED; i++) {
+                if (pending.isEmpty()) {
+                    fillPending();
+                }
+                if (pending.isEmpty() || pending.getFirst().isEndOfStream()) {
+                    break;
+                }
+                Segment next = pending.removeFirst();
+                next.result.cancel(true);
+                BitBuffer bits = new BitBuffer((int) ((joined.length() + next.bits.length()) >>> 3) + 1);
+                bits.write(joined);
+                bits.write(next.bits);
+                joined = bits;
+                try {
+                    return decompress(joined, segment.crc, segment.blockSize100k);
+                } catch (IOException ex) {
+                    // try with one more block
+                }
+            }
+            IOException ex = new IOException("decompressing thread failed: "
+                                             + e.getCause());
+            ex.initCause(e.getCause());
+            throw ex;
+        }
+    }
+
+    /**
+     * Scans and submits blocks until enough are in progress.
+     */
+    private void fillPending() throws IOException {
+        while (pending.size() < maxPending && !streamsEnd) {
+            scanSegment();
+        }
+    }
+
+    /**
+     * Scans to the next block or stream end and queues the block that
+     * ends there.
+     */
+    private void scanSegment() throws IOException {
+        while (true) {
+            if (scanPos >= (long) bufLength << 3) {
+                if (scanPos - segmentStart > (long) MAX_BLOCK_BYTES << 3) {
+                    throw new IOException("bad block header");
+                }
+                compact();
+                if (!fill(bufLength + 1)) {
+                    throw new IOException("unexpected end of stream");
+                }
+            }
+            final int b = buf[(int) (scanPos >>> 3)];
+            final int shift = 7 - (int) (scanPos & 7);
+            window = ((window << 1) | ((b >>> shift) & 1)) & MAGIC_MASK;
+            scanPos++;
+
+            final long magicPos = scanPos - 48;
+            if (magicPos < segmentStart + BLOCK_HEADER_BITS) {
+                continue;
+            }
+            if (window == BLOCK_MAGIC) {
+                queueBlock(magicPos);
+                segmentStart = magicPos;
+                return;
+            }
+            if (window == EOS_MAGIC && isStreamEnd(magicPos)) {
+                queueBlock(magicPos);
+                endStream(magicPos);
+                return;
+            }
+        }
+    }
+
+    private void queueBlock(final long end) throws IOException {
+        final long length = end - segmentStart;
+        if (length > (long) MAX_BLOCK_BYTES << 3) {
+            throw new IOException("bad block header");
+        }
+        BitBuffer bits = new BitBuffer((int) (length >>> 3) + 1);
+        bits.write(buf, segmentStart, length);
+        final int crc = BitBuffer.get(buf, segmentStart + 48, 32);
+
+        final Segment segment = new Segment(bits, crc, blockSize100k);
+        segment.result = executor.submit(new Callable<byte[]>() {
+                public byte[] call() throws IOException {
+                    return decompress(segment.bits, segment.crc, segment.blockSize100k);
+                }
+            });
+        pending.add(segment);
+    }
+
+    /**
+     * Checks that an end of stream magic found while scanning is not just
+     * data: it has to be followed by the stream CRC and zero padding.
+     * The stream CRC is checked when the stream end is reached, any data
+     * after the padding that is no bzip2 stream is ignored.
+     */
+    private boolean isStreamEnd(final long magicPos) throws IOException {
+        final long crcEnd = magicPos + 48 + 32;
+        final long aligned = (crcEnd + 7) & ~7L;
+        if (!fill((int) (aligned >>> 3))) {
+            return false;
+        }
+        return aligned == crcEnd
+            || BitBuffer.get(buf, crcEnd, (int) (aligned - crcEnd)) == 0;
+    }
+
+    private boolean isStreamHeader(final int pos) {
+        if (pos + 10 > bufLength || buf[pos] != 'B' || buf[pos + 1] != 'Z'
+            || buf[pos + 2] != 'h' || buf[pos + 3] < '1' || buf[pos + 3] > '9') {
+            return false;
+        }
+        final long magic = BitBuffer.get48(buf, (long) (pos + 4) << 3);
+        return magic == BLOCK_MAGIC || magic == EOS_MAGIC;
+    }
+
+    private void endStream(final long magicPos) throws IOException {
+        final int crc = BitBuffer.get(buf, magicPos + 48, 32);
+        pending.add(new Segment(null, crc, blockSize100k));
+        final long aligned = (magicPos + 48 + 32 + 7) & ~7L;
+        if (!startStream((int) (aligned >>> 3))) {
+            streamsEnd = true;
+        }
+    }
+
+    /**
+     * Starts scanning the stream at the byte position, returns false if
+     * there is no stream.
+     */
+    private boolean startStream(final int pos) throws IOException {
+        fill(pos + 10);
+        if (!isStreamHeader(pos)) {
+            return false;
+        }
+        blockSize100k = buf[pos + 3] - '0';
+        final long start = (long) (pos + 4) << 3;
+        if (BitBuffer.get48(buf, start) == EOS_MAGIC) {
+            // empty stream
+            segmentStart = start;
+            endStream(start);
+            return true;
+        }
+        segmentStart = start;
+        scanPos = start + 48;
+        window = BLOCK_MAGIC;
+        return true;
+    }
+
+    /**
+     * Drops the bytes before the current block from the buffer.
+     */
+    private void compact() {
+        final int drop = (int) (segmentStart >>> 3);
+        if (drop > 0) {
+            System.arraycopy(buf, drop, buf, 0, bufLength - drop);
+            bufLength -= drop;
+            segmentStart -= (long) drop << 3;
+            scanPos -= (long) drop << 3;
+        }
+    }
+
+    /**
+     * Reads input until there are at least the given number of bytes in
+     * the buffer, returns false if the input ended before.
+     */
+    private boolean fill(final int bytes) throws IOException {
+        if (bytes <= bufLength) {
+            return true;
+        }
+        if (inputEnd) {
+            return false;
+        }
+        if (bytes > buf.length) {
+            byte[] newBuf = new byte[Math.max(bytes, buf.length * 2)];
+            System.arraycopy(buf, 0, newBuf, 0, bufLength);
+            buf = newBuf;
+        }
+        // read ahead what is available, not only the bytes needed
+        while (bufLength < bytes || (bufLength < buf.length && in.available() > 0)) {
+            final int n = in.read(buf, bufLength, buf.length - bufLength);
+            if (n < 0) {
+                inputEnd = true;
+                break;
+            }
+            bufLength += n;
+        }
+        return bufLength >= bytes;
+    }
+
+    /**
+     * Decompresses a block made into a bzip2 stream of its own.
+     */
+    private static byte[] decompress(final BitBuffer bits, final int crc,
+                                     final int blockSize100k) throws IOException {
+        BitBuffer stream = new BitBuffer((int) (bits.length() >>> 3) + 16);
+        stream.write(8, 'B');
+        stream.write(8, 'Z');
+        stream.write(8, 'h');
+        stream.write(8, '0' + blockSize100k);
+        stream.write(bits);
+        stream.write(24, (int) (EOS_MAGIC >>> 24));
+        stream.write(24, (int) (EOS_MAGIC & 0xffffff));
+        // for one block the stream CRC is the block CRC
+        stream.write(32, crc);
+
+        BZip2CompressorInputStream bz = new BZip2CompressorInputStream(
+            new ByteArrayInputStream(stream.getData(), 0, (int) ((stream.length() + 7) >>> 3)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream(blockSize100k * BZip2Constants.BASEBLOCKSIZE);
+        byte[] b = new byte[65536];
+        int n;
+        while ((n = bz.read(b, 0, b.length)) != -1) {
+            out.write(b, 0, n);
+        }
+        bz.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.commons.compress.compressors.bzip2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.compress.compressors.CompressorOutputStream;
+
+/**
+ * An output stream that compresses into the BZip2 format using several
+ * threads, like pbzip2.
+ *
+ * <p>The input is cut into chunks of one block size which are compressed
+ * independently on a pool of worker threads.  The compressed blocks are
+ * written in order into a single standard bzip2 stream with the combined
+ * CRC of all blocks, so the result can be read by any bzip2 decompressor,
+ * including {@link BZip2CompressorInputStream}.</p>
+ *
+ * <p>At most two chunks per thread are in progress, which bounds the
+ * memory used to about twice the memory of {@link
+ * BZip2CompressorOutputStream} per thread.</p>
+ *
+ * <p>Blocks may hold a little less data than the blocks of {@link
+ * BZip2CompressorOutputStream}, as the chunks are cut before the run
+ * length encoding, so the result may be slightly larger.</p>
+ *
+ * @NotThreadSafe
+ */
+public class ParallelBZip2CompressorOutputStream extends CompressorOutputStream
+    implements BZip2Constants {
+
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long EOS_MAGIC = 0x177245385090L;
+
+    /* "BZh" and the block size digit */
+    private static final int HEADER_BITS = 32;
+
+    private OutputStream out;
+    private final int blockSize100k;
+    private final int maxPending;
+    private final ExecutorService executor;
+    private final LinkedList<Future<List<Block>>> pending =
+        new LinkedList<Future<List<Block>>>();
+
+    private byte[] chunk;
+    private int chunkLength = 0;
+
+    private int combinedCRC = 0;
+    private int bsBuff = 0;
+    private int bsLive = 0;
+
+    /**
+     * A compressed block: the bits of the block header and the block
+     * data, starting after the stream header.
+     */
+    private static final class Block {
+        private final byte[] stream;
+        private final long bits;
+        private final int crc;
+
+        private Block(final byte[] stream, final long bits, final int crc) {
+            this.stream = stream;
+            this.bits = bits;
+            this.crc = crc;
+        }
+    }
+
+    /**
+     * Constructs a new stream with a blocksize of 900k using one thread
+     * per available processor.
+     *
+     * @param out the destination stream.
+     * @throws IOException if an I/O error occurs in the specified stream.
+     */
+    public ParallelBZip2CompressorOutputStream(final OutputStream out)
+        throws IOException {
+        this(out, BZip2CompressorOutputStream.MAX_BLOCKSIZE,
+             Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs a new stream.
+     *
+     * @param out the destination stream.
+     * @param blockSize the blockSize as 100k units.
+     * @param threads the number of compressing threads.
+     * @throws IOException if an I/O error occurs in the specified stream.
+     * @throws IllegalArgumentException if <code>(blockSize < 1) ||
+     * (blockSize > 9)</code> or <code>threads < 1</code>.
+     */
+    public ParallelBZip2CompressorOutputStream(final OutputStream out,
+                                               final int blockSize,
+                                               final int threads)
+        throws IOException {
+        if (blockSize < BZip2CompressorOutputStream.MIN_BLOCKSIZE
+            || blockSize > BZip2CompressorOutputStream.MAX_BLOCKSIZE) {
+            throw new IllegalArgumentException("blockSize(" + blockSize
+                                               + ") not in 1..9");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads(" + threads + ") < 1");
+        }
+        if (out == null) {
+            throw new NullPointerException();
+        }
+        this.out = out;
+        this.blockSize100k = blockSize;
+        this.maxPending = threads * 2;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    Thread t = new Thread(r, "bzip2 compressor");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        // same room as BZip2CompressorOutputStream leaves in a block
+        this.chunk = new byte[blockSize * BASEBLOCKSIZE - 20];
+
+        bsW(8, 'B');
+        bsW(8, 'Z');
+        bsW(8, 'h');
+        bsW(8, '0' + blockSize);
+    }
+
+    /** {@inheritDoc} */
+    public void write(final int b) throws IOException {
+        if (out == null) {
+            throw new IOException("closed");
+        }
+        chunk[chunkLength++] = (byte) b;
+        if (chunkLength == chunk.length) {
+            submitChunk();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void write(final byte[] buf, int offs, int len)
+        throws IOException {
+        if (offs < 0 || len < 0 || offs + len > buf.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (out == null) {
+            throw new IOException("closed");
+        }
+        while (len > 0) {
+            final int n = Math.min(len, chunk.length - chunkLength);
+            System.arraycopy(buf, offs, chunk, chunkLength, n);
+            chunkLength += n;
+            offs += n;
+            len -= n;
+            if (chunkLength == chunk.length) {
+                submitChunk();
+            }
+        }
+    }
+
+    /**
+     * Compresses the remaining data and writes the end of the stream
+     * without closing the destination stream.
+     */
+    public void finish() throws IOException {
+        if (out != null) {
+            try {
+                if (chunkLength > 0) {
+                    submitChunk();
+                }
+                while (!pending.isEmpty()) {
+                    writeBlocks(pending.removeFirst());
+                }
+                bsW(24, (int) (EOS_MAGIC >>> 24));
+                bsW(24, (int) (EOS_MAGIC & 0xffffff));
+                bsW(32, combinedCRC);
+                while (bsLive > 0) {
+                    out.write(bsBuff >> 24);
+                    bsBuff <<= 8;
+                    bsLive -= 8;
+                }
+            } finally {
+                executor.shutdownNow();
+                out = null;
+                chunk = null;
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void close() throws IOException {
+        if (out != null) {
+            OutputStream outShadow = this.out;
+            try {
+                finish();
+            } finally {
+                outShadow.close();
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void flush() throws IOException {
+        OutputStream outShadow = this.out;
+        if (outShadow != null) {
+            outShadow.flush();
+        }
+    }
+
+    private void submitChunk() throws IOException {
+        if (pending.size() >= maxPending) {
+            writeBlocks(pending.removeFirst());
+        }
+        final byte[] data = chunk;
+        final int length = chunkLength;
+        final int blockSize = blockSize100k;
+        pending.add(executor.submit(new Callable<List<Block>>() {
+                public List<Block> call() throws IOException {
+                    List<Block> blocks = new ArrayList<Block>(1);
+                    compress(data, 0, length, blockSize, blocks);
+                    return blocks;
+                }
+            }));
+        chunk = new byte[chunk.length];
+        chunkLength = 0;
+    }
+
+    private void writeBlocks(final Future<List<Block>> future) throws IOException {
+        List<Block> blocks;
+        try {
+            blocks = future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted");
+        } catch (ExecutionException e) {
+            IOException ex = new IOException("compressing thread failed: "
+                                             + e.getCause());
+            ex.initCause(e.getCause());
+            throw ex;
+        }
+        for (Block block : blocks) {
+            writeBits(block.stream, HEADER_BITS, block.bits);
+            combinedCRC = (combinedCRC << 1) | (combinedCRC >>> 31);
+            combinedCRC ^= block.crc;
+        }
+    }
+
+    /**
+     * Compresses the data into as many blocks as the run length encoding
+     * needs, usually one.
+     */
+    private static void compress(final byte[] data, int offs, int len,
+                                 final int blockSize, final List<Block> blocks)
+        throws IOException {
+        final int allowable = blockSize * BASEBLOCKSIZE - 20;
+        while (len > 0) {
+            final int n = fitLength(data, offs, len, allowable);
+            compressBlock(data, offs, n, blockSize, blocks);
+            offs += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Returns how many bytes of the data fit into one block after the
+     * run length encoding of BZip2CompressorOutputStream: runs of 4 to
+     * 255 equal bytes take 5 bytes.
+     */
+    private static int fitLength(final byte[] data, final int offs, final int len,
+                                 final int allowable) {
+        final int end = offs + len;
+        int encoded = 0;
+        int i = offs;
+        while (i < end) {
+            final byte b = data[i];
+            int run = 1;
+            while (run < 255 && i + run < end && data[i + run] == b) {
+                run++;
+            }
+            final int runEncoded = run < 4 ? run : 5;
+            if (encoded + runEncoded > allowable) {
+                // a shorter run of at most 3 bytes isn't encoded
+                final int room = allowable - encoded;
+                return i - offs + Math.min(run, Math.min(room, 3));
+            }
+            encoded += runEncoded;
+            i += run;
+        }
+        return len;
+    }
+
+    /**
+     * Compresses the data into a stream of its own and takes the block
+     * out of it.  If the data still didn't fit into one block, the halves
+     * are compressed separately.
+     */
+    private static void compressBlock(final byte[] data, final int offs, final int len,
+                                      final int blockSize, final List<Block> blocks)
+        throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(len / 2 + 64);
+        BZip2CompressorOutputStream bz = new BZip2CompressorOutputStream(bos, blockSize);
+        bz.write(data, offs, len);
+        bz.close();
+        byte[] stream = bos.toByteArray();
+
+        int crc = BitBuffer.get(stream, HEADER_BITS + 48, 32);
+        // the end of stream magic and the stream CRC are followed by up
+        // to 7 padding bits; for one block the stream CRC is the block CRC
+        for (int pad = 0; pad < 8; pad++) {
+            long eos = stream.length * 8L - pad - 80;
+            if (eos > HEADER_BITS + 80
+                && BitBuffer.get48(stream, eos) == EOS_MAGIC
+                && BitBuffer.get(stream, eos + 48, 32) == crc
+                && BitBuffer.get48(stream, HEADER_BITS) == BLOCK_MAGIC) {
+                blocks.add(new Block(stream, eos - HEADER_BITS, crc));
+                return;
+            }
+        }
+        if (len < 2) {
+            throw new IOException("can't take the block out of a bzip2 stream");
+        }
+        compressBlock(data, offs, len / 2, blockSize, blocks);
+        compressBlock(data, offs + len / 2, len - len / 2, blockSize, blocks);
+    }
+
+    private void writeBits(final byte[] src, long from, long count) throws IOException {
+        while (count >= 8) {
+            bsW(8, BitBuffer.get(src, from, 8));
+            from += 8;
+            count -= 8;
+        }
+        if (count > 0) {
+            bsW((int) count, BitBuffer.get(src, from, (int) count));
+        }
+    }
+
+    /**
+     * Writes the low n bits of v, like BZip2CompressorOutputStream.
+     */
+    private void bsW(final int n, final int v) throws IOException {
+        if (n > 24) {
+            bsW(n - 16, v >>> 16);
+            bsW(16, v & 0xffff);
+            return;
+        }
+        while (bsLive >= 8) {
+            out.write(bsBuff >> 24);
+            bsBuff <<= 8;
+            bsLive -= 8;
+        }
+        bsBuff |= (v & ((1 << n) - 1)) << (32 - bsLive - n);
+        bsLive += n;
+    }
+}
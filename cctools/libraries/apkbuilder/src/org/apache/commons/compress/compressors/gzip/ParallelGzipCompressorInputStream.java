@@ -0,0 +1,393 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.commons.compress.compressors.gzip;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.commons.compress.compressors.CompressorInputStream;
+
+/**
+ * An input stream that decompresses the gzip format on a second thread.
+ *
+ * <p>The deflate format can't be split without decoding it, so a member
+ * is inflated by one thread.  This is done ahead on a background thread,
+ * while the CRC32 of the inflated data is checked and the data is handed
+ * out on the reading thread, so the two run at the same time.</p>
+ *
+ * <p>Concatenated members, as written by <code>cat a.gz b.gz</code> or
+ * pigz <code>-i</code>, are read as one stream.  Data after the last
+ * member which isn't a gzip header is ignored, like gzip does.</p>
+ *
+ * <p>At most four buffers of 64k are inflated ahead.</p>
+ *
+ * @NotThreadSafe
+ */
+public class ParallelGzipCompressorInputStream extends CompressorInputStream {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int QUEUE_SIZE = 4;
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+    private static final int FRESERVED = 0xe0;
+
+    private final InputStream in;
+    private final ExecutorService executor;
+    private final BlockingQueue<Chunk> filled =
+        new ArrayBlockingQueue<Chunk>(QUEUE_SIZE);
+    private final BlockingQueue<byte[]> free =
+        new ArrayBlockingQueue<byte[]>(QUEUE_SIZE + 2);
+
+    /* the compressed input, used by the inflating thread only */
+    private final byte[] inBuf = new byte[BUFFER_SIZE];
+    private int inPos = 0;
+    private int inLen = 0;
+
+    /* the inflated data, used by the reading thread only */
+    private Chunk current = null;
+    private int currentPos = 0;
+    private final CRC32 crc = new CRC32();
+    private long size = 0;
+    private IOException error = null;
+    private boolean eof = false;
+    private boolean closed = false;
+
+    private final byte[] oneByte = new byte[1];
+
+    /**
+     * Inflated data, the end of a member with the values of its trailer,
+     * the end of the stream or an error of the inflating thread.
+     */
+    private static final class Chunk {
+        private static final Chunk END = new Chunk(null, 0, 0, 0, null);
+
+        private final byte[] data;
+        private final int length;
+        private final long crc;
+        private final long size;
+        private final IOException error;
+
+        private Chunk(final byte[] data, final int length, final long crc,
+                      final long size, final IOException error) {
+            this.data = data;
+            this.length = length;
+            this.crc = crc;
+            this.size = size;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Constructs a new stream which reads the header of the first member
+     * and starts inflating it.
+     *
+     * @param in the InputStream from which this object should be created.
+     * @throws IOException if the stream doesn't start with a gzip header.
+     */
+    public ParallelGzipCompressorInputStream(final InputStream in)
+        throws IOException {
+        if (in == null) {
+            throw new NullPointerException();
+        }
+        this.in = in;
+        readHeader(true);
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    Thread t = new Thread(r, "gzip decompressor");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        executor.execute(new Runnable() {
+                public void run() {
+                    inflateMembers();
+                }
+            });
+    }
+
+    /** {@inheritDoc} */
+    public int read() throws IOException {
+        return read(oneByte, 0, 1) == -1 ? -1 : oneByte[0] & 0xff;
+    }
+
+    /** {@inheritDoc} */
+    public int read(final byte[] b, final int off, final int len)
+        throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (closed) {
+            throw new IOException("closed");
+        }
+        if (error != null) {
+            throw error;
+        }
+        if (eof) {
+            return -1;
+        }
+        if (len == 0) {
+            return 0;
+        }
+        while (current == null || currentPos == current.length) {
+            if (!nextChunk()) {
+                return -1;
+            }
+        }
+        final int n = Math.min(len, current.length - currentPos);
+        System.arraycopy(current.data, currentPos, b, off, n);
+        currentPos += n;
+        count(n);
+        return n;
+    }
+
+    /**
+     * Closes the input stream (unless it is System.in) and stops the
+     * inflating thread.
+     */
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            executor.shutdownNow();
+            if (in != System.in) {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Takes the next chunk from the inflating thread and checks the data
+     * at the end of a member.  Returns false at the end of the stream.
+     */
+    private boolean nextChunk() throws IOException {
+        if (current != null && current.data != null) {
+            free.offer(current.data);
+        }
+        current = null;
+        Chunk chunk;
+        try {
+            chunk = filled.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted");
+        }
+        if (chunk.error != null) {
+            error = chunk.error;
+            throw error;
+        }
+        if (chunk == Chunk.END) {
+            eof = true;
+            return false;
+        }
+        if (chunk.data == null) {
+            if (chunk.crc != crc.getValue()) {
+                error = new IOException("corrupted gzip stream: CRC mismatch");
+                throw error;
+            }
+            if (chunk.size != (size & 0xffffffffL)) {
+                error = new IOException("corrupted gzip stream: size mismatch");
+                throw error;
+            }
+            crc.reset();
+            size = 0;
+            return true;
+        }
+        crc.update(chunk.data, 0, chunk.length);
+        size += chunk.length;
+        current = chunk;
+        currentPos = 0;
+        return true;
+    }
+
+    /**
+     * The body of the inflating thread.
+     */
+    private void inflateMembers() {
+        Inflater inflater = new Inflater(true);
+        try {
+            do {
+                inflateMember(inflater);
+                inflater.reset();
+            } while (readHeader(false));
+            filled.put(Chunk.END);
+        } catch (IOException e) {
+            try {
+                filled.put(new Chunk(null, 0, 0, 0, e));
+            } catch (InterruptedException ie) {
+                // closed
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void inflateMember(final Inflater inflater)
+        throws IOException, InterruptedException {
+        while (!inflater.finished()) {
+            byte[] buf = free.poll();
+            if (buf == null) {
+                buf = new byte[BUFFER_SIZE];
+            }
+            int len = 0;
+            while (len < buf.length && !inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (fill() == -1) {
+                        throw new EOFException("unexpected end of gzip stream");
+                    }
+                    inflater.setInput(inBuf, inPos, inLen - inPos);
+                    inPos = inLen;
+                }
+                int n;
+                try {
+                    n = inflater.inflate(buf, len, buf.length - len);
+                } catch (DataFormatException e) {
+                    IOException ex = new IOException("corrupted gzip stream: "
+                                                     + e.getMessage());
+                    ex.initCause(e);
+                    throw ex;
+                }
+                if (n == 0 && inflater.needsDictionary()) {
+                    throw new IOException("corrupted gzip stream: dictionary needed");
+                }
+                len += n;
+            }
+            if (len > 0) {
+                filled.put(new Chunk(buf, len, 0, 0, null));
+            }
+        }
+        inPos = inLen - inflater.getRemaining();
+
+        final long crc32 = readInt();
+        final long isize = readInt();
+        filled.put(new Chunk(null, 0, crc32, isize, null));
+    }
+
+    /**
+     * Reads the header of a member.  Returns false if there is no further
+     * member, the first one must be there.
+     */
+    private boolean readHeader(final boolean first) throws IOException {
+        final CRC32 headerCrc = new CRC32();
+        final int id1 = readByte();
+        if (id1 == -1) {
+            if (first) {
+                throw new EOFException("empty gzip stream");
+            }
+            return false;
+        }
+        final int id2 = readByte();
+        if (id1 != 0x1f || id2 != 0x8b) {
+            if (first) {
+                throw new IOException("Not in GZIP format");
+            }
+            return false;
+        }
+        headerCrc.update(id1);
+        headerCrc.update(id2);
+        if (readHeaderByte(headerCrc) != 8) {
+            throw new IOException("unsupported compression method");
+        }
+        final int flags = readHeaderByte(headerCrc);
+        if ((flags & FRESERVED) != 0) {
+            throw new IOException("reserved gzip flags set");
+        }
+        // modification time, extra flags and operating system
+        for (int i = 0; i < 6; i++) {
+            readHeaderByte(headerCrc);
+        }
+        if ((flags & FEXTRA) != 0) {
+            int xlen = readHeaderByte(headerCrc);
+            xlen |= readHeaderByte(headerCrc) << 8;
+            for (int i = 0; i < xlen; i++) {
+                readHeaderByte(headerCrc);
+            }
+        }
+        if ((flags & FNAME) != 0) {
+            while (readHeaderByte(headerCrc) != 0) {
+                // skip the file name
+            }
+        }
+        if ((flags & FCOMMENT) != 0) {
+            while (readHeaderByte(headerCrc) != 0) {
+                // skip the comment
+            }
+        }
+        if ((flags & FHCRC) != 0) {
+            final int expected = (int) headerCrc.getValue() & 0xffff;
+            int v = readHeaderByte(null);
+            v |= readHeaderByte(null) << 8;
+            if (v != expected) {
+                throw new IOException("corrupted gzip header: CRC mismatch");
+            }
+        }
+        return true;
+    }
+
+    private int readHeaderByte(final CRC32 headerCrc) throws IOException {
+        final int b = readByte();
+        if (b == -1) {
+            throw new EOFException("unexpected end of gzip stream");
+        }
+        if (headerCrc != null) {
+            headerCrc.update(b);
+        }
+        return b;
+    }
+
+    private long readInt() throws IOException {
+        long v = 0;
+        for (int i = 0; i < 4; i++) {
+            v |= (long) readHeaderByte(null) << (8 * i);
+        }
+        return v;
+    }
+
+    private int readByte() throws IOException {
+        if (inPos == inLen && fill() == -1) {
+            return -1;
+        }
+        return inBuf[inPos++] & 0xff;
+    }
+
+    /**
+     * Reads more input once the buffered input is used up.
+     */
+    private int fill() throws IOException {
+        if (inPos < inLen) {
+            return inLen - inPos;
+        }
+        final int n = in.read(inBuf, 0, inBuf.length);
+        inPos = 0;
+        inLen = Math.max(n, 0);
+        return n;
+    }
+}
@@ -0,0 +1,415 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.commons.compress.compressors.gzip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.apache.commons.compress.compressors.CompressorOutputStream;
+
+/**
+ * An output stream that compresses into the gzip format using several
+ * threads, like pigz.
+ *
+ * <p>The input is cut into chunks of 128k which are deflated independently
+ * on a pool of worker threads.  Each chunk is primed with the last 32k of
+ * the chunk before it, so the ratio stays close to the one of a single
+ * deflater, and ends with a sync flush, so the deflated chunks can be
+ * concatenated.  The result is a single standard gzip member whose CRC32
+ * is combined from the CRCs of the chunks.</p>
+ *
+ * <p>Sync flush is only available from Java 7 and Android API 19.  On older
+ * runtimes the chunks are deflated one after another by a single deflater
+ * on one worker thread, which still takes the compression off the writing
+ * thread.</p>
+ *
+ * <p>At most two chunks per thread are in progress.</p>
+ *
+ * @NotThreadSafe
+ */
+public class ParallelGzipCompressorOutputStream extends CompressorOutputStream {
+
+    private static final int CHUNK_SIZE = 128 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int SYNC_FLUSH = 2; // Deflater.SYNC_FLUSH
+
+    private static final Method DEFLATE_WITH_FLUSH;
+
+    static {
+        Method method = null;
+        try {
+            method = Deflater.class.getMethod("deflate",
+                    byte[].class, int.class, int.class, int.class);
+        } catch (NoSuchMethodException e) {
+            // no sync flush, chunks are deflated by one deflater
+        }
+        DEFLATE_WITH_FLUSH = method;
+    }
+
+    private OutputStream out;
+    private final int level;
+    private final int maxPending;
+    private final ExecutorService executor;
+    private final LinkedList<Future<Chunk>> pending =
+        new LinkedList<Future<Chunk>>();
+
+    /* the deflater of all chunks if there is no sync flush */
+    private final Deflater serialDeflater;
+
+    private byte[] chunk;
+    private int chunkLength = 0;
+    private byte[] previous = null;
+
+    private int crc = 0;
+    private long size = 0;
+
+    /**
+     * A deflated chunk with the CRC32 of its data.
+     */
+    private static final class Chunk {
+        private final byte[] deflated;
+        private final int crc;
+        private final int length;
+
+        private Chunk(final byte[] deflated, final int crc, final int length) {
+            this.deflated = deflated;
+            this.crc = crc;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Constructs a new stream with the default compression level using
+     * one thread per available processor.
+     *
+     * @param out the destination stream.
+     * @throws IOException if an I/O error occurs in the specified stream.
+     */
+    public ParallelGzipCompressorOutputStream(final OutputStream out)
+        throws IOException {
+        this(out, Deflater.DEFAULT_COMPRESSION,
+             Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs a new stream.
+     *
+     * @param out the destination stream.
+     * @param level the compression level, 0-9, or
+     * <code>Deflater.DEFAULT_COMPRESSION</code>.
+     * @param threads the number of compressing threads.
+     * @throws IOException if an I/O error occurs in the specified stream.
+     * @throws IllegalArgumentException if the level is invalid or
+     * <code>threads < 1</code>.
+     */
+    public ParallelGzipCompressorOutputStream(final OutputStream out,
+                                              final int level,
+                                              final int threads)
+        throws IOException {
+        if (level != Deflater.DEFAULT_COMPRESSION
+            && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("level(" + level + ") not in 0..9");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads(" + threads + ") < 1");
+        }
+        if (out == null) {
+            throw new NullPointerException();
+        }
+        this.out = out;
+        this.level = level;
+        if (DEFLATE_WITH_FLUSH != null) {
+            this.serialDeflater = null;
+            this.maxPending = threads * 2;
+            this.executor = newExecutor(threads);
+        } else {
+            this.serialDeflater = new Deflater(level, true);
+            this.maxPending = 2;
+            this.executor = newExecutor(1);
+        }
+        this.chunk = new byte[CHUNK_SIZE];
+
+        writeHeader();
+    }
+
+    private static ExecutorService newExecutor(final int threads) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    Thread t = new Thread(r, "gzip compressor");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    }
+
+    /** {@inheritDoc} */
+    public void write(final int b) throws IOException {
+        if (out == null) {
+            throw new IOException("closed");
+        }
+        chunk[chunkLength++] = (byte) b;
+        if (chunkLength == chunk.length) {
+            submitChunk(false);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void write(final byte[] buf, int offs, int len)
+        throws IOException {
+        if (offs < 0 || len < 0 || offs + len > buf.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (out == null) {
+            throw new IOException("closed");
+        }
+        while (len > 0) {
+            final int n = Math.min(len, chunk.length - chunkLength);
+            System.arraycopy(buf, offs, chunk, chunkLength, n);
+            chunkLength += n;
+            offs += n;
+            len -= n;
+            if (chunkLength == chunk.length) {
+                submitChunk(false);
+            }
+        }
+    }
+
+    /**
+     * Compresses the remaining data and writes the gzip trailer without
+     * closing the destination stream.
+     */
+    public void finish() throws IOException {
+        if (out != null) {
+            try {
+                submitChunk(true);
+                while (!pending.isEmpty()) {
+                    writeChunk(pending.removeFirst());
+                }
+                writeInt(crc);
+                writeInt((int) size);
+            } finally {
+                executor.shutdownNow();
+                if (serialDeflater != null) {
+                    serialDeflater.end();
+                }
+                out = null;
+                chunk = null;
+                previous = null;
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void close() throws IOException {
+        if (out != null) {
+            OutputStream outShadow = this.out;
+            try {
+                finish();
+            } finally {
+                outShadow.close();
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void flush() throws IOException {
+        OutputStream outShadow = this.out;
+        if (outShadow != null) {
+            outShadow.flush();
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        // no file name and no time, like gzip -n
+        out.write(new byte[] {
+                (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0,
+                0, 0, 0, 0,
+                (byte) (level == Deflater.BEST_COMPRESSION ? 2
+                        : level == Deflater.BEST_SPEED ? 4 : 0),
+                (byte) 0xff });
+    }
+
+    private void writeInt(final int v) throws IOException {
+        out.write(v & 0xff);
+        out.write((v >>> 8) & 0xff);
+        out.write((v >>> 16) & 0xff);
+        out.write((v >>> 24) & 0xff);
+    }
+
+    private void submitChunk(final boolean last) throws IOException {
+        if (pending.size() >= maxPending) {
+            writeChunk(pending.removeFirst());
+        }
+        final byte[] data = chunk;
+        final int length = chunkLength;
+        final byte[] dictionary = previous;
+        pending.add(executor.submit(new Callable<Chunk>() {
+                public Chunk call() throws IOException {
+                    return deflate(data, length, dictionary, last);
+                }
+            }));
+        previous = data;
+        chunk = new byte[chunk.length];
+        chunkLength = 0;
+    }
+
+    private void writeChunk(final Future<Chunk> future) throws IOException {
+        Chunk c;
+        try {
+            c = future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted");
+        } catch (ExecutionException e) {
+            IOException ex = new IOException("compressing thread failed: "
+                                             + e.getCause());
+            ex.initCause(e.getCause());
+            throw ex;
+        }
+        out.write(c.deflated);
+        crc = crc32Combine(crc, c.crc, c.length);
+        size += c.length;
+    }
+
+    /**
+     * Deflates a chunk, the dictionary is the full chunk before it or null.
+     */
+    private Chunk deflate(final byte[] data, final int length,
+                          final byte[] dictionary, final boolean last)
+        throws IOException {
+        CRC32 sum = new CRC32();
+        sum.update(data, 0, length);
+
+        Deflater deflater = serialDeflater;
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary, dictionary.length - DICTIONARY_SIZE,
+                                       DICTIONARY_SIZE);
+            }
+        }
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buf = new byte[16384];
+            deflater.setInput(data, 0, length);
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    bos.write(buf, 0, deflater.deflate(buf));
+                }
+            } else if (serialDeflater == null) {
+                // the flush is complete once the output buffer isn't filled
+                int n;
+                do {
+                    n = (Integer) DEFLATE_WITH_FLUSH.invoke(deflater,
+                            buf, 0, buf.length, SYNC_FLUSH);
+                    bos.write(buf, 0, n);
+                } while (n == buf.length);
+            } else {
+                while (!deflater.needsInput()) {
+                    bos.write(buf, 0, deflater.deflate(buf));
+                }
+            }
+            return new Chunk(bos.toByteArray(), (int) sum.getValue(), length);
+        } catch (IllegalAccessException e) {
+            IOException ex = new IOException("sync flush unavailable");
+            ex.initCause(e);
+            throw ex;
+        } catch (InvocationTargetException e) {
+            IOException ex = new IOException("deflate failed: " + e.getCause());
+            ex.initCause(e.getCause());
+            throw ex;
+        } finally {
+            if (serialDeflater == null) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Returns the CRC32 of two concatenated blocks of data from the CRC32
+     * of each block and the length of the second one, like crc32_combine()
+     * of zlib.
+     */
+    private static int crc32Combine(int crc1, final int crc2, long len2) {
+        if (len2 <= 0) {
+            return crc1;
+        }
+        int[] even = new int[32];
+        int[] odd = new int[32];
+
+        // operator for one zero bit
+        odd[0] = 0xedb88320;
+        int row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // operators for two and four zero bits
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+
+        // apply len2 zero bytes to crc1
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((len2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(even, crc1);
+            }
+            len2 >>>= 1;
+            if (len2 == 0) {
+                break;
+            }
+            gf2MatrixSquare(odd, even);
+            if ((len2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(odd, crc1);
+            }
+            len2 >>>= 1;
+        } while (len2 != 0);
+
+        return crc1 ^ crc2;
+    }
+
+    private static int gf2MatrixTimes(final int[] mat, int vec) {
+        int sum = 0;
+        for (int i = 0; vec != 0; i++, vec >>>= 1) {
+            if ((vec & 1) != 0) {
+                sum ^= mat[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(final int[] square, final int[] mat) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(mat, mat[n]);
+        }
+    }
+}
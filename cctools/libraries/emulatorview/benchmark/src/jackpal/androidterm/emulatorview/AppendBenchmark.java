@@ -0,0 +1,139 @@
+package jackpal.androidterm.emulatorview;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.os.Looper;
+
+/**
+ * Headless throughput benchmark for {@link TerminalEmulator#append}.
+ * <p>
+ * Replays captured terminal output through an emulator with no view attached
+ * and reports how many megabytes per second it processes.  The captures are
+ * raw pty output, for example saved with <code>script -c make build.log</code>
+ * or <code>ls -lR / &gt; ls.log</code>.  Without arguments, generated gcc
+ * diagnostics and <code>ls -lR</code> listings are used instead.
+ * <p>
+ * The class is not part of the library.  To run it on a device, compile it
+ * against the library classes, dex both and run
+ * <code>dalvikvm -cp bench.jar jackpal.androidterm.emulatorview.AppendBenchmark [capture...]</code>.
+ */
+public class AppendBenchmark {
+    private static final int COLUMNS = 80;
+    private static final int ROWS = 24;
+    private static final int TRANSCRIPT_BYTES = 2 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 4096;
+    private static final int MIN_BYTES = 64 * 1024 * 1024;
+
+    public static void main(String[] args) throws IOException {
+        // TermSession needs a Looper for its handlers
+        Looper.prepare();
+
+        if (args.length == 0) {
+            run("gcc output", generateCompilerOutput());
+            run("ls -lR output", generateListing());
+        } else {
+            for (String path : args) {
+                run(path, readFile(path));
+            }
+        }
+    }
+
+    private static void run(String name, byte[] data) {
+        if (data.length == 0) {
+            System.out.println(name + ": empty");
+            return;
+        }
+        int passes = Math.max(1, MIN_BYTES / data.length);
+
+        // One pass to warm up the JIT
+        replay(data, 1);
+        long start = System.nanoTime();
+        replay(data, passes);
+        long elapsed = System.nanoTime() - start;
+
+        double megabytes = (double) data.length * passes / (1024 * 1024);
+        System.out.println(String.format("%s: %.1f MB in %d ms, %.1f MB/s", name,
+                megabytes, elapsed / 1000000, megabytes * 1e9 / elapsed));
+    }
+
+    private static void replay(byte[] data, int passes) {
+        TermSession session = new TermSession();
+        session.setTermOut(new ByteArrayOutputStream());
+        TranscriptScreen screen = new TranscriptScreen(COLUMNS, TRANSCRIPT_BYTES, ROWS,
+                BaseTextRenderer.defaultColorScheme);
+        TerminalEmulator emulator = new TerminalEmulator(session, screen, COLUMNS, ROWS,
+                BaseTextRenderer.defaultColorScheme);
+        emulator.setDefaultUTF8Mode(true);
+
+        // Feed the data in pty sized chunks, as TermSession does
+        for (int pass = 0; pass < passes; pass++) {
+            for (int offset = 0; offset < data.length; offset += CHUNK_SIZE) {
+                emulator.append(data, offset, Math.min(CHUNK_SIZE, data.length - offset));
+            }
+        }
+    }
+
+    private static byte[] generateCompilerOutput() {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            String file = "src/module" + (i % 17) + "/file" + (i % 113) + ".c";
+            out.append("arm-linux-androideabi-gcc -O2 -Wall -Iinclude -c ").append(file)
+                    .append(" -o obj/file").append(i % 113).append(".o\r\n");
+            if (i % 3 == 0) {
+                out.append("\u001b[01m\u001b[K").append(file).append(':').append(i % 500)
+                        .append(':').append(i % 40).append(":\u001b[m\u001b[K ")
+                        .append("\u001b[01;35m\u001b[Kwarning: \u001b[m\u001b[K")
+                        .append("unused variable 'tmp").append(i).append("' [-Wunused-variable]\r\n");
+                out.append("     int tmp").append(i).append(" = compute(value, ").append(i)
+                        .append(");\r\n");
+                out.append("         \u001b[01;32m\u001b[K^\u001b[m\u001b[K\r\n");
+            }
+        }
+        return getBytes(out);
+    }
+
+    private static byte[] generateListing() {
+        StringBuilder out = new StringBuilder();
+        for (int dir = 0; dir < 200; dir++) {
+            out.append("./usr/share/doc/package").append(dir).append(":\r\n");
+            out.append("total ").append(dir * 8).append("\r\n");
+            for (int i = 0; i < 20; i++) {
+                out.append(i % 5 == 0 ? "drwxr-xr-x" : "-rw-r--r--")
+                        .append("  1 root root ")
+                        .append(String.format("%8d", (dir * 7919 + i * 104729) % 1000000))
+                        .append(" Jan ").append(String.format("%2d", 1 + i % 28))
+                        .append(" 12:").append(String.format("%02d", i % 60))
+                        .append(" file-").append(dir).append('-').append(i)
+                        .append(i % 4 == 0 ? ".tar.gz" : ".txt").append("\r\n");
+            }
+            out.append("\r\n");
+        }
+        return getBytes(out);
+    }
+
+    private static byte[] getBytes(StringBuilder s) {
+        try {
+            return s.toString().getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] readFile(String path) throws IOException {
+        InputStream in = new FileInputStream(path);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[65536];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package jackpal.androidterm.emulatorview;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import android.os.Looper;
+
+/**
+ * Headless check that rows come out of the {@link ScrollbackStore} the way
+ * they went in.
+ * <p>
+ * Replays random terminal output, with escape sequences, wide and combining
+ * characters, through an emulator with no view attached.  Every so often
+ * the screen is scrolled up into the scrollback, and the transcript text and
+ * styles of those rows are compared with the ones they had on the screen.
+ * <p>
+ * The class is not part of the library.  Run it like
+ * {@link AppendBenchmark}, as
+ * <code>dalvikvm -cp bench.jar jackpal.androidterm.emulatorview.ScrollbackCheck [seeds]</code>.
+ * It prints the rows which differ and exits with status 1 if there are any.
+ */
+public class ScrollbackCheck {
+    private static final int TRANSCRIPT_BYTES = 16 * 1024 * 1024;
+    private static final int STEPS = 3000;
+    private static final int CHECK_INTERVAL = 250;
+    private static final int[][] SIZES = { { 37, 10 }, { 80, 24 }, { 13, 5 }, { 120, 40 } };
+
+    private static final String[] ESCAPES = {
+        "\u001b[31m", "\u001b[1;42m", "\u001b[0m", "\u001b[7m", "\u001b[H", "\u001b[2J",
+        "\u001b[K", "\u001b[1K", "\u001b[5;10H", "\u001b[3A", "\u001b[2B", "\u001b[4C",
+        "\u001b[10D", "\u001b[?7l", "\u001b[?7h", "\u001b[4h", "\u001b[4l", "\u001b[3;8r",
+        "\u001b[r", "\u001bM", "\u001bD", "\u001bE", "\u001b[2L", "\u001b[1M", "\u001b[3P",
+        "\u001b[2@", "\u001b[J", "\u001b(0", "\u001b(B", "\u001b[38;5;200m", "\t", "\b",
+        "\r", "\n", "\r\n", "\r\n"
+    };
+    private static final String[] UNICODE = {
+        "中文", "é", "😀", "Ａ", "é", "äb"
+    };
+
+    public static void main(String[] args) throws IOException {
+        // TermSession needs a Looper for its handlers
+        Looper.prepare();
+
+        int seeds = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+        int failures = 0;
+        for (int[] size : SIZES) {
+            for (int seed = 1; seed <= seeds; seed++) {
+                failures += run(seed, size[0], size[1]);
+            }
+        }
+        System.out.println(failures == 0 ? "OK" : failures + " rows differ");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static int run(long seed, int columns, int rows) throws IOException {
+        TermSession session = new TermSession();
+        session.setTermOut(new ByteArrayOutputStream());
+        TranscriptScreen screen = new TranscriptScreen(columns, TRANSCRIPT_BYTES, rows,
+                BaseTextRenderer.defaultColorScheme);
+        TerminalEmulator emulator = new TerminalEmulator(session, screen, columns, rows,
+                BaseTextRenderer.defaultColorScheme);
+        emulator.setDefaultUTF8Mode(true);
+
+        Random random = new Random(seed);
+        int failures = 0;
+        for (int step = 1; step <= STEPS; step++) {
+            byte[] data = nextOutput(random, columns);
+            // Split the output at random points, as a pty read may
+            int offset = 0;
+            while (offset < data.length) {
+                int count = 1 + random.nextInt(data.length - offset);
+                emulator.append(data, offset, count);
+                offset += count;
+            }
+            if (step % CHECK_INTERVAL == 0) {
+                failures += checkScroll(screen, seed, columns, rows);
+            }
+        }
+        return failures;
+    }
+
+    /* Scroll the whole screen into the scrollback and compare each row */
+    private static int checkScroll(TranscriptScreen screen, long seed, int columns, int rows) {
+        String[] before = new String[rows];
+        for (int row = 0; row < rows; row++) {
+            before[row] = rowText(screen, columns, row);
+        }
+        for (int i = 0; i < rows; i++) {
+            screen.scroll(0, rows, TextStyle.kNormalTextStyle);
+        }
+        int failures = 0;
+        for (int row = 0; row < rows; row++) {
+            String after = rowText(screen, columns, row - rows);
+            if (!before[row].equals(after)) {
+                System.out.println(columns + "x" + rows + " seed " + seed + " row " + (row - rows)
+                        + ":\n  before " + before[row] + "\n  after  " + after);
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    private static String rowText(TranscriptScreen screen, int columns, int row) {
+        GrowableIntArray colors = new GrowableIntArray(columns);
+        String text = screen.getSelectedText(colors, 0, row, columns, row);
+        StringBuilder out = new StringBuilder();
+        out.append('"').append(text).append("\" styles");
+        for (int i = 0; i < colors.length(); i++) {
+            out.append(' ').append(Integer.toHexString(colors.at(i)));
+        }
+        return out.toString();
+    }
+
+    private static byte[] nextOutput(Random random, int columns) throws IOException {
+        StringBuilder out = new StringBuilder();
+        int kind = random.nextInt(10);
+        if (kind < 5) {
+            int count = random.nextInt(3 * columns);
+            for (int i = 0; i < count; i++) {
+                out.append((char) (' ' + random.nextInt(95)));
+            }
+        } else if (kind < 8) {
+            out.append(ESCAPES[random.nextInt(ESCAPES.length)]);
+        } else {
+            out.append(UNICODE[random.nextInt(UNICODE.length)]);
+        }
+        return out.toString().getBytes("UTF-8");
+    }
+}
@@ -89,7 +89,6 @@ class ByteQueue {
         }
         synchronized(this) {
             int bufferLength = mBuffer.length;
-            boolean wasEmpty = mStoredBytes == 0;
             while (length > 0) {
                 while(bufferLength == mStoredBytes) {
                     wait();
@@ -103,13 +102,16 @@ class ByteQueue {
                     oneRun = bufferLength - tail;
                 }
                 int bytesToCopy = Math.min(oneRun, length);
+                boolean wasEmpty = mStoredBytes == 0;
                 System.arraycopy(buffer, offset, mBuffer, tail, bytesToCopy);
                 offset += bytesToCopy;
                 mStoredBytes += bytesToCopy;
                 length -= bytesToCopy;
-            }
-            if (wasEmpty) {
-                notify();
+                // The reader may have emptied the queue while we waited
+                // for room, so check for every run, not once per write.
+                if (wasEmpty) {
+                    notify();
+                }
             }
         }
     }
@@ -19,8 +19,10 @@ package jackpal.androidterm.emulatorview;
 import java.io.IOException;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
@@ -41,6 +43,8 @@ import android.view.inputmethod.ExtractedTextRequest;
 import android.view.inputmethod.InputConnection;
 import android.widget.Scroller;
 
+import jackpal.androidterm.emulatorview.compat.ViewCompat;
+
 /**
  * A view on a {@link TermSession}.  Displays the terminal emulator's screen,
  * provides access to its scrollback buffer, and passes input through to the
@@ -173,6 +177,25 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
 
     private boolean mIsActive = false;
 
+    /*
+     * The screen as last drawn from a snapshot, with what it was drawn from,
+     * so only the rows that changed have to be drawn again.  Not used with
+     * hardware acceleration, which records the text drawing instead.
+     */
+    private Bitmap mScreenCache;
+    private Canvas mScreenCacheCanvas;
+    private boolean mScreenCacheValid;
+    private int[] mCachedRowStamps = new int[0];
+    private int mCachedSourceId;
+    private int mCachedGeneration;
+    private int mCachedDefaultStyle;
+    private boolean mCachedReverseVideo;
+    private int mCachedLeftColumn;
+    private int mCachedCursorCol;
+    private int mCachedCursorRow;
+    private String mCachedImeText;
+    private final Rect mClipBounds = new Rect();
+
     /**
      * Routing alt and meta keyCodes away from the IME allows Alt key processing to work on
      * the Asus Transformer TF101.
@@ -191,8 +214,7 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
             } else {
                 mCursorVisible = true;
             }
-            // Perhaps just invalidate the character with the cursor.
-            invalidate();
+            invalidateScreen();
         }
     };
 
@@ -233,15 +255,17 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
      */
     private UpdateCallback mUpdateNotify = new UpdateCallback() {
         public void onUpdate() {
-            if ( mIsSelectingText ) {
-                int rowShift = mEmulator.getScrollCounter();
-                mSelY1 -= rowShift;
-                mSelY2 -= rowShift;
-                mSelYAnchor -= rowShift;
+            synchronized (mTermSession.getEmulatorLock()) {
+                if ( mIsSelectingText || mSelX1 >= 0 ) {
+                    int rowShift = mEmulator.getScrollCounter();
+                    mSelY1 -= rowShift;
+                    mSelY2 -= rowShift;
+                    mSelYAnchor -= rowShift;
+                }
+                mEmulator.clearScrollCounter();
             }
-            mEmulator.clearScrollCounter();
             ensureCursorVisible();
-            invalidate();
+            invalidateScreen();
         }
     };
 
@@ -354,6 +378,14 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
             mHandler.removeCallbacks(mBlinkCursor);
         }
         mIsActive = false;
+
+        // Don't hold on to a screen sized bitmap while not shown
+        if (mScreenCache != null) {
+            mScreenCache.recycle();
+            mScreenCache = null;
+            mScreenCacheCanvas = null;
+            mScreenCacheValid = false;
+        }
     }
 
     /**
@@ -778,6 +810,34 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
         invalidate();
     }
 
+    /**
+     * Scroll the view to show a part of the transcript, and highlight it
+     * until the view is touched or text is selected.
+     *
+     * @param startRow The row of the first character, as for
+     *        {@link TranscriptSearch#getStartRow}.
+     * @param startColumn The column of the first character.
+     * @param endRow The row of the last character.
+     * @param endColumn The column of the last character.
+     */
+    public void showRange(int startRow, int startColumn, int endRow, int endColumn) {
+        if (mIsSelectingText) {
+            toggleSelectingText();
+        }
+        mSelX1 = startColumn;
+        mSelY1 = startRow;
+        mSelX2 = endColumn;
+        mSelY2 = endRow;
+        if (startRow < mTopRow || endRow >= mTopRow + mRows) {
+            mTopRow = Math.min(0, Math.max(-mTranscriptScreen.getActiveTranscriptRows(),
+                    startRow - mRows / 2));
+        }
+        if (startColumn < mLeftColumn || startColumn >= mLeftColumn + mVisibleColumns) {
+            pageHorizontal(startColumn - mLeftColumn);
+        }
+        invalidate();
+    }
+
     /**
      * Page the terminal view horizontally.
      *
@@ -901,6 +961,11 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
             return true;
         }
         mScrollRemainder = 0.0f;
+        if (mSelX1 >= 0) {
+            // Touching the view clears a highlight left by showRange()
+            mSelX1 = mSelY1 = mSelX2 = mSelY2 = -1;
+            invalidate();
+        }
         return true;
     }
 
@@ -1086,7 +1151,7 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
     private void updateText() {
         ColorScheme scheme = mColorScheme;
         if (mTextSize > 0) {
-            mTextRenderer = new PaintRenderer(mTextSize, scheme);
+            mTextRenderer = new GlyphAtlasRenderer(mTextSize, scheme);
         }
         else {
             mTextRenderer = new Bitmap4x8FontRenderer(getResources(), scheme);
@@ -1133,6 +1198,8 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
         mTopRow = 0;
         mLeftColumn = 0;
 
+        // The font, colors or size may have changed
+        mScreenCacheValid = false;
         invalidate();
     }
 
@@ -1169,10 +1236,31 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
             return;
         }
 
+        /* While the bottom of the transcript is shown, draw the copy of the
+           screen published by the emulation thread, so drawing never waits
+           for the emulator.  Scrolled back, draw from the transcript. */
+        ScreenSnapshot snapshot = mTermSession.getScreenSnapshot();
+        if (snapshot != null && mTopRow == 0 && snapshot.getColumns() == mColumns
+                && snapshot.getRows() == mRows) {
+            if (canUseScreenCache()) {
+                drawScreenCache(canvas, snapshot);
+            } else {
+                drawScreen(canvas, snapshot, snapshot.getReverseVideo(),
+                        snapshot.getCursorCol(), snapshot.getCursorRow());
+            }
+        } else {
+            synchronized (mTermSession.getEmulatorLock()) {
+                drawScreen(canvas, null, mEmulator.getReverseVideo(),
+                        mEmulator.getCursorCol(), mEmulator.getCursorRow());
+            }
+        }
+    }
+
+    private void drawScreen(Canvas canvas, ScreenSnapshot snapshot,
+            boolean reverseVideo, int cx, int cy) {
         int w = getWidth();
         int h = getHeight();
 
-        boolean reverseVideo = mEmulator.getReverseVideo();
         mTextRenderer.setReverseVideo(reverseVideo);
 
         Paint backgroundPaint =
@@ -1181,35 +1269,195 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
         float x = -mLeftColumn * mCharacterWidth;
         float y = mCharacterHeight + mTopOfScreenMargin;
         int endLine = mTopRow + mRows;
-        int cx = mEmulator.getCursorCol();
-        int cy = mEmulator.getCursorRow();
         for (int i = mTopRow; i < endLine; i++) {
-            int cursorX = -1;
-            if (i == cy && mCursorVisible) {
-                cursorX = cx;
+            drawRow(canvas, snapshot, i, x, y, cx, cy);
+            y += mCharacterHeight;
+        }
+    }
+
+    private void drawRow(Canvas canvas, ScreenSnapshot snapshot, int i,
+            float x, float y, int cx, int cy) {
+        int cursorX = -1;
+        if (i == cy && mCursorVisible) {
+            cursorX = cx;
+        }
+        int selx1 = -1;
+        int selx2 = -1;
+        if ( i >= mSelY1 && i <= mSelY2 ) {
+            if ( i == mSelY1 ) {
+                selx1 = mSelX1;
+            }
+            if ( i == mSelY2 ) {
+                selx2 = mSelX2;
+            } else {
+                selx2 = mColumns;
+            }
+        }
+        if (snapshot != null) {
+            snapshot.drawText(i, canvas, x, y, mTextRenderer, cursorX, selx1, selx2, mImeBuffer);
+        } else {
+            mTranscriptScreen.drawText(i, canvas, x, y, mTextRenderer, cursorX, selx1, selx2, mImeBuffer);
+        }
+    }
+
+    /* The cache is only used for the bottom of the transcript without a
+       selection, where drawing comes from snapshots */
+    private boolean canUseScreenCache() {
+        return mTopRow == 0 && !mIsSelectingText && mSelX1 < 0
+                && !ViewCompat.isHardwareAccelerated(this);
+    }
+
+    /* Whether the cache holds the screen of the snapshot as it would be
+       drawn now, apart from rows and the cursor */
+    private boolean isScreenCacheCurrent(ScreenSnapshot snapshot) {
+        return mScreenCacheValid
+                && mScreenCache.getWidth() == getWidth()
+                && mScreenCache.getHeight() == getHeight()
+                && mCachedRowStamps.length == snapshot.getRows()
+                && mCachedSourceId == snapshot.getSourceId()
+                && mCachedGeneration == snapshot.getGeneration()
+                && mCachedDefaultStyle == snapshot.getDefaultStyle()
+                && mCachedReverseVideo == snapshot.getReverseVideo()
+                && mCachedLeftColumn == mLeftColumn;
+    }
+
+    private int getVisibleCursorRow(ScreenSnapshot snapshot) {
+        return mCursorVisible ? snapshot.getCursorRow() : -1;
+    }
+
+    /* Whether a row of the cached screen differs from the snapshot */
+    private boolean isRowDamaged(ScreenSnapshot snapshot, int row) {
+        if (snapshot.getRowStamp(row) != mCachedRowStamps[row]) {
+            return true;
+        }
+        // The cursor and the IME text are drawn in the cursor row
+        int cursorRow = getVisibleCursorRow(snapshot);
+        if (row != cursorRow && row != mCachedCursorRow) {
+            return false;
+        }
+        return cursorRow != mCachedCursorRow
+                || snapshot.getCursorCol() != mCachedCursorCol
+                || !mImeBuffer.equals(mCachedImeText);
+    }
+
+    /**
+     * Bring the cached screen up to date with the snapshot, drawing only the
+     * rows that changed, and draw it.
+     * <p>
+     * The snapshot may be newer than the one invalidateScreen() looked at,
+     * so rows may change in the cache outside the area being drawn.  Those
+     * are invalidated again, or they would not reach the screen until they
+     * changed once more.
+     */
+    private void drawScreenCache(Canvas canvas, ScreenSnapshot snapshot) {
+        int w = getWidth();
+        int h = getHeight();
+        Rect clip = mClipBounds;
+        if (!canvas.getClipBounds(clip)) {
+            clip.setEmpty();
+        }
+        if (mScreenCache == null || mScreenCache.getWidth() != w
+                || mScreenCache.getHeight() != h) {
+            if (mScreenCache != null) {
+                mScreenCache.recycle();
+            }
+            mScreenCache = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+            mScreenCacheCanvas = new Canvas(mScreenCache);
+            mScreenCacheValid = false;
+        }
+
+        int rows = snapshot.getRows();
+        boolean reverseVideo = snapshot.getReverseVideo();
+        if (!isScreenCacheCurrent(snapshot)) {
+            drawScreen(mScreenCacheCanvas, snapshot, reverseVideo,
+                    snapshot.getCursorCol(), snapshot.getCursorRow());
+            if (mCachedRowStamps.length != rows) {
+                mCachedRowStamps = new int[rows];
+            }
+            for (int row = 0; row < rows; row++) {
+                mCachedRowStamps[row] = snapshot.getRowStamp(row);
             }
-            int selx1 = -1;
-            int selx2 = -1;
-            if ( i >= mSelY1 && i <= mSelY2 ) {
-                if ( i == mSelY1 ) {
-                    selx1 = mSelX1;
+            mCachedSourceId = snapshot.getSourceId();
+            mCachedGeneration = snapshot.getGeneration();
+            mCachedDefaultStyle = snapshot.getDefaultStyle();
+            mCachedReverseVideo = reverseVideo;
+            mCachedLeftColumn = mLeftColumn;
+            mScreenCacheValid = true;
+            if (clip.left > 0 || clip.top > 0 || clip.right < w || clip.bottom < h) {
+                invalidate();
+            }
+        } else {
+            mTextRenderer.setReverseVideo(reverseVideo);
+            Paint backgroundPaint =
+                    reverseVideo ? mForegroundPaint : mBackgroundPaint;
+            float x = -mLeftColumn * mCharacterWidth;
+            int outsideTop = -1;
+            int outsideBottom = -1;
+            for (int row = 0; row < rows; row++) {
+                if (!isRowDamaged(snapshot, row)) {
+                    continue;
                 }
-                if ( i == mSelY2 ) {
-                    selx2 = mSelX2;
-                } else {
-                    selx2 = mColumns;
+                float y = (row + 1) * mCharacterHeight + mTopOfScreenMargin;
+                mScreenCacheCanvas.drawRect(0, y - mCharacterHeight, w, y, backgroundPaint);
+                drawRow(mScreenCacheCanvas, snapshot, row, x, y,
+                        snapshot.getCursorCol(), snapshot.getCursorRow());
+                mCachedRowStamps[row] = snapshot.getRowStamp(row);
+
+                int top = row * mCharacterHeight + mTopOfScreenMargin;
+                int bottom = top + mCharacterHeight;
+                if (top < clip.top || bottom > clip.bottom || clip.left > 0 || clip.right < w) {
+                    if (outsideTop < 0) {
+                        outsideTop = top;
+                    }
+                    outsideBottom = bottom;
                 }
             }
-            mTranscriptScreen.drawText(i, canvas, x, y, mTextRenderer, cursorX, selx1, selx2, mImeBuffer);
-            y += mCharacterHeight;
+            if (outsideTop >= 0) {
+                invalidate(0, outsideTop, w, outsideBottom);
+            }
+        }
+        mCachedCursorCol = snapshot.getCursorCol();
+        mCachedCursorRow = getVisibleCursorRow(snapshot);
+        mCachedImeText = mImeBuffer;
+
+        canvas.drawBitmap(mScreenCache, 0, 0, null);
+    }
+
+    /**
+     * Invalidate the part of the view that will look different the next time
+     * it is drawn: only the damaged rows when they can be drawn from the
+     * cache, the whole view otherwise.
+     */
+    private void invalidateScreen() {
+        ScreenSnapshot snapshot = mTermSession.getScreenSnapshot();
+        if (snapshot == null || !canUseScreenCache()
+                || snapshot.getColumns() != mColumns || snapshot.getRows() != mRows
+                || !isScreenCacheCurrent(snapshot)) {
+            invalidate();
+            return;
+        }
+        int first = -1;
+        int last = -1;
+        for (int row = 0; row < mRows; row++) {
+            if (isRowDamaged(snapshot, row)) {
+                if (first < 0) {
+                    first = row;
+                }
+                last = row;
+            }
+        }
+        if (first >= 0) {
+            invalidate(0, first * mCharacterHeight + mTopOfScreenMargin,
+                    getWidth(), (last + 1) * mCharacterHeight + mTopOfScreenMargin);
         }
     }
 
     private void ensureCursorVisible() {
         mTopRow = 0;
         if (mVisibleColumns > 0) {
-            int cx = mEmulator.getCursorCol();
-            int visibleCursorX = mEmulator.getCursorCol() - mLeftColumn;
+            ScreenSnapshot snapshot = mTermSession.getScreenSnapshot();
+            int cx = snapshot != null ? snapshot.getCursorCol() : mEmulator.getCursorCol();
+            int visibleCursorX = cx - mLeftColumn;
             if (visibleCursorX < 0) {
                 mLeftColumn = cx;
             } else if (visibleCursorX >= mVisibleColumns) {
@@ -1245,7 +1493,9 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
      * @return A {@link String} with the selected text.
      */
     public String getSelectedText() {
-        return mEmulator.getSelectedText(mSelX1, mSelY1, mSelX2, mSelY2);
+        synchronized (mTermSession.getEmulatorLock()) {
+            return mEmulator.getSelectedText(mSelX1, mSelY1, mSelX2, mSelY2);
+        }
     }
 
     /**
@@ -0,0 +1,254 @@
+package jackpal.androidterm.emulatorview;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.util.FloatMath;
+
+/**
+ * Text renderer which draws characters from pre-rendered glyph bitmaps.
+ * <p>
+ * Each glyph is rendered once with the monospace font into an atlas, an
+ * {@link Bitmap.Config#ALPHA_8} bitmap holding many glyphs.  Drawing a run is
+ * then one rectangle for the background and one bitmap copy per visible
+ * character, in the run's foreground color (alpha bitmaps are drawn in the
+ * color of the paint, so the glyphs don't depend on the color).  Nothing has
+ * to be measured or shaped while drawing.
+ * <p>
+ * Printable ASCII is rendered up front, in a normal and a bold atlas.  Other
+ * characters, including East Asian wide ones, are rendered on first use into
+ * a cache of glyph slots, keyed by code point and boldness, which evicts the
+ * least recently used glyph when full.  Runs containing combining characters
+ * can't be drawn glyph by glyph, and are drawn as text by
+ * {@link PaintRenderer} instead.
+ */
+class GlyphAtlasRenderer extends PaintRenderer {
+    private static final int ASCII_FIRST = 0x20;
+    private static final int ASCII_LAST = 0x7e;
+    private static final int ASCII_COLUMNS = 16;
+
+    /* Cache of other glyphs: CACHE_SETS sets of CACHE_WAYS slots, each slot
+       wide enough for a wide character */
+    private static final int CACHE_SETS = 128;
+    private static final int CACHE_WAYS = 4;
+    private static final int CACHE_SLOTS = CACHE_SETS * CACHE_WAYS;
+    private static final int CACHE_COLUMNS = 32;
+    private static final int NO_GLYPH = -1;
+
+    private final int mCellWidth;
+    private final int mBaseline;
+    private final int mUnderlineTop;
+    private final int mUnderlineHeight;
+
+    /* Paint used to render glyphs into the atlases */
+    private final Paint mGlyphPaint;
+    private final Paint mClearPaint;
+    /* Paint used to draw runs */
+    private final Paint mRunPaint = new Paint();
+
+    /* Indexed by boldness */
+    private final Bitmap[] mAsciiAtlas = new Bitmap[2];
+
+    private Bitmap mCacheAtlas;
+    private Canvas mCacheCanvas;
+    private final int[] mCacheKeys = new int[CACHE_SLOTS];
+    private final int[] mCacheLastUse = new int[CACHE_SLOTS];
+    private int mUseCount;
+
+    private final char[] mCharBuffer = new char[2];
+    private final Rect mSrcRect = new Rect();
+    private final Rect mDstRect = new Rect();
+
+    public GlyphAtlasRenderer(int fontSize, ColorScheme scheme) {
+        super(fontSize, scheme);
+        mCellWidth = (int) FloatMath.ceil(mCharWidth);
+        mBaseline = mCharHeight - mCharDescent;
+        // Where Paint.setUnderlineText() puts the line
+        mUnderlineHeight = Math.max(1, Math.round(fontSize / 18.0f));
+        mUnderlineTop = Math.min(mBaseline + Math.round(fontSize / 9.0f),
+                mCharHeight - mUnderlineHeight);
+
+        mGlyphPaint = new Paint(mTextPaint);
+        mGlyphPaint.setColor(0xffffffff);
+        mClearPaint = new Paint();
+        mClearPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
+
+        for (int i = 0; i < CACHE_SLOTS; i++) {
+            mCacheKeys[i] = NO_GLYPH;
+        }
+        for (int bold = 0; bold < 2; bold++) {
+            mAsciiAtlas[bold] = renderAsciiAtlas(bold != 0);
+        }
+    }
+
+    private Bitmap renderAsciiAtlas(boolean bold) {
+        int count = ASCII_LAST - ASCII_FIRST + 1;
+        int rows = (count + ASCII_COLUMNS - 1) / ASCII_COLUMNS;
+        Bitmap atlas = Bitmap.createBitmap(ASCII_COLUMNS * mCellWidth,
+                rows * mCharHeight, Bitmap.Config.ALPHA_8);
+        Canvas canvas = new Canvas(atlas);
+        for (int i = 0; i < count; i++) {
+            int left = (i % ASCII_COLUMNS) * mCellWidth;
+            int top = (i / ASCII_COLUMNS) * mCharHeight;
+            renderGlyph(canvas, left, top, 1, ASCII_FIRST + i, bold);
+        }
+        return atlas;
+    }
+
+    private void renderGlyph(Canvas canvas, int left, int top, int width,
+            int codePoint, boolean bold) {
+        int right = left + width * mCellWidth;
+        int bottom = top + mCharHeight;
+        canvas.save();
+        canvas.clipRect(left, top, right, bottom);
+        canvas.drawRect(left, top, right, bottom, mClearPaint);
+        int count = Character.toChars(codePoint, mCharBuffer, 0);
+        mGlyphPaint.setFakeBoldText(bold);
+        canvas.drawText(mCharBuffer, 0, count, left, top + mBaseline, mGlyphPaint);
+        canvas.restore();
+    }
+
+    /**
+     * Find the cache slot holding a glyph, rendering it if necessary.
+     */
+    private int getCachedGlyph(int codePoint, int width, boolean bold) {
+        int key = (codePoint << 1) | (bold ? 1 : 0);
+        int first = ((key * 0x9e3779b1) >>> 16) % CACHE_SETS * CACHE_WAYS;
+        int oldest = first;
+        int useCount = ++mUseCount;
+        for (int i = first; i < first + CACHE_WAYS; i++) {
+            if (mCacheKeys[i] == key) {
+                mCacheLastUse[i] = useCount;
+                return i;
+            }
+            // Compare ages rather than counts, so the counter may wrap
+            if (useCount - mCacheLastUse[i] > useCount - mCacheLastUse[oldest]) {
+                oldest = i;
+            }
+        }
+        if (mCacheAtlas == null) {
+            int rows = (CACHE_SLOTS + CACHE_COLUMNS - 1) / CACHE_COLUMNS;
+            mCacheAtlas = Bitmap.createBitmap(CACHE_COLUMNS * 2 * mCellWidth,
+                    rows * mCharHeight, Bitmap.Config.ALPHA_8);
+            mCacheCanvas = new Canvas(mCacheAtlas);
+        }
+        renderGlyph(mCacheCanvas, getSlotLeft(oldest), getSlotTop(oldest), width,
+                codePoint, bold);
+        mCacheKeys[oldest] = key;
+        mCacheLastUse[oldest] = useCount;
+        return oldest;
+    }
+
+    private int getSlotLeft(int slot) {
+        return (slot % CACHE_COLUMNS) * 2 * mCellWidth;
+    }
+
+    private int getSlotTop(int slot) {
+        return (slot / CACHE_COLUMNS) * mCharHeight;
+    }
+
+    @Override
+    public void drawTextRun(Canvas canvas, float x, float y, int lineOffset,
+            int runWidth, char[] text, int index, int count,
+            boolean cursor, int textStyle) {
+        int end = index + count;
+        for (int i = index; i < end; i++) {
+            char c = text[i];
+            if (c >= ASCII_FIRST && c <= ASCII_LAST) {
+                continue;
+            }
+            int codePoint = c;
+            if (Character.isHighSurrogate(c) && i + 1 < end) {
+                codePoint = Character.toCodePoint(c, text[++i]);
+            }
+            if (UnicodeTranscript.charWidth(codePoint) <= 0) {
+                // Combining characters have to be drawn with their base
+                super.drawTextRun(canvas, x, y, lineOffset, runWidth, text,
+                        index, count, cursor, textStyle);
+                return;
+            }
+        }
+
+        int foreColor = TextStyle.decodeForeColor(textStyle);
+        int backColor = TextStyle.decodeBackColor(textStyle);
+        int effect = TextStyle.decodeEffect(textStyle);
+
+        boolean inverse =  mReverseVideo ^
+                (effect & (TextStyle.fxInverse | TextStyle.fxItalic)) != 0;
+        if (inverse) {
+            int temp = foreColor;
+            foreColor = backColor;
+            backColor = temp;
+        }
+
+        if (cursor) {
+            backColor = TextStyle.ciCursor;
+        }
+
+        Paint paint = mRunPaint;
+        paint.setColor(mPalette[backColor]);
+
+        float left = x + lineOffset * mCharWidth;
+        float right = left + runWidth * mCharWidth;
+        float top = y - mCharHeight;
+        canvas.drawRect(left, top, right, y, paint);
+        if ((effect & TextStyle.fxInvisible) != 0) {
+            return;
+        }
+
+        boolean bold = (effect & (TextStyle.fxBold | TextStyle.fxBlink)) != 0;
+        if (foreColor < 8 && bold) {
+            // In 16-color mode, bold also implies bright foreground colors
+            paint.setColor(mPalette[foreColor+8]);
+        } else {
+            paint.setColor(mPalette[foreColor]);
+        }
+
+        Bitmap ascii = mAsciiAtlas[bold ? 1 : 0];
+        Rect src = mSrcRect;
+        Rect dst = mDstRect;
+        dst.top = (int) top;
+        dst.bottom = dst.top + mCharHeight;
+        int column = lineOffset;
+        for (int i = index; i < end; i++) {
+            char c = text[i];
+            int dstLeft = (int) (x + column * mCharWidth + 0.5f);
+            if (c >= ASCII_FIRST && c <= ASCII_LAST) {
+                column++;
+                if (c == ' ') {
+                    continue;
+                }
+                int glyph = c - ASCII_FIRST;
+                int srcLeft = (glyph % ASCII_COLUMNS) * mCellWidth;
+                int srcTop = (glyph / ASCII_COLUMNS) * mCharHeight;
+                src.set(srcLeft, srcTop, srcLeft + mCellWidth, srcTop + mCharHeight);
+                dst.left = dstLeft;
+                dst.right = dstLeft + mCellWidth;
+                canvas.drawBitmap(ascii, src, dst, paint);
+            } else {
+                int codePoint = c;
+                if (Character.isHighSurrogate(c) && i + 1 < end) {
+                    codePoint = Character.toCodePoint(c, text[++i]);
+                }
+                int width = UnicodeTranscript.charWidth(codePoint);
+                column += width;
+                int slot = getCachedGlyph(codePoint, width, bold);
+                int srcLeft = getSlotLeft(slot);
+                int srcTop = getSlotTop(slot);
+                src.set(srcLeft, srcTop, srcLeft + width * mCellWidth,
+                        srcTop + mCharHeight);
+                dst.left = dstLeft;
+                dst.right = dstLeft + width * mCellWidth;
+                canvas.drawBitmap(mCacheAtlas, src, dst, paint);
+            }
+        }
+
+        if ((effect & TextStyle.fxUnderline) != 0) {
+            canvas.drawRect(left, top + mUnderlineTop, right,
+                    top + mUnderlineTop + mUnderlineHeight, paint);
+        }
+    }
+}
@@ -99,10 +99,10 @@ class PaintRenderer extends BaseTextRenderer {
         return mCharDescent;
     }
 
-    private Paint mTextPaint;
-    private float mCharWidth;
-    private int mCharHeight;
-    private int mCharAscent;
-    private int mCharDescent;
+    protected Paint mTextPaint;
+    protected float mCharWidth;
+    protected int mCharHeight;
+    protected int mCharAscent;
+    protected int mCharDescent;
     private static final char[] EXAMPLE_CHAR = {'X'};
 }
@@ -49,6 +49,19 @@ interface Screen {
      */
     void set(int x, int y, byte b, int style);
 
+    /**
+     * Store a run of printable ASCII characters into the screen, starting at
+     * location (x, y).  The whole run must fit in the row.
+     *
+     * @param x X coordinate of the first character
+     * @param y Y coordinate (also known as row)
+     * @param b the ASCII characters to store
+     * @param offset the index of the first character in b
+     * @param length the number of characters to store
+     * @param style the text style
+     */
+    void set(int x, int y, byte[] b, int offset, int length, int style);
+
     /**
      * Scroll the screen down one line. To scroll the whole screen of a 24 line
      * screen, the arguments would be (0, 24).
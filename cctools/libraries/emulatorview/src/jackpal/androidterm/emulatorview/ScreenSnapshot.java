@@ -0,0 +1,156 @@
+package jackpal.androidterm.emulatorview;
+
+import java.util.Arrays;
+
+import android.graphics.Canvas;
+
+/**
+ * A copy of the visible rows of a {@link TranscriptScreen}, together with the
+ * cursor position and video mode, taken on the emulation thread.
+ * <p>
+ * Once a snapshot has been handed to the main thread it is never modified
+ * again until the main thread gives it back, so it can be drawn without
+ * holding the session's emulator lock.  Snapshots are recycled, which is why
+ * the row buffers are reused rather than reallocated.
+ * <p>
+ * Each row keeps the stamp the transcript had for it when it was copied
+ * (see {@link UnicodeTranscript#getRowStamp}).  Rows whose stamp has not
+ * changed don't need to be copied again, or drawn again.
+ */
+class ScreenSnapshot {
+    private int mColumns;
+    private int mRows;
+    private int mDefaultStyle;
+    private int mCursorCol;
+    private int mCursorRow;
+    private boolean mReverseVideo;
+    private int mGeneration;
+    private int mSourceId;
+
+    /** Row text, or null where the row is blank. */
+    private char[][] mLines = new char[0][];
+    private StyleRow[] mColors = new StyleRow[0];
+    private boolean[] mBlank = new boolean[0];
+    private int[] mStamps = new int[0];
+
+    /**
+     * Prepare the snapshot to receive a screen of the given size.  Unless
+     * the screen is the same as last time, all rows have to be copied again.
+     *
+     * @param sourceId the id of the transcript the screen is copied from.
+     */
+    void reset(int columns, int rows, int defaultStyle, int sourceId) {
+        if (columns != mColumns || rows != mLines.length) {
+            mLines = new char[rows][];
+            mColors = new StyleRow[rows];
+            mBlank = new boolean[rows];
+            mStamps = new int[rows];
+            Arrays.fill(mStamps, -1);
+        } else if (defaultStyle != mDefaultStyle || sourceId != mSourceId) {
+            Arrays.fill(mStamps, -1);
+        }
+        mColumns = columns;
+        mRows = rows;
+        mDefaultStyle = defaultStyle;
+        mSourceId = sourceId;
+    }
+
+    /**
+     * Copy one row of the screen into the snapshot.
+     *
+     * @param row the row, 0 being the top of the screen.
+     * @param line the row text as returned by {@link UnicodeTranscript#getLine},
+     *             or null for a blank row.
+     * @param color the row style as returned by {@link UnicodeTranscript#getLineColor}.
+     * @param stamp the stamp of the row.
+     */
+    void setRow(int row, char[] line, StyleRow color, int stamp) {
+        mStamps[row] = stamp;
+        if (line == null) {
+            mBlank[row] = true;
+            return;
+        }
+        mBlank[row] = false;
+        char[] dst = mLines[row];
+        if (dst == null || dst.length < line.length) {
+            dst = new char[line.length];
+            mLines[row] = dst;
+        }
+        System.arraycopy(line, 0, dst, 0, line.length);
+        StyleRow dstColor = mColors[row];
+        if (dstColor == null) {
+            dstColor = new StyleRow(mDefaultStyle, mColumns);
+            mColors[row] = dstColor;
+        }
+        if (color != null) {
+            color.copyTo(dstColor);
+        } else {
+            new StyleRow(mDefaultStyle, mColumns).copyTo(dstColor);
+        }
+    }
+
+    void setState(int cursorCol, int cursorRow, boolean reverseVideo, int generation) {
+        mCursorCol = cursorCol;
+        mCursorRow = cursorRow;
+        mReverseVideo = reverseVideo;
+        mGeneration = generation;
+    }
+
+    int getRowStamp(int row) {
+        return mStamps[row];
+    }
+
+    /**
+     * The id of the transcript the rows were copied from; row stamps are
+     * only comparable between snapshots with the same source.
+     */
+    int getSourceId() {
+        return mSourceId;
+    }
+
+    int getDefaultStyle() {
+        return mDefaultStyle;
+    }
+
+    int getColumns() {
+        return mColumns;
+    }
+
+    int getRows() {
+        return mRows;
+    }
+
+    int getCursorCol() {
+        return mCursorCol;
+    }
+
+    int getCursorRow() {
+        return mCursorRow;
+    }
+
+    boolean getReverseVideo() {
+        return mReverseVideo;
+    }
+
+    /**
+     * The value of the session's screen generation when the snapshot was taken.
+     * Changes made to the screen from the main thread bump the generation, so
+     * older snapshots can be recognized and ignored.
+     */
+    int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Draw a row of the snapshot.  Takes the same arguments as
+     * {@link TranscriptScreen#drawText}.
+     */
+    void drawText(int row, Canvas canvas, float x, float y,
+            TextRenderer renderer, int cx, int selx1, int selx2, String imeText) {
+        if (row < 0 || row >= mRows) {
+            return;
+        }
+        TranscriptScreen.drawLine(mBlank[row] ? null : mLines[row], mColors[row],
+                mColumns, mDefaultStyle, canvas, x, y, renderer, cx, selx1, selx2, imeText);
+    }
+}
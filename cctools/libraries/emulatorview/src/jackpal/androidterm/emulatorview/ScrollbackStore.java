@@ -0,0 +1,606 @@
+package jackpal.androidterm.emulatorview;
+
+/**
+ * The rows of a {@link UnicodeTranscript} which have scrolled off the top of
+ * the screen.
+ * <p>
+ * Rows in the scrollback never change, so rather than keeping an array and a
+ * {@link StyleRow} per row, they are packed into two circular arenas shared
+ * by all rows: one for the text, with trailing blanks trimmed, and one for
+ * the styles, stored as runs of columns with the same style.  Each row only
+ * adds a few entries to a set of index arrays.
+ * <p>
+ * A "full" row is rebuilt from its text by storing the characters again.
+ * Rows for which that doesn't give back the same column layout, for example
+ * ones which end before their last column, keep their text untrimmed
+ * together with the offset of each column instead.
+ * <p>
+ * The store is bounded by a memory budget rather than a number of rows.  The
+ * oldest rows are dropped to make room for new ones once the budget is used
+ * up.  The arenas start small and grow as needed, up to the budget.
+ * <p>
+ * Rows are numbered from 0, the oldest row, to {@link #getRows()} - 1, the
+ * row which most recently scrolled off the screen.  They also have a row
+ * number which stays the same while rows are added and dropped, see
+ * {@link #getFirstRowNumber()}.
+ * <p>
+ * For searching, each row keeps a signature of the characters in it (see
+ * {@link #getSignature(char[], int, int)}), so rows which can't contain a
+ * string are skipped without looking at their text.
+ */
+class ScrollbackStore {
+    private static final int FLAG_WRAP = 1;
+    private static final int FLAG_BLANK = 2;
+    private static final int FLAG_FULL = 4;
+    private static final int FLAG_NO_STYLE = 8;
+    private static final int FLAG_LAYOUT = 16;
+
+    /** Size of the index entries of a row, in bytes. */
+    private static final int ROW_BYTES = 21;
+
+    /* A style run is packed into an int: the style in the low three bytes
+       (see TextStyle), and the length of the run minus one in the high byte. */
+    private static final int STYLE_MASK = 0xffffff;
+    private static final int RUN_SHIFT = 24;
+    private static final int MAX_RUN = 256;
+
+    private static final int INITIAL_ROWS = 256;
+    private static final int INITIAL_STYLES = 1024;
+    private static final int INITIAL_TEXT_LINES = 64;
+
+    private final int mColumns;
+    private final int mMaxBytes;
+
+    /* Index arrays, a circular buffer starting at mFirstRow */
+    private int[] mTextStart;
+    private short[] mTextLength;
+    private int[] mStyleStart;
+    private short[] mStyleLength;
+    private byte[] mFlags;
+    private long[] mSignatures;
+    private int mFirstRow;
+    private int mRows;
+    /* Number of rows added and not removed by removeLast() */
+    private long mRowsAdded;
+
+    /* The arenas; the data of the oldest row comes first */
+    private char[] mText;
+    private int mTextEnd;
+    private int mTextUsed;
+    private int[] mStyles;
+    private int mStylesEnd;
+    private int mStylesUsed;
+
+    private int[] mRuns;
+
+    /* Buffers handed out by getLine() and getLineColor() */
+    private char[] mBasicLine;
+    private FullUnicodeLine mFullLine;
+    private char[] mLineText;
+    /* For checking and storing the layout of full rows in add() */
+    private FullUnicodeLine mCheckLine;
+    private char[] mLayout;
+    private StyleRow mSolidColor;
+    private StyleRow mColor;
+
+    /**
+     * Create an empty scrollback.
+     *
+     * @param columns the width of the rows, in columns.
+     * @param maxBytes the amount of memory the rows may use.
+     */
+    public ScrollbackStore(int columns, int maxBytes) {
+        mColumns = columns;
+        mMaxBytes = Math.max(maxBytes, 0);
+
+        int rows = Math.min(INITIAL_ROWS, mMaxBytes / ROW_BYTES + 1);
+        mTextStart = new int[rows];
+        mTextLength = new short[rows];
+        mStyleStart = new int[rows];
+        mStyleLength = new short[rows];
+        mFlags = new byte[rows];
+        mSignatures = new long[rows];
+        mText = new char[Math.min(INITIAL_TEXT_LINES * columns, mMaxBytes / 2 + 1)];
+        mStyles = new int[Math.min(INITIAL_STYLES, mMaxBytes / 4 + 1)];
+
+        mRuns = new int[columns];
+        mSolidColor = new StyleRow(0, columns);
+        mColor = new StyleRow(0, columns);
+    }
+
+    public int getRows() {
+        return mRows;
+    }
+
+    /**
+     * The row number of the oldest row.  The row numbers count all rows ever
+     * added, so a row keeps its number until it is removed.
+     */
+    public long getFirstRowNumber() {
+        return mRowsAdded - mRows;
+    }
+
+    /**
+     * The memory used by the rows in the scrollback, in bytes.  This does
+     * not count the unused parts of the arenas.
+     */
+    public int getBytesUsed() {
+        return 2 * mTextUsed + 4 * mStylesUsed + ROW_BYTES * mRows;
+    }
+
+    /**
+     * Add a row after the newest row.  The row is copied, so the caller may
+     * reuse the line and style objects afterwards.
+     *
+     * @param line the row text: null for a blank row, a char[] for a
+     *             "basic" row or a FullUnicodeLine.
+     * @param color the row style, or null.
+     * @param wrap whether the row wraps onto the next one.
+     */
+    public void add(Object line, StyleRow color, boolean wrap) {
+        char[] text;
+        int length;
+        int textLength;
+        int flags = wrap ? FLAG_WRAP : 0;
+        if (line == null) {
+            text = null;
+            length = 0;
+            textLength = 0;
+            flags |= FLAG_BLANK;
+        } else if (line instanceof char[]) {
+            text = (char[]) line;
+            length = trimmedLength(text, mColumns);
+            textLength = length;
+        } else {
+            FullUnicodeLine fullLine = (FullUnicodeLine) line;
+            text = fullLine.getLine();
+            length = trimmedLength(text, fullLine.getSpaceUsed());
+            textLength = length;
+            flags |= FLAG_FULL;
+            if (!rebuildsExactly(fullLine, text, length)) {
+                textLength = fullLine.getSpaceUsed();
+                length = textLength + mColumns - 1;
+                if (mLayout == null || mLayout.length < length) {
+                    mLayout = new char[length + mColumns];
+                }
+                text = mLayout;
+                fullLine.getLayout(text, 0);
+                flags |= FLAG_LAYOUT;
+            }
+        }
+        int runs;
+        if (color == null) {
+            runs = 0;
+            flags |= FLAG_NO_STYLE;
+        } else {
+            runs = encodeRuns(color);
+        }
+
+        int bytes = 2 * length + 4 * runs + ROW_BYTES;
+        ++mRowsAdded;
+        while (mRows > 0 && getBytesUsed() + bytes > mMaxBytes) {
+            removeFirst();
+        }
+        if (bytes > mMaxBytes) {
+            // Would not fit even on its own
+            return;
+        }
+
+        ensureRowCapacity(mRows + 1);
+        ensureTextCapacity(mTextUsed + length);
+        ensureStyleCapacity(mStylesUsed + runs);
+
+        int row = physicalRow(mRows);
+        mTextStart[row] = mTextEnd;
+        mTextLength[row] = (short) length;
+        mStyleStart[row] = mStylesEnd;
+        mStyleLength[row] = (short) runs;
+        mFlags[row] = (byte) flags;
+        mSignatures[row] = textLength > 0 ? getSignature(text, 0, textLength) : 0;
+        ++mRows;
+
+        if (length > 0) {
+            char[] arena = mText;
+            int pos = mTextEnd;
+            int first = Math.min(length, arena.length - pos);
+            System.arraycopy(text, 0, arena, pos, first);
+            System.arraycopy(text, first, arena, 0, length - first);
+            mTextEnd = wrap(pos + length, arena.length);
+            mTextUsed += length;
+        }
+        if (runs > 0) {
+            int[] arena = mStyles;
+            int pos = mStylesEnd;
+            int first = Math.min(runs, arena.length - pos);
+            System.arraycopy(mRuns, 0, arena, pos, first);
+            System.arraycopy(mRuns, first, arena, 0, runs - first);
+            mStylesEnd = wrap(pos + runs, arena.length);
+            mStylesUsed += runs;
+        }
+    }
+
+    /**
+     * Remove the oldest row.
+     */
+    public void removeFirst() {
+        if (mRows == 0) {
+            throw new IllegalStateException();
+        }
+        int row = mFirstRow;
+        mTextUsed -= mTextLength[row];
+        mStylesUsed -= mStyleLength[row];
+        mFirstRow = wrap(row + 1, mFlags.length);
+        if (--mRows == 0) {
+            clear();
+        }
+    }
+
+    /**
+     * Remove the newest row.
+     */
+    public void removeLast() {
+        if (mRows == 0) {
+            throw new IllegalStateException();
+        }
+        int row = physicalRow(mRows - 1);
+        mTextEnd = mTextStart[row];
+        mTextUsed -= mTextLength[row];
+        mStylesEnd = mStyleStart[row];
+        mStylesUsed -= mStyleLength[row];
+        --mRowsAdded;
+        if (--mRows == 0) {
+            clear();
+        }
+    }
+
+    public void clear() {
+        mRows = 0;
+        mFirstRow = 0;
+        mTextEnd = 0;
+        mTextUsed = 0;
+        mStylesEnd = 0;
+        mStylesUsed = 0;
+    }
+
+    public boolean getLineWrap(int index) {
+        return (mFlags[checkedRow(index)] & FLAG_WRAP) != 0;
+    }
+
+    /**
+     * Get the signature of the text of a row.
+     */
+    public long getSignature(int index) {
+        return mSignatures[checkedRow(index)];
+    }
+
+    /**
+     * Compute the signature of some text: a set of bits, one for each
+     * character which occurs in it.  ASCII letters are folded to lower case,
+     * other ASCII characters share bits where they have to, and all other
+     * characters share one bit.  Blanks are left out.  If text contains a string, the bits of the
+     * string's signature are all set in the text's signature.
+     */
+    public static long getSignature(char[] text, int offset, int length) {
+        long signature = 0;
+        for (int i = offset; i < offset + length; ++i) {
+            signature |= getSignatureBit(text[i]);
+        }
+        return signature;
+    }
+
+    public static long getSignatureBit(char c) {
+        if (c == ' ') {
+            // Wrapped rows lose their trailing blanks
+            return 0;
+        } else if (c >= 0x80) {
+            return 1L << 63;
+        }
+        if (c >= 'A' && c <= 'Z') {
+            c += 'a' - 'A';
+        }
+        return 1L << (c % 63);
+    }
+
+    /**
+     * Get the text of a row, in the form UnicodeTranscript keeps it for
+     * screen rows.  The object returned is only valid until the next call.
+     *
+     * @return null for a blank row, a char[] of the width of the row for a
+     *         "basic" row, or a FullUnicodeLine.
+     */
+    public Object getLine(int index) {
+        int row = checkedRow(index);
+        int flags = mFlags[row];
+        if ((flags & FLAG_BLANK) != 0) {
+            return null;
+        }
+        if ((flags & FLAG_FULL) == 0) {
+            if (mBasicLine == null) {
+                mBasicLine = new char[mColumns];
+            }
+            fillBasicLine(row, mBasicLine);
+            return mBasicLine;
+        }
+        if (mFullLine == null) {
+            mFullLine = new FullUnicodeLine(mColumns);
+        }
+        fillFullLine(row, mFullLine);
+        return mFullLine;
+    }
+
+    /**
+     * Get the style of a row.  The StyleRow returned is only valid until the
+     * next call; rows with a single style get a solid StyleRow.
+     *
+     * @return the style, or null if the row had none.
+     */
+    public StyleRow getLineColor(int index) {
+        int row = checkedRow(index);
+        if ((mFlags[row] & FLAG_NO_STYLE) != 0) {
+            return null;
+        }
+        if (isSolid(row)) {
+            mSolidColor.setSolid(mStyles[mStyleStart[row]] & STYLE_MASK);
+            return mSolidColor;
+        }
+        fillColor(row, mColor);
+        return mColor;
+    }
+
+    /**
+     * Get a copy of the text of a row, which the caller may keep and modify.
+     * Takes the same argument and returns the same kinds of object as
+     * {@link #getLine}.
+     */
+    public Object copyLine(int index) {
+        int row = checkedRow(index);
+        int flags = mFlags[row];
+        if ((flags & FLAG_BLANK) != 0) {
+            return null;
+        }
+        if ((flags & FLAG_FULL) == 0) {
+            char[] line = new char[mColumns];
+            fillBasicLine(row, line);
+            return line;
+        }
+        FullUnicodeLine line = new FullUnicodeLine(mColumns);
+        fillFullLine(row, line);
+        return line;
+    }
+
+    /**
+     * Get a copy of the style of a row, which the caller may keep and modify.
+     */
+    public StyleRow copyLineColor(int index) {
+        int row = checkedRow(index);
+        if ((mFlags[row] & FLAG_NO_STYLE) != 0) {
+            return null;
+        }
+        StyleRow color = new StyleRow(mStyles[mStyleStart[row]] & STYLE_MASK, mColumns);
+        if (!isSolid(row)) {
+            fillColor(row, color);
+        }
+        return color;
+    }
+
+    private int checkedRow(int index) {
+        if (index < 0 || index >= mRows) {
+            throw new IllegalArgumentException("scrollback row " + index + " of " + mRows);
+        }
+        return physicalRow(index);
+    }
+
+    private int physicalRow(int index) {
+        return wrap(mFirstRow + index, mFlags.length);
+    }
+
+    /* Wrap a position which may be up to one lap past the end of a circular
+       buffer; cheaper than % for the common case */
+    private static int wrap(int pos, int capacity) {
+        return pos >= capacity ? pos - capacity : pos;
+    }
+
+    private static int trimmedLength(char[] text, int length) {
+        while (length > 0 && text[length - 1] == ' ') {
+            --length;
+        }
+        return length;
+    }
+
+    /* Encode the style of a row as runs into mRuns */
+    private int encodeRuns(StyleRow color) {
+        int columns = mColumns;
+        int[] runs = mRuns;
+        int count = 0;
+        if (color.isSolidStyle()) {
+            int style = color.getSolidStyle() & STYLE_MASK;
+            for (int column = 0; column < columns; column += MAX_RUN) {
+                int length = Math.min(columns - column, MAX_RUN);
+                runs[count++] = (length - 1) << RUN_SHIFT | style;
+            }
+            return count;
+        }
+        int column = 0;
+        while (column < columns) {
+            int style = color.get(column);
+            int end = column + 1;
+            while (end < columns && end - column < MAX_RUN && color.get(end) == style) {
+                ++end;
+            }
+            runs[count++] = (end - column - 1) << RUN_SHIFT | style & STYLE_MASK;
+            column = end;
+        }
+        return count;
+    }
+
+    private boolean isSolid(int row) {
+        int runs = mStyleLength[row];
+        int pos = mStyleStart[row];
+        int[] styles = mStyles;
+        int style = styles[pos] & STYLE_MASK;
+        for (int i = 1; i < runs; ++i) {
+            if ((styles[(pos + i) % styles.length] & STYLE_MASK) != style) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void fillColor(int row, StyleRow color) {
+        int runs = mStyleLength[row];
+        int pos = mStyleStart[row];
+        int[] styles = mStyles;
+        color.ensureData();
+        int column = 0;
+        for (int i = 0; i < runs; ++i) {
+            int run = styles[(pos + i) % styles.length];
+            int length = (run >>> RUN_SHIFT) + 1;
+            color.set(column, length, run & STYLE_MASK);
+            column += length;
+        }
+    }
+
+    /* Copy the text of a row out of the arena into mLineText */
+    private int readText(int row) {
+        int length = mTextLength[row];
+        if (mLineText == null || mLineText.length < length) {
+            mLineText = new char[Math.max(length, 2 * mColumns)];
+        }
+        char[] arena = mText;
+        int pos = mTextStart[row];
+        int first = Math.min(length, arena.length - pos);
+        System.arraycopy(arena, pos, mLineText, 0, first);
+        System.arraycopy(arena, 0, mLineText, first, length - first);
+        return length;
+    }
+
+    private void fillBasicLine(int row, char[] line) {
+        int length = readText(row);
+        System.arraycopy(mLineText, 0, line, 0, length);
+        for (int i = length; i < mColumns; ++i) {
+            line[i] = ' ';
+        }
+    }
+
+    private void fillFullLine(int row, FullUnicodeLine line) {
+        int length = readText(row);
+        if ((mFlags[row] & FLAG_LAYOUT) != 0) {
+            line.setLayout(mLineText, 0, length - (mColumns - 1));
+        } else {
+            rebuildFullLine(mLineText, length, line);
+        }
+    }
+
+    /* Whether rebuildFullLine() gives back a full row from its trimmed text */
+    private boolean rebuildsExactly(FullUnicodeLine line, char[] text, int length) {
+        if (mCheckLine == null) {
+            mCheckLine = new FullUnicodeLine(mColumns);
+        }
+        rebuildFullLine(text, length, mCheckLine);
+        return mCheckLine.sameLayout(line);
+    }
+
+    /* Rebuild the column layout of a full row by storing its characters
+       again the way TerminalEmulator does: combining characters go into the
+       column of the character before them. */
+    private void rebuildFullLine(char[] text, int length, FullUnicodeLine line) {
+        int columns = mColumns;
+        line.clear();
+        int column = 0;
+        int lastWidth = 0;
+        int i = 0;
+        while (i < length) {
+            int codePoint = Character.codePointAt(text, i, length);
+            int width = UnicodeTranscript.charWidth(codePoint);
+            if (width == 0) {
+                line.setChar(Math.max(column - lastWidth, 0), codePoint);
+            } else {
+                if (column >= columns) {
+                    break;
+                }
+                line.setChar(column, codePoint);
+                column += width;
+                lastWidth = width;
+            }
+            i += Character.charCount(codePoint);
+        }
+    }
+
+    private int capacityFor(int needed, int current, int bytesPerEntry) {
+        int capacity = Math.max(needed, 2 * current);
+        return Math.max(needed, Math.min(capacity, mMaxBytes / bytesPerEntry + 1));
+    }
+
+    private void ensureRowCapacity(int rows) {
+        int oldCapacity = mFlags.length;
+        if (rows <= oldCapacity) {
+            return;
+        }
+        int capacity = capacityFor(rows, oldCapacity, ROW_BYTES);
+        int[] textStart = new int[capacity];
+        short[] textLength = new short[capacity];
+        int[] styleStart = new int[capacity];
+        short[] styleLength = new short[capacity];
+        byte[] flags = new byte[capacity];
+        long[] signatures = new long[capacity];
+        for (int i = 0; i < mRows; ++i) {
+            int row = (mFirstRow + i) % oldCapacity;
+            textStart[i] = mTextStart[row];
+            textLength[i] = mTextLength[row];
+            styleStart[i] = mStyleStart[row];
+            styleLength[i] = mStyleLength[row];
+            flags[i] = mFlags[row];
+            signatures[i] = mSignatures[row];
+        }
+        mTextStart = textStart;
+        mTextLength = textLength;
+        mStyleStart = styleStart;
+        mStyleLength = styleLength;
+        mFlags = flags;
+        mSignatures = signatures;
+        mFirstRow = 0;
+    }
+
+    private void ensureTextCapacity(int chars) {
+        char[] oldArena = mText;
+        if (chars <= oldArena.length) {
+            return;
+        }
+        char[] arena = new char[capacityFor(chars, oldArena.length, 2)];
+        int start = mRows > 0 ? mTextStart[mFirstRow] : 0;
+        int used = mTextUsed;
+        int first = Math.min(used, oldArena.length - start);
+        System.arraycopy(oldArena, start, arena, 0, first);
+        System.arraycopy(oldArena, 0, arena, first, used - first);
+        // The rows are stored back to back, oldest first
+        int pos = 0;
+        for (int i = 0; i < mRows; ++i) {
+            int row = physicalRow(i);
+            mTextStart[row] = pos;
+            pos += mTextLength[row];
+        }
+        mText = arena;
+        mTextEnd = used;
+    }
+
+    private void ensureStyleCapacity(int runs) {
+        int[] oldArena = mStyles;
+        if (runs <= oldArena.length) {
+            return;
+        }
+        int[] arena = new int[capacityFor(runs, oldArena.length, 4)];
+        int start = mRows > 0 ? mStyleStart[mFirstRow] : 0;
+        int used = mStylesUsed;
+        int first = Math.min(used, oldArena.length - start);
+        System.arraycopy(oldArena, start, arena, 0, first);
+        System.arraycopy(oldArena, 0, arena, first, used - first);
+        int pos = 0;
+        for (int i = 0; i < mRows; ++i) {
+            int row = physicalRow(i);
+            mStyleStart[row] = pos;
+            pos += mStyleLength[row];
+        }
+        mStyles = arena;
+        mStylesEnd = used;
+    }
+}
@@ -0,0 +1,164 @@
+package jackpal.androidterm.emulatorview;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free byte queue with one producer and one consumer thread.
+ * <p>
+ * The data is kept in a chain of fixed size segments, so the queue grows as
+ * needed up to its capacity, and gives memory back once the consumer catches
+ * up.  The producer reads straight into the free part of the last segment,
+ * and the consumer is handed the stored bytes where they are, so data is not
+ * copied on the way through.
+ * <p>
+ * Neither side takes a lock.  A thread only parks when the queue is full
+ * (producer) or empty (consumer), and the other side wakes it up.
+ */
+class SegmentedByteQueue {
+    /**
+     * Receives the bytes taken from the queue by {@link SegmentedByteQueue#read}.
+     */
+    interface Consumer {
+        /**
+         * Process bytes from the queue.  The array must not be kept after
+         * the call returns.
+         */
+        void consume(byte[] data, int offset, int count);
+    }
+
+    private static final int SEGMENT_SIZE = 16 * 1024;
+
+    private static final class Segment {
+        final byte[] mData = new byte[SEGMENT_SIZE];
+        /** End of the data, only written by the producer. */
+        volatile int mWritePos;
+        /** Start of the data, only used by the consumer. */
+        int mReadPos;
+        volatile Segment mNext;
+    }
+
+    private final int mCapacity;
+    private final AtomicInteger mStoredBytes = new AtomicInteger();
+
+    /* Segment the consumer reads from */
+    private Segment mHead;
+    /* Segment the producer writes to */
+    private Segment mTail;
+    /* An emptied segment, kept for the producer to reuse */
+    private final AtomicReference<Segment> mSpare = new AtomicReference<Segment>();
+
+    private volatile Thread mWaitingProducer;
+    private volatile Thread mWaitingConsumer;
+
+    /**
+     * Create a queue.
+     *
+     * @param capacity the number of bytes the queue can hold before the
+     *                 producer has to wait.
+     */
+    public SegmentedByteQueue(int capacity) {
+        mCapacity = Math.max(capacity, SEGMENT_SIZE);
+        mHead = mTail = new Segment();
+    }
+
+    public int getBytesAvailable() {
+        return mStoredBytes.get();
+    }
+
+    /**
+     * Read from a stream into the queue.  Called by the producer thread,
+     * waits while the queue is full.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream.
+     */
+    public int readFrom(InputStream in) throws IOException, InterruptedException {
+        int room;
+        while ((room = mCapacity - mStoredBytes.get()) <= 0) {
+            mWaitingProducer = Thread.currentThread();
+            if (mCapacity - mStoredBytes.get() <= 0) {
+                LockSupport.park(this);
+            }
+            mWaitingProducer = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+
+        Segment tail = mTail;
+        int pos = tail.mWritePos;
+        if (pos == SEGMENT_SIZE) {
+            Segment next = mSpare.getAndSet(null);
+            if (next == null) {
+                next = new Segment();
+            }
+            tail.mNext = next;
+            mTail = tail = next;
+            pos = 0;
+        }
+
+        int count = in.read(tail.mData, pos, Math.min(room, SEGMENT_SIZE - pos));
+        if (count <= 0) {
+            return count;
+        }
+        // Publish the data before the count the consumer looks at
+        tail.mWritePos = pos + count;
+        mStoredBytes.addAndGet(count);
+
+        Thread consumer = mWaitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return count;
+    }
+
+    /**
+     * Hand stored bytes to a consumer.  Called by the consumer thread, waits
+     * while the queue is empty.  The bytes are passed in a single call, and
+     * are only removed from the queue once the call returns.
+     *
+     * @param consumer the consumer of the bytes
+     * @param maxCount the maximum number of bytes to pass
+     * @return the number of bytes consumed.
+     */
+    public int read(Consumer consumer, int maxCount) throws InterruptedException {
+        while (mStoredBytes.get() == 0) {
+            mWaitingConsumer = Thread.currentThread();
+            if (mStoredBytes.get() == 0) {
+                LockSupport.park(this);
+            }
+            mWaitingConsumer = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+
+        Segment head = mHead;
+        if (head.mReadPos == SEGMENT_SIZE) {
+            // Done with this segment; the producer linked the next one
+            // before storing the bytes we were told about.
+            Segment next = head.mNext;
+            mHead = next;
+            head.mReadPos = 0;
+            head.mWritePos = 0;
+            head.mNext = null;
+            mSpare.set(head);
+            head = next;
+        }
+
+        int pos = head.mReadPos;
+        int count = Math.min(head.mWritePos - pos, maxCount);
+        consumer.consume(head.mData, pos, count);
+        head.mReadPos = pos + count;
+        mStoredBytes.addAndGet(-count);
+
+        Thread producer = mWaitingProducer;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+        return count;
+    }
+}
@@ -18,6 +18,8 @@ final class StyleRow {
     private int mColumns;
     /** Initially null, will be allocated when needed. */
     private byte[] mData;
+    /** The data of a row made solid again by setSolid(), for reuse. */
+    private byte[] mSpareData;
 
     StyleRow(int style, int columns) {
         mStyle = style;
@@ -32,6 +34,28 @@ final class StyleRow {
         setStyle(column, style);
     }
 
+    void set(int column, int length, int style) {
+        if (style == mStyle && mData == null) {
+            return;
+        }
+        ensureData();
+        for (int i = column; i < column + length; i++) {
+            setStyle(i, style);
+        }
+    }
+
+    /**
+     * Make every column of the row the given style.  The row becomes solid
+     * again; its data is kept to be reused if it needs data later.
+     */
+    void setSolid(int style) {
+        mStyle = style;
+        if (mData != null) {
+            mSpareData = mData;
+            mData = null;
+        }
+    }
+
     int get(int column) {
         if (mData == null) {
             return mStyle;
@@ -65,6 +89,22 @@ final class StyleRow {
 
     }
 
+    /**
+     * Copy the whole row into dst, which must have the same number of
+     * columns.  Unlike {@link #copy}, a solid row stays solid.
+     */
+    void copyTo(StyleRow dst) {
+        dst.mStyle = mStyle;
+        if (mData == null) {
+            dst.mData = null;
+            return;
+        }
+        if (dst.mData == null || dst.mData.length != mData.length) {
+            dst.mData = new byte[mData.length];
+        }
+        System.arraycopy(mData, 0, dst.mData, 0, mData.length);
+    }
+
     void ensureData() {
         if (mData == null) {
             allocate();
@@ -72,7 +112,12 @@ final class StyleRow {
     }
 
     private void allocate() {
-        mData = new byte[3*mColumns];
+        if (mSpareData != null) {
+            mData = mSpareData;
+            mSpareData = null;
+        } else {
+            mData = new byte[3*mColumns];
+        }
         for (int i = 0; i < mColumns; i++) {
             setStyle(i, mStyle);
         }
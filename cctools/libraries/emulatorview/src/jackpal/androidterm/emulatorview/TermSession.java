@@ -25,10 +25,12 @@ import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 
 /**
  * A terminal session, consisting of a VT100 terminal emulator and its
@@ -38,9 +40,12 @@ import android.os.Message;
  * provide input and output to the terminal.  For a locally running
  * program, these would typically point to a tty; for a telnet program
  * they might point to a network socket.  Reader and writer threads will be
- * spawned to do I/O to these streams.  All other operations, including
- * processing of input and output in {@link #processInput processInput} and
- * {@link #write(byte[], int, int) write}, will be performed on the main thread.
+ * spawned to do I/O to these streams.  Input is fed to the emulator by
+ * {@link #processInput processInput} on a separate emulation thread, which
+ * publishes copies of the screen for the view to draw, so that a program
+ * producing lots of output doesn't hold up the main thread.  All other
+ * operations, including {@link #write(byte[], int, int) write} and the
+ * update callbacks, are performed on the main thread.
  * <p>
  * Call {@link #setTermIn} and {@link #setTermOut} to connect the input and
  * output streams to the emulator.  When all of your initialization is
@@ -70,8 +75,19 @@ public class TermSession {
     private boolean mDefaultUTF8Mode;
 
     private Thread mReaderThread;
-    private ByteQueue mByteQueue;
-    private byte[] mReceiveBuffer;
+    private SegmentedByteQueue mByteQueue;
+
+    private Thread mEmulatorThread;
+    private final Object mEmulatorLock = new Object();
+    /* Snapshot published by the emulation thread, not yet seen by the main thread */
+    private final AtomicReference<ScreenSnapshot> mPendingSnapshot =
+            new AtomicReference<ScreenSnapshot>();
+    /* Snapshot the main thread is done with, for the emulation thread to reuse */
+    private final AtomicReference<ScreenSnapshot> mSpareSnapshot =
+            new AtomicReference<ScreenSnapshot>();
+    /* Snapshot currently drawn by the main thread */
+    private ScreenSnapshot mScreenSnapshot;
+    private volatile int mScreenGeneration;
 
     private Thread mWriterThread;
     private ByteQueue mWriteQueue;
@@ -81,13 +97,22 @@ public class TermSession {
     private ByteBuffer mWriteByteBuffer;
     private CharsetEncoder mUTF8Encoder;
 
-    // Number of rows in the transcript
-    private static final int TRANSCRIPT_ROWS = 10000;
+    // Memory for the transcript; about 15000 rows of typical build output
+    private static final int TRANSCRIPT_BYTES = 2 * 1024 * 1024;
+
+    // Input the emulator hasn't processed yet, before the reader waits
+    private static final int INPUT_QUEUE_SIZE = 1024 * 1024;
 
     private static final int NEW_INPUT = 1;
     private static final int NEW_OUTPUT = 2;
     private static final int FINISH = 3;
 
+    // Minimum time between two screen snapshots while input keeps coming
+    private static final int SNAPSHOT_INTERVAL = 16;
+
+    // Maximum input processed while holding the emulator lock
+    private static final int INPUT_BATCH_SIZE = 8 * 1024;
+
     /**
      * Callback to be invoked when a {@link TermSession} finishes.
      *
@@ -103,7 +128,7 @@ public class TermSession {
     }
     private FinishCallback mFinishCallback;
 
-    private boolean mIsRunning = false;
+    private volatile boolean mIsRunning = false;
     private Handler mMsgHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
@@ -111,7 +136,7 @@ public class TermSession {
                 return;
             }
             if (msg.what == NEW_INPUT) {
-                readFromProcess();
+                notifyUpdate();
             }
         }
     };
@@ -125,23 +150,17 @@ public class TermSession {
         mUTF8Encoder.onMalformedInput(CodingErrorAction.REPLACE);
         mUTF8Encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
 
-        mReceiveBuffer = new byte[4 * 1024];
-        mByteQueue = new ByteQueue(4 * 1024);
+        mByteQueue = new SegmentedByteQueue(INPUT_QUEUE_SIZE);
         mReaderThread = new Thread() {
-            private byte[] mBuffer = new byte[4096];
-
             @Override
             public void run() {
                 try {
                     while(true) {
-                        int read = mTermIn.read(mBuffer);
+                        int read = mByteQueue.readFrom(mTermIn);
                         if (read == -1) {
                             // EOF -- process exited
                             return;
                         }
-                        mByteQueue.write(mBuffer, 0, read);
-                        mMsgHandler.sendMessage(
-                                mMsgHandler.obtainMessage(NEW_INPUT));
                     }
                 } catch (IOException e) {
                 } catch (InterruptedException e) {
@@ -150,6 +169,67 @@ public class TermSession {
         };
         mReaderThread.setName("TermSession input reader");
 
+        mEmulatorThread = new Thread() {
+            private ScreenSnapshot mBackSnapshot = new ScreenSnapshot();
+
+            // The input is processed where it lies in the queue
+            private SegmentedByteQueue.Consumer mProcessor = new SegmentedByteQueue.Consumer() {
+                public void consume(byte[] data, int offset, int count) {
+                    synchronized (mEmulatorLock) {
+                        if (mIsRunning) {
+                            // Give subclasses a chance to process the read data
+                            processInput(data, offset, count);
+                        }
+                    }
+                }
+            };
+
+            @Override
+            public void run() {
+                long lastPublished = 0;
+                try {
+                    while(mIsRunning) {
+                        mByteQueue.read(mProcessor, INPUT_BATCH_SIZE);
+
+                        // Coalesce updates while more input is waiting
+                        long now = SystemClock.uptimeMillis();
+                        if (mByteQueue.getBytesAvailable() > 0
+                                && now - lastPublished < SNAPSHOT_INTERVAL) {
+                            continue;
+                        }
+                        lastPublished = now;
+                        publishSnapshot();
+                    }
+                } catch (InterruptedException e) {
+                }
+            }
+
+            private void publishSnapshot() {
+                ScreenSnapshot snapshot = mBackSnapshot;
+                synchronized (mEmulatorLock) {
+                    if (!mIsRunning) {
+                        return;
+                    }
+                    TerminalEmulator emulator = mEmulator;
+                    mTranscriptScreen.snapshot(snapshot);
+                    snapshot.setState(emulator.getCursorCol(), emulator.getCursorRow(),
+                            emulator.getReverseVideo(), mScreenGeneration);
+                }
+
+                ScreenSnapshot unseen = mPendingSnapshot.getAndSet(snapshot);
+                if (unseen == null) {
+                    // The main thread took the previous one, tell it there's a new one
+                    mMsgHandler.sendEmptyMessage(NEW_INPUT);
+                    unseen = mSpareSnapshot.getAndSet(null);
+                    if (unseen == null) {
+                        unseen = new ScreenSnapshot();
+                    }
+                }
+                mBackSnapshot = unseen;
+            }
+        };
+        mEmulatorThread.setName("TermSession emulator");
+
         mWriteQueue = new ByteQueue(4096);
         mWriterThread = new Thread() {
             private byte[] mBuffer = new byte[4096];
@@ -209,12 +289,13 @@ public class TermSession {
      * @param rows The number of rows in the terminal window.
      */
     public void initializeEmulator(int columns, int rows) {
-        mTranscriptScreen = new TranscriptScreen(columns, TRANSCRIPT_ROWS, rows, mColorScheme);
+        mTranscriptScreen = new TranscriptScreen(columns, TRANSCRIPT_BYTES, rows, mColorScheme);
         mEmulator = new TerminalEmulator(this, mTranscriptScreen, columns, rows, mColorScheme);
         mEmulator.setDefaultUTF8Mode(mDefaultUTF8Mode);
 
         mIsRunning = true;
         mReaderThread.start();
+        mEmulatorThread.start();
         mWriterThread.start();
     }
 
@@ -348,6 +429,50 @@ public class TermSession {
         return mEmulator;
     }
 
+    /**
+     * The lock to hold while accessing the emulator or the transcript screen,
+     * which are updated on the emulation thread.
+     */
+    Object getEmulatorLock() {
+        return mEmulatorLock;
+    }
+
+    /**
+     * Get the latest copy of the screen published by the emulation thread.
+     * Must be called on the main thread.
+     *
+     * @return The snapshot, or null if there is none or if the screen was
+     *         changed from the main thread since it was taken.
+     */
+    ScreenSnapshot getScreenSnapshot() {
+        ScreenSnapshot snapshot = mPendingSnapshot.getAndSet(null);
+        if (snapshot != null) {
+            if (mScreenSnapshot != null) {
+                mSpareSnapshot.set(mScreenSnapshot);
+            }
+            mScreenSnapshot = snapshot;
+        }
+        if (mScreenSnapshot == null
+                || mScreenSnapshot.getGeneration() != mScreenGeneration) {
+            return null;
+        }
+        return mScreenSnapshot;
+    }
+
+    /* Must be called with the emulator lock held whenever the screen is
+       changed outside of processInput, to retire the current snapshots. */
+    private void screenChanged() {
+        mScreenGeneration++;
+    }
+
+    private void runOnMainThread(Runnable r) {
+        if (Looper.myLooper() == mMsgHandler.getLooper()) {
+            r.run();
+        } else {
+            mMsgHandler.post(r);
+        }
+    }
+
     /**
      * Set an {@link UpdateCallback} to be invoked when the terminal emulator's
      * screen is changed.
@@ -380,7 +505,12 @@ public class TermSession {
      */
     public void setTitle(String title) {
         mTitle = title;
-        notifyTitleChanged();
+        // Escape sequences set the title from the emulation thread
+        runOnMainThread(new Runnable() {
+            public void run() {
+                notifyTitleChanged();
+            }
+        });
     }
 
     /**
@@ -423,7 +553,10 @@ public class TermSession {
         if (mEmulator == null) {
             initializeEmulator(columns, rows);
         } else {
-            mEmulator.updateSize(columns, rows);
+            synchronized (mEmulatorLock) {
+                mEmulator.updateSize(columns, rows);
+                screenChanged();
+            }
         }
     }
 
@@ -434,31 +567,15 @@ public class TermSession {
      *         scrollback buffer.
      */
     public String getTranscriptText() {
-        return mTranscriptScreen.getTranscriptText();
-    }
-
-    /**
-     * Look for new input from the ptty, send it to the terminal emulator.
-     */
-    private void readFromProcess() {
-        int bytesAvailable = mByteQueue.getBytesAvailable();
-        int bytesToRead = Math.min(bytesAvailable, mReceiveBuffer.length);
-        int bytesRead = 0;
-        try {
-            bytesRead = mByteQueue.read(mReceiveBuffer, 0, bytesToRead);
-        } catch (InterruptedException e) {
-            return;
+        synchronized (mEmulatorLock) {
+            return mTranscriptScreen.getTranscriptText();
         }
-
-        // Give subclasses a chance to process the read data
-        processInput(mReceiveBuffer, 0, bytesRead);
-        notifyUpdate();
     }
 
     /**
      * Process input and send it to the terminal emulator.  This method is
-     * invoked on the main thread whenever new data is read from the
-     * InputStream.
+     * invoked on the emulation thread, with the emulator lock held, whenever
+     * new data is read from the InputStream.
      * <p>
      * The default implementation sends the data straight to the terminal
      * emulator without modifying it in any way.  Subclasses can override it to
@@ -482,7 +599,10 @@ public class TermSession {
      * @param count The length of the data to be written.
      */
     protected final void appendToEmulator(byte[] data, int offset, int count) {
-        mEmulator.append(data, offset, count);
+        synchronized (mEmulatorLock) {
+            mEmulator.append(data, offset, count);
+            screenChanged();
+        }
     }
 
     /**
@@ -499,8 +619,11 @@ public class TermSession {
         if (mEmulator == null) {
             return;
         }
-        mEmulator.setColorScheme(scheme);
-        mTranscriptScreen.setColorScheme(scheme);
+        synchronized (mEmulatorLock) {
+            mEmulator.setColorScheme(scheme);
+            mTranscriptScreen.setColorScheme(scheme);
+            screenChanged();
+        }
     }
 
     /**
@@ -519,7 +642,9 @@ public class TermSession {
         if (mEmulator == null) {
             return;
         }
-        mEmulator.setDefaultUTF8Mode(utf8ByDefault);
+        synchronized (mEmulatorLock) {
+            mEmulator.setDefaultUTF8Mode(utf8ByDefault);
+        }
     }
 
     /**
@@ -541,9 +666,26 @@ public class TermSession {
      *
      * @param utf8ModeNotify The {@link UpdateCallback} to be invoked.
      */
-    public void setUTF8ModeUpdateCallback(UpdateCallback utf8ModeNotify) {
-        if (mEmulator != null) {
-            mEmulator.setUTF8ModeUpdateCallback(utf8ModeNotify);
+    public void setUTF8ModeUpdateCallback(final UpdateCallback utf8ModeNotify) {
+        if (mEmulator == null) {
+            return;
+        }
+        UpdateCallback callback = null;
+        if (utf8ModeNotify != null) {
+            // The mode is changed by escape sequences on the emulation thread
+            final Runnable notify = new Runnable() {
+                public void run() {
+                    utf8ModeNotify.onUpdate();
+                }
+            };
+            callback = new UpdateCallback() {
+                public void onUpdate() {
+                    runOnMainThread(notify);
+                }
+            };
+        }
+        synchronized (mEmulatorLock) {
+            mEmulator.setUTF8ModeUpdateCallback(callback);
         }
     }
 
@@ -551,7 +693,10 @@ public class TermSession {
      * Reset the terminal emulator's state.
      */
     public void reset() {
-        mEmulator.reset();
+        synchronized (mEmulatorLock) {
+            mEmulator.reset();
+            screenChanged();
+        }
         notifyUpdate();
     }
 
@@ -571,10 +716,14 @@ public class TermSession {
      * <code>OutputStream</code>.
      */
     public void finish() {
-        mIsRunning = false;
-        if (mTranscriptScreen != null) {
-            mTranscriptScreen.finish();
+        synchronized (mEmulatorLock) {
+            mIsRunning = false;
+            if (mTranscriptScreen != null) {
+                mTranscriptScreen.finish();
+            }
         }
+        mEmulatorThread.interrupt();
+        mReaderThread.interrupt();
 
         // Stop the reader and writer threads, and close the I/O streams
         if (mWriterHandler != null) {
@@ -578,6 +578,28 @@ class TerminalEmulator {
     public void append(byte[] buffer, int base, int length) {
         for (int i = 0; i < length; i++) {
             byte b = buffer[base + i];
+            if (b >= 32 && b < 127 && canEmitRun()) {
+                // Printable ASCII outside of an escape sequence: take the
+                // whole run at once instead of one character at a time.
+                int runEnd = i + 1;
+                while (runEnd < length) {
+                    byte c = buffer[base + runEnd];
+                    if (c < 32 || c >= 127) {
+                        break;
+                    }
+                    runEnd++;
+                }
+                try {
+                    emitRun(buffer, base + i, runEnd - i);
+                } catch (Exception e) {
+                    Log.e(EmulatorDebug.LOG_TAG, "Exception while processing characters "
+                            + Integer.toString(mProcessedCharCount) + "-"
+                            + Integer.toString(mProcessedCharCount + runEnd - i - 1), e);
+                }
+                mProcessedCharCount += runEnd - i;
+                i = runEnd - 1;
+                continue;
+            }
             try {
                 if (EmulatorDebug.LOG_CHARACTERS_FLAG) {
                     char printableB = (char) b;
@@ -1718,6 +1740,71 @@ class TerminalEmulator {
         emit(c, getStyle());
     }
 
+    /**
+     * Whether a printable ASCII character would be displayed as itself, so
+     * that {@link #emitRun} can be used instead of {@link #process(byte)}.
+     */
+    private boolean canEmitRun() {
+        return mEscapeState == ESC_NONE && mUTF8ToFollow == 0
+                && !mUseAlternateCharSet && !mInsertMode
+                && !EmulatorDebug.LOG_CHARACTERS_FLAG;
+    }
+
+    /**
+     * Send a run of printable ASCII characters to the screen.  Does the same
+     * as calling {@link #emit(byte)} for each character, but stores the
+     * characters a row at a time.
+     *
+     * @param buffer The characters, all in the range 0x20-0x7e
+     * @param offset The index of the first character
+     * @param length The number of characters
+     */
+    private void emitRun(byte[] buffer, int offset, int length) {
+        int style = getStyle();
+        boolean autoWrap = autoWrapEnabled();
+        int lastColumn = mColumns - 1;
+
+        while (length > 0) {
+            if (autoWrap && mCursorCol == lastColumn && mAboutToAutoWrap) {
+                mScreen.setLineWrap(mCursorRow);
+                mCursorCol = 0;
+                if (mCursorRow + 1 < mBottomMargin) {
+                    mCursorRow++;
+                } else {
+                    scroll();
+                }
+            }
+
+            int count = Math.min(length, mColumns - mCursorCol);
+            if (!autoWrap && count < length) {
+                /* Without autowrap, the characters that don't fit all go to
+                   the last column, so only the last one of them is kept */
+                if (count > 1) {
+                    mScreen.set(mCursorCol, mCursorRow, buffer, offset, count - 1, style);
+                }
+                mScreen.set(lastColumn, mCursorRow, buffer, offset + length - 1, 1, style);
+                mCursorCol = lastColumn;
+                break;
+            }
+
+            mScreen.set(mCursorCol, mCursorRow, buffer, offset, count, style);
+            offset += count;
+            length -= count;
+            mCursorCol += count;
+            if (mCursorCol > lastColumn) {
+                mCursorCol = lastColumn;
+                if (autoWrap) {
+                    mAboutToAutoWrap = true;
+                }
+            } else if (autoWrap) {
+                mAboutToAutoWrap = false;
+            }
+        }
+
+        mJustWrapped = false;
+        mLastEmittedCharWidth = 1;
+    }
+
     private void emit(byte b) {
         if (mUseAlternateCharSet && b < 128) {
             emit((int) mSpecialGraphicsCharMap[b]);
@@ -22,8 +22,8 @@ import android.graphics.Canvas;
 
 /**
  * A TranscriptScreen is a screen that remembers data that's been scrolled. The
- * old data is stored in a ring buffer to minimize the amount of copying that
- * needs to be done. The transcript does its own drawing, to avoid having to
+ * screen is stored in a ring buffer to minimize the amount of copying that
+ * needs to be done, and the old data is packed into a fixed memory budget. The transcript does its own drawing, to avoid having to
  * expose its internal data structures.
  */
 class TranscriptScreen implements Screen {
@@ -33,10 +33,10 @@ class TranscriptScreen implements Screen {
     private int mColumns;
 
     /**
-     * The total number of rows in the transcript and the screen. Fixed at
+     * The amount of memory the transcript rows may use, in bytes. Fixed at
      * initialization.
      */
-    private int mTotalRows;
+    private int mTranscriptBytes;
 
     /**
      * The number of rows in the screen.
@@ -49,22 +49,23 @@ class TranscriptScreen implements Screen {
      * Create a transcript screen.
      *
      * @param columns the width of the screen in characters.
-     * @param totalRows the height of the entire text area, in rows of text.
+     * @param transcriptBytes the amount of memory the transcript that holds
+     *        lines that have scrolled off the top of the screen may use, in
+     *        bytes. The oldest lines are dropped when it is used up.
      * @param screenRows the height of just the screen, not including the
-     *        transcript that holds lines that have scrolled off the top of the
-     *        screen.
+     *        transcript.
      */
-    public TranscriptScreen(int columns, int totalRows, int screenRows,
+    public TranscriptScreen(int columns, int transcriptBytes, int screenRows,
             ColorScheme scheme) {
-        init(columns, totalRows, screenRows, TextStyle.kNormalTextStyle);
+        init(columns, transcriptBytes, screenRows, TextStyle.kNormalTextStyle);
     }
 
-    private void init(int columns, int totalRows, int screenRows, int style) {
+    private void init(int columns, int transcriptBytes, int screenRows, int style) {
         mColumns = columns;
-        mTotalRows = totalRows;
+        mTranscriptBytes = transcriptBytes;
         mScreenRows = screenRows;
 
-        mData = new UnicodeTranscript(columns, totalRows, screenRows, style);
+        mData = new UnicodeTranscript(columns, transcriptBytes, screenRows, style);
         mData.blockSet(0, 0, mColumns, mScreenRows, ' ', style);
     }
 
@@ -104,6 +105,10 @@ class TranscriptScreen implements Screen {
         mData.setChar(x, y, b, style);
     }
 
+    public void set(int x, int y, byte[] b, int offset, int length, int style) {
+        mData.setChars(x, y, b, offset, length, style);
+    }
+
     /**
      * Scroll the screen down one line. To scroll the whole screen of a 24 line
      * screen, the arguments would be (0, 24).
@@ -178,8 +183,22 @@ class TranscriptScreen implements Screen {
             // XXX Figure out why this happens on Honeycomb
             return;
         }
-        int defaultStyle = mData.getDefaultStyle();
+        drawLine(line, color, mColumns, mData.getDefaultStyle(), canvas, x, y,
+                renderer, cx, selx1, selx2, imeText);
+    }
 
+    /**
+     * Draw a row of text given its contents.  Used both for rows of the
+     * transcript and for rows of a {@link ScreenSnapshot}.
+     *
+     * @param line the row text, null if the row is blank
+     * @param color the row style
+     * @param columns the width of the row, in columns
+     * @param defaultStyle the style of blank rows
+     */
+    static void drawLine(char[] line, StyleRow color, int columns, int defaultStyle,
+            Canvas canvas, float x, float y, TextRenderer renderer, int cx,
+            int selx1, int selx2, String imeText) {
         if (line == null) {
             // Line is blank.
             if (selx1 != selx2) {
@@ -197,7 +216,6 @@ class TranscriptScreen implements Screen {
             return;
         }
 
-        int columns = mColumns;
         int lastStyle = 0;
         boolean lastCursorStyle = false;
         int runWidth = 0;
@@ -264,6 +282,28 @@ class TranscriptScreen implements Screen {
         }
      }
 
+    /**
+     * Copy the rows of the screen (not the transcript) into a snapshot.  Rows
+     * which have not changed since they were last copied into the same
+     * snapshot are skipped.
+     *
+     * @param snapshot the snapshot to fill
+     */
+    public void snapshot(ScreenSnapshot snapshot) {
+        UnicodeTranscript data = mData;
+        if (data == null) {
+            return;
+        }
+        snapshot.reset(mColumns, mScreenRows, data.getDefaultStyle(), data.getId());
+        for (int row = 0; row < mScreenRows; row++) {
+            int stamp = data.getRowStamp(row);
+            if (snapshot.getRowStamp(row) != stamp) {
+                snapshot.setRow(row, data.getLine(row), data.getLineColor(row), stamp);
+            }
+        }
+        data.nextStamp();
+    }
+
     /**
      * Get the count of active rows.
      *
@@ -282,6 +322,14 @@ class TranscriptScreen implements Screen {
         return mData.getActiveTranscriptRows();
     }
 
+    /**
+     * The transcript holding the rows.  A new one is made when the number of
+     * columns changes; null once the screen is finished.
+     */
+    UnicodeTranscript getTranscript() {
+        return mData;
+    }
+
     public String getTranscriptText() {
         return internalGetTranscriptText(null, 0, -mData.getActiveTranscriptRows(), mColumns, mScreenRows);
     }
@@ -404,6 +452,6 @@ class TranscriptScreen implements Screen {
     }
 
     public void resize(int columns, int rows, int style) {
-        init(columns, mTotalRows, rows, style);
+        init(columns, mTranscriptBytes, rows, style);
     }
 }
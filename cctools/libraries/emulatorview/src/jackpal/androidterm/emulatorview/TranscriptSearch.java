@@ -0,0 +1,427 @@
+package jackpal.androidterm.emulatorview;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Searches the transcript and screen of a {@link TermSession}, without
+ * copying them into a string.
+ * <p>
+ * Lines are searched as they were written: rows which wrap onto the next
+ * row are joined.  Rows in the transcript have a signature of the characters
+ * in them, computed once when they scroll off the screen (see
+ * {@link ScrollbackStore}), so a search for plain text skips the lines which
+ * lack one of its characters without reading them.
+ * <p>
+ * The search remembers its last match by row number, so it carries on from
+ * the same place after more output has scrolled the screen.  Matches are
+ * reported as rows and columns as they are at the time of the call, which
+ * can be passed to {@link EmulatorView#showRange}.  When nothing more is
+ * found, the search starts over from the other end the next time.
+ */
+public class TranscriptSearch {
+    /**
+     * Decides which lines match, when searching for lines rather than text.
+     */
+    public interface LineFilter {
+        /**
+         * @param line the text of the line, without trailing blanks.  The
+         *             array must not be kept after the call returns.
+         * @param length the length of the line
+         * @return whether the line matches.
+         */
+        boolean accept(char[] line, int length);
+    }
+
+    private final TermSession mSession;
+
+    private Pattern mPattern;
+    private Matcher mMatcher;
+    private LineFilter mFilter;
+    /* Signature bits every matching line has, see ScrollbackStore */
+    private long mSignature;
+
+    /* The last match: the number of the first row of its line, and where
+       it is in the line.  mLineNumber is -1 when there is none. */
+    private int mTranscriptId;
+    private long mLineNumber = -1;
+    private int mMatchStart;
+    private int mMatchEnd;
+
+    private int mStartRow;
+    private int mStartColumn;
+    private int mEndRow;
+    private int mEndColumn;
+
+    /* The line being searched, and where each of its rows starts in it */
+    private char[] mLine = new char[256];
+    private int mLength;
+    private int[] mRowStarts = new int[8];
+    private int mLineRows;
+    private final LineSequence mLineSequence = new LineSequence();
+
+    public TranscriptSearch(TermSession session) {
+        mSession = session;
+    }
+
+    /**
+     * Search for text.
+     *
+     * @param text the text to find, or a regular expression.
+     * @param regex whether the text is a regular expression.
+     * @param ignoreCase whether to ignore the case of letters.
+     * @throws java.util.regex.PatternSyntaxException if the regular
+     *         expression is not valid.
+     */
+    public void setQuery(String text, boolean regex, boolean ignoreCase) {
+        int flags = ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0;
+        if (!regex) {
+            flags |= Pattern.LITERAL;
+        }
+        mPattern = Pattern.compile(text, flags);
+        mMatcher = mPattern.matcher(mLineSequence);
+        mFilter = null;
+        mSignature = regex ? 0 : getQuerySignature(text, ignoreCase);
+        reset();
+    }
+
+    /**
+     * Search for lines accepted by a filter.  The whole line is the match.
+     */
+    public void setLineFilter(LineFilter filter) {
+        mPattern = null;
+        mMatcher = null;
+        mFilter = filter;
+        mSignature = 0;
+        reset();
+    }
+
+    /**
+     * Forget the last match, so the next search starts at the top (for
+     * {@link #findNext}) or bottom (for {@link #findPrevious}).
+     */
+    public void reset() {
+        mLineNumber = -1;
+    }
+
+    /**
+     * Find the next match below the last one.
+     *
+     * @return whether a match was found.
+     */
+    public boolean findNext() {
+        return find(true);
+    }
+
+    /**
+     * Find the next match above the last one.
+     *
+     * @return whether a match was found.
+     */
+    public boolean findPrevious() {
+        return find(false);
+    }
+
+    /** The row of the first character of the match. */
+    public int getStartRow() {
+        return mStartRow;
+    }
+
+    /** The column of the first character of the match. */
+    public int getStartColumn() {
+        return mStartColumn;
+    }
+
+    /** The row of the last character of the match. */
+    public int getEndRow() {
+        return mEndRow;
+    }
+
+    /** The last column covered by the match. */
+    public int getEndColumn() {
+        return mEndColumn;
+    }
+
+    /* Leave out the characters which may match characters with other
+       signature bits when case is ignored: the letters outside ASCII, and
+       i, k and s, which have non-ASCII variants (dotted and dotless i,
+       Kelvin sign, long s). */
+    private static long getQuerySignature(String text, boolean ignoreCase) {
+        long signature = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (ignoreCase && Character.isLetter(c)) {
+                char lower = Character.toLowerCase(c);
+                if (c >= 0x80 || lower == 'i' || lower == 'k' || lower == 's') {
+                    continue;
+                }
+            }
+            signature |= ScrollbackStore.getSignatureBit(c);
+        }
+        return signature;
+    }
+
+    private boolean find(boolean forward) {
+        synchronized (mSession.getEmulatorLock()) {
+            TranscriptScreen screen = mSession.getTranscriptScreen();
+            UnicodeTranscript data = screen != null ? screen.getTranscript() : null;
+            if (data == null || (mMatcher == null && mFilter == null)) {
+                return false;
+            }
+            boolean found = forward ? searchDown(data) : searchUp(data);
+            if (!found) {
+                reset();
+            }
+            return found;
+        }
+    }
+
+    /* The first row of the line of the last match, or Integer.MIN_VALUE if
+       there is no such line any more */
+    private int getLastMatchRow(UnicodeTranscript data, int top) {
+        if (mLineNumber < 0 || data.getId() != mTranscriptId) {
+            return Integer.MIN_VALUE;
+        }
+        long row = data.getRowIndex(mLineNumber);
+        if (row < top) {
+            return Integer.MIN_VALUE;
+        }
+        return (int) row;
+    }
+
+    private boolean searchDown(UnicodeTranscript data) {
+        int top = -data.getActiveTranscriptRows();
+        int bottom = data.getActiveRows() + top;
+        int row = getLastMatchRow(data, top);
+        int from;
+        if (row != Integer.MIN_VALUE) {
+            from = mMatchEnd;
+        } else {
+            row = top;
+            from = 0;
+        }
+        while (row < bottom) {
+            int end = getLineEnd(data, row, bottom);
+            if (mayMatch(data, row, end)) {
+                readLine(data, row, end);
+                if (matchForward(Math.min(from, mLength))) {
+                    setMatch(data, row);
+                    return true;
+                }
+            }
+            row = end;
+            from = 0;
+        }
+        return false;
+    }
+
+    private boolean searchUp(UnicodeTranscript data) {
+        int top = -data.getActiveTranscriptRows();
+        int bottom = data.getActiveRows() + top;
+        if (bottom <= top) {
+            return false;
+        }
+        int row = getLastMatchRow(data, top);
+        int limit;
+        if (row != Integer.MIN_VALUE) {
+            limit = mMatchStart;
+        } else {
+            row = getLineStart(data, bottom - 1, top);
+            limit = Integer.MAX_VALUE;
+        }
+        while (true) {
+            int end = getLineEnd(data, row, bottom);
+            if (mayMatch(data, row, end)) {
+                readLine(data, row, end);
+                if (matchBackward(limit)) {
+                    setMatch(data, row);
+                    return true;
+                }
+            }
+            if (row == top) {
+                return false;
+            }
+            row = getLineStart(data, row - 1, top);
+            limit = Integer.MAX_VALUE;
+        }
+    }
+
+    /* One after the last row of the line starting at row */
+    private static int getLineEnd(UnicodeTranscript data, int row, int bottom) {
+        while (row < bottom - 1 && data.getLineWrap(row)) {
+            row++;
+        }
+        return row + 1;
+    }
+
+    /* The first row of the line containing row */
+    private static int getLineStart(UnicodeTranscript data, int row, int top) {
+        while (row > top && data.getLineWrap(row - 1)) {
+            row--;
+        }
+        return row;
+    }
+
+    private boolean mayMatch(UnicodeTranscript data, int row, int end) {
+        if (mSignature == 0) {
+            return true;
+        }
+        long signature = 0;
+        for (int i = row; i < end; i++) {
+            signature |= data.getRowSignature(i);
+        }
+        return (signature & mSignature) == mSignature;
+    }
+
+    private void readLine(UnicodeTranscript data, int row, int end) {
+        mLength = 0;
+        mLineRows = 0;
+        for (int i = row; i < end; i++) {
+            if (mLineRows == mRowStarts.length) {
+                int[] rowStarts = new int[2 * mLineRows];
+                System.arraycopy(mRowStarts, 0, rowStarts, 0, mLineRows);
+                mRowStarts = rowStarts;
+            }
+            mRowStarts[mLineRows++] = mLength;
+            char[] text = data.getLine(i);
+            if (text == null) {
+                continue;
+            }
+            int length = 0;
+            while (length < text.length && text[length] != 0) {
+                length++;
+            }
+            if (mLength + length > mLine.length) {
+                char[] line = new char[Math.max(2 * mLine.length, mLength + length)];
+                System.arraycopy(mLine, 0, line, 0, mLength);
+                mLine = line;
+            }
+            System.arraycopy(text, 0, mLine, mLength, length);
+            mLength += length;
+        }
+        int lastRowStart = mRowStarts[mLineRows - 1];
+        while (mLength > lastRowStart && mLine[mLength - 1] == ' ') {
+            mLength--;
+        }
+        if (mMatcher != null) {
+            mMatcher.reset();
+        }
+    }
+
+    private boolean matchForward(int from) {
+        if (mFilter != null) {
+            if (from == 0 && mLength > 0 && mFilter.accept(mLine, mLength)) {
+                mMatchStart = 0;
+                mMatchEnd = mLength;
+                return true;
+            }
+            return false;
+        }
+        Matcher matcher = mMatcher;
+        int pos = from;
+        while (pos <= mLength && matcher.find(pos)) {
+            if (matcher.end() > matcher.start()) {
+                mMatchStart = matcher.start();
+                mMatchEnd = matcher.end();
+                return true;
+            }
+            pos = matcher.end() + 1;
+        }
+        return false;
+    }
+
+    /* Find the last match starting before limit, going through the
+       matches in the same order as matchForward() does */
+    private boolean matchBackward(int limit) {
+        if (mFilter != null) {
+            if (limit > 0 && mLength > 0 && mFilter.accept(mLine, mLength)) {
+                mMatchStart = 0;
+                mMatchEnd = mLength;
+                return true;
+            }
+            return false;
+        }
+        Matcher matcher = mMatcher;
+        boolean found = false;
+        int pos = 0;
+        while (pos <= mLength && matcher.find(pos) && matcher.start() < limit) {
+            if (matcher.end() > matcher.start()) {
+                mMatchStart = matcher.start();
+                mMatchEnd = matcher.end();
+                found = true;
+                pos = matcher.end();
+            } else {
+                pos = matcher.end() + 1;
+            }
+        }
+        return found;
+    }
+
+    private void setMatch(UnicodeTranscript data, int row) {
+        mTranscriptId = data.getId();
+        mLineNumber = data.getRowNumber(row);
+
+        int startRow = getRowOfOffset(mMatchStart);
+        mStartRow = row + startRow;
+        mStartColumn = getColumnOfOffset(startRow, mMatchStart);
+
+        int last = mMatchEnd - 1;
+        if (last > mMatchStart && Character.isLowSurrogate(mLine[last])) {
+            last--;
+        }
+        int endRow = getRowOfOffset(last);
+        mEndRow = row + endRow;
+        int width = UnicodeTranscript.charWidth(mLine, last);
+        mEndColumn = getColumnOfOffset(endRow, last) + Math.max(width, 1) - 1;
+    }
+
+    private int getRowOfOffset(int offset) {
+        int row = mLineRows - 1;
+        while (row > 0 && mRowStarts[row] > offset) {
+            row--;
+        }
+        return row;
+    }
+
+    /* The column of the character at offset, which is in the given row of
+       the line; combining characters are in the column of their base */
+    private int getColumnOfOffset(int row, int offset) {
+        char[] line = mLine;
+        int column = 0;
+        int lastWidth = 0;
+        for (int i = mRowStarts[row]; i < offset; i++) {
+            if (Character.isLowSurrogate(line[i])) {
+                continue;
+            }
+            int width = UnicodeTranscript.charWidth(line, i);
+            if (width > 0) {
+                column += width;
+                lastWidth = width;
+            }
+        }
+        if (UnicodeTranscript.charWidth(line, offset) == 0) {
+            column -= lastWidth;
+        }
+        return Math.max(column, 0);
+    }
+
+    /* The line being searched, as seen by the matcher */
+    private class LineSequence implements CharSequence {
+        public int length() {
+            return mLength;
+        }
+
+        public char charAt(int index) {
+            return mLine[index];
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            return new String(mLine, start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(mLine, 0, mLength);
+        }
+    }
+}
@@ -16,6 +16,9 @@
 
 package jackpal.androidterm.emulatorview;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import android.util.Log;
 
 import jackpal.androidterm.emulatorview.compat.AndroidCharacterCompat;
@@ -23,7 +26,7 @@ import jackpal.androidterm.emulatorview.compat.AndroidCharacterCompat;
 /**
  * A backing store for a TranscriptScreen.
  *
- * The text is stored as a circular buffer of rows.  There are two types of
+ * The screen is stored as a circular buffer of rows.  There are two types of
  * row:
  * - "basic", which is a char[] array used to store lines which consist
  *   entirely of regular-width characters (no combining characters, zero-width
@@ -35,6 +38,15 @@ import jackpal.androidterm.emulatorview.compat.AndroidCharacterCompat;
  *
  * Style information is stored in a separate circular buffer of StyleRows.
  *
+ * Rows which scroll off the top of the screen are moved into a
+ * ScrollbackStore, which packs them into shared arenas and keeps as many as
+ * fit in its memory budget.
+ *
+ * Changes to the screen are tracked per row with stamps: every change to a
+ * row stores the current stamp for it, and the stamp is advanced each time
+ * the screen is copied for drawing (see nextStamp()).  A row whose stamp is
+ * the same as when it was copied has not changed since.
+ *
  * Rows are allocated on demand, when a character is first stored into them.
  * A "basic" row is allocated unless the store which triggers the allocation
  * requires a "full" row.  "Basic" rows are converted to "full" rows when
@@ -44,27 +56,47 @@ import jackpal.androidterm.emulatorview.compat.AndroidCharacterCompat;
 class UnicodeTranscript {
     private static final String TAG = "UnicodeTranscript";
 
+    private static final AtomicInteger sNextId = new AtomicInteger();
+
     private Object[] mLines;
     private StyleRow[] mColor;
     private boolean[] mLineWrap;
-    private int mTotalRows;
     private int mScreenRows;
     private int mColumns;
-    private int mActiveTranscriptRows = 0;
     private int mDefaultStyle = 0;
 
     private int mScreenFirstRow = 0;
 
+    private ScrollbackStore mScrollback;
+
+    /* A basic line which has scrolled into the scrollback, kept for reuse */
+    private char[] mSpareLine;
+
     private char[] tmpLine;
     private StyleRow tmpColor;
 
-    public UnicodeTranscript(int columns, int totalRows, int screenRows, int defaultStyle) {
+    /* Tells copies of different transcripts apart */
+    private final int mId = sNextId.incrementAndGet();
+    /* For each screen row, the stamp current when it last changed */
+    private int[] mRowStamps;
+    private int mStamp = 1;
+
+    /**
+     * @param columns The width of the screen.
+     * @param scrollbackBytes The amount of memory the rows which scroll off
+     *                        the screen may use.
+     * @param screenRows The height of the screen.
+     * @param defaultStyle The initial default style.
+     */
+    public UnicodeTranscript(int columns, int scrollbackBytes, int screenRows, int defaultStyle) {
         mColumns = columns;
-        mTotalRows = totalRows;
         mScreenRows = screenRows;
-        mLines = new Object[totalRows];
-        mColor = new StyleRow[totalRows];
-        mLineWrap = new boolean[totalRows];
+        mLines = new Object[screenRows];
+        mColor = new StyleRow[screenRows];
+        mLineWrap = new boolean[screenRows];
+        mRowStamps = new int[screenRows];
+        Arrays.fill(mRowStamps, mStamp);
+        mScrollback = new ScrollbackStore(columns, scrollbackBytes);
         tmpColor = new StyleRow(defaultStyle, mColumns);
 
         mDefaultStyle = defaultStyle;
@@ -78,46 +110,108 @@ class UnicodeTranscript {
         return mDefaultStyle;
     }
 
+    /**
+     * An identifier for this transcript, unique within the process.  Row
+     * stamps of different transcripts cannot be compared.
+     */
+    public int getId() {
+        return mId;
+    }
+
+    /**
+     * Get the stamp of a screen row, which changes whenever the row changes
+     * after a call to {@link #nextStamp}.
+     */
+    public int getRowStamp(int row) {
+        return mRowStamps[row];
+    }
+
+    /**
+     * Advance the stamp, after the screen has been copied.  Rows changed
+     * from now on get stamps different from the ones they were copied with.
+     */
+    public void nextStamp() {
+        ++mStamp;
+    }
+
+    /* Record a change to screen rows first..end-1 */
+    private void damage(int first, int end) {
+        int[] stamps = mRowStamps;
+        int stamp = mStamp;
+        for (int row = first; row < end; ++row) {
+            stamps[row] = stamp;
+        }
+    }
+
     public int getActiveTranscriptRows() {
-        return mActiveTranscriptRows;
+        return mScrollback.getRows();
     }
 
     public int getActiveRows() {
-        return mActiveTranscriptRows + mScreenRows;
+        return mScrollback.getRows() + mScreenRows;
     }
 
     /**
-     * Convert a row value from the public external coordinate system to our
+     * Get the number of a row.  Unlike row indexes, which change every time
+     * the screen scrolls, row numbers stay with the rows, so they can be used
+     * to remember a position in the transcript.
+     */
+    public long getRowNumber(int row) {
+        return mScrollback.getFirstRowNumber() + mScrollback.getRows() + row;
+    }
+
+    /**
+     * Get the row index of a row number.  The row may have been dropped from
+     * the transcript, in which case the index is below
+     * -getActiveTranscriptRows().
+     */
+    public long getRowIndex(long rowNumber) {
+        return rowNumber - mScrollback.getFirstRowNumber() - mScrollback.getRows();
+    }
+
+    /**
+     * Get the signature of the characters in a row, see
+     * {@link ScrollbackStore#getSignature(char[], int, int)}.  Only rows in
+     * the transcript have one; all bits are set for screen rows.
+     */
+    public long getRowSignature(int row) {
+        if (row < 0) {
+            return mScrollback.getSignature(externalToScrollbackRow(row));
+        }
+        return -1L;
+    }
+
+    /**
+     * Convert a screen row from the public external coordinate system to our
      * internal private coordinate system.
      * External coordinate system:
-     * -mActiveTranscriptRows to mScreenRows-1, with the screen being
+     * -getActiveTranscriptRows() to mScreenRows-1, with the screen being
      * 0..mScreenRows-1
      * Internal coordinate system: the mScreenRows lines starting at
-     * mScreenFirstRow comprise the screen, while the mActiveTranscriptRows
-     * lines ending at mScreenRows-1 form the transcript (as a circular
-     * buffer).
+     * mScreenFirstRow comprise the screen (as a circular buffer), while the
+     * transcript rows are kept in mScrollback.
      *
-     * @param extRow a row in the external coordinate system.
+     * @param extRow a row of the screen in the external coordinate system.
      * @return The row corresponding to the input argument in the private
      *         coordinate system.
      */
     private int externalToInternalRow(int extRow) {
-        if (extRow < -mActiveTranscriptRows || extRow > mScreenRows) {
+        if (extRow < 0 || extRow > mScreenRows) {
             String errorMessage = "externalToInternalRow "+ extRow +
-                " " + mScreenRows + " " + mActiveTranscriptRows;
+                " " + mScreenRows + " " + mScrollback.getRows();
             Log.e(TAG, errorMessage);
             throw new IllegalArgumentException(errorMessage);
         }
 
-        if (extRow >= 0) {
-            return (mScreenFirstRow + extRow) % mTotalRows;
-        } else {
-            if (-extRow > mScreenFirstRow) {
-                return mTotalRows + mScreenFirstRow + extRow;
-            } else {
-                return mScreenFirstRow + extRow;
-            }
-        }
+        return (mScreenFirstRow + extRow) % mScreenRows;
+    }
+
+    /**
+     * Convert a transcript row from the external coordinate system to its
+     * index in mScrollback.
+     */
+    private int externalToScrollbackRow(int extRow) {
+        return mScrollback.getRows() + extRow;
     }
 
     public void setLineWrap(int row) {
@@ -125,9 +219,20 @@ class UnicodeTranscript {
     }
 
     public boolean getLineWrap(int row) {
+        if (row < 0) {
+            return mScrollback.getLineWrap(externalToScrollbackRow(row));
+        }
         return mLineWrap[externalToInternalRow(row)];
     }
 
+    /* The line object of a row; for transcript rows, a temporary copy */
+    private Object getRowLine(int row) {
+        if (row < 0) {
+            return mScrollback.getLine(externalToScrollbackRow(row));
+        }
+        return mLines[externalToInternalRow(row)];
+    }
+
     /**
      * Resize the screen which this transcript backs.  Currently, this
      * only works if the number of columns does not change.
@@ -140,26 +245,15 @@ class UnicodeTranscript {
      *         and placing it into a new transcript of the correct size.
      */
     public boolean resize(int newColumns, int newRows, int[] cursor) {
-        if (newColumns != mColumns || newRows > mTotalRows) {
+        if (newColumns != mColumns) {
             return false;
         }
 
         int screenRows = mScreenRows;
-        int activeTranscriptRows = mActiveTranscriptRows;
+        int activeTranscriptRows = mScrollback.getRows();
         int shift = screenRows - newRows;
         if (shift < -activeTranscriptRows) {
             // We want to add blank lines at the bottom instead of at the top
-            Object[] lines = mLines;
-            Object[] color = mColor;
-            boolean[] lineWrap = mLineWrap;
-            int screenFirstRow = mScreenFirstRow;
-            int totalRows = mTotalRows;
-            for (int i = 0; i < activeTranscriptRows - shift; ++i) {
-                int index = (screenFirstRow + screenRows + i) % totalRows;
-                lines[index] = null;
-                color[index] = null;
-                lineWrap[index] = false;
-            }
             shift = -activeTranscriptRows;
         } else if (shift > 0 && cursor[1] != screenRows - 1) {
             /* When shrinking the screen, we want to hide blank lines at the
@@ -212,68 +306,43 @@ class UnicodeTranscript {
             }
         }
 
-        if (shift > 0 || (shift < 0 && mScreenFirstRow >= -shift)) {
-            // All we're doing is moving the top of the screen.
-            mScreenFirstRow = (mScreenFirstRow + shift) % mTotalRows;
-        } else if (shift < 0) {
-            // The new top of the screen wraps around the top of the array.
-            mScreenFirstRow = mTotalRows + mScreenFirstRow + shift;
+        /* Row i of the new screen is row i + shift of the old one: rows
+           moving off the top go into the scrollback, rows moving onto the
+           screen come back out of it, and rows below the old screen are
+           blank. */
+        Object[] lines = new Object[newRows];
+        StyleRow[] color = new StyleRow[newRows];
+        boolean[] lineWrap = new boolean[newRows];
+        for (int i = 0; i < shift; ++i) {
+            int index = externalToInternalRow(i);
+            mScrollback.add(mLines[index], mColor[index], mLineWrap[index]);
         }
-
-        if (mActiveTranscriptRows + shift < 0) {
-            mActiveTranscriptRows = 0;
-        } else {
-            mActiveTranscriptRows += shift;
+        for (int i = -shift - 1; i >= 0; --i) {
+            int last = mScrollback.getRows() - 1;
+            lines[i] = mScrollback.copyLine(last);
+            color[i] = mScrollback.copyLineColor(last);
+            lineWrap[i] = mScrollback.getLineWrap(last);
+            mScrollback.removeLast();
         }
+        for (int i = Math.max(-shift, 0); i < newRows && i + shift < screenRows; ++i) {
+            int index = externalToInternalRow(i + shift);
+            lines[i] = mLines[index];
+            color[i] = mColor[index];
+            lineWrap[i] = mLineWrap[index];
+        }
+
+        mLines = lines;
+        mColor = color;
+        mLineWrap = lineWrap;
+        mRowStamps = new int[newRows];
+        Arrays.fill(mRowStamps, mStamp);
+        mScreenFirstRow = 0;
         cursor[1] -= shift;
         mScreenRows = newRows;
 
         return true;
     }
 
-    /**
-     * Block copy lines and associated metadata from one location to another
-     * in the circular buffer, taking wraparound into account.
-     *
-     * @param src The first line to be copied.
-     * @param len The number of lines to be copied.
-     * @param shift The offset of the destination from the source.
-     */
-    private void blockCopyLines(int src, int len, int shift) {
-        int totalRows = mTotalRows;
-
-        int dst;
-        if (src + shift >= 0) {
-            dst = (src + shift) % totalRows;
-        } else {
-            dst = totalRows + src + shift;
-        }
-
-        if (src + len <= totalRows && dst + len <= totalRows) {
-            // Fast path -- no wraparound
-            System.arraycopy(mLines, src, mLines, dst, len);
-            System.arraycopy(mColor, src, mColor, dst, len);
-            System.arraycopy(mLineWrap, src, mLineWrap, dst, len);
-            return;
-        }
-
-        if (shift < 0) {
-            // Do the copy from top to bottom
-            for (int i = 0; i < len; ++i) {
-                mLines[(dst + i) % totalRows] = mLines[(src + i) % totalRows];
-                mColor[(dst + i) % totalRows] = mColor[(src + i) % totalRows];
-                mLineWrap[(dst + i) % totalRows] = mLineWrap[(src + i) % totalRows];
-            }
-        } else {
-            // Do the copy from bottom to top
-            for (int i = len - 1; i >= 0; --i) {
-                mLines[(dst + i) % totalRows] = mLines[(src + i) % totalRows];
-                mColor[(dst + i) % totalRows] = mColor[(src + i) % totalRows];
-                mLineWrap[(dst + i) % totalRows] = mLineWrap[(src + i) % totalRows];
-            }
-        }
-    }
-
     /**
      * Scroll the screen down one line. To scroll the whole screen of a 24 line
      * screen, the arguments would be (0, 24).
@@ -298,56 +367,47 @@ class UnicodeTranscript {
         }
 
         int screenRows = mScreenRows;
-        int totalRows = mTotalRows;
-
-        if (topMargin == 0 && bottomMargin == screenRows) {
-            // Fast path -- scroll the entire screen
-            mScreenFirstRow = (mScreenFirstRow + 1) % totalRows;
-            if (mActiveTranscriptRows < totalRows - screenRows) {
-                ++mActiveTranscriptRows;
-            }
-
-            // Blank the bottom margin
-            int blankRow = externalToInternalRow(bottomMargin - 1);
-            mLines[blankRow] = null;
-            mColor[blankRow] = new StyleRow(style, mColumns);
-            mLineWrap[blankRow] = false;
-
-            return;
-        }
-
-        int screenFirstRow = mScreenFirstRow;
-        int topMarginInt = externalToInternalRow(topMargin);
-        int bottomMarginInt = externalToInternalRow(bottomMargin);
-
-        /* Save the scrolled line, move the lines above it on the screen down
-           one line, move the lines on screen below the bottom margin down
-           one line, then insert the scrolled line into the transcript */
         Object[] lines = mLines;
         StyleRow[] color = mColor;
         boolean[] lineWrap = mLineWrap;
+
+        // Move the scrolled line into the transcript
+        int topMarginInt = externalToInternalRow(topMargin);
         Object scrollLine = lines[topMarginInt];
         StyleRow scrollColor = color[topMarginInt];
-        boolean scrollLineWrap = lineWrap[topMarginInt];
-        blockCopyLines(screenFirstRow, topMargin, 1);
-        blockCopyLines(bottomMarginInt, screenRows - bottomMargin, 1);
-        lines[screenFirstRow] = scrollLine;
-        color[screenFirstRow] = scrollColor;
-        lineWrap[screenFirstRow] = scrollLineWrap;
+        mScrollback.add(scrollLine, scrollColor, lineWrap[topMarginInt]);
+        if (scrollLine instanceof char[]) {
+            mSpareLine = (char[]) scrollLine;
+        }
 
-        // Update the screen location
-        mScreenFirstRow = (screenFirstRow + 1) % totalRows;
-        if (mActiveTranscriptRows < totalRows - screenRows) {
-            ++mActiveTranscriptRows;
+        if (topMargin == 0 && bottomMargin == screenRows) {
+            // Fast path -- scroll the entire screen
+            mScreenFirstRow = (mScreenFirstRow + 1) % screenRows;
+        } else {
+            // Move the lines below it up one line, down to the bottom margin
+            for (int i = topMargin; i < bottomMargin - 1; ++i) {
+                int dst = externalToInternalRow(i);
+                int src = externalToInternalRow(i + 1);
+                lines[dst] = lines[src];
+                color[dst] = color[src];
+                lineWrap[dst] = lineWrap[src];
+            }
         }
 
-        // Blank the bottom margin
+        /* Blank the bottom margin.  The scrolled line's StyleRow has been
+           copied into the transcript, so it can be reused. */
         int blankRow = externalToInternalRow(bottomMargin - 1);
         lines[blankRow] = null;
-        color[blankRow] = new StyleRow(style, mColumns);
+        if (scrollColor != null) {
+            scrollColor.setSolid(style);
+        } else {
+            scrollColor = new StyleRow(style, mColumns);
+        }
+        color[blankRow] = scrollColor;
         lineWrap[blankRow] = false;
 
-        return;
+        // Every row in the scrolled region shows a different line now
+        damage(topMargin, bottomMargin);
     }
 
     /**
@@ -369,6 +429,7 @@ class UnicodeTranscript {
                 || dy + h > mScreenRows) {
             throw new IllegalArgumentException();
         }
+        damage(dy, dy + h);
         Object[] lines = mLines;
         StyleRow[] color = mColor;
         if (sy > dy) {
@@ -562,40 +623,40 @@ class UnicodeTranscript {
      * character requested will be followed by a NUL; the contents of the rest
      * of the array could potentially be garbage.
      *
-     * @param row The row number to get (-mActiveTranscriptRows..mScreenRows-1)
+     * @param row The row number to get (-getActiveTranscriptRows()..mScreenRows-1)
      * @param x1 The first screen position that's wanted
      * @param x2 One after the last screen position that's wanted
      * @return A char[] array containing the requested contents
      */
     public char[] getLine(int row, int x1, int x2) {
-        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+        if (row < -mScrollback.getRows() || row > mScreenRows-1) {
             throw new IllegalArgumentException();
         }
 
         int columns = mColumns;
-        row = externalToInternalRow(row);
-        if (mLines[row] == null) {
+        Object rowLine = getRowLine(row);
+        if (rowLine == null) {
             // Line is blank
             return null;
         }
-        if (mLines[row] instanceof char[]) {
+        if (rowLine instanceof char[]) {
             // Line contains only regular-width BMP characters
             if (x1 == 0 && x2 == columns) {
                 // Want the whole row? Easy.
-                return (char[]) mLines[row];
+                return (char[]) rowLine;
             } else {
                 if (tmpLine == null || tmpLine.length < columns + 1) {
                     tmpLine = new char[columns+1];
                 }
                 int length = x2 - x1;
-                System.arraycopy(mLines[row], x1, tmpLine, 0, length);
+                System.arraycopy(rowLine, x1, tmpLine, 0, length);
                 tmpLine[length] = 0;
                 return tmpLine;
             }
         }
 
         // Figure out how long the array needs to be
-        FullUnicodeLine line = (FullUnicodeLine) mLines[row];
+        FullUnicodeLine line = (FullUnicodeLine) rowLine;
         char[] rawLine = line.getLine();
         x1 = line.findStartOfColumn(x1);
         if (x2 < columns) {
@@ -623,12 +684,16 @@ class UnicodeTranscript {
      * until the next call to getLineColor.
      */
     public StyleRow getLineColor(int row, int x1, int x2) {
-        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+        if (row < -mScrollback.getRows() || row > mScreenRows-1) {
             throw new IllegalArgumentException();
         }
 
-        row = externalToInternalRow(row);
-        StyleRow color = mColor[row];
+        StyleRow color;
+        if (row < 0) {
+            color = mScrollback.getLineColor(externalToScrollbackRow(row));
+        } else {
+            color = mColor[externalToInternalRow(row)];
+        }
         StyleRow tmp = tmpColor;
         if (color != null) {
             if (x1 == 0 && x2 == mColumns) {
@@ -665,19 +730,19 @@ class UnicodeTranscript {
      * @return Whether or not there are characters following this one in the column.
      */
     public boolean getChar(int row, int column, int charIndex, char[] out, int offset) {
-        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+        if (row < -mScrollback.getRows() || row > mScreenRows-1) {
             throw new IllegalArgumentException();
         }
-        row = externalToInternalRow(row);
+        Object rowLine = getRowLine(row);
 
-        if (mLines[row] instanceof char[]) {
+        if (rowLine instanceof char[]) {
             // Fast path: all regular-width BMP chars in the row
-            char[] line = (char[]) mLines[row];
+            char[] line = (char[]) rowLine;
             out[offset] = line[column];
             return false;
         }
 
-        FullUnicodeLine line = (FullUnicodeLine) mLines[row];
+        FullUnicodeLine line = (FullUnicodeLine) rowLine;
         return line.getChar(column, charIndex, out, offset);
     }
 
@@ -686,7 +751,12 @@ class UnicodeTranscript {
     }
 
     private char[] allocateBasicLine(int row, int columns) {
-        char[] line = new char[columns];
+        char[] line = mSpareLine;
+        if (line != null && line.length == columns) {
+            mSpareLine = null;
+        } else {
+            line = new char[columns];
+        }
 
         // Fill the line with blanks
         for (int i = 0; i < columns; ++i) {
@@ -721,12 +791,54 @@ class UnicodeTranscript {
         return true;
     }
 
+    /**
+     * Store a run of printable ASCII characters in a row.  Faster than calling
+     * setChar() for each of them, since the row is looked up only once and
+     * basic rows are written directly.
+     *
+     * @param column The column of the first character
+     * @param row The row
+     * @param b The characters, all in the range 0x20-0x7e
+     * @param offset The index of the first character in b
+     * @param length The number of characters, which must all fit in the row
+     * @param style The style of the characters
+     */
+    public void setChars(int column, int row, byte[] b, int offset, int length, int style) {
+        if (row >= mScreenRows || column + length > mColumns) {
+            Log.e(TAG, "illegal arguments! " + row + " " + column + "+" + length + " " + mScreenRows + " " + mColumns);
+            throw new IllegalArgumentException();
+        }
+        int internalRow = externalToInternalRow(row);
+        mRowStamps[row] = mStamp;
+        row = internalRow;
+
+        if (mLines[row] == null) {
+            allocateBasicLine(row, mColumns);
+        }
+
+        if (mLines[row] instanceof char[]) {
+            char[] line = (char[]) mLines[row];
+            for (int i = 0; i < length; ++i) {
+                line[column + i] = (char) b[offset + i];
+            }
+        } else {
+            FullUnicodeLine line = (FullUnicodeLine) mLines[row];
+            for (int i = 0; i < length; ++i) {
+                line.setChar(column + i, b[offset + i]);
+            }
+        }
+
+        mColor[row].set(column, length, style);
+    }
+
     public boolean setChar(int column, int row, int codePoint) {
         if (row >= mScreenRows || column >= mColumns) {
             Log.e(TAG, "illegal arguments! " + row + " " + column + " " + mScreenRows + " " + mColumns);
             throw new IllegalArgumentException();
         }
-        row = externalToInternalRow(row);
+        int internalRow = externalToInternalRow(row);
+        mRowStamps[row] = mStamp;
+        row = internalRow;
 
         /*
          * Whether data contains non-BMP or characters with charWidth != 1
@@ -816,6 +928,19 @@ class FullUnicodeLine {
         mText = new char[(int)(SPARE_CAPACITY_FACTOR*columns)];
     }
 
+    /**
+     * Fill the line with blanks again.
+     */
+    public void clear() {
+        char[] text = mText;
+        short[] offset = mOffset;
+        for (int i = 0; i < mColumns; ++i) {
+            text[i] = ' ';
+            offset[i] = 0;
+        }
+        offset[0] = (short) mColumns;
+    }
+
     public int getSpaceUsed() {
         return mOffset[0];
     }
@@ -824,6 +949,59 @@ class FullUnicodeLine {
         return mText;
     }
 
+    /**
+     * Copy the text of the line, getSpaceUsed() chars, followed by the
+     * offsets of columns 1 to columns - 1, one char each.
+     */
+    public void getLayout(char[] out, int offset) {
+        int spaceUsed = mOffset[0];
+        System.arraycopy(mText, 0, out, offset, spaceUsed);
+        offset += spaceUsed;
+        short[] columnOffset = mOffset;
+        for (int i = 1; i < mColumns; ++i) {
+            out[offset++] = (char) columnOffset[i];
+        }
+    }
+
+    /**
+     * Replace the contents of the line with spaceUsed chars of text and
+     * column offsets, in the form getLayout() produces.
+     */
+    public void setLayout(char[] in, int offset, int spaceUsed) {
+        if (spaceUsed > mText.length) {
+            mText = new char[spaceUsed + mColumns];
+        }
+        System.arraycopy(in, offset, mText, 0, spaceUsed);
+        offset += spaceUsed;
+        short[] columnOffset = mOffset;
+        columnOffset[0] = (short) spaceUsed;
+        for (int i = 1; i < mColumns; ++i) {
+            columnOffset[i] = (short) in[offset++];
+        }
+    }
+
+    /**
+     * Whether another line of the same width has the same text and column
+     * layout.
+     */
+    public boolean sameLayout(FullUnicodeLine other) {
+        int spaceUsed = mOffset[0];
+        if (other.mColumns != mColumns || other.mOffset[0] != spaceUsed) {
+            return false;
+        }
+        for (int i = 1; i < mColumns; ++i) {
+            if (other.mOffset[i] != mOffset[i]) {
+                return false;
+            }
+        }
+        for (int i = 0; i < spaceUsed; ++i) {
+            if (other.mText[i] != mText[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public int findStartOfColumn(int column) {
         if (column == 0) {
             return 0;
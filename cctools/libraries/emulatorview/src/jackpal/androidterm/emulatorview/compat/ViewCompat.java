@@ -0,0 +1,22 @@
+package jackpal.androidterm.emulatorview.compat;
+
+import android.view.View;
+
+/**
+ * Definitions related to android.view.View
+ */
+public class ViewCompat {
+    private static class Api11OrLater {
+        public static boolean isHardwareAccelerated(View view) {
+            return view.isHardwareAccelerated();
+        }
+    }
+
+    public static boolean isHardwareAccelerated(View view) {
+        if (AndroidCompat.SDK >= 11) {
+            return Api11OrLater.isHardwareAccelerated(view);
+        } else {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.pdaxrom.build;
+
+import java.util.List;
+
+import com.pdaxrom.utils.LogItem;
+
+/*
+ * Single pass filter for the build output. Escape sequences are dropped and
+ * backspaces applied while the characters are copied into the line buffer,
+ * complete lines are checked for gcc/clang/javac diagnostics:
+ *   file:line:col: type: message
+ *   file:line: type: message
+ * where type is one or two words ("error", "fatal error", "warning", ...).
+ */
+public class BuildOutputParser {
+	public interface LineListener {
+		public void onLine(char[] line, int length);
+	}
+
+	private static final int STATE_TEXT	= 0;
+	private static final int STATE_ESC	= 1;
+	private static final int STATE_CHARSET	= 2;
+	private static final int STATE_CSI	= 3;
+	private static final int STATE_OSC	= 4;
+
+	private static final int MAX_DIGITS	= 9;
+
+	public static final int FIELD_FILE_END		= 0;
+	public static final int FIELD_LINE		= 1;
+	public static final int FIELD_POS		= 2;
+	public static final int FIELD_TYPE_START	= 3;
+	public static final int FIELD_TYPE_END		= 4;
+	public static final int FIELDS			= 5;
+
+	private static final String ERROR_TYPE	= "error";
+
+	private final List<LogItem> errorsList;
+	private final LineListener listener;
+
+	private char[] line = new char[256];
+	private int length = 0;
+	private int state = STATE_TEXT;
+	private boolean lastWasCR = false;
+	private final int[] fields = new int[FIELDS];
+
+	public BuildOutputParser(List<LogItem> errorsList, LineListener listener) {
+		this.errorsList = errorsList;
+		this.listener = listener;
+	}
+
+	public void feed(char[] buf, int off, int len) {
+		int end = off + len;
+		for (int i = off; i < end; i++) {
+			char c = buf[i];
+			switch (state) {
+			case STATE_TEXT:
+				boolean cr = lastWasCR;
+				lastWasCR = false;
+				if (c >= ' ' || c == '\t') {
+					if (length == line.length) {
+						char[] tmp = new char[line.length * 2];
+						System.arraycopy(line, 0, tmp, 0, length);
+						line = tmp;
+					}
+					line[length++] = c;
+				} else if (c == '\n') {
+					// "\r\n" is a single line end, like in BufferedReader.readLine()
+					if (!cr) {
+						endLine();
+					}
+				} else if (c == '\r') {
+					endLine();
+					lastWasCR = true;
+				} else if (c == '\b') {
+					if (length > 0) {
+						length--;
+					}
+				} else if (c == '\u001b') {
+					state = STATE_ESC;
+				}
+				break;
+			case STATE_ESC:
+				if (c == '[') {
+					state = STATE_CSI;
+				} else if (c == ']') {
+					state = STATE_OSC;
+				} else if (c == '(' || c == ')' || c == '*' || c == '+' || c == '#' || c == '%') {
+					state = STATE_CHARSET;
+				} else {
+					state = STATE_TEXT;
+				}
+				break;
+			case STATE_CHARSET:
+				state = STATE_TEXT;
+				break;
+			case STATE_CSI:
+				if (c < ' ' || c >= '@') {
+					state = STATE_TEXT;
+				}
+				break;
+			case STATE_OSC:
+				if (c == '\u0007') {
+					state = STATE_TEXT;
+				} else if (c == '\u001b') {
+					state = STATE_ESC;
+				}
+				break;
+			}
+		}
+	}
+
+	public void finish() {
+		if (length > 0) {
+			endLine();
+		}
+		state = STATE_TEXT;
+		lastWasCR = false;
+	}
+
+	private void endLine() {
+		matchDiagnostic(line, length);
+		listener.onLine(line, length);
+		length = 0;
+	}
+
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000b' || c == '\f' || c == '\r';
+	}
+
+	private static int skipDigitsBack(char[] s, int end) {
+		int i = end;
+		while (i > 0 && s[i - 1] >= '0' && s[i - 1] <= '9') {
+			i--;
+		}
+		return i;
+	}
+
+	private static int parseInt(char[] s, int start, int end) {
+		int v = 0;
+		for (int i = start; i < end; i++) {
+			v = v * 10 + (s[i] - '0');
+		}
+		return v;
+	}
+
+	/*
+	 * Check a line for a diagnostic. On a match, fields get the end of the
+	 * file name, the line and column numbers (-1 if there is no column), and
+	 * the start and end of the type.
+	 */
+	public static boolean parseDiagnostic(char[] s, int n, int[] fields) {
+		// "file:line:col:" or "file:line:" is everything up to the first space
+		int sp = 0;
+		while (sp < n && !isSpace(s[sp])) {
+			sp++;
+		}
+		if (sp == n || s[sp] != ' ' || sp < 3 || s[sp - 1] != ':') {
+			return false;
+		}
+
+		int numEnd = sp - 1;
+		int numStart = skipDigitsBack(s, numEnd);
+		if (numStart == numEnd || numEnd - numStart > MAX_DIGITS || numStart < 2 || s[numStart - 1] != ':') {
+			return false;
+		}
+		int fileEnd = numStart - 1;
+		int lineNo;
+		int pos;
+		int colStart = skipDigitsBack(s, fileEnd);
+		if (colStart < fileEnd && fileEnd - colStart <= MAX_DIGITS && colStart >= 2 && s[colStart - 1] == ':') {
+			lineNo = parseInt(s, colStart, fileEnd);
+			pos = parseInt(s, numStart, numEnd);
+			fileEnd = colStart - 1;
+		} else {
+			lineNo = parseInt(s, numStart, numEnd);
+			pos = -1;
+		}
+
+		// "type: " is one or two words
+		int typeStart = sp + 1;
+		int w1 = typeStart;
+		while (w1 < n && !isSpace(s[w1])) {
+			w1++;
+		}
+		if (w1 == typeStart || w1 == n || s[w1] != ' ') {
+			return false;
+		}
+		int typeEnd;
+		if (w1 - 1 > typeStart && s[w1 - 1] == ':') {
+			typeEnd = w1 - 1;
+		} else {
+			int w2 = w1 + 1;
+			while (w2 < n && !isSpace(s[w2])) {
+				w2++;
+			}
+			if (w2 == n || s[w2] != ' ' || w2 - 1 <= w1 + 1 || s[w2 - 1] != ':') {
+				return false;
+			}
+			typeEnd = w2 - 1;
+		}
+
+		fields[FIELD_FILE_END] = fileEnd;
+		fields[FIELD_LINE] = lineNo;
+		fields[FIELD_POS] = pos;
+		fields[FIELD_TYPE_START] = typeStart;
+		fields[FIELD_TYPE_END] = typeEnd;
+		return true;
+	}
+
+	/*
+	 * Whether a line is an error (or fatal error) diagnostic, fields as for
+	 * parseDiagnostic()
+	 */
+	public static boolean isError(char[] s, int n, int[] fields) {
+		if (!parseDiagnostic(s, n, fields)) {
+			return false;
+		}
+		int typeEnd = fields[FIELD_TYPE_END];
+		int typeStart = typeEnd - ERROR_TYPE.length();
+		if (typeStart < fields[FIELD_TYPE_START]) {
+			return false;
+		}
+		for (int i = 0; i < ERROR_TYPE.length(); i++) {
+			if (s[typeStart + i] != ERROR_TYPE.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void matchDiagnostic(char[] s, int n) {
+		if (!parseDiagnostic(s, n, fields)) {
+			return;
+		}
+		int fileEnd = fields[FIELD_FILE_END];
+		int lineNo = fields[FIELD_LINE];
+		int pos = fields[FIELD_POS];
+		int typeStart = fields[FIELD_TYPE_START];
+		int typeEnd = fields[FIELD_TYPE_END];
+
+		String file = new String(s, 0, fileEnd);
+		String type = new String(s, typeStart, typeEnd - typeStart);
+		String message = new String(s, typeEnd + 2, n - typeEnd - 2);
+
+		int idx = errorsList.size() - 1;
+		if (idx >= 0) {
+			LogItem last = errorsList.get(idx);
+			if (last.getFile().equals(file) && last.getType().equals(type) &&
+				last.getLine() == lineNo && (pos == -1 || last.getPos() == pos)) {
+				last.setMessage(last.getMessage() + " " + message);
+				return;
+			}
+		}
+		errorsList.add(new LogItem(type, file, lineNo, pos, message));
+	}
+}
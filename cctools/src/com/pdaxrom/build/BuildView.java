@@ -1,10 +1,7 @@
 package com.pdaxrom.build;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileDescriptor;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
@@ -14,17 +11,23 @@ import java.util.regex.Pattern;
 import com.actionbarsherlock.app.ActionBar;
 import com.pdaxrom.cctools.R;
 import com.pdaxrom.utils.LogItem;
+import com.pdaxrom.utils.PtyInputStream;
+import com.pdaxrom.utils.PtyOutputStream;
 import com.pdaxrom.utils.Utils;
 
 import android.content.Context;
 import android.os.Build;
 import android.os.Handler;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.widget.TextView;
 
 public class BuildView extends TextView {
 	private static final String TAG = "cctools-build";
+	private static final int OUTPUT_DELAY = 16; // ms, about one frame
 
 	private String name = null;
 	private boolean isRunning = false;
@@ -44,6 +47,19 @@ public class BuildView extends TextView {
     private Handler handler = new Handler();
 
 	private ArrayList<LogItem> errorsList = null;
+
+	private final StringBuilder pendingOutput = new StringBuilder();
+	private boolean outputPosted = false;
+
+	/* Where the output lines with errors start, guarded by pendingOutput */
+	private int outputLength = 0;
+	private int[] errorOffsets = new int[16];
+	private int errorCount = 0;
+	private final int[] errorFields = new int[BuildOutputParser.FIELDS];
+
+	/* End of the last match, where the next search starts */
+	private int searchEnd = 0;
+	private final BackgroundColorSpan highlight = new BackgroundColorSpan(0xff808080);
 	
 	private BuildViewInterface buildViewInterface = null;
 	private ActionBar.Tab tab = null;
@@ -93,13 +109,98 @@ public class BuildView extends TextView {
 		return errorsList;
 	}
 	
-    private void output(final String str) {
-    	Runnable proc = new Runnable() {
-    		public void run() {
-    			append(str);
+    private final Runnable flushOutput = new Runnable() {
+    	public void run() {
+    		String str;
+    		synchronized (pendingOutput) {
+    			str = pendingOutput.toString();
+    			pendingOutput.setLength(0);
+    			outputPosted = false;
     		}
-    	};
-    	handler.post(proc);
+    		append(str);
+    	}
+    };
+
+    /* lines are collected and appended to the view once per frame */
+    private void output(char[] str, int length) {
+    	boolean error = BuildOutputParser.isError(str, length, errorFields);
+    	synchronized (pendingOutput) {
+    		if (error) {
+    			if (errorCount == errorOffsets.length) {
+    				int[] tmp = new int[errorCount * 2];
+    				System.arraycopy(errorOffsets, 0, tmp, 0, errorCount);
+    				errorOffsets = tmp;
+    			}
+    			errorOffsets[errorCount++] = outputLength;
+    		}
+    		outputLength += length + 1;
+    		pendingOutput.append(str, 0, length).append('\n');
+    		if (!outputPosted) {
+    			outputPosted = true;
+    			handler.postDelayed(flushOutput, OUTPUT_DELAY);
+    		}
+    	}
+    }
+
+    /*
+     * Find text or a regular expression in the output, after the last match,
+     * highlight it and scroll it into view. When there is no further match,
+     * the next search starts from the top again.
+     */
+    public boolean find(String query, boolean regex) {
+    	int flags = Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+    	if (!regex) {
+    		flags |= Pattern.LITERAL;
+    	}
+    	CharSequence text = getText();
+    	Matcher matcher = Pattern.compile(query, flags).matcher(text);
+    	int from = Math.min(searchEnd, text.length());
+    	while (from <= text.length() && matcher.find(from)) {
+    		if (matcher.end() > matcher.start()) {
+    			showMatch(matcher.start(), matcher.end());
+    			return true;
+    		}
+    		from = matcher.end() + 1;
+    	}
+    	searchEnd = 0;
+    	return false;
+    }
+
+    /*
+     * Find the next line with a compiler error, as recorded while the output
+     * was parsed, and show it.
+     */
+    public boolean findNextError() {
+    	CharSequence text = getText();
+    	int start = -1;
+    	synchronized (pendingOutput) {
+    		for (int i = 0; i < errorCount; i++) {
+    			if (errorOffsets[i] >= searchEnd) {
+    				start = errorOffsets[i];
+    				break;
+    			}
+    		}
+    	}
+    	// the line may not be in the view yet
+    	if (start < 0 || start >= text.length()) {
+    		searchEnd = 0;
+    		return false;
+    	}
+    	int end = start;
+    	while (end < text.length() && text.charAt(end) != '\n') {
+    		end++;
+    	}
+    	showMatch(start, end);
+    	return true;
+    }
+
+    private void showMatch(int start, int end) {
+    	CharSequence text = getText();
+    	if (text instanceof Spannable) {
+    		((Spannable) text).setSpan(highlight, start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    	}
+    	bringPointIntoView(start);
+    	searchEnd = Math.max(end, start + 1);
     }
 
     private void title(final String title) {
@@ -124,6 +225,10 @@ public class BuildView extends TextView {
     	this.tmpDir = tmpDir;
     	
     	errorsList = new ArrayList<LogItem>();
+    	synchronized (pendingOutput) {
+    		outputLength = length() + pendingOutput.length();
+    		errorCount = 0;
+    	}
     	
         cmdThread = new MyThread();
         cmdThread.start();
@@ -176,9 +281,9 @@ public class BuildView extends TextView {
         			try {
         				Utils.setPtyUTF8Mode(mFd, true);
         				Utils.setPtyWindowSize(mFd, 64, 128, 0, 0);
-        				FileInputStream fis = new FileInputStream(mFd);
-        				BufferedReader procout = new BufferedReader(new InputStreamReader(fis));
-        				FileOutputStream procin = new FileOutputStream(mFd);
+        				PtyInputStream fis = new PtyInputStream(mFd);
+        				InputStreamReader procout = new InputStreamReader(fis);
+        				PtyOutputStream procin = new PtyOutputStream(mFd);
         				Thread execThread = new Thread() {
         					public void run() {
         						Log.i(TAG, "Waiting for hangup session");
@@ -187,75 +292,39 @@ public class BuildView extends TextView {
         					}
         				};
         				execThread.start();
-        				while (fis.available() == 0) ;
+        				// wait for the shell to start
+        				fis.waitForInput(-1);
         				procin.write(new String("export PS1=''\n").getBytes());
-        				Pattern pat1 = Pattern.compile("^(\\S+):(\\d+):(\\d+): (\\S+|\\S+ \\S+): (.*)$");
-        				Pattern pat2 = Pattern.compile("^(\\S+):(\\d+): (\\S+|\\S+ \\S+): (.*)$");
-        				Pattern patClearNewLine = Pattern.compile("(\\x08)\\1+");
         				errorsList.clear();
+        				BuildOutputParser parser = new BuildOutputParser(errorsList, new BuildOutputParser.LineListener() {
+        					int skipStrings = 2; //skip echos from two command strings
+        					public void onLine(char[] line, int length) {
+        						if (skipStrings > 0) {
+        							skipStrings--;
+        						} else {
+        							output(line, length);
+        						}
+        					}
+        				});
         				cmdline = "exec " + cmdline + "\n";
         				procin.write(cmdline.getBytes());
-        				int skipStrings = 2; //skip echos from two command strings
-        				do {
-        					String errstr = null;
+        				char[] buffer = new char[16384];
+        				while (true) {
         					try {
-        						errstr = procout.readLine();
-        						
-        						//Log.i(TAG, "read: " + errstr);
-        						
-        						// remove escape sequence
-        						errstr = errstr.replaceAll("\u001b\\[([0-9]|;)*m", "");
-        						// remove clearing new line
-        						Matcher m = patClearNewLine.matcher(errstr);
-        						if (m.find()) {
-        							int length = m.end() - m.start();
-        							if (m.start() > length) {
-        								errstr = errstr.substring(0, m.start() - length) + errstr.substring(m.end());
-        							}
+        						// the subprocess is gone, read what is left without blocking
+        						if (!execThread.isAlive() && !procout.ready() && !fis.waitForInput(100)) {
+        							break;
+        						}
+        						int count = procout.read(buffer);
+        						if (count == -1) {
+        							break;
         						}
+        						parser.feed(buffer, 0, count);
         					} catch (IOException e) {
         						break;
         					}
-    						if (errstr == null) {
-    							break;
-    						}
-    						Matcher m = pat1.matcher(errstr);
-    						if (m.find()) {
-    							Log.e(TAG, "out " + m.group(1) + "|" + m.group(2) + "|" + m.group(3) + "|" + m.group(4) + "|" + m.group(5));
-    							int idx = errorsList.size() - 1;
-    							if (idx >= 0 &&
-    								errorsList.get(idx).getFile().contentEquals(m.group(1)) &&
-    								errorsList.get(idx).getType().contentEquals(m.group(4)) &&
-    								errorsList.get(idx).getLine() == Integer.parseInt(m.group(2)) &&
-    								errorsList.get(idx).getPos() == Integer.parseInt(m.group(3))) {
-    								errorsList.get(idx).setMessage(errorsList.get(idx).getMessage() + " " + m.group(5));
-    							} else {
-    								LogItem item = new LogItem(m.group(4), m.group(1), Integer.parseInt(m.group(2)), Integer.parseInt(m.group(3)), m.group(5));
-    								errorsList.add(item);
-    							}
-    						} else {
-    							m = pat2.matcher(errstr);
-    							if (m.find()) {
-        							Log.e(TAG, "out " + m.group(1) + "|" + m.group(2) + "|" + m.group(3) + "|" + m.group(4));    								
-        							int idx = errorsList.size() - 1;
-        							if (idx >= 0 &&
-        								errorsList.get(idx).getFile().contentEquals(m.group(1)) &&
-        								errorsList.get(idx).getType().contentEquals(m.group(3)) &&
-        								errorsList.get(idx).getLine() == Integer.parseInt(m.group(2))) {
-        								errorsList.get(idx).setMessage(errorsList.get(idx).getMessage() + " " + m.group(4));
-        							} else {
-        								LogItem item = new LogItem(m.group(3), m.group(1), Integer.parseInt(m.group(2)), -1, m.group(4));
-        								errorsList.add(item);
-        							}
-    							}
-    						}
-    						if (skipStrings > 0) {
-    							skipStrings--;
-    						} else {
-    							output(errstr + "\n");
-    						}
-    						Log.i(TAG, errstr);
-        				} while(execThread.isAlive() || procout.ready());
+        				}
+        				parser.finish();
         				
         				//FIXME: set tab title
 						if (mExitCode != 0) {
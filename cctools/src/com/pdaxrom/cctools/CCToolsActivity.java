@@ -9,6 +9,7 @@ import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.regex.PatternSyntaxException;
 
 import org.droidparts.widget.ClearableEditText;
 import org.w3c.dom.Document;
@@ -61,7 +62,9 @@ import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.AdapterView.OnItemSelectedListener;
 import android.widget.ArrayAdapter;
+import android.widget.CheckBox;
 import android.widget.ImageButton;
+import android.widget.LinearLayout;
 import android.widget.ListView;
 import android.widget.SimpleAdapter;
 import android.widget.Spinner;
@@ -122,9 +125,13 @@ public class CCToolsActivity extends /*SherlockActivity*/ FlexiDialogActivity
 	private static final int TEXT_FIND = Menu.CATEGORY_CONTAINER + 2;
 	private static final int TEXT_UNDO = Menu.CATEGORY_CONTAINER + 3;
 	private static final int TEXT_REDO = Menu.CATEGORY_CONTAINER + 4;
+	private static final int TEXT_NEXT_ERROR = Menu.CATEGORY_CONTAINER + 5;
 	
 	private boolean forceTmpVal;
 
+	private String lastOutputSearchText = "";
+	private boolean lastOutputSearchRegex = false;
+
 	private String showFileName;
 	private int showFileLine;
 	private int showFilePos;
@@ -374,6 +381,7 @@ public class CCToolsActivity extends /*SherlockActivity*/ FlexiDialogActivity
 			menu.add(0, TEXT_FIND, 0, getString(R.string.menu_search));
 			menu.add(0, TEXT_UNDO, 0, getString(R.string.menu_undo));
 			menu.add(0, TEXT_REDO, 0, getString(R.string.menu_redo));
+			menu.add(0, TEXT_NEXT_ERROR, 0, getString(R.string.menu_next_error));
 		}
 		super.onCreateContextMenu(menu, v, menuInfo);
 	}
@@ -396,6 +404,9 @@ public class CCToolsActivity extends /*SherlockActivity*/ FlexiDialogActivity
 				codeEditor.redo();
 			}
 			break;
+		case TEXT_NEXT_ERROR:
+			nextError();
+			break;
 		default:
 			return super.onContextItemSelected(item);			
 		}
@@ -410,6 +421,7 @@ public class CCToolsActivity extends /*SherlockActivity*/ FlexiDialogActivity
 			menu.add(0, TEXT_REDO, 0, getString(R.string.menu_redo)).setShowAsAction(MenuItem.SHOW_AS_ACTION_IF_ROOM | MenuItem.SHOW_AS_ACTION_WITH_TEXT);
 			menu.add(0, TEXT_GOTO, 0, getString(R.string.menu_goto)).setShowAsAction(MenuItem.SHOW_AS_ACTION_IF_ROOM | MenuItem.SHOW_AS_ACTION_WITH_TEXT);
 			menu.add(0, TEXT_FIND, 0, getString(R.string.menu_search)).setShowAsAction(MenuItem.SHOW_AS_ACTION_IF_ROOM | MenuItem.SHOW_AS_ACTION_WITH_TEXT);
+			menu.add(0, TEXT_NEXT_ERROR, 0, getString(R.string.menu_next_error)).setShowAsAction(MenuItem.SHOW_AS_ACTION_IF_ROOM | MenuItem.SHOW_AS_ACTION_WITH_TEXT);
 		}
     	return true;
     }
@@ -489,6 +501,9 @@ public class CCToolsActivity extends /*SherlockActivity*/ FlexiDialogActivity
         			codeEditor.redo();
         		}
         		break;
+        	case TEXT_NEXT_ERROR:
+        		nextError();
+        		break;
         	case R.id.item_modules:
         		showModules();
         		break;
@@ -1116,6 +1131,12 @@ public class CCToolsActivity extends /*SherlockActivity*/ FlexiDialogActivity
     }
     
     private void searchDialog() {
+    	if (codeEditor == null) {
+    		if (termView != null || buildView != null) {
+    			outputSearchDialog();
+    		}
+    		return;
+    	}
     	final ClearableEditText input = new ClearableEditText(context);
     	input.setInputType(InputType.TYPE_CLASS_TEXT);
     	input.setSingleLine(true);
@@ -1137,6 +1158,71 @@ public class CCToolsActivity extends /*SherlockActivity*/ FlexiDialogActivity
 		.show();    	
     }
     
+    /* search in the terminal or the build output */
+    private void outputSearchDialog() {
+    	LinearLayout layout = new LinearLayout(context);
+    	layout.setOrientation(LinearLayout.VERTICAL);
+    	final ClearableEditText input = new ClearableEditText(context);
+    	input.setInputType(InputType.TYPE_CLASS_TEXT);
+    	input.setSingleLine(true);
+    	input.setText(lastOutputSearchText);
+    	input.setSelection(0, lastOutputSearchText.length());
+    	layout.addView(input);
+    	final CheckBox regex = new CheckBox(context);
+    	regex.setText(getString(R.string.search_regex));
+    	regex.setChecked(lastOutputSearchRegex);
+    	layout.addView(regex);
+    	new AlertDialog.Builder(context)
+    	.setMessage(getString(R.string.search_string))
+    	.setView(layout)
+    	.setPositiveButton(getString(R.string.button_continue), new DialogInterface.OnClickListener() {
+			public void onClick(DialogInterface dialog, int which) {
+				lastOutputSearchText = input.getText().toString();
+				lastOutputSearchRegex = regex.isChecked();
+				if (lastOutputSearchText.length() > 0) {
+					findInOutput(lastOutputSearchText, lastOutputSearchRegex);
+				}
+			}
+		})
+		.setNegativeButton(getString(R.string.button_cancel), new DialogInterface.OnClickListener() {
+			public void onClick(DialogInterface dialog, int which) {
+				
+			}
+		})
+		.show();
+    }
+
+    private void findInOutput(String text, boolean regex) {
+    	boolean found;
+    	try {
+    		if (termView != null) {
+    			found = termView.find(text, regex);
+    		} else {
+    			found = buildView.find(text, regex);
+    		}
+    	} catch (PatternSyntaxException e) {
+    		Toast.makeText(getBaseContext(), getString(R.string.search_bad_regex), Toast.LENGTH_SHORT).show();
+    		return;
+    	}
+    	if (!found) {
+    		Toast.makeText(getBaseContext(), getString(R.string.search_not_found), Toast.LENGTH_SHORT).show();
+    	}
+    }
+
+    private void nextError() {
+    	boolean found;
+    	if (termView != null) {
+    		found = termView.findNextError();
+    	} else if (buildView != null) {
+    		found = buildView.findNextError();
+    	} else {
+    		return;
+    	}
+    	if (!found) {
+    		Toast.makeText(getBaseContext(), getString(R.string.no_more_errors), Toast.LENGTH_SHORT).show();
+    	}
+    }
+
     private void showModules() {
     	final ListView listView = new ListView(this);
     	//final Spinner spinner = new Spinner(this);
@@ -1377,7 +1463,7 @@ public class CCToolsActivity extends /*SherlockActivity*/ FlexiDialogActivity
 		.show();
     }
    
-	private void serviceStartStop(final int cmd) {
+	private void serviceStartStop(int cmd) {
 		String serviceCmd;
 		if (cmd == SERVICE_START) {
 			serviceCmd = "start";
@@ -1385,27 +1471,24 @@ public class CCToolsActivity extends /*SherlockActivity*/ FlexiDialogActivity
 			serviceCmd = "stop";
 		}
 		Log.i(TAG, "Console services " + serviceCmd);
-		File dir = new File(getServiceDir());
+		final File dir = new File(getServiceDir());
 		if (dir.exists()) {
-			String services[] = dir.list();
-			for (final String service: services) {
-				Log.i(TAG, "Service " + service + " " + serviceCmd);
-				new Thread() {
-					public void run() {
-						String serviceCmd;
-						if (cmd == SERVICE_START) {
-							serviceCmd = "start";
-						} else {
-							serviceCmd = "stop";
-						}
+			final String cmdName = serviceCmd;
+			// Services may stay in the foreground, so each one runs on a
+			// thread of its own rather than on the launcher's workers
+			new Thread() {
+				public void run() {
+					String services[] = dir.list();
+					for (String service: services) {
+						Log.i(TAG, "Service " + service + " " + cmdName);
 						String[] argv = {
 							getServiceDir() + "/" + service,
-							serviceCmd
+							cmdName
 						};
-						system(argv);
+						systemDetached(argv);
 					}
-				}.start();
-			}			
+				}
+			}.start();
 		}
 	}
 }
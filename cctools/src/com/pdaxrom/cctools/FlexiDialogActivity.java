@@ -1,20 +1,16 @@
 package com.pdaxrom.cctools;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileDescriptor;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Future;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -49,8 +45,10 @@ import android.widget.TableRow;
 import android.widget.TextView;
 
 import com.actionbarsherlock.app.SherlockActivity;
+import com.pdaxrom.utils.CommandLauncher;
 import com.pdaxrom.utils.FileDialog;
 import com.pdaxrom.utils.SelectionMode;
+import com.pdaxrom.utils.ShellEnvironment;
 import com.pdaxrom.utils.Utils;
 import com.pdaxrom.utils.XMLParser;
 
@@ -611,8 +609,31 @@ public class FlexiDialogActivity extends SherlockActivity {
      * Execute a shell command
      * @param argv
      * @param waitForFinish
+     * @return the exit code of the command
      */
-	protected void system(String[] argv, boolean waitForFinish) {
+	protected Future<Integer> system(String[] argv, boolean waitForFinish) {
+		Future<Integer> result = CommandLauncher.get(getSystemEnv()).launch(argv, stderrLogger);
+		if (waitForFinish) {
+			try {
+				result.get();
+			} catch (Exception e) {
+				Log.i(TAG, "Exec exception " + e);
+			}
+		}
+		return result;
+	}
+
+    /**
+     * Execute a shell command which may run for long, like a service,
+     * on a thread of its own
+     * @param argv
+     * @return the exit code of the command
+     */
+	protected Future<Integer> systemDetached(String[] argv) {
+		return CommandLauncher.get(getSystemEnv()).launchDetached(argv, stderrLogger);
+	}
+
+	private String[] getSystemEnv() {
 		String cctoolsDir = toolchainDir + "/cctools";
 		String bootClassPath = getEnv(cctoolsDir, "BOOTCLASSPATH");
 		if (bootClassPath == null) {
@@ -648,21 +669,16 @@ public class FlexiDialogActivity extends SherlockActivity {
 				"SDDIR=" + sdHomeDir,
 				"EXTERNAL_STORAGE=" + Environment.getExternalStorageDirectory().getPath(),
 				};
-		try {
-			Process p = Runtime.getRuntime().exec(argv, envp);
-			if (waitForFinish) {
-				BufferedReader in = new BufferedReader(  
-						new InputStreamReader(p.getErrorStream()));  
-				String line = null;  
-				while ((line = in.readLine()) != null) {  
-					Log.i(TAG, "stderr: " + line);
-				}			
-				p.waitFor();
-			}
-		} catch (Exception e) {
-			Log.i(TAG, "Exec exception " + e);
-		}		
+		return envp;
 	}
+
+	private static final CommandLauncher.OutputListener stderrLogger = new CommandLauncher.OutputListener() {
+		public void onOutput(String line, boolean isError) {
+			if (isError) {
+				Log.i(TAG, "stderr: " + line);
+			}
+		}
+	};
 	
 	protected void updateClassPathEnv() {
 		String cpEnvDir = toolchainDir + "/cctools/etc";
@@ -680,7 +696,6 @@ public class FlexiDialogActivity extends SherlockActivity {
 	}
 	
 	protected String getEnv(String baseDir, String variable) {
-		String ret = null;
 		String[] envp = {
 				"TMPDIR=" + Environment.getExternalStorageDirectory().getPath(),
 				"PATH=" + baseDir + "/bin:" + baseDir + "/sbin:/sbin:/vendor/bin:/system/sbin:/system/bin:/system/xbin",
@@ -698,28 +713,7 @@ public class FlexiDialogActivity extends SherlockActivity {
 				"SDDIR=" + sdHomeDir,
 				"EXTERNAL_STORAGE=" + Environment.getExternalStorageDirectory().getPath(),
 				};
-		String[] argv = { "/system/bin/sh", "-c", "set"};
-		int[] pId = new int[1];
-		FileDescriptor fd = Utils.createSubProcess(baseDir, argv[0], argv, envp, pId);
-		FileInputStream fis = new FileInputStream(fd);
-		DataInputStream in = new DataInputStream(fis);
-		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-		String line = "";
-		try {
-			while((line = reader.readLine()) != null) {
-				if (line.startsWith(variable + "=")) {
-					if (line.indexOf("=") != -1) {
-						ret = line.substring(line.indexOf("=") + 1);
-						break;
-					}
-				}
-			}
-			in.close();
-			Utils.waitFor(pId[0]);
-		} catch (Exception e) {
-			Log.e(TAG, "exception " + e);
-		}
-		return ret;
+		return ShellEnvironment.get(baseDir, envp).get(variable);
 	}
 	
 	protected String getShell() {
@@ -1,15 +1,25 @@
 package com.pdaxrom.cmdline;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
 
-import com.pdaxrom.utils.XMLParser;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
 public class AProjectHelper {
 	public final static int PROJECT_PACKAGE		= 1;
@@ -20,6 +30,15 @@ public class AProjectHelper {
 	public final static int PROJECT_APPNAME		= 6;
 	public final static int PROJECT_ACTIVITIES  = 7;
 	
+	/* Command line keys, in PROJECT_* order */
+	private final static String[] QUERY_KEYS = {
+		"Package", "VersionCode", "VersionName", "TargetSDK", "MinSDK", "AppName", "Activities"
+	};
+	
+	private final static String MANIFEST_CACHE = "bin/manifest.cache";
+	
+	private static Map<String, ManifestInfo> manifestCache = new HashMap<String, ManifestInfo>();
+	
 	public static void main(String[] args) {
 		int argc = 0;
 		while (argc < args.length) {
@@ -37,50 +56,28 @@ public class AProjectHelper {
 				if (result == false) {
 					System.exit(1);
 				}
-			} else if (args[argc].equals("Package")) {
-				String str = getManifestInfo(".", PROJECT_PACKAGE);
-				if (str == null) {
-					str = "";
-				}
-				System.out.println(str);
-				return;
-			} else if (args[argc].equals("VersionCode")) {
-				String str = getManifestInfo(".", PROJECT_VERSIONCODE);
-				if (str == null) {
-					str = "";
-				}
-				System.out.println(str);
-				return;
-			} else if (args[argc].equals("VersionName")) {
-				String str = getManifestInfo(".", PROJECT_VERSIONNAME);
-				if (str == null) {
-					str = "";
-				}
-				System.out.println(str);
-				return;
-			} else if (args[argc].equals("TargetSDK")) {
-				String str = getManifestInfo(".", PROJECT_TARGETSDK);
-				if (str == null) {
-					str = "";
-				}
-				System.out.println(str);
-				return;
-			} else if (args[argc].equals("MinSDK")) {
-				String str = getManifestInfo(".", PROJECT_MINSDK);
-				if (str == null) {
-					str = "";
-				}
-				System.out.println(str);
-				return;
-			} else if (args[argc].equals("AppName")) {
-				String str = getManifestInfo(".", PROJECT_APPNAME);
-				if (str == null) {
-					str = "";
+			} else if (args[argc].equals("Query")) {
+				/*
+				 * Print the values as shell variables, one line per key:
+				 * eval "$(aproject-helper Query AppName MinSDK)"
+				 * sets MANIFEST_APPNAME and MANIFEST_MINSDK.
+				 */
+				ManifestInfo info = getManifest(".");
+				for (argc++; argc < args.length; argc++) {
+					int request = getQueryRequest(args[argc]);
+					if (request == 0) {
+						System.err.println("ERROR: Unknown key " + args[argc]);
+						System.exit(1);
+					}
+					String str = (info == null) ? null : info.get(request);
+					if (str == null) {
+						str = "";
+					}
+					System.out.println("MANIFEST_" + args[argc].toUpperCase() + "=" + shellQuote(str));
 				}
-				System.out.println(str);
 				return;
-			} else if (args[argc].equals("Activities")) {
-				String str = getManifestInfo(".", PROJECT_ACTIVITIES);
+			} else if (getQueryRequest(args[argc]) != 0) {
+				String str = getManifestInfo(".", getQueryRequest(args[argc]));
 				if (str == null) {
 					str = "";
 				}
@@ -97,12 +94,28 @@ public class AProjectHelper {
 				System.out.println("aproject-helper MinSDK");
 				System.out.println("aproject-helper AppName");
 				System.out.println("aproject-helper Activities");
+				System.out.println("aproject-helper Query key...");
+				System.out.println("    print MANIFEST_<KEY>='value' lines for shell eval");
 				return;
 			}
 			argc++;
 		}
 	}
 	
+	/**
+	 * Return PROJECT_* request for command line key
+	 * @param key Package, VersionCode, ...
+	 * @return 0 if unknown key
+	 */
+	private static int getQueryRequest(String key) {
+		for (int i = 0; i < QUERY_KEYS.length; i++) {
+			if (QUERY_KEYS[i].equals(key)) {
+				return i + 1;
+			}
+		}
+		return 0;
+	}
+	
 	/**
 	 * Generate BuildConfig file for project
 	 * @param path project path
@@ -147,69 +160,226 @@ public class AProjectHelper {
 	 * @return null if error
 	 */
 	public static String getManifestInfo(String path, int request) {
-		XMLParser xmlParser = new XMLParser();
-		String xml = xmlParser.getXmlFromFile(path + "/AndroidManifest.xml");
-		if (xml == null) {
+		ManifestInfo info = getManifest(path);
+		if (info == null) {
+			return null;
+		}
+		return info.get(request);
+	}
+	
+	/**
+	 * Return parsed Android Manifest, from the cache if the file is unchanged
+	 * @param path project path
+	 * @return null if error
+	 */
+	public static ManifestInfo getManifest(String path) {
+		File file = new File(path, "AndroidManifest.xml");
+		if (!file.exists()) {
 			System.err.println("ERROR: No AndroidManifest.xml found!");
 			return null;
 		}
+		String key;
+		try {
+			key = file.getCanonicalPath();
+		} catch (IOException e) {
+			key = file.getAbsolutePath();
+		}
+		long mtime = file.lastModified();
+		long length = file.length();
 		
-		Document doc = xmlParser.getDomElement(xml);
-		if (doc == null) {
-			System.err.println("ERROR: Bad xml file!");
-			return null;
+		ManifestInfo info = manifestCache.get(key);
+		if (info != null && info.mtime == mtime && info.length == length) {
+			return info;
+		}
+		
+		File cacheFile = new File(path, MANIFEST_CACHE);
+		info = ManifestInfo.load(cacheFile, key, mtime, length);
+		if (info == null) {
+			info = ManifestInfo.parse(file, key, mtime, length);
+			if (info == null) {
+				System.err.println("ERROR: Bad xml file!");
+				return null;
+			}
+			info.save(cacheFile);
+		}
+		manifestCache.put(key, info);
+		return info;
+	}
+	
+	/**
+	 * Quote string for shell eval
+	 */
+	private static String shellQuote(String str) {
+		return "'" + str.replace("'", "'\\''") + "'";
+	}
+	
+	/**
+	 * Values of the Android Manifest used by the build scripts
+	 */
+	public static class ManifestInfo {
+		private static final String CACHE_KEY = "manifest.path";
+		private static final String CACHE_MTIME = "manifest.mtime";
+		private static final String CACHE_LENGTH = "manifest.length";
+		
+		private final String key;
+		private final long mtime;
+		private final long length;
+		private final String[] values = new String[QUERY_KEYS.length + 1];
+		private boolean hasManifest;
+		private boolean hasUsesSdk;
+		private boolean hasApplication;
+		private boolean inApplication;
+		private StringBuilder activities;
+		
+		private ManifestInfo(String key, long mtime, long length) {
+			this.key = key;
+			this.mtime = mtime;
+			this.length = length;
 		}
 		
-		NodeList nl = doc.getElementsByTagName("manifest");
+		/**
+		 * Return manifest value
+		 * @param request PROJECT_PACKAGE ... PROJECT_ACTIVITIES
+		 * @return null if no such value in manifest
+		 */
+		public String get(int request) {
+			if (request < 1 || request >= values.length) {
+				return null;
+			}
+			return values[request];
+		}
 		
-    	Element e = (Element) nl.item(0);
-    	if (e == null) {
-    		return null;
-    	}
-		switch(request) {
-		case PROJECT_PACKAGE:
-			return e.getAttribute("package");
-		case PROJECT_VERSIONCODE:
-			return e.getAttribute("android:versionCode");
-		case PROJECT_VERSIONNAME:
-			return e.getAttribute("android:versionName");
-		case PROJECT_TARGETSDK:
-	    	e = (Element) e.getElementsByTagName("uses-sdk").item(0);
-	    	if (e != null) {
-	    		return e.getAttribute("android:targetSdkVersion");
-	    	}
-	    	break;
-		case PROJECT_MINSDK:
-	    	e = (Element) e.getElementsByTagName("uses-sdk").item(0);
-	    	if (e != null) {
-	    		return e.getAttribute("android:minSdkVersion");
-	    	}
-	    	break;
-		case PROJECT_APPNAME:
-			e = (Element) e.getElementsByTagName("application").item(0);
-			if (e != null) {
-				return e.getAttribute("android:name");
-			}
-			break;
-		case PROJECT_ACTIVITIES:
-			e = (Element) e.getElementsByTagName("application").item(0);
-			if (e != null) {
-				String activities = "";
-				NodeList al = e.getElementsByTagName("activity");
-				for (int i = 0; i < al.getLength(); i++) {
-					String name = ((Element) al.item(i)).getAttribute("android:name");
-					if (name != null) {
-						if (i > 0) {
-							activities += " ";
+		/*
+		 * Streaming parse, only the attributes we need are kept.
+		 * Same rules as the old DOM lookup: first manifest, first uses-sdk,
+		 * first application and every activity inside of it.
+		 */
+		static ManifestInfo parse(File file, String key, long mtime, long length) {
+			final ManifestInfo info = new ManifestInfo(key, mtime, length);
+			try {
+				SAXParser parser = SAXParserFactory.newInstance().newSAXParser();
+				InputStream is = new BufferedInputStream(new FileInputStream(file), 8192);
+				try {
+					parser.parse(is, new DefaultHandler() {
+						public void startElement(String uri, String localName, String qName, Attributes attrs) {
+							info.startElement(qName, attrs);
 						}
-						activities += name;
-					}
+						public void endElement(String uri, String localName, String qName) {
+							if (qName.equals("application")) {
+								info.inApplication = false;
+							}
+						}
+					});
+				} finally {
+					is.close();
 				}
-				return activities;
+			} catch (ParserConfigurationException e) {
+				System.err.println("ERROR: " + e.getMessage());
+				return null;
+			} catch (SAXException e) {
+				System.err.println("ERROR: " + e.getMessage());
+				return null;
+			} catch (IOException e) {
+				System.err.println("ERROR: " + e.getMessage());
+				return null;
+			}
+			if (info.activities != null) {
+				info.values[PROJECT_ACTIVITIES] = info.activities.toString();
+				info.activities = null;
+			}
+			return info;
+		}
+		
+		private void startElement(String name, Attributes attrs) {
+			if (!hasManifest) {
+				if (name.equals("manifest")) {
+					hasManifest = true;
+					values[PROJECT_PACKAGE] = getAttribute(attrs, "package");
+					values[PROJECT_VERSIONCODE] = getAttribute(attrs, "android:versionCode");
+					values[PROJECT_VERSIONNAME] = getAttribute(attrs, "android:versionName");
+				}
+			} else if (name.equals("uses-sdk")) {
+				if (!hasUsesSdk) {
+					hasUsesSdk = true;
+					values[PROJECT_TARGETSDK] = getAttribute(attrs, "android:targetSdkVersion");
+					values[PROJECT_MINSDK] = getAttribute(attrs, "android:minSdkVersion");
+				}
+			} else if (name.equals("application")) {
+				if (!hasApplication) {
+					hasApplication = true;
+					inApplication = true;
+					values[PROJECT_APPNAME] = getAttribute(attrs, "android:name");
+					activities = new StringBuilder();
+				}
+			} else if (name.equals("activity") && inApplication) {
+				if (activities.length() > 0) {
+					activities.append(' ');
+				}
+				activities.append(getAttribute(attrs, "android:name"));
+			}
+		}
+		
+		private static String getAttribute(Attributes attrs, String name) {
+			String value = attrs.getValue(name);
+			return value == null ? "" : value;
+		}
+		
+		/*
+		 * The cache file keeps the values for the next aproject-helper run,
+		 * it is used only if the manifest has the same path, mtime and size.
+		 */
+		static ManifestInfo load(File cacheFile, String key, long mtime, long length) {
+			if (!cacheFile.exists()) {
+				return null;
+			}
+			Properties props = new Properties();
+			try {
+				InputStream is = new FileInputStream(cacheFile);
+				try {
+					props.load(is);
+				} finally {
+					is.close();
+				}
+			} catch (IOException e) {
+				return null;
+			}
+			if (!key.equals(props.getProperty(CACHE_KEY))
+					|| !String.valueOf(mtime).equals(props.getProperty(CACHE_MTIME))
+					|| !String.valueOf(length).equals(props.getProperty(CACHE_LENGTH))) {
+				return null;
+			}
+			ManifestInfo info = new ManifestInfo(key, mtime, length);
+			for (int i = 0; i < QUERY_KEYS.length; i++) {
+				info.values[i + 1] = props.getProperty(QUERY_KEYS[i]);
+			}
+			return info;
+		}
+		
+		void save(File cacheFile) {
+			Properties props = new Properties();
+			props.setProperty(CACHE_KEY, key);
+			props.setProperty(CACHE_MTIME, String.valueOf(mtime));
+			props.setProperty(CACHE_LENGTH, String.valueOf(length));
+			for (int i = 0; i < QUERY_KEYS.length; i++) {
+				if (values[i + 1] != null) {
+					props.setProperty(QUERY_KEYS[i], values[i + 1]);
+				}
+			}
+			File dir = cacheFile.getParentFile();
+			if (!dir.exists() && !dir.mkdirs()) {
+				return;
+			}
+			try {
+				OutputStream os = new FileOutputStream(cacheFile);
+				try {
+					props.store(os, "AndroidManifest.xml values, generated by aproject-helper");
+				} finally {
+					os.close();
+				}
+			} catch (IOException e) {
+				// Not fatal, the manifest is parsed again next time
+				cacheFile.delete();
 			}
-			break;
 		}
-
-		return null;
 	}
 }
@@ -1,6 +1,11 @@
 package com.pdaxrom.cmdline;
 
-import kellinwood.security.zipsigner.ZipSigner;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import com.android.sdklib.internal.build.SignedJarBuilder;
+import com.android.sdklib.internal.build.SigningKeyProvider;
 
 public class ApkSigner {
 	public static void main(String[] args) {
@@ -8,12 +13,31 @@ public class ApkSigner {
 			usage();
 			return;
 		}
+		File output = new File(args[1]);
+		FileOutputStream out = null;
+		boolean signed = false;
 		try {
-			ZipSigner zipSigner = new ZipSigner();
-			zipSigner.setKeymode(ZipSigner.KEY_TESTKEY);
-			zipSigner.signZip(args[0], args[1]);
+			// entries are copied without recompression, only digested
+			SigningKeyProvider key = SigningKeyProvider.fromTestKey();
+			out = new FileOutputStream(output);
+			SignedJarBuilder builder = new SignedJarBuilder(out,
+					key.getKey(), key.getCertificate());
+			builder.writeZip(new File(args[0]), null);
+			builder.close();
+			signed = true;
 		} catch (Exception e) {
 			System.err.println("Error during apk signing: " + e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+				// don't leave a truncated apk behind
+				if (!signed) {
+					output.delete();
+				}
+			}
 		}
 	}
 	
@@ -0,0 +1,285 @@
+package com.pdaxrom.pkgmanager;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.pdaxrom.utils.BSPatch;
+import com.pdaxrom.utils.Utils;
+
+/*
+ * Update of an installed package made by cctools-repo/make_delta.sh.
+ * The delta is a zip with a DELTA manifest, one tab separated line per
+ * changed file:
+ *   patch <mode> <old sha1> <new sha1> <path>   bsdiff patch in patch/<path>
+ *   add <mode> <new sha1> <path>                whole file in add/<path>
+ *   delete <path>
+ * Files not listed are the same in both versions.
+ * prepare() makes every new file next to the old one and checks its hash,
+ * the installed files are changed only by commit(), after all of them were
+ * made. Like a full install, the delta doesn't overwrite or delete files
+ * owned by other packages.
+ */
+class DeltaPackage {
+	private static final String TAG = "DeltaPackage";
+
+	private static final String MANIFEST = "DELTA";
+	private static final String NEW_SUFFIX = ".delta-new";
+
+	private final String rootDir;
+	private final PackageDatabase database;
+	private final PackageInfo packageInfo;
+	private final List<String[]> changes = new ArrayList<String[]>();
+	private final List<String> staged = new ArrayList<String>();
+
+	private DeltaPackage(String rootDir, PackageDatabase database, PackageInfo packageInfo) {
+		this.rootDir = rootDir;
+		this.database = database;
+		this.packageInfo = packageInfo;
+	}
+
+	/*
+	 * Makes the new files of the delta for the files installed in rootDir.
+	 * Returns null if the delta can't be applied, e.g. an installed file
+	 * was changed or a new file belongs to another package, nothing
+	 * installed is touched then.
+	 */
+	static DeltaPackage prepare(String deltaFile, String rootDir,
+			PackageDatabase database, PackageInfo packageInfo) {
+		DeltaPackage delta = new DeltaPackage(rootDir, database, packageInfo);
+		try {
+			ZipFile zip = new ZipFile(deltaFile);
+			try {
+				delta.readManifest(zip);
+				for (String[] change: delta.changes) {
+					delta.stage(zip, change);
+				}
+			} finally {
+				zip.close();
+			}
+		} catch (IOException e) {
+			System.err.println(TAG + " error: " + e);
+			delta.cancel();
+			return null;
+		}
+		return delta;
+	}
+
+	/*
+	 * Removes the new files made by prepare().
+	 */
+	void cancel() {
+		for (String path: staged) {
+			new File(rootDir, path + NEW_SUFFIX).delete();
+		}
+		staged.clear();
+	}
+
+	/*
+	 * Moves the new files over the installed ones, deletes the removed ones
+	 * which no other package took over and writes the new file list of the
+	 * package. If a file can't be moved, the remaining new files are
+	 * removed and the list still names the files moved so far, so they are
+	 * removed with the package.
+	 */
+	boolean commit(String listFile) {
+		Set<String> files = new LinkedHashSet<String>(readList(listFile));
+		boolean result = true;
+		for (String[] change: changes) {
+			String path = change[change.length - 1];
+			File file = new File(rootDir, path);
+			if (change[0].equals("delete")) {
+				if (packageInfo.getName().equals(database.getOwner(path))) {
+					file.delete();
+				}
+				files.remove(path);
+			} else {
+				File newFile = new File(rootDir, path + NEW_SUFFIX);
+				file.delete();
+				if (!newFile.renameTo(file)) {
+					System.err.println(TAG + " error: can't rename " + newFile + " to " + file);
+					result = false;
+					break;
+				}
+				Utils.chmod(file.getPath(), Integer.parseInt(change[1], 8));
+				files.add(path);
+			}
+		}
+		cancel();
+		try {
+			BufferedWriter writer = new BufferedWriter(new FileWriter(listFile));
+			try {
+				for (String path: files) {
+					writer.write(path);
+					writer.newLine();
+				}
+			} finally {
+				writer.close();
+			}
+		} catch (IOException e) {
+			System.err.println(TAG + " error: " + e);
+			return false;
+		}
+		return result;
+	}
+
+	private void readManifest(ZipFile zip) throws IOException {
+		ZipEntry entry = zip.getEntry(MANIFEST);
+		if (entry == null) {
+			throw new IOException("No " + MANIFEST + " in delta");
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(zip.getInputStream(entry)), 8192);
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] change = line.split("\t");
+				String path = change[change.length - 1];
+				if (path.startsWith("/") || ("/" + path + "/").contains("/../")) {
+					throw new IOException("Bad path in " + MANIFEST + ": " + path);
+				}
+				if ((change[0].equals("patch") && change.length == 5)
+						|| (change[0].equals("add") && change.length == 4)
+						|| (change[0].equals("delete") && change.length == 2)) {
+					changes.add(change);
+				} else {
+					throw new IOException("Bad " + MANIFEST + " line: " + line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void stage(ZipFile zip, String[] change) throws IOException {
+		String path = change[change.length - 1];
+		if (change[0].equals("delete")) {
+			return;
+		}
+		String owner = database.getConflict(path, packageInfo.getName(), packageInfo.getReplaces());
+		if (owner != null) {
+			throw new IOException("File " + path + " belongs to package " + owner);
+		}
+		File file = new File(rootDir, path);
+		File newFile = new File(rootDir, path + NEW_SUFFIX);
+		String newHash;
+		if (change[0].equals("patch")) {
+			if (!file.exists() || !change[2].equals(sha1(file))) {
+				throw new IOException("Installed file " + path + " differs from the delta base");
+			}
+			staged.add(path);
+			BSPatch.patch(file, newFile, readEntry(zip, "patch/" + path));
+			newHash = change[3];
+		} else {
+			File dir = newFile.getParentFile();
+			if (!dir.exists() && !dir.mkdirs()) {
+				throw new IOException("Can't create directory " + dir);
+			}
+			staged.add(path);
+			InputStream in = zip.getInputStream(getEntry(zip, "add/" + path));
+			try {
+				OutputStream out = new FileOutputStream(newFile);
+				try {
+					copy(in, out);
+				} finally {
+					out.close();
+				}
+			} finally {
+				in.close();
+			}
+			newHash = change[2];
+		}
+		if (!newHash.equals(sha1(newFile))) {
+			throw new IOException("Bad hash of updated file " + path);
+		}
+	}
+
+	private static ZipEntry getEntry(ZipFile zip, String name) throws IOException {
+		ZipEntry entry = zip.getEntry(name);
+		if (entry == null) {
+			throw new IOException("No " + name + " in delta");
+		}
+		return entry;
+	}
+
+	private static byte[] readEntry(ZipFile zip, String name) throws IOException {
+		InputStream in = zip.getInputStream(getEntry(zip, name));
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			copy(in, out);
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buf = new byte[65536];
+		int n;
+		while ((n = in.read(buf)) != -1) {
+			out.write(buf, 0, n);
+		}
+	}
+
+	private static List<String> readList(String listFile) {
+		List<String> list = new ArrayList<String>();
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(listFile)), 8192);
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.length() > 0) {
+						list.add(line);
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			System.err.println(TAG + " error: " + e);
+		}
+		return list;
+	}
+
+	static String sha1(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("No SHA-1: " + e);
+		}
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buf = new byte[65536];
+			int n;
+			while ((n = in.read(buf)) != -1) {
+				digest.update(buf, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b: digest.digest()) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+}
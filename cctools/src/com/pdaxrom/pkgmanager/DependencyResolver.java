@@ -0,0 +1,202 @@
+package com.pdaxrom.pkgmanager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Resolves package dependencies into an install plan.
+ * The available and installed packages are indexed by name once (the first
+ * package of a name wins, as in the repo lists), and the depends of each
+ * package are split into alternatives only the first time they are needed.
+ * Every package of the plan comes after its dependencies and has a level:
+ * packages of the same level don't depend on each other.
+ */
+class DependencyResolver {
+	private static final String TAG = "DependencyResolver";
+	private static boolean	_debug = false;
+
+	private final Map<String, PackageInfo> available = new HashMap<String, PackageInfo>();
+	private final Map<String, PackageInfo> installed = new HashMap<String, PackageInfo>();
+	private final Map<PackageInfo, String[][]> depends = new HashMap<PackageInfo, String[][]>();
+
+	public static void enableDebug(boolean debug) {
+		_debug = debug;
+	}
+
+	DependencyResolver(List<PackageInfo> availablePackages, List<PackageInfo> installedPackages) {
+		index(available, availablePackages);
+		index(installed, installedPackages);
+	}
+
+	private static void index(Map<String, PackageInfo> map, List<PackageInfo> list) {
+		if (list != null) {
+			for (PackageInfo info: list) {
+				if (!map.containsKey(info.getName())) {
+					map.put(info.getName(), info);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Install plan, packages in install order.
+	 */
+	static class Plan {
+		private final List<PackageInfo> packages;
+		private final Map<String, Integer> levels = new HashMap<String, Integer>();
+		private final Set<String> resolved = new HashSet<String>();
+		private final Set<String> visiting = new HashSet<String>();
+
+		Plan(List<PackageInfo> packages) {
+			this.packages = packages;
+			for (PackageInfo info: packages) {
+				levels.put(info.getName(), 0);
+				resolved.add(info.getName());
+			}
+		}
+
+		List<PackageInfo> getPackages() {
+			return packages;
+		}
+
+		/*
+		 * Returns the packages grouped by level, in install order.
+		 * Packages of one group can be downloaded and unpacked at once.
+		 */
+		List<List<PackageInfo>> getLevels() {
+			List<List<PackageInfo>> list = new ArrayList<List<PackageInfo>>();
+			for (PackageInfo info: packages) {
+				int level = levels.get(info.getName());
+				while (list.size() <= level) {
+					list.add(new ArrayList<PackageInfo>());
+				}
+				list.get(level).add(info);
+			}
+			return list;
+		}
+	}
+
+	/*
+	 * Adds the packages and their dependencies to the plan.
+	 * @param packages names separated by spaces, alternatives by '|'
+	 */
+	void resolve(String packages, Plan plan) {
+		for (String group: packages.trim().split("\\s+")) {
+			if (group.length() > 0) {
+				resolveAlternatives(group.split("\\|"), plan);
+			}
+		}
+	}
+
+	/*
+	 * Picks one of the alternatives: the one already in the plan, else the
+	 * first installed one, else the first one the repo has.
+	 * Returns the level of the picked package, or -1 if it is not
+	 * installed by the plan.
+	 */
+	private int resolveAlternatives(String[] alternatives, Plan plan) {
+		for (String name: alternatives) {
+			Integer level = plan.levels.get(name);
+			if (level != null) {
+				return level;
+			}
+		}
+		String pick = null;
+		for (String name: alternatives) {
+			if (installed.containsKey(name)) {
+				pick = name;
+				break;
+			}
+		}
+		if (pick == null) {
+			for (String name: alternatives) {
+				if (available.containsKey(name)) {
+					pick = name;
+					break;
+				}
+			}
+		}
+		if (pick == null) {
+			if (_debug) {
+				System.out.println(TAG + " no package for " + join(alternatives));
+			}
+			return -1;
+		}
+		return resolvePackage(pick, plan);
+	}
+
+	private int resolvePackage(String name, Plan plan) {
+		if (plan.resolved.contains(name)) {
+			Integer level = plan.levels.get(name);
+			return level == null ? -1 : level;
+		}
+		if (plan.visiting.contains(name)) {
+			// Dependency cycle, the rest of the cycle is installed first
+			System.err.println(TAG + " dependency cycle at package " + name);
+			return -1;
+		}
+		PackageInfo info = available.get(name);
+		if (info == null) {
+			plan.resolved.add(name);
+			return -1;
+		}
+
+		plan.visiting.add(name);
+		int level = 0;
+		for (String[] alternatives: getDepends(info)) {
+			if (_debug) {
+				System.out.println(TAG + " " + name + " depends on " + join(alternatives));
+			}
+			level = Math.max(level, resolveAlternatives(alternatives, plan) + 1);
+		}
+		plan.visiting.remove(name);
+		plan.resolved.add(name);
+
+		PackageInfo installedPackage = installed.get(name);
+		if (installedPackage != null && installedPackage.getVersion().equals(info.getVersion())) {
+			if (_debug) {
+				System.out.println(TAG + " the same version, skip package = " + name);
+			}
+			return -1;
+		}
+		plan.packages.add(info);
+		plan.levels.put(name, level);
+		if (_debug) {
+			System.out.println(TAG + " add package = " + name + " level " + level);
+		}
+		return level;
+	}
+
+	private String[][] getDepends(PackageInfo info) {
+		String[][] deps = depends.get(info);
+		if (deps == null) {
+			String str = info.getDepends();
+			if (str == null || str.trim().length() == 0) {
+				deps = new String[0][];
+			} else {
+				String[] groups = str.trim().split("\\s+");
+				deps = new String[groups.length][];
+				for (int i = 0; i < groups.length; i++) {
+					deps[i] = groups[i].split("\\|");
+				}
+			}
+			depends.put(info, deps);
+		}
+		return deps;
+	}
+
+	private static String join(String[] alternatives) {
+		StringBuilder sb = new StringBuilder();
+		for (String name: alternatives) {
+			if (sb.length() > 0) {
+				sb.append('|');
+			}
+			sb.append(name);
+		}
+		return sb.toString();
+	}
+}
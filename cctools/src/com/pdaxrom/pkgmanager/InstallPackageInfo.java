@@ -4,20 +4,22 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class InstallPackageInfo {
-	private static final String TAG = "InstallPackageInfo";
-	private static boolean	_debug = false;
-	
 	private String pkg = null;
 	private List<PackageInfo> list = null;
 	private int installSize = 0;
 	private int downloadSize = 0;
+	private DependencyResolver.Plan plan = null;
+	private DependencyResolver resolver = null;
+	private List<PackageInfo> availablePackages = null;
+	private List<PackageInfo> installedPackages = null;
 	
 	public static void enableDebug(boolean debug) {
-		_debug = debug;
+		DependencyResolver.enableDebug(debug);
 	}
 
 	InstallPackageInfo() {
 		list = new ArrayList<PackageInfo>();
+		plan = new DependencyResolver.Plan(list);
 	}
 	
 	InstallPackageInfo(PackagesLists packagesLists, String pkg) {
@@ -35,7 +37,7 @@ public class InstallPackageInfo {
 			} else {
 				this.pkg += " " + pkg;
 			}
-			getDepends(packagesLists, pkg, list);
+			getResolver(packagesLists).resolve(pkg, plan);
 			calculateSizes();
 		}
 	}
@@ -47,10 +49,25 @@ public class InstallPackageInfo {
 		} else {
 			this.list = list;
 		}
-		getDepends(packagesLists, this.pkg, this.list);
+		plan = new DependencyResolver.Plan(this.list);
+		getResolver(packagesLists).resolve(this.pkg, plan);
 		calculateSizes();
 	}
 	
+	/*
+	 * The resolver indexes the lists, keep it while they are the same.
+	 */
+	private DependencyResolver getResolver(PackagesLists packagesLists) {
+		if (resolver == null
+				|| availablePackages != packagesLists.getAvailablePackages()
+				|| installedPackages != packagesLists.getInstalledPackages()) {
+			availablePackages = packagesLists.getAvailablePackages();
+			installedPackages = packagesLists.getInstalledPackages();
+			resolver = new DependencyResolver(availablePackages, installedPackages);
+		}
+		return resolver;
+	}
+	
 	public String getName() {
 		return pkg;
 	}
@@ -60,7 +77,15 @@ public class InstallPackageInfo {
 		downloadSize = 0;
 		for (PackageInfo pkg: list) {
 			installSize += pkg.getSize();
-			downloadSize += pkg.getFileSize();
+			PackageInfo.Delta delta = null;
+			if (installedPackages != null) {
+				PackageInfo installed = RepoUtils.getPackageByName(installedPackages, pkg.getName());
+				if (installed != null) {
+					delta = pkg.getDelta(installed.getVersion());
+				}
+			}
+			// Updates with a delta download only the delta
+			downloadSize += (delta != null) ? delta.getFileSize() : pkg.getFileSize();
 		}
 	}
 	
@@ -76,6 +101,14 @@ public class InstallPackageInfo {
 		return list;
 	}
 	
+	/**
+	 * Packages grouped by install order, packages of one group don't
+	 * depend on each other
+	 */
+	public List<List<PackageInfo>> getPackagesLevels() {
+		return plan.getLevels();
+	}
+	
 	public String getPackagesStrings() {
 		String packages = "";
 		boolean isFirstAdded = false;
@@ -89,58 +122,4 @@ public class InstallPackageInfo {
 		}
 		return packages;
 	}
-	
-    private void getDepends(PackagesLists packagesLists, String packageWithVariants ,List<PackageInfo> list) {
-    	String[] packageVariants = packageWithVariants.replace('|', ' ').split("\\s+");
-    	if (_debug) {
-    		System.out.println(TAG + " packageVariants = " + packageWithVariants.replace('|', ' '));
-    	}
-    	String firstPackage = packageVariants[0];
-    	for (String packageVariant: packageVariants) {
-    		if (_debug) {
-    			System.out.println(TAG + " packageVariant = " + packageVariant);
-    		}
-    		if (RepoUtils.isContainsPackage(list, packageVariant)) {
-    			return;
-    		}
-    		if (RepoUtils.isContainsPackage(packagesLists.getInstalledPackages(), packageVariant)) {
-    			firstPackage = packageVariant;
-    			break;
-    		}
-    	}
-    	
-    	for (PackageInfo info: packagesLists.getAvailablePackages()) {
-    		if (firstPackage.equals(info.getName())) {
-    			String deps = info.getDepends();
-    			if (_debug) {
-    				System.out.println(TAG + " package deps = " + deps);
-    			}
-    			if (deps != null && !deps.equals("")) {
-    				deps = deps.replaceAll("\\s+", " ");
-    				for (String dep: deps.split("\\s+")) {
-    					if (_debug) {
-    						System.out.println(TAG + " check package = " + dep);
-    					}
-    					getDepends(packagesLists, dep, list);
-    				}
-    			}
-    			PackageInfo installedPackage = RepoUtils.getPackageByName(
-    					packagesLists.getInstalledPackages(), firstPackage);
-    			if (installedPackage != null) {
-    				if (installedPackage.getVersion().equals(info.getVersion())) {
-    					if (_debug) {
-    						System.out.println(TAG + " the same version, skip package = " + firstPackage);
-    					}
-    					break;
-    				}
-    			}
-    			list.add(info);
-    			if (_debug) {
-    				System.out.println(TAG + " add package = " + firstPackage);
-    			}
-    			break;
-    		}
-    	}
-    	return;
-    }
 }
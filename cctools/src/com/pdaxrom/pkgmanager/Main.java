@@ -3,7 +3,6 @@ package com.pdaxrom.pkgmanager;
 import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -13,10 +12,16 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import com.pdaxrom.utils.ShellEnvironment;
 import com.pdaxrom.utils.Utils;
+import com.pdaxrom.utils.ZipExtractor;
 
 class Main {
     static final int sdk2ndk_arm[] = {
@@ -56,8 +61,10 @@ class Main {
     private static String sdCardDir;
     private static String filesDir;
     private static final String PKGS_LISTS_DIR	= "/installed/";
+    private static final int DOWNLOAD_THREADS	= 3;
 
     private static PackagesLists packagesLists = new PackagesLists();
+    private static PackageDatabase packageDatabase;
 
     public static void main(String[] args) {
     	setupVersion();
@@ -69,7 +76,8 @@ class Main {
     	sdCardDir = sdCardDir + "/CCTools";
     	filesDir = sdCardDir + "/backup";
     	
-    	packagesLists.setInstalledPackages(RepoUtils.getRepoFromDir(toolchainDir + "/" + PKGS_LISTS_DIR));
+    	packageDatabase = PackageDatabase.open(toolchainDir + PKGS_LISTS_DIR);
+    	packagesLists.setInstalledPackages(packageDatabase.getPackages());
 		packagesLists.setAvailablePackages(RepoUtils.getRepoFromUrl(getReposList()));
 		
 		List<PackageInfo> packagesForUpdate = null;
@@ -259,6 +267,7 @@ class Main {
         }
 
         RepoUtils.setVersion(cpuAbi, ndkArch, ndkVersion);
+        RepoUtils.setCacheDir(toolchainDir + "/cctools/var/cache/pkgmanager");
     }
 
     private static String getProperties(String prop) {
@@ -280,7 +289,7 @@ class Main {
         return retval;
     }
     
-	private static boolean downloadAndUnpack(String file, String from, String to, String log) {
+	private static boolean download(String file, String from, boolean verbose) {
 		File temp = new File(filesDir + "/" + file);
 		if (!temp.exists()) {
 			try {
@@ -321,7 +330,9 @@ class Main {
 						}
 						out.write(buf, 0, numread);
 						totalread += numread;
-						System.out.print("Received " + totalread + " from " + file_size + "\r");
+						if (verbose) {
+							System.out.print("Received " + totalread + " from " + file_size + "\r");
+						}
 					} while (true);
 					stream.close();
 					out.close();
@@ -334,99 +345,159 @@ class Main {
 				System.err.println("Error downloading file " + file);
 				return false;
 			}
-		} else {
+		} else if (verbose) {
 			System.out.println("Cached file " + temp.getAbsolutePath());
 		}
+		return true;
+	}
+
+	/*
+	 * Downloads the packages of one install level at once.
+	 * Failed downloads are retried and reported by downloadAndUnpack().
+	 */
+	private static void prefetch(List<PackageInfo> packages) {
+		if (packages.size() < 2) {
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(packages.size(), DOWNLOAD_THREADS));
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (final PackageInfo packageInfo: packages) {
+			PackageInfo oldPackage = packageDatabase.getPackage(packageInfo.getName());
+			if (oldPackage != null && oldPackage.getVersion().equals(packageInfo.getVersion())) {
+				continue;
+			}
+			PackageInfo.Delta delta = (oldPackage == null) ? null : packageInfo.getDelta(oldPackage.getVersion());
+			final String file = (delta == null) ? packageInfo.getFile() : delta.getFile();
+			results.add(executor.submit(new Callable<Boolean>() {
+				public Boolean call() {
+					return download(file, packageInfo.getUrl(), false);
+				}
+			}));
+		}
+		executor.shutdown();
+		for (Future<Boolean> result: results) {
+			try {
+				result.get();
+			} catch (Exception e) {
+				System.err.println("Error downloading files " + e);
+			}
+		}
+	}
 
+	private static boolean downloadAndUnpack(final PackageInfo packageInfo, String to, String log) {
+		String file = packageInfo.getFile();
+		if (!download(file, packageInfo.getUrl(), true)) {
+			return false;
+		}
+
+		File temp = new File(filesDir + "/" + file);
 		String tempPath = temp.getAbsolutePath();
-		//System.out.println("Unpacking file " + tempPath + " to " + to);
 		String logFile = log;
-		try {
-			int need_mem = Utils.unzippedSize(tempPath);
-			if (need_mem < 0) {
-				throw new RuntimeException("bad archive");
-			}
-			
-			File partition = new File(to);
-			if (sdkVersion >= 9) {
-				if (partition.getUsableSpace() < need_mem) {
-					System.err.println("Need " + 
-						Utils.humanReadableByteCount(need_mem, false) + 
-						" but " + 
-						Utils.humanReadableByteCount(partition.getUsableSpace(), false) + 
-						" available");
-					return false;
+		if (logFile == null) {
+			logFile = toolchainDir + PKGS_LISTS_DIR + file + ".list";
+		}
+		//System.out.println("Unpacking file " + tempPath + " to " + to);
+		// Conflicts and free space are checked while unpacking, in one pass
+		ZipExtractor extractor = new ZipExtractor(to, logFile);
+		extractor.setListener(new ZipExtractor.Listener() {
+			public boolean acceptEntry(String name) throws IOException {
+				String owner = packageDatabase.getConflict(name,
+						packageInfo.getName(), packageInfo.getReplaces());
+				if (owner != null) {
+					throw new ZipExtractor.ConflictException(name, owner);
 				}
+				return true;
 			}
-			if (logFile == null) {
-				logFile = toolchainDir + PKGS_LISTS_DIR + file + ".list";
+
+			public long getFreeSpace(String dir) {
+				return sdkVersion >= 9 ? new File(dir).getUsableSpace() : -1;
 			}
-			if (Utils.unzip(tempPath, to, logFile) != 0) {
-				if ((new File(logFile)).exists()) {
-					(new File(logFile)).delete();
-				}
-				throw new RuntimeException("bad archive");
+
+			public void onProgress(long bytesRead, long bytesWritten) {
 			}
-		} catch (Exception e) {
+		});
+		try {
+			extractor.extract(tempPath);
+		} catch (ZipExtractor.ConflictException e) {
+			System.err.println("Package " + packageInfo.getName() + " conflicts with installed files:");
+			System.err.println("  " + e.getName() + " (" + e.getOwner() + ")");
+			return false;
+		} catch (ZipExtractor.NoSpaceException e) {
+			System.err.println("Need " + 
+				Utils.humanReadableByteCount(e.getNeeded(), false) + 
+				" but " + 
+				Utils.humanReadableByteCount(e.getAvailable(), false) + 
+				" available");
+			return false;
+		} catch (IOException e) {
 			temp.delete();
 			System.out.println("Corrupted archive, restart application and try install again");
 			return false;
 		}
+		// Installed files are known from the list, the archive is not needed anymore
+		temp.delete();
 		return true;
 	}
 
     private static boolean installPackage(InstallPackageInfo info) {
     	List<String> postinstList = new ArrayList<String>();
-    	for (PackageInfo packageInfo: info.getPackagesList()) {
-    		if ((new File(toolchainDir + "/" + PKGS_LISTS_DIR + "/" 
-    				+ packageInfo.getName() + ".pkgdesc")).exists()) {
-    			PackageInfo oldPackage = RepoUtils.getPackageByName(packagesLists.getInstalledPackages(),
-    																packageInfo.getName());
-    			if (packageInfo.getVersion().equals(oldPackage.getVersion())) {
-    				System.out.println("Package " + packageInfo.getName() + " already installed.");
-    				continue;
-    			} else {
-    				uninstallPackage(packageInfo.getName());
-    				if ((new File(filesDir + "/" + oldPackage.getFile())).exists()) {
-    					(new File(filesDir + "/" + oldPackage.getFile())).delete();
+    	for (List<PackageInfo> level: info.getPackagesLevels()) {
+    		prefetch(level);
+    		for (PackageInfo packageInfo: level) {
+    			boolean updated = false;
+    			if (packageDatabase.isInstalled(packageInfo.getName())) {
+    				PackageInfo oldPackage = packageDatabase.getPackage(packageInfo.getName());
+    				if (packageInfo.getVersion().equals(oldPackage.getVersion())) {
+    					System.out.println("Package " + packageInfo.getName() + " already installed.");
+    					continue;
+    				} else {
+    					updated = installDelta(packageInfo, oldPackage);
+    					if (!updated) {
+    						uninstallPackage(packageInfo.getName());
+    					}
+    					if ((new File(filesDir + "/" + oldPackage.getFile())).exists()) {
+    						(new File(filesDir + "/" + oldPackage.getFile())).delete();
+    					}
     				}
     			}
-    		}
     		
-    		if (RepoUtils.isContainsPackage(packagesLists.getInstalledPackages(), packageInfo.getReplaces())) {
-    			System.out.println("Replace package " + packageInfo.getReplaces());
-    			PackageInfo oldPackage = RepoUtils.getPackageByName(packagesLists.getInstalledPackages(),
-						packageInfo.getReplaces());
-				uninstallPackage(oldPackage.getName());
-				if ((new File(filesDir + "/" + oldPackage.getFile())).exists()) {
-					(new File(filesDir + "/" + oldPackage.getFile())).delete();
-				}
-    		}
+    			if (packageDatabase.isInstalled(packageInfo.getReplaces())) {
+    				System.out.println("Replace package " + packageInfo.getReplaces());
+    				PackageInfo oldPackage = packageDatabase.getPackage(packageInfo.getReplaces());
+					uninstallPackage(oldPackage.getName());
+					if ((new File(filesDir + "/" + oldPackage.getFile())).exists()) {
+						(new File(filesDir + "/" + oldPackage.getFile())).delete();
+					}
+    			}
     		
-    		System.out.println("Installing package " + packageInfo.getName());
+    			if (!updated) {
+    				System.out.println("Installing package " + packageInfo.getName());
 
-    		if (!downloadAndUnpack(packageInfo.getFile(), packageInfo.getUrl(), toolchainDir, 
-					toolchainDir + "/" + PKGS_LISTS_DIR + "/" + packageInfo.getName() + ".list")) {
-				return false;
-			}
-			// Move package info files from root directory
-			String[] infoFiles = {"pkgdesc", "postinst", "prerm"};
-			for (String infoFile: infoFiles) {
-				if ((new File(toolchainDir + "/" + infoFile)).exists()) {
-					String infoFilePath = toolchainDir + "/" + PKGS_LISTS_DIR  + "/" 
-							+ packageInfo.getName() + "." + infoFile;
-					try {
-						Utils.copyDirectory(new File(toolchainDir + "/" + infoFile),
-											new File(infoFilePath));
-						if (infoFile.equals("postinst")) {
-							postinstList.add(packageInfo.getName());
+    				if (!downloadAndUnpack(packageInfo, toolchainDir, 
+    						toolchainDir + "/" + PKGS_LISTS_DIR + "/" + packageInfo.getName() + ".list")) {
+    					return false;
+    				}
+    			}
+				// Move package info files from root directory
+				String[] infoFiles = {"pkgdesc", "postinst", "prerm"};
+				for (String infoFile: infoFiles) {
+					if ((new File(toolchainDir + "/" + infoFile)).exists()) {
+						String infoFilePath = toolchainDir + "/" + PKGS_LISTS_DIR  + "/" 
+								+ packageInfo.getName() + "." + infoFile;
+						try {
+							Utils.copyDirectory(new File(toolchainDir + "/" + infoFile),
+												new File(infoFilePath));
+							if (infoFile.equals("postinst")) {
+								postinstList.add(packageInfo.getName());
+							}
+						} catch (IOException e) {
+							System.err.println("Can't copy " + infoFile + ": " + e);
 						}
-					} catch (IOException e) {
-						System.err.println("Can't copy " + infoFile + ": " + e);
-					}
-					(new File(toolchainDir + "/" + infoFile)).delete();
-				}				
-			}
+						(new File(toolchainDir + "/" + infoFile)).delete();
+					}				
+				}
+				packageDatabase.addPackage(packageInfo);
+    		}
     	}
     
     	// Move Examples to sd card
@@ -452,38 +523,62 @@ class Main {
     	return true;
     }
 
+	/*
+	 * Updates the installed package with the delta from its version, if the
+	 * repo has one. Returns false if the full package has to be installed.
+	 */
+	private static boolean installDelta(PackageInfo packageInfo, PackageInfo oldPackage) {
+		PackageInfo.Delta delta = packageInfo.getDelta(oldPackage.getVersion());
+		if (delta == null) {
+			return false;
+		}
+		System.out.println("Updating package " + packageInfo.getName() + " from " + oldPackage.getVersion());
+		if (!download(delta.getFile(), packageInfo.getUrl(), true)) {
+			return false;
+		}
+		File deltaFile = new File(filesDir + "/" + delta.getFile());
+		DeltaPackage deltaPackage = DeltaPackage.prepare(deltaFile.getAbsolutePath(), toolchainDir,
+				packageDatabase, packageInfo);
+		deltaFile.delete();
+		if (deltaPackage == null) {
+			System.out.println("Can't apply delta, installing full package");
+			return false;
+		}
+		runPrerm(packageInfo.getName());
+		return deltaPackage.commit(toolchainDir + "/" + PKGS_LISTS_DIR + "/" + packageInfo.getName() + ".list");
+	}
+
+	private static void runPrerm(String name) {
+		String prermFile = toolchainDir + "/" + PKGS_LISTS_DIR + "/" + name + ".prerm";
+		if ((new File(prermFile)).exists()) {
+			System.out.println("Execute prerm script " + prermFile);
+			Utils.chmod(prermFile, 0x1ed);
+			system(prermFile);
+			(new File(prermFile)).delete();
+		}
+	}
+
 	private static boolean uninstallPackage(String name) {
 		if (name != null) {
 			System.out.println("Uninstalling package " + name);
-			String prermFile = toolchainDir + "/" + PKGS_LISTS_DIR + "/" + name + ".prerm";
-			if ((new File(prermFile)).exists()) {
-				System.out.println("Execute prerm script " + prermFile);
-				Utils.chmod(prermFile, 0x1ed);
-				system(prermFile);
-				(new File(prermFile)).delete();
-			}
+			runPrerm(name);
 			String descFile = toolchainDir + "/" + PKGS_LISTS_DIR + "/" + name + ".pkgdesc";
 			if ((new File(descFile)).exists()) {
 				(new File(descFile)).delete();
 			}
 			String logFile = toolchainDir + "/" + PKGS_LISTS_DIR + "/" + name + ".list";
-			if (!(new File(logFile)).exists()) {
+			if (!packageDatabase.isInstalled(name)) {
+				(new File(logFile)).delete();
 				return false;
 			}
-			try {
-				FileInputStream fin = new FileInputStream(logFile);
-				DataInputStream in = new DataInputStream(fin);
-				BufferedReader reader = new BufferedReader(new InputStreamReader(in), 8192);
-				String line = "";
-				while((line = reader.readLine()) != null) {
-					(new File(toolchainDir + "/" + line)).delete();
+			for (String file: packageDatabase.getFiles(name)) {
+				// Keep files taken over by another package
+				if (name.equals(packageDatabase.getOwner(file))) {
+					(new File(toolchainDir + "/" + file)).delete();
 				}
-				in.close();
-				(new File(logFile)).delete();
-			} catch (Exception e) {
-				System.err.println("Error during remove files " + e);
 			}
-			
+			(new File(logFile)).delete();
+			packageDatabase.removePackage(name);
 		}
 		return true;
 	}
@@ -557,7 +652,6 @@ class Main {
 	}
 	
 	private static String getEnv(String baseDir, String variable) {
-		String ret = null;
 		String[] envp = {
 //				"TMPDIR=" + Environment.getExternalStorageDirectory().getPath(),
 				"PATH=" + baseDir + "/bin:" + baseDir + "/sbin:/sbin:/vendor/bin:/system/sbin:/system/bin:/system/xbin",
@@ -575,28 +669,7 @@ class Main {
 //				"SDDIR=" + sdCardDir,
 //				"EXTERNAL_STORAGE=" + Environment.getExternalStorageDirectory().getPath(),
 				};
-		String[] argv = { "/system/bin/sh", "-c", "set"};
-		int[] pId = new int[1];
-		FileDescriptor fd = Utils.createSubProcess(baseDir, argv[0], argv, envp, pId);
-		FileInputStream fis = new FileInputStream(fd);
-		DataInputStream in = new DataInputStream(fis);
-		BufferedReader reader = new BufferedReader(new InputStreamReader(in), 8192);
-		String line = "";
-		try {
-			while((line = reader.readLine()) != null) {
-				if (line.startsWith(variable + "=")) {
-					if (line.indexOf("=") != -1) {
-						ret = line.substring(line.indexOf("=") + 1);
-						break;
-					}
-				}
-			}
-			in.close();
-			Utils.waitFor(pId[0]);
-		} catch (Exception e) {
-			System.err.println("exception " + e);
-		}
-		return ret;
+		return ShellEnvironment.get(baseDir, envp).get(variable);
 	}
 
 }
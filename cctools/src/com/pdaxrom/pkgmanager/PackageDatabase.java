@@ -0,0 +1,288 @@
+package com.pdaxrom.pkgmanager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Installed packages database.
+ * Keeps the metadata of the installed packages and the list of files of
+ * each one in the single file installed/packages.db, and indexes which
+ * package owns which file. The <pkg>.pkgdesc and <pkg>.list files are still
+ * written by install, the database is rebuilt from them if it is missing or
+ * doesn't match the .pkgdesc files in the directory (e.g. after an install
+ * was interrupted).
+ * Every change is written to a temporary file and renamed over the old
+ * database, so it is never left half written.
+ */
+class PackageDatabase {
+	private static final String TAG = "PackageDatabase";
+
+	static final String DB_FILE = "packages.db";
+
+	private static final int MAGIC = 0x50444231; // "PDB1"
+	private static final int VERSION = 2;
+
+	/* Package info files unpacked to the root directory and moved by install */
+	private static final String[] INFO_FILES = { "pkgdesc", "postinst", "prerm" };
+
+	private final String path;
+	private final Map<String, PackageInfo> packages = new TreeMap<String, PackageInfo>();
+	private final Map<String, List<String>> files = new HashMap<String, List<String>>();
+	private final Map<String, String> owners = new HashMap<String, String>();
+
+	private PackageDatabase(String path) {
+		this.path = path;
+	}
+
+	/*
+	 * Opens the database in the installed packages directory.
+	 */
+	static PackageDatabase open(String path) {
+		PackageDatabase db = new PackageDatabase(path);
+		long stamp = db.getStamp();
+		if (!db.load(stamp)) {
+			db.rebuild();
+			db.commit();
+		}
+		return db;
+	}
+
+	synchronized List<PackageInfo> getPackages() {
+		return new ArrayList<PackageInfo>(packages.values());
+	}
+
+	synchronized PackageInfo getPackage(String name) {
+		if (name == null) {
+			return null;
+		}
+		return packages.get(name);
+	}
+
+	synchronized boolean isInstalled(String name) {
+		return name != null && packages.containsKey(name);
+	}
+
+	/*
+	 * Returns the files of the package, relative to the root directory.
+	 */
+	synchronized List<String> getFiles(String name) {
+		List<String> list = files.get(name);
+		if (list == null) {
+			return new ArrayList<String>();
+		}
+		return new ArrayList<String>(list);
+	}
+
+	/*
+	 * Returns the package owning the file, or null.
+	 */
+	synchronized String getOwner(String file) {
+		return owners.get(file);
+	}
+
+	/*
+	 * Returns the package the file of the package being installed would
+	 * overwrite, or null.
+	 */
+	synchronized String getConflict(String file, String name, String replaces) {
+		String owner = owners.get(file);
+		if (owner != null && !owner.equals(name) && !owner.equals(replaces)) {
+			return owner;
+		}
+		return null;
+	}
+
+	/*
+	 * Records an installed package with the files from its .list file.
+	 */
+	synchronized boolean addPackage(PackageInfo info) {
+		removeEntries(info.getName());
+		packages.put(info.getName(), info);
+		addFiles(info.getName(), readList(info.getName()));
+		return commit();
+	}
+
+	synchronized boolean removePackage(String name) {
+		removeEntries(name);
+		return commit();
+	}
+
+	private void removeEntries(String name) {
+		packages.remove(name);
+		List<String> list = files.remove(name);
+		if (list != null) {
+			for (String file: list) {
+				if (name.equals(owners.get(file))) {
+					owners.remove(file);
+				}
+			}
+		}
+	}
+
+	private void addFiles(String name, List<String> list) {
+		List<String> owned = new ArrayList<String>(list.size());
+		for (String file: list) {
+			if (isInfoFile(file)) {
+				continue;
+			}
+			owned.add(file);
+			owners.put(file, name);
+		}
+		files.put(name, owned);
+	}
+
+	private static boolean isInfoFile(String file) {
+		for (String infoFile: INFO_FILES) {
+			if (infoFile.equals(file)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private List<String> readList(String name) {
+		List<String> list = new ArrayList<String>();
+		File listFile = new File(path, name + ".list");
+		if (listFile.exists()) {
+			try {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(listFile)), 8192);
+				try {
+					String line;
+					while ((line = reader.readLine()) != null) {
+						if (line.length() > 0) {
+							list.add(line);
+						}
+					}
+				} finally {
+					reader.close();
+				}
+			} catch (IOException e) {
+				System.err.println(TAG + " error: " + e);
+			}
+		}
+		return list;
+	}
+
+	/*
+	 * Slow path, parses all .pkgdesc files and reads all .list files.
+	 */
+	private void rebuild() {
+		System.err.println(TAG + " rebuilding " + path + "/" + DB_FILE);
+		packages.clear();
+		files.clear();
+		owners.clear();
+		List<PackageInfo> list = RepoUtils.getRepoFromDir(path);
+		if (list != null) {
+			for (PackageInfo info: list) {
+				packages.put(info.getName(), info);
+				addFiles(info.getName(), readList(info.getName()));
+			}
+		}
+	}
+
+	/*
+	 * The stamp changes whenever a .pkgdesc file is added, removed or
+	 * changed behind the database.
+	 */
+	private long getStamp() {
+		File[] descs = new File(path).listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.toLowerCase().endsWith(".pkgdesc");
+			}
+		});
+		long stamp = 0;
+		if (descs != null) {
+			for (File desc: descs) {
+				// Order of the files doesn't matter
+				stamp += (desc.getName().hashCode() * 31L + desc.lastModified()) * 31L + desc.length();
+			}
+		}
+		return stamp;
+	}
+
+	private boolean load(long stamp) {
+		File dbFile = new File(path, DB_FILE);
+		if (!dbFile.exists()) {
+			return false;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(dbFile), 65536));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != stamp) {
+					return false;
+				}
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					PackageInfo info = PackageInfo.readFrom(in);
+					int fileCount = in.readInt();
+					List<String> list = new ArrayList<String>(fileCount);
+					for (int j = 0; j < fileCount; j++) {
+						list.add(in.readUTF());
+					}
+					packages.put(info.getName(), info);
+					addFiles(info.getName(), list);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.err.println(TAG + " error: " + e);
+			packages.clear();
+			files.clear();
+			owners.clear();
+			return false;
+		}
+		return true;
+	}
+
+	private boolean commit() {
+		File dbFile = new File(path, DB_FILE);
+		File tmpFile = new File(path, DB_FILE + ".tmp");
+		try {
+			FileOutputStream fos = new FileOutputStream(tmpFile);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 65536));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(getStamp());
+				out.writeInt(packages.size());
+				for (PackageInfo info: packages.values()) {
+					info.writeTo(out);
+					List<String> list = files.get(info.getName());
+					out.writeInt(list.size());
+					for (String file: list) {
+						out.writeUTF(file);
+					}
+				}
+				out.flush();
+				fos.getFD().sync();
+			} finally {
+				out.close();
+			}
+			if (!tmpFile.renameTo(dbFile)) {
+				throw new IOException("Can't rename " + tmpFile + " to " + dbFile);
+			}
+		} catch (IOException e) {
+			System.err.println(TAG + " error: " + e);
+			tmpFile.delete();
+			// Rebuilt from the .pkgdesc and .list files next time
+			dbFile.delete();
+			return false;
+		}
+		return true;
+	}
+}
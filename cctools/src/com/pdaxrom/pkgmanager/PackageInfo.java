@@ -1,5 +1,11 @@
 package com.pdaxrom.pkgmanager;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 public class PackageInfo {
 	private String	name;
 	private String	file;
@@ -11,6 +17,34 @@ public class PackageInfo {
 	private String	arch;
 	private String	replaces;
 	private String	url;
+	private List<Delta> deltas = new ArrayList<Delta>();
+	
+	/*
+	 * Update from an older version, see DeltaPackage
+	 */
+	static class Delta {
+		private String	from;
+		private String	file;
+		private int		filesize;
+		
+		Delta(String from, String file, int filesize) {
+			this.from = from;
+			this.file = file;
+			this.filesize = filesize;
+		}
+		
+		String getFrom() {
+			return from;
+		}
+		
+		String getFile() {
+			return file;
+		}
+		
+		int getFileSize() {
+			return filesize;
+		}
+	}
 	
 	PackageInfo(String name, String file, int size, int filesize,
 				String version, String description, String depends,
@@ -66,4 +100,66 @@ public class PackageInfo {
 	String getUrl() {
 		return url;
 	}
+	
+	void addDelta(String from, String file, int filesize) {
+		deltas.add(new Delta(from, file, filesize));
+	}
+	
+	/*
+	 * Returns the delta from the version, or null.
+	 */
+	Delta getDelta(String from) {
+		for (Delta delta: deltas) {
+			if (delta.getFrom().equals(from)) {
+				return delta;
+			}
+		}
+		return null;
+	}
+	
+	/*
+	 * Binary form used by the installed packages database and the
+	 * repository cache.
+	 */
+	void writeTo(DataOutputStream out) throws IOException {
+		writeString(out, name);
+		writeString(out, file);
+		out.writeInt(size);
+		out.writeInt(filesize);
+		writeString(out, version);
+		writeString(out, description);
+		writeString(out, depends);
+		writeString(out, arch);
+		writeString(out, replaces);
+		writeString(out, url);
+		out.writeInt(deltas.size());
+		for (Delta delta: deltas) {
+			writeString(out, delta.getFrom());
+			writeString(out, delta.getFile());
+			out.writeInt(delta.getFileSize());
+		}
+	}
+	
+	static PackageInfo readFrom(DataInputStream in) throws IOException {
+		PackageInfo info = new PackageInfo(
+				in.readUTF(),
+				in.readUTF(),
+				in.readInt(),
+				in.readInt(),
+				in.readUTF(),
+				in.readUTF(),
+				in.readUTF(),
+				in.readUTF(),
+				in.readUTF(),
+				in.readUTF());
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			info.addDelta(in.readUTF(), in.readUTF(), in.readInt());
+		}
+		return info;
+	}
+	
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		out.writeUTF(str == null ? "" : str);
+	}
 }
@@ -3,7 +3,6 @@ package com.pdaxrom.pkgmanager;
 import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -22,7 +21,10 @@ import com.actionbarsherlock.view.Menu;
 import com.actionbarsherlock.view.MenuItem;
 import com.actionbarsherlock.view.Window;
 import com.pdaxrom.cctools.R;
+import com.pdaxrom.utils.CommandLauncher;
+import com.pdaxrom.utils.ShellEnvironment;
 import com.pdaxrom.utils.Utils;
+import com.pdaxrom.utils.ZipExtractor;
 
 import android.app.AlertDialog;
 import android.app.ProgressDialog;
@@ -64,6 +66,7 @@ public class PkgManagerActivity extends SherlockListActivity {
 	public static final String CMD_UPDATE		= "update";
 	
 	private PackagesLists packagesLists = new PackagesLists();
+	private PackageDatabase packageDatabase;
 	
 	private static boolean fCheckedUpdatesAtStartup = false;
 	
@@ -167,10 +170,7 @@ public class PkgManagerActivity extends SherlockListActivity {
                 // getting values from selected ListItem
                 final String name = ((TextView) view.findViewById(R.id.pkg_name)).getText().toString();
 
-            	String toolchainDir = getCacheDir().getParentFile().getAbsolutePath() + "/root";
-            	String logFile = toolchainDir + PKGS_LISTS_DIR + name + ".list";
-            	
-            	if ((new File(logFile)).exists()) {
+            	if (packageDatabase != null && packageDatabase.isInstalled(name)) {
                 	Builder dialog = new AlertDialog.Builder(context)
                     .setIcon(android.R.drawable.ic_dialog_alert)
                     .setTitle(getString(R.string.pkg_selected) + name)
@@ -317,6 +317,7 @@ public class PkgManagerActivity extends SherlockListActivity {
         }
         
         RepoUtils.setVersion(Build.CPU_ABI, ndkArch, ndkVersion);
+        RepoUtils.setCacheDir(toolchainDir + "/cctools/var/cache/pkgmanager");
     }
     
     void showPackages(List<PackageInfo> repo) {
@@ -335,11 +336,7 @@ public class PkgManagerActivity extends SherlockListActivity {
             map.put(RepoUtils.KEY_SIZE,		String.valueOf(info.getSize()));
             map.put(RepoUtils.KEY_FILE,		info.getFile());
 
-            String toolchainDir = getCacheDir().getParentFile().getAbsolutePath() + "/root";
-        	String logFile = toolchainDir + "/" + PKGS_LISTS_DIR + "/"
-        			+ info.getName() + ".list";
-        	
-        	if ((new File(logFile)).exists()) {
+        	if (packageDatabase != null && packageDatabase.isInstalled(info.getName())) {
         		map.put(RepoUtils.KEY_STATUS, getString(R.string.pkg_installed));
         	}else {
         		map.put(RepoUtils.KEY_STATUS, getString(R.string.pkg_notinstalled));        		
@@ -388,7 +385,8 @@ public class PkgManagerActivity extends SherlockListActivity {
         }
 
 		protected List<PackageInfo> doInBackground(List<String>... params) {
-			packagesLists.setInstalledPackages(RepoUtils.getRepoFromDir(toolchainDir + "/" + PKGS_LISTS_DIR));
+			packageDatabase = PackageDatabase.open(toolchainDir + PKGS_LISTS_DIR);
+			packagesLists.setInstalledPackages(packageDatabase.getPackages());
 			updateProgress(30);
 			packagesLists.setAvailablePackages(RepoUtils.getRepoFromUrl(params[0]));
 			updateProgress(60);
@@ -480,7 +478,8 @@ public class PkgManagerActivity extends SherlockListActivity {
 		@Override
 		protected InstallPackageInfo doInBackground(String... params) {
 			// Update installed packages list
-			packagesLists.setInstalledPackages(RepoUtils.getRepoFromDir(toolchainDir + "/" + PKGS_LISTS_DIR));
+			packageDatabase = PackageDatabase.open(toolchainDir + PKGS_LISTS_DIR);
+			packagesLists.setInstalledPackages(packageDatabase.getPackages());
     		return new InstallPackageInfo(packagesLists, params[0]);
 		}
     	
@@ -604,11 +603,9 @@ public class PkgManagerActivity extends SherlockListActivity {
 		});
 	}
     
-	private boolean downloadAndUnpack(String file, String from, String to, String log) {
+	private boolean download(String file, String from) {
 		updateProgress(getString(R.string.download_file) + " " + file + "...");
 		
-		errorString = null;
-		
 		File temp = new File(filesDir + "/" + file);
 		if (!temp.exists()) {
 			try {
@@ -675,44 +672,135 @@ public class PkgManagerActivity extends SherlockListActivity {
 			Log.i(TAG, "Use file " + temp.getAbsolutePath());
 
 		updateProgress(100);
+		return true;
+	}
+	
+	/*
+	 * Unpacks the package while it is downloaded, the archive is not stored.
+	 * A package archive left in filesDir by an older version is used instead.
+	 */
+	private boolean downloadAndUnpack(final PackageInfo packageInfo, String to, String log) {
+		final String file = packageInfo.getFile();
+		String from = packageInfo.getUrl();
+		
+		errorString = null;
 		
-		String tempPath = temp.getAbsolutePath();
-		updateProgress(getString(R.string.unpacking_file) + " " + file + "...");
-		Log.i(TAG, "Unpack file " + tempPath + " to " + to);
 		String logFile = log;
+		if (logFile == null) {
+			logFile = toolchainDir + PKGS_LISTS_DIR + file + ".list";
+		}
+		
+		// Unpacked size from the repo index, the files are checked again while unpacking
+		StatFs stat = new StatFs(to);
+		long cacheAvailSize = (long) stat.getAvailableBlocks() * stat.getBlockSize();
+		Log.i(TAG, "Unpacked size " + packageInfo.getSize());
+		Log.i(TAG, "Available " + cacheAvailSize);
+		if (cacheAvailSize < packageInfo.getSize()) {
+			errorString = getString(R.string.cache_no_memory) +
+					Utils.humanReadableByteCount(packageInfo.getSize(), false) + 
+					getString(R.string.cache_no_memory1) + 
+					Utils.humanReadableByteCount(cacheAvailSize, false) + 
+					getString(R.string.cache_no_memory2);
+			return false;
+		}
+		
+		File temp = new File(filesDir + "/" + file);
+		boolean downloading = false;
+		InputStream stream;
+		long size;
 		try {
-			int need_mem = Utils.unzippedSize(tempPath);
-			if (need_mem < 0) {
-				throw new RuntimeException("bad archive");
+			if (temp.exists()) {
+				Log.i(TAG, "Use file " + temp.getAbsolutePath());
+				stream = new FileInputStream(temp);
+				size = temp.length();
+			} else if (from.startsWith("/")) {
+				File fromFile = new File(from + "/" + file);
+				Log.i(TAG, "Use file " + fromFile.getAbsolutePath());
+				stream = new FileInputStream(fromFile);
+				size = fromFile.length();
+			} else {
+				Log.i(TAG, "Downloading file " + from + "/" + file);
+				URLConnection cn = new URL(from + "/" + file).openConnection();
+				cn.setReadTimeout(3 * 60 * 1000); // timeout 3 minutes
+				cn.connect();
+				stream = cn.getInputStream();
+				size = cn.getContentLength();
+				downloading = true;
+				Log.i(TAG, "File size " + size);
 			}
-			StatFs stat = new StatFs(to);
-			double cacheAvailSize = stat.getAvailableBlocks();
-			Log.i(TAG, "Unzipped size " + need_mem);
-			Log.i(TAG, "Available (blocks) " + cacheAvailSize + "(" + stat.getBlockSize() + ")");
-			cacheAvailSize *= stat.getBlockSize();
-			if (cacheAvailSize < need_mem) {
-				errorString = getString(R.string.cache_no_memory) +
-						Utils.humanReadableByteCount(need_mem, false) + 
-						getString(R.string.cache_no_memory1) + 
-						Utils.humanReadableByteCount((int)cacheAvailSize, false) + 
-						getString(R.string.cache_no_memory2);
-				return false;
+		} catch (IOException e) {
+			Log.i(TAG, "Error downloading file " + file + ": " + e);
+			errorString = getString(R.string.error_downloading) + " (" + file + ")";
+			return false;
+		}
+		if (size <= 0) {
+			size = packageInfo.getFileSize();
+		}
+		
+		updateProgress(getString(R.string.unpacking_file) + " " + file + "...");
+		updateProgress(0);
+		Log.i(TAG, "Unpack file " + file + " to " + to);
+		final long fileSize = size;
+		ZipExtractor extractor = new ZipExtractor(to, logFile);
+		extractor.setListener(new ZipExtractor.Listener() {
+			private int percent = 0;
+			
+			public boolean acceptEntry(String name) throws IOException {
+				String owner = packageDatabase.getConflict(name,
+						packageInfo.getName(), packageInfo.getReplaces());
+				if (owner != null) {
+					throw new ZipExtractor.ConflictException(name, owner);
+				}
+				return true;
 			}
-			if (logFile == null) {
-				logFile = toolchainDir + PKGS_LISTS_DIR + file + ".list";
+			
+			public long getFreeSpace(String dir) {
+				StatFs stat = new StatFs(dir);
+				return (long) stat.getAvailableBlocks() * stat.getBlockSize();
 			}
-			if (Utils.unzip(tempPath, to, logFile) != 0) {
-				if ((new File(logFile)).exists()) {
-					(new File(logFile)).delete();
+			
+			public void onProgress(long bytesRead, long bytesWritten) {
+				int newPercent = fileSize > 0 ? (int) (bytesRead * 100 / fileSize) : 0;
+				if (newPercent != percent) {
+					percent = newPercent;
+					updateProgress(percent);
 				}
-				throw new RuntimeException("bad archive");
 			}
-		} catch (Exception e) {
-			temp.delete();
-			Log.i(TAG, "Corrupted archive, restart application and try install again");
-			errorString = getString(R.string.bad_archive) + " (" + file +")";
+		});
+		try {
+			try {
+				extractor.extract(stream);
+			} finally {
+				stream.close();
+			}
+		} catch (ZipExtractor.ConflictException e) {
+			Log.e(TAG, "Package " + packageInfo.getName() + " conflicts with " + e.getName() + " (" + e.getOwner() + ")");
+			errorString = getString(R.string.pkg_conflicts) + " (" + packageInfo.getName() + "):\n"
+					+ e.getName() + " (" + e.getOwner() + ")";
+			return false;
+		} catch (ZipExtractor.NoSpaceException e) {
+			Log.i(TAG, "Unpack error " + e);
+			errorString = getString(R.string.cache_no_memory) +
+					Utils.humanReadableByteCount(e.getNeeded(), false) + 
+					getString(R.string.cache_no_memory1) + 
+					Utils.humanReadableByteCount(e.getAvailable(), false) + 
+					getString(R.string.cache_no_memory2);
+			return false;
+		} catch (IOException e) {
+			Log.i(TAG, "Unpack error " + e);
+			if (downloading) {
+				errorString = getString(R.string.error_downloading) + " (" + file + ")";
+			} else {
+				temp.delete();
+				Log.i(TAG, "Corrupted archive, restart application and try install again");
+				errorString = getString(R.string.bad_archive) + " (" + file +")";
+			}
 			return false;
 		}
+		updateProgress(100);
+		
+		// An old archive is not needed anymore, the list has the installed files
+		temp.delete();
 		return true;
 	}
 	
@@ -737,41 +825,44 @@ public class PkgManagerActivity extends SherlockListActivity {
     private boolean installPackage(InstallPackageInfo info) {
     	List<String> postinstList = new ArrayList<String>();
     	for (PackageInfo packageInfo: info.getPackagesList()) {
-    		if ((new File(toolchainDir + "/" + PKGS_LISTS_DIR + "/" 
-    				+ packageInfo.getName() + ".pkgdesc")).exists()) {
-    			PackageInfo oldPackage = RepoUtils.getPackageByName(packagesLists.getInstalledPackages(),
-    																packageInfo.getName());
+    		boolean updated = false;
+    		if (packageDatabase.isInstalled(packageInfo.getName())) {
+    			PackageInfo oldPackage = packageDatabase.getPackage(packageInfo.getName());
     			if (packageInfo.getVersion().equals(oldPackage.getVersion())) {
     				Log.i(TAG, "Package " + packageInfo.getName() + " already installed.");
     				continue;
     			} else {
-    				uninstallPackage(packageInfo.getName());
+    				updated = installDelta(packageInfo, oldPackage);
+    				if (!updated) {
+    					uninstallPackage(packageInfo.getName());
+    				}
     				if ((new File(filesDir + "/" + oldPackage.getFile())).exists()) {
     					(new File(filesDir + "/" + oldPackage.getFile())).delete();
     				}
     			}
     		}
     		
-    		if (RepoUtils.isContainsPackage(packagesLists.getInstalledPackages(), packageInfo.getReplaces())) {
+    		if (packageDatabase.isInstalled(packageInfo.getReplaces())) {
     			Log.i(TAG, "Replace package " + packageInfo.getReplaces());
-    			PackageInfo oldPackage = RepoUtils.getPackageByName(packagesLists.getInstalledPackages(),
-						packageInfo.getReplaces());
+    			PackageInfo oldPackage = packageDatabase.getPackage(packageInfo.getReplaces());
 				uninstallPackage(oldPackage.getName());
 				if ((new File(filesDir + "/" + oldPackage.getFile())).exists()) {
 					(new File(filesDir + "/" + oldPackage.getFile())).delete();
 				}
     		}
     		
-    		updateProgressTitle(getString(R.string.pkg_installpackagetask) + " " + packageInfo.getName());
+    		if (!updated) {
+    			updateProgressTitle(getString(R.string.pkg_installpackagetask) + " " + packageInfo.getName());
 
-    		Log.i(TAG, "Install " + packageInfo.getName() + " -> " + packageInfo.getFile());
-			if (!downloadAndUnpack(packageInfo.getFile(), packageInfo.getUrl(), toolchainDir, 
-					toolchainDir + "/" + PKGS_LISTS_DIR + "/" + packageInfo.getName() + ".list")) {
-				if (errorString != null) {
-					errorString += "\u0020" + info.getName();
-				}
-				return false;
-			}
+    			Log.i(TAG, "Install " + packageInfo.getName() + " -> " + packageInfo.getFile());
+    			if (!downloadAndUnpack(packageInfo, toolchainDir, 
+    					toolchainDir + "/" + PKGS_LISTS_DIR + "/" + packageInfo.getName() + ".list")) {
+    				if (errorString != null) {
+    					errorString += "\u0020" + info.getName();
+    				}
+    				return false;
+    			}
+    		}
 			updateProgress(getString(R.string.wait_message));
 			// Move package info files from root directory
 			String[] infoFiles = {"pkgdesc", "postinst", "prerm"};
@@ -792,6 +883,7 @@ public class PkgManagerActivity extends SherlockListActivity {
 					(new File(toolchainDir + "/" + infoFile)).delete();
 				}				
 			}
+			packageDatabase.addPackage(packageInfo);
     	}
     
     	// Move Examples to sd card
@@ -818,43 +910,71 @@ public class PkgManagerActivity extends SherlockListActivity {
     	return true;
     }
     
+	/*
+	 * Updates the installed package by the delta from its version, if the
+	 * repo has one. Returns false if the full package has to be installed.
+	 */
+	private boolean installDelta(PackageInfo packageInfo, PackageInfo oldPackage) {
+		PackageInfo.Delta delta = packageInfo.getDelta(oldPackage.getVersion());
+		if (delta == null) {
+			return false;
+		}
+		updateProgressTitle(getString(R.string.pkg_installpackagetask) + " " + packageInfo.getName());
+		Log.i(TAG, "Update " + packageInfo.getName() + " from " + oldPackage.getVersion() + " -> " + delta.getFile());
+		errorString = null;
+		if (!download(delta.getFile(), packageInfo.getUrl())) {
+			return false;
+		}
+		updateProgress(getString(R.string.wait_message));
+		File deltaFile = new File(filesDir + "/" + delta.getFile());
+		DeltaPackage deltaPackage = DeltaPackage.prepare(deltaFile.getAbsolutePath(), toolchainDir,
+				packageDatabase, packageInfo);
+		deltaFile.delete();
+		if (deltaPackage == null) {
+			Log.i(TAG, "Can't apply delta, install full package");
+			return false;
+		}
+		runPrerm(packageInfo.getName());
+		return deltaPackage.commit(toolchainDir + "/" + PKGS_LISTS_DIR + "/" + packageInfo.getName() + ".list");
+	}
+	
+	private void runPrerm(String name) {
+		String prermFile = toolchainDir + "/" + PKGS_LISTS_DIR + "/" + name + ".prerm";
+		if ((new File(prermFile)).exists()) {
+			Log.i(TAG, "Execute prerm script " + prermFile);
+			Utils.chmod(prermFile, 0x1ed);
+			system(prermFile);
+			(new File(prermFile)).delete();
+		}
+	}
+	
 	private boolean uninstallPackage(String name) {
 		if (name != null) {
 			updateProgressTitle(getString(R.string.pkg_uninstallpackagetask) + " " + name);
 			updateProgress(getString(R.string.wait_message));
 			updateProgress(0);
-			String prermFile = toolchainDir + "/" + PKGS_LISTS_DIR + "/" + name + ".prerm";
-			if ((new File(prermFile)).exists()) {
-				Log.i(TAG, "Execute prerm script " + prermFile);
-				Utils.chmod(prermFile, 0x1ed);
-				system(prermFile);
-				(new File(prermFile)).delete();
-			}
+			runPrerm(name);
 			updateProgress(25);
 			String descFile = toolchainDir + "/" + PKGS_LISTS_DIR + "/" + name + ".pkgdesc";
 			if ((new File(descFile)).exists()) {
 				(new File(descFile)).delete();
 			}
 			String logFile = toolchainDir + "/" + PKGS_LISTS_DIR + "/" + name + ".list";
-			if (!(new File(logFile)).exists()) {
+			if (!packageDatabase.isInstalled(name)) {
+				(new File(logFile)).delete();
 				updateProgress(100);
 				return false;
 			}
 			updateProgress(50);
-			try {
-				FileInputStream fin = new FileInputStream(logFile);
-				DataInputStream in = new DataInputStream(fin);
-				BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-				String line = "";
-				while((line = reader.readLine()) != null) {
-					Log.i(TAG, "Delete file: " + line);
-					(new File(toolchainDir + "/" + line)).delete();
+			for (String file: packageDatabase.getFiles(name)) {
+				// Keep files taken over by another package
+				if (name.equals(packageDatabase.getOwner(file))) {
+					Log.i(TAG, "Delete file: " + file);
+					(new File(toolchainDir + "/" + file)).delete();
 				}
-				in.close();
-				(new File(logFile)).delete();
-			} catch (Exception e) {
-				Log.e(TAG, "Error during remove files " + e);
 			}
+			(new File(logFile)).delete();
+			packageDatabase.removePackage(name);
 			updateProgress(100);
 		}
 		return true;
@@ -964,15 +1084,13 @@ public class PkgManagerActivity extends SherlockListActivity {
 				};
 		try {
 			Log.i(TAG, "exec cmd " + cmdline + ", cctoolsdir " + cctoolsDir);
-			Process p = Runtime.getRuntime().exec(cmdline, envp);
-			p.waitFor();
+			CommandLauncher.get(envp).launch(cmdline.split("\\s+"), null).get();
 		} catch (Exception e) {
 			Log.i(TAG, "Exec exception " + e);
 		}		
 	}
 
 	private String getEnv(String baseDir, String variable) {
-		String ret = null;
 		String[] envp = {
 				"TMPDIR=" + Environment.getExternalStorageDirectory().getPath(),
 				"PATH=" + baseDir + "/bin:" + baseDir + "/sbin:/sbin:/vendor/bin:/system/sbin:/system/bin:/system/xbin",
@@ -990,28 +1108,7 @@ public class PkgManagerActivity extends SherlockListActivity {
 				"SDDIR=" + sdCardDir,
 				"EXTERNAL_STORAGE=" + Environment.getExternalStorageDirectory().getPath(),
 				};
-		String[] argv = { "/system/bin/sh", "-c", "set"};
-		int[] pId = new int[1];
-		FileDescriptor fd = Utils.createSubProcess(baseDir, argv[0], argv, envp, pId);
-		FileInputStream fis = new FileInputStream(fd);
-		DataInputStream in = new DataInputStream(fis);
-		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-		String line = "";
-		try {
-			while((line = reader.readLine()) != null) {
-				if (line.startsWith(variable + "=")) {
-					if (line.indexOf("=") != -1) {
-						ret = line.substring(line.indexOf("=") + 1);
-						break;
-					}
-				}
-			}
-			in.close();
-			Utils.waitFor(pId[0]);
-		} catch (Exception e) {
-			Log.e(TAG, "exception " + e);
-		}
-		return ret;
+		return ShellEnvironment.get(baseDir, envp).get(variable);
 	}
 
 	private String getShell() {
@@ -0,0 +1,215 @@
+package com.pdaxrom.pkgmanager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.ParallelGzipCompressorInputStream;
+
+/*
+ * Local copy of a remote repository index.
+ * Keeps the parsed package list of the repository together with the ETag
+ * and Last-Modified of the index it came from, so refreshing an unchanged
+ * repository is a conditional GET answered by 304 Not Modified.
+ * The compressed index (Packages.bz2 or Packages.gz) is preferred, the
+ * name that worked is remembered for the next refresh.
+ */
+class RepoCache {
+	private static final String TAG = "RepoCache";
+
+	private static final int MAGIC = 0x50524331; // "PRC1"
+	private static final int VERSION = 2;
+
+	private static final String[] INDEX_FILES = { "Packages.bz2", "Packages.gz", "Packages" };
+
+	private static final int TIMEOUT = 60 * 1000;
+
+	private final File cacheFile;
+	private final String url;
+	private final String variant;
+
+	private String index;
+	private String eTag;
+	private String lastModified;
+	private List<PackageInfo> packages;
+
+	/*
+	 * variant tells what the cached list depends on besides the index,
+	 * e.g. the macros replaced in it.
+	 */
+	RepoCache(String cacheDir, String url, String variant) {
+		this.cacheFile = new File(cacheDir, Integer.toHexString(url.hashCode()) + ".cache");
+		this.url = url;
+		this.variant = variant;
+		load();
+	}
+
+	/*
+	 * Returns the cached package list, or null.
+	 */
+	List<PackageInfo> getPackages() {
+		return packages;
+	}
+
+	/*
+	 * Downloads the index if it has changed since the cached copy.
+	 * Returns the index xml, or null if the cached list is still valid.
+	 */
+	String fetch() throws IOException {
+		if (index != null && packages != null) {
+			HttpURLConnection cn = open(index, true);
+			try {
+				int status = cn.getResponseCode();
+				if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+					return null;
+				}
+				if (status == HttpURLConnection.HTTP_OK) {
+					return read(cn, index);
+				}
+				System.err.println(TAG + " Response: " + status + " for " + url + "/" + index);
+			} finally {
+				cn.disconnect();
+			}
+		}
+		// Cached index is gone or there is no cache, look for the index again
+		for (String name: INDEX_FILES) {
+			HttpURLConnection cn = open(name, false);
+			try {
+				int status = cn.getResponseCode();
+				if (status == HttpURLConnection.HTTP_OK) {
+					return read(cn, name);
+				}
+				if (status != HttpURLConnection.HTTP_NOT_FOUND) {
+					throw new IOException("Response: " + status + " for " + url + "/" + name);
+				}
+			} finally {
+				cn.disconnect();
+			}
+		}
+		throw new IOException("No index found in " + url);
+	}
+
+	/*
+	 * Saves the package list parsed from the last fetched index.
+	 */
+	void store(List<PackageInfo> list) {
+		packages = list;
+		File dir = cacheFile.getParentFile();
+		if (!dir.exists() && !dir.mkdirs()) {
+			return;
+		}
+		File tmpFile = new File(dir, cacheFile.getName() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 65536));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeUTF(url);
+				out.writeUTF(variant);
+				out.writeUTF(index);
+				out.writeUTF(eTag == null ? "" : eTag);
+				out.writeUTF(lastModified == null ? "" : lastModified);
+				out.writeInt(list.size());
+				for (PackageInfo info: list) {
+					info.writeTo(out);
+				}
+			} finally {
+				out.close();
+			}
+			if (!tmpFile.renameTo(cacheFile)) {
+				throw new IOException("Can't rename " + tmpFile + " to " + cacheFile);
+			}
+		} catch (IOException e) {
+			System.err.println(TAG + " error: " + e);
+			tmpFile.delete();
+			cacheFile.delete();
+		}
+	}
+
+	private void load() {
+		if (!cacheFile.exists()) {
+			return;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile), 65536));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION
+						|| !in.readUTF().equals(url) || !in.readUTF().equals(variant)) {
+					return;
+				}
+				String cachedIndex = in.readUTF();
+				String cachedETag = in.readUTF();
+				String cachedLastModified = in.readUTF();
+				int count = in.readInt();
+				List<PackageInfo> list = new ArrayList<PackageInfo>(count);
+				for (int i = 0; i < count; i++) {
+					list.add(PackageInfo.readFrom(in));
+				}
+				index = cachedIndex;
+				eTag = cachedETag.length() > 0 ? cachedETag : null;
+				lastModified = cachedLastModified.length() > 0 ? cachedLastModified : null;
+				packages = list;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.err.println(TAG + " error: " + e);
+		}
+	}
+
+	private HttpURLConnection open(String name, boolean conditional) throws IOException {
+		HttpURLConnection cn = (HttpURLConnection) new URL(url + "/" + name).openConnection();
+		cn.setConnectTimeout(TIMEOUT);
+		cn.setReadTimeout(TIMEOUT);
+		cn.setUseCaches(false);
+		// Handled in read(), so it works the same on every platform
+		cn.setRequestProperty("Accept-Encoding", "gzip");
+		if (conditional) {
+			if (eTag != null) {
+				cn.setRequestProperty("If-None-Match", eTag);
+			}
+			if (lastModified != null) {
+				cn.setRequestProperty("If-Modified-Since", lastModified);
+			}
+		}
+		return cn;
+	}
+
+	private String read(HttpURLConnection cn, String name) throws IOException {
+		InputStream in = new BufferedInputStream(cn.getInputStream(), 65536);
+		try {
+			if ("gzip".equalsIgnoreCase(cn.getContentEncoding())) {
+				in = new ParallelGzipCompressorInputStream(in);
+			}
+			if (name.endsWith(".bz2")) {
+				in = new BZip2CompressorInputStream(in);
+			} else if (name.endsWith(".gz")) {
+				in = new ParallelGzipCompressorInputStream(in);
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream(256 * 1024);
+			byte[] buf = new byte[65536];
+			int n;
+			while ((n = in.read(buf)) != -1) {
+				out.write(buf, 0, n);
+			}
+			index = name;
+			eTag = cn.getHeaderField("ETag");
+			lastModified = cn.getHeaderField("Last-Modified");
+			return out.toString("UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+}
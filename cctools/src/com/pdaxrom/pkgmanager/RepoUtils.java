@@ -30,10 +30,13 @@ public class RepoUtils {
     static public final String KEY_ARCH		= "arch";
     static public final String KEY_REPLACES = "replaces";
     static public final String KEY_STATUS	= "status";
+    static public final String KEY_DELTA	= "delta";
+    static public final String KEY_DELTA_FROM = "from";
 
     private static String	_buildAbi;
 	private static String	_ndkArch;
 	private static int		_ndkVersion;
+	private static String	_cacheDir;
 
 	private static boolean	_debug = false;
 	
@@ -47,6 +50,14 @@ public class RepoUtils {
 		_ndkVersion = ndkVersion;
 	}
 	
+	/**
+	 * Directory for the parsed remote repository indexes, null disables
+	 * the cache
+	 */
+	public static void setCacheDir(String cacheDir) {
+		_cacheDir = cacheDir;
+	}
+	
 	public static List<PackageInfo> getRepoFromUrl(String url) {
 		if (url.startsWith("file://")) {
 			String path = url.substring(7);
@@ -55,7 +66,7 @@ public class RepoUtils {
 			}
 			return parseRepoXml(null, getRepoXmlFromFile(path), path);
 		} else {
-			return parseRepoXml(null, getRepoXmlFromUrl(url), url); // getting DOM element
+			return getRepoFromHttp(null, url);
 		}
 	}
 
@@ -70,7 +81,46 @@ public class RepoUtils {
 				list = parseRepoXml(list, getRepoXmlFromFile(path), path);
 			} else {
 				url = url + "/" + _buildAbi;
-				list = parseRepoXml(list, getRepoXmlFromUrl(url), url); // getting DOM element
+				list = getRepoFromHttp(list, url);
+			}
+		}
+		return list;
+	}
+	
+	/*
+	 * Remote index through the cache, unchanged repos are not parsed again.
+	 */
+	private static List<PackageInfo> getRepoFromHttp(List<PackageInfo> list, String url) {
+		if (_cacheDir == null) {
+			return parseRepoXml(list, getRepoXmlFromUrl(url), url); // getting DOM element
+		}
+		RepoCache cache = new RepoCache(_cacheDir, url, _ndkArch + "-" + _ndkVersion);
+		List<PackageInfo> packages;
+		try {
+			String xml = cache.fetch();
+			if (xml == null) {
+				if (_debug) {
+					System.out.println(TAG + " not modified " + url);
+				}
+				packages = cache.getPackages();
+			} else {
+				packages = parseRepoXml(null, replaceMacro(xml), url);
+				if (packages != null) {
+					cache.store(packages);
+				}
+			}
+		} catch (IOException e) {
+			System.err.println(TAG + " error: " + e);
+			return list;
+		}
+		if (packages != null) {
+			if (list == null) {
+				list = new ArrayList<PackageInfo>();
+			}
+			for (PackageInfo packageInfo: packages) {
+				if (!isContainsPackage(list, packageInfo.getName(), packageInfo.getVersion())) {
+					list.add(packageInfo);
+				}
 			}
 		}
 		return list;
@@ -228,6 +278,15 @@ public class RepoUtils {
 	    				parser.getValue(e, KEY_ARCH),
 	    				parser.getValue(e, KEY_REPLACES),
 	    				url);
+	    		// <delta from="version" filesize="size">file</delta>
+	    		NodeList deltas = e.getElementsByTagName(KEY_DELTA);
+	    		for (int j = 0; j < deltas.getLength(); j++) {
+	    			Element delta = (Element) deltas.item(j);
+	    			String deltaSize = delta.getAttribute(KEY_FILESIZE);
+	    			packageInfo.addDelta(delta.getAttribute(KEY_DELTA_FROM),
+	    					parser.getElementValue(delta).trim(),
+	    					deltaSize.length() > 0 ? Integer.valueOf(deltaSize) : 0);
+	    		}
 				list.add(packageInfo);
 				if (_debug) {
 					System.out.println(TAG + " added pkg = " + packageInfo.getName());
@@ -1,14 +1,14 @@
 package com.pdaxrom.term;
 
 import java.io.FileDescriptor;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 
 import android.os.Build;
 import android.os.Handler;
 import android.util.Log;
 
+import com.pdaxrom.utils.PtyInputStream;
+import com.pdaxrom.utils.PtyOutputStream;
 import com.pdaxrom.utils.Utils;
 
 import jackpal.androidterm.emulatorview.TermSession;
@@ -91,12 +91,13 @@ public class ShellTermSession extends TermSession {
 		mFd = Utils.createSubProcess(cwd, cmd, argv, envp, pId);
 		mProcId = pId[0];
 		if (mProcId > 0) {
-			setTermIn(new FileInputStream(mFd));
-			setTermOut(new FileOutputStream(mFd));
+			PtyInputStream termIn = new PtyInputStream(mFd);
+			setTermIn(termIn);
+			setTermOut(new PtyOutputStream(mFd));
 			if (Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD &&
 				(cmd.endsWith("/sh") || cmd.endsWith("/ash") || cmd.endsWith("/bash"))) {
 				try {
-					while (getTermIn().available() == 0) ;
+					termIn.waitForInput(-1);
 					getTermOut().write(new String(". ~/.profile\n").getBytes());
 				} catch (IOException e) {
 					Log.e(TAG, "load profile");
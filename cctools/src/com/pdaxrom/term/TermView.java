@@ -4,6 +4,7 @@ import java.io.File;
 import java.util.List;
 
 import com.actionbarsherlock.app.ActionBar;
+import com.pdaxrom.build.BuildOutputParser;
 import com.pdaxrom.utils.CommandLineSupport;
 
 import android.annotation.SuppressLint;
@@ -19,6 +20,7 @@ import android.view.MotionEvent;
 import android.view.inputmethod.InputMethodManager;
 import jackpal.androidterm.emulatorview.EmulatorView;
 import jackpal.androidterm.emulatorview.TermSession;
+import jackpal.androidterm.emulatorview.TranscriptSearch;
 
 public class TermView extends EmulatorView {
 	private final static String TAG = "cctools-termview";
@@ -34,6 +36,19 @@ public class TermView extends EmulatorView {
 
 	private TermViewInterface termViewInterface = null;
 	private ActionBar.Tab tab;
+
+	private TranscriptSearch search = null;
+	private String searchQuery = null;
+	private boolean searchRegex;
+
+	/* gcc/clang/javac errors, as BuildView finds them */
+	private final TranscriptSearch.LineFilter errorFilter = new TranscriptSearch.LineFilter() {
+		private final int[] fields = new int[BuildOutputParser.FIELDS];
+
+		public boolean accept(char[] line, int length) {
+			return BuildOutputParser.isError(line, length, fields);
+		}
+	};
 	
     private Handler mMsgHandler = new Handler() {
 	    @Override
@@ -112,6 +127,57 @@ public class TermView extends EmulatorView {
 	public boolean isAlive() {
 		return isRunning;
 	}
+
+	/*
+	 * Find the next occurrence of text or a regular expression in the
+	 * terminal, below the last one found, and show it.
+	 */
+	public boolean find(String query, boolean regex) {
+		if (!prepareSearch()) {
+			return false;
+		}
+		if (!query.equals(searchQuery) || regex != searchRegex) {
+			search.setQuery(query, regex, true);
+			searchQuery = query;
+			searchRegex = regex;
+		}
+		return showSearchResult();
+	}
+
+	/*
+	 * Find the next compiler error in the terminal and show it.
+	 */
+	public boolean findNextError() {
+		if (!prepareSearch()) {
+			return false;
+		}
+		if (searchQuery != null) {
+			search.setLineFilter(errorFilter);
+			searchQuery = null;
+		}
+		return showSearchResult();
+	}
+
+	private boolean prepareSearch() {
+		TermSession termSession = getTermSession();
+		if (termSession == null) {
+			return false;
+		}
+		if (search == null) {
+			search = new TranscriptSearch(termSession);
+			search.setLineFilter(errorFilter);
+		}
+		return true;
+	}
+
+	private boolean showSearchResult() {
+		if (!search.findNext()) {
+			return false;
+		}
+		showRange(search.getStartRow(), search.getStartColumn(),
+				search.getEndRow(), search.getEndColumn());
+		return true;
+	}
 	
 	@SuppressLint("NewApi")
 	private ShellTermSession createShellTermSession() {
@@ -0,0 +1,130 @@
+package com.pdaxrom.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+/*
+ * Applies patches made by bsdiff 4 ("BSDIFF40" format).
+ * The old file is mapped rather than read into memory and the new file is
+ * written as it is produced, so only the patch itself is kept in memory.
+ */
+public class BSPatch {
+	private static final String MAGIC = "BSDIFF40";
+	private static final int HEADER_SIZE = 32;
+	private static final int BUFFER_SIZE = 65536;
+
+	/*
+	 * Writes newFile made from oldFile and the patch.
+	 */
+	public static void patch(File oldFile, File newFile, byte[] patch) throws IOException {
+		if (patch.length < HEADER_SIZE || !new String(patch, 0, 8, "US-ASCII").equals(MAGIC)) {
+			throw new IOException("Not a bsdiff patch");
+		}
+		long ctrlLength = offtin(patch, 8);
+		long diffLength = offtin(patch, 16);
+		long newSize = offtin(patch, 24);
+		if (ctrlLength < 0 || diffLength < 0 || newSize < 0
+				|| HEADER_SIZE + ctrlLength + diffLength > patch.length) {
+			throw new IOException("Corrupted patch");
+		}
+
+		DataInputStream ctrl = new DataInputStream(section(patch, HEADER_SIZE, ctrlLength));
+		InputStream diff = section(patch, HEADER_SIZE + ctrlLength, diffLength);
+		InputStream extra = section(patch, HEADER_SIZE + ctrlLength + diffLength,
+				patch.length - HEADER_SIZE - ctrlLength - diffLength);
+
+		FileInputStream oldIn = new FileInputStream(oldFile);
+		try {
+			FileChannel channel = oldIn.getChannel();
+			MappedByteBuffer old = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			long oldSize = channel.size();
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(newFile), BUFFER_SIZE);
+			try {
+				byte[] buf = new byte[BUFFER_SIZE];
+				byte[] ctrlBuf = new byte[8];
+				long newPos = 0;
+				long oldPos = 0;
+				while (newPos < newSize) {
+					long addLength = readOfftin(ctrl, ctrlBuf);
+					long copyLength = readOfftin(ctrl, ctrlBuf);
+					long seek = readOfftin(ctrl, ctrlBuf);
+					if (addLength < 0 || copyLength < 0
+							|| newPos + addLength + copyLength > newSize) {
+						throw new IOException("Corrupted patch");
+					}
+					// Diff bytes are added to the old bytes
+					long left = addLength;
+					while (left > 0) {
+						int n = (int) Math.min(left, buf.length);
+						readFully(diff, buf, n);
+						for (int i = 0; i < n; i++) {
+							long pos = oldPos + i;
+							if (pos >= 0 && pos < oldSize) {
+								buf[i] += old.get((int) pos);
+							}
+						}
+						out.write(buf, 0, n);
+						oldPos += n;
+						left -= n;
+					}
+					// Extra bytes are new
+					left = copyLength;
+					while (left > 0) {
+						int n = (int) Math.min(left, buf.length);
+						readFully(extra, buf, n);
+						out.write(buf, 0, n);
+						left -= n;
+					}
+					newPos += addLength + copyLength;
+					oldPos += seek;
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			oldIn.close();
+		}
+	}
+
+	private static InputStream section(byte[] patch, long offset, long length) throws IOException {
+		return new BZip2CompressorInputStream(new ByteArrayInputStream(patch, (int) offset, (int) length));
+	}
+
+	private static void readFully(InputStream in, byte[] buf, int length) throws IOException {
+		int off = 0;
+		while (off < length) {
+			int n = in.read(buf, off, length - off);
+			if (n < 0) {
+				throw new IOException("Corrupted patch");
+			}
+			off += n;
+		}
+	}
+
+	private static long readOfftin(DataInputStream in, byte[] buf) throws IOException {
+		in.readFully(buf);
+		return offtin(buf, 0);
+	}
+
+	/*
+	 * bsdiff stores numbers as 8 bytes little endian, sign in the top bit.
+	 */
+	private static long offtin(byte[] buf, int offset) {
+		long y = buf[offset + 7] & 0x7f;
+		for (int i = 6; i >= 0; i--) {
+			y = (y << 8) | (buf[offset + i] & 0xff);
+		}
+		return (buf[offset + 7] & 0x80) != 0 ? -y : y;
+	}
+}
@@ -0,0 +1,281 @@
+package com.pdaxrom.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Runs commands through resident shells, instead of forking the whole app
+ * for each one with Runtime.exec().
+ * A shell is started with the environment once and then reads command
+ * lines from a pipe; after each command it prints a marker with the exit
+ * code on stdout and a marker on stderr, so the output of each command is
+ * known. Commands run on a bounded pool of workers, one shell per busy
+ * worker, and finished shells wait for the next command. At most one idle
+ * shell per worker is kept, the ones of detached commands beyond that are
+ * ended.
+ * The app keeps one launcher per environment, so callers with different
+ * environments don't end each other's shells.
+ */
+public class CommandLauncher {
+	private static final String TAG = "CommandLauncher";
+
+	private static final String SHELL = "/system/bin/sh";
+	private static final int WORKERS = 4;
+	private static final int MAX_SHARED = 4;
+
+	public interface OutputListener {
+		/*
+		 * Called on a worker thread for every line the command prints,
+		 * isError tells whether it was printed on stderr.
+		 */
+		public void onOutput(String line, boolean isError);
+	}
+
+	private static final Map<List<String>, CommandLauncher> shared =
+		new LinkedHashMap<List<String>, CommandLauncher>(MAX_SHARED + 1, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<List<String>, CommandLauncher> eldest) {
+				if (size() > MAX_SHARED) {
+					eldest.getValue().shutdown();
+					return true;
+				}
+				return false;
+			}
+		};
+
+	private final String[] envp;
+	private final ExecutorService executor;
+	private final LinkedBlockingQueue<Shell> idleShells;
+	private volatile boolean shutdown;
+
+	public CommandLauncher(String[] envp, int workers) {
+		this.envp = envp.clone();
+		idleShells = new LinkedBlockingQueue<Shell>(workers);
+		executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+			private int count;
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, TAG + "-" + (++count));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		// Start a shell now, so the first command doesn't wait for it
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					release(new Shell(CommandLauncher.this.envp));
+				} catch (IOException e) {
+					System.err.println(TAG + " error: " + e);
+				}
+			}
+		});
+	}
+
+	/*
+	 * Returns the launcher shared by the app for the environment. The least
+	 * recently used one is shut down if there are too many environments.
+	 */
+	public static synchronized CommandLauncher get(String[] envp) {
+		List<String> key = Arrays.asList(envp.clone());
+		CommandLauncher launcher = shared.get(key);
+		if (launcher == null) {
+			launcher = new CommandLauncher(envp, WORKERS);
+			shared.put(key, launcher);
+		}
+		return launcher;
+	}
+
+	/*
+	 * Queues a command. The future gives its exit code, or throws an
+	 * ExecutionException if no shell could run it.
+	 * The command's stdin is /dev/null; listener may be null.
+	 * If the launcher was shut down the command still runs, in a shell of
+	 * its own.
+	 */
+	public Future<Integer> launch(String[] argv, OutputListener listener) {
+		Callable<Integer> command = newCommand(argv, listener);
+		if (!shutdown) {
+			try {
+				return executor.submit(command);
+			} catch (RejectedExecutionException e) {
+				// Shut down meanwhile
+			}
+		}
+		return startThread(command);
+	}
+
+	/*
+	 * Runs a command on a thread of its own instead of a worker, for
+	 * commands that may not return soon, like services, so they can't
+	 * hold up the queued commands.
+	 */
+	public Future<Integer> launchDetached(String[] argv, OutputListener listener) {
+		return startThread(newCommand(argv, listener));
+	}
+
+	private Callable<Integer> newCommand(final String[] argv, final OutputListener listener) {
+		return new Callable<Integer>() {
+			public Integer call() throws IOException {
+				Shell shell = idleShells.poll();
+				if (shell == null) {
+					shell = new Shell(envp);
+				}
+				int exitCode;
+				try {
+					exitCode = shell.run(argv, listener);
+				} catch (IOException e) {
+					shell.close();
+					throw e;
+				}
+				release(shell);
+				return exitCode;
+			}
+		};
+	}
+
+	/*
+	 * Keeps the shell for the next command, or ends it if the pool is full
+	 * or the launcher was shut down.
+	 */
+	private void release(Shell shell) {
+		if (shutdown || !idleShells.offer(shell)) {
+			shell.close();
+		} else if (shutdown && idleShells.remove(shell)) {
+			// Shut down meanwhile, after the idle shells were ended
+			shell.close();
+		}
+	}
+
+	private static Future<Integer> startThread(Callable<Integer> command) {
+		FutureTask<Integer> future = new FutureTask<Integer>(command);
+		Thread thread = new Thread(future, TAG + "-single");
+		thread.setDaemon(true);
+		thread.start();
+		return future;
+	}
+
+	/*
+	 * Lets the queued commands finish, then ends the shells.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		executor.shutdown();
+		Shell shell;
+		while ((shell = idleShells.poll()) != null) {
+			shell.close();
+		}
+	}
+
+	private static String quote(String arg) {
+		return "'" + arg.replace("'", "'\\''") + "'";
+	}
+
+	private static class Shell {
+		private final Process process;
+		private final Writer input;
+		private final BufferedReader output;
+		private final String marker;
+		private final Semaphore errorsDone = new Semaphore(0);
+		private volatile OutputListener listener;
+
+		Shell(String[] envp) throws IOException {
+			process = Runtime.getRuntime().exec(new String[] { SHELL }, envp);
+			input = new OutputStreamWriter(process.getOutputStream());
+			output = new BufferedReader(new InputStreamReader(process.getInputStream()), 8192);
+			marker = "--" + TAG + "-" + Long.toHexString(new Random().nextLong()) + "--";
+
+			final BufferedReader errors = new BufferedReader(new InputStreamReader(process.getErrorStream()), 8192);
+			Thread errorReader = new Thread(TAG + "-stderr") {
+				public void run() {
+					try {
+						String line;
+						while ((line = errors.readLine()) != null) {
+							int i = line.indexOf(marker);
+							if (i < 0) {
+								deliver(line, true);
+							} else {
+								if (i > 0) {
+									deliver(line.substring(0, i), true);
+								}
+								errorsDone.release();
+							}
+						}
+					} catch (IOException e) {
+					}
+					// Don't leave a command waiting for a dead shell
+					errorsDone.release();
+				}
+			};
+			errorReader.setDaemon(true);
+			errorReader.start();
+		}
+
+		int run(String[] argv, OutputListener listener) throws IOException {
+			this.listener = listener;
+			StringBuilder cmdline = new StringBuilder("(exec");
+			for (String arg: argv) {
+				cmdline.append(' ').append(quote(arg));
+			}
+			cmdline.append(") </dev/null; echo \"").append(marker).append(" $?\"; echo \"")
+				.append(marker).append("\" >&2\n");
+			input.write(cmdline.toString());
+			input.flush();
+
+			String line;
+			while ((line = output.readLine()) != null) {
+				int i = line.indexOf(marker);
+				if (i < 0) {
+					deliver(line, false);
+					continue;
+				}
+				// Output without a newline at the end comes before the marker
+				if (i > 0) {
+					deliver(line.substring(0, i), false);
+				}
+				int exitCode;
+				try {
+					exitCode = Integer.parseInt(line.substring(i + marker.length()).trim());
+				} catch (NumberFormatException e) {
+					exitCode = -1;
+				}
+				errorsDone.acquireUninterruptibly();
+				this.listener = null;
+				return exitCode;
+			}
+			throw new IOException("Shell exited");
+		}
+
+		private void deliver(String line, boolean isError) {
+			OutputListener listener = this.listener;
+			if (listener != null) {
+				listener.onOutput(line, isError);
+			}
+		}
+
+		void close() {
+			try {
+				input.close();
+			} catch (IOException e) {
+			}
+			process.destroy();
+		}
+	}
+}
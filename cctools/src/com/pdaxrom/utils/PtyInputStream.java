@@ -0,0 +1,53 @@
+package com.pdaxrom.utils;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Reads process output from a pty master through the bulk Utils natives.
+ * read() blocks in the kernel, EIO after the process exit is reported as EOF.
+ */
+public class PtyInputStream extends InputStream {
+	private final FileDescriptor mFd;
+	private final byte[] mOneByte = new byte[1];
+	
+	public PtyInputStream(FileDescriptor fd) {
+		mFd = fd;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		return read(mOneByte, 0, 1) == -1 ? -1 : mOneByte[0] & 0xff;
+	}
+	
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		return Utils.read(mFd, buffer, offset, length);
+	}
+	
+	@Override
+	public int available() throws IOException {
+		return (poll(0) & Utils.POLLIN) != 0 ? 1 : 0;
+	}
+	
+	/*
+	 * Blocks until there is output to read or the process hangs up.
+	 * Returns false on timeout.
+	 */
+	public boolean waitForInput(int timeout) throws IOException {
+		return poll(timeout) != 0;
+	}
+	
+	private int poll(int timeout) throws IOException {
+		int events = Utils.poll(mFd, Utils.POLLIN, timeout);
+		// -1 has all event bits set, so it must not be taken as ready input
+		if (events < 0) {
+			throw new IOException("poll failed");
+		}
+		return events;
+	}
+}
@@ -0,0 +1,28 @@
+package com.pdaxrom.utils;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Writes process input to a pty master through the bulk Utils natives.
+ */
+public class PtyOutputStream extends OutputStream {
+	private final FileDescriptor mFd;
+	
+	public PtyOutputStream(FileDescriptor fd) {
+		mFd = fd;
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+	
+	@Override
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		if (Utils.write(mFd, buffer, offset, length) != length) {
+			throw new IOException("write to pty failed");
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package com.pdaxrom.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Snapshot of the environment of the shell, as printed by "set".
+ * The shell is run once and its variables are kept, until the environment
+ * given to it changes or ~/.profile or the files in cctools/etc do, so
+ * looking up BOOTCLASSPATH and friends for every command doesn't cost
+ * a process.
+ */
+public class ShellEnvironment {
+	private static final String TAG = "ShellEnvironment";
+
+	private static ShellEnvironment cached;
+
+	private final String baseDir;
+	private final String[] envp;
+	private final long stamp;
+	private final Map<String, String> variables;
+
+	private ShellEnvironment(String baseDir, String[] envp, long stamp, Map<String, String> variables) {
+		this.baseDir = baseDir;
+		this.envp = envp;
+		this.stamp = stamp;
+		this.variables = Collections.unmodifiableMap(variables);
+	}
+
+	/*
+	 * Returns the environment of the shell started in baseDir (the cctools
+	 * directory) with envp, running the shell only if the cached one is
+	 * out of date.
+	 */
+	public static synchronized ShellEnvironment get(String baseDir, String[] envp) {
+		long stamp = getStamp(baseDir);
+		if (cached == null || cached.stamp != stamp || !cached.baseDir.equals(baseDir)
+				|| !Arrays.equals(cached.envp, envp)) {
+			Map<String, String> variables = readVariables(baseDir, envp);
+			if (variables == null) {
+				// Try again next time
+				return new ShellEnvironment(baseDir, envp, stamp, new HashMap<String, String>());
+			}
+			cached = new ShellEnvironment(baseDir, envp.clone(), stamp, variables);
+		}
+		return cached;
+	}
+
+	public static synchronized void invalidate() {
+		cached = null;
+	}
+
+	/*
+	 * Returns the value of a variable, or null if it is not set.
+	 */
+	public String get(String variable) {
+		return variables.get(variable);
+	}
+
+	public Map<String, String> getVariables() {
+		return variables;
+	}
+
+	/*
+	 * Changes to the files the shell may read change the stamp.
+	 */
+	private static long getStamp(String baseDir) {
+		long stamp = new File(baseDir + "/home/.profile").lastModified();
+		File etcDir = new File(baseDir + "/etc");
+		stamp = stamp * 31 + etcDir.lastModified();
+		File[] files = etcDir.listFiles();
+		if (files != null) {
+			for (File file: files) {
+				stamp = stamp * 31 + file.lastModified();
+			}
+		}
+		return stamp;
+	}
+
+	private static Map<String, String> readVariables(String baseDir, String[] envp) {
+		Map<String, String> variables = new HashMap<String, String>();
+		String[] argv = { "/system/bin/sh", "-c", "set"};
+		int[] pId = new int[1];
+		try {
+			FileDescriptor fd = Utils.createSubProcess(baseDir, argv[0], argv, envp, pId);
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(fd)), 8192);
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					int i = line.indexOf('=');
+					if (i > 0) {
+						String name = line.substring(0, i);
+						// The first one wins, as in a lookup by name
+						if (!variables.containsKey(name)) {
+							variables.put(name, line.substring(i + 1));
+						}
+					}
+				}
+			} catch (IOException e) {
+				// A pty reports EIO rather than EOF once the shell is gone
+			} finally {
+				reader.close();
+				Utils.waitFor(pId[0]);
+			}
+		} catch (Exception e) {
+			System.err.println(TAG + " error: " + e);
+			return null;
+		}
+		return variables;
+	}
+}
@@ -29,6 +29,8 @@ public class Utils {
 
 	public native static int chmod(String file, int attr);
 	
+	public native static int symlink(String oldpath, String newpath);
+	
 	public native static int unzip(String file, String to, String logfile);
 	
 	public native static int unzippedSize(String file);
@@ -47,6 +49,21 @@ public class Utils {
 	
 	public native static int writeByte(FileDescriptor fd, int b);
 	
+	/* poll() event bits */
+	public final static int POLLIN	= 0x0001;
+	public final static int POLLOUT	= 0x0004;
+	public final static int POLLERR	= 0x0008;
+	public final static int POLLHUP	= 0x0010;
+	
+	/* returns number of bytes read, up to 16KB per call, or -1 on EOF/error */
+	public native static int read(FileDescriptor fd, byte[] buffer, int offset, int length);
+	
+	/* writes all bytes, returns length or -1 on error */
+	public native static int write(FileDescriptor fd, byte[] buffer, int offset, int length);
+	
+	/* returns ready events, 0 on timeout or -1 on error; timeout < 0 blocks */
+	public native static int poll(FileDescriptor fd, int events, int timeout);
+	
 	public native static void close(FileDescriptor fd);
 	
 	public native static void hangupProcessGroup(int processId);
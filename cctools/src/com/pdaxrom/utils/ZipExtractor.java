@@ -0,0 +1,330 @@
+package com.pdaxrom.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+
+/*
+ * Unpacks a zip archive while it is read, e.g. while it is downloaded, so
+ * the archive doesn't have to be stored first. Like Utils.unzip() it writes
+ * the names of the unpacked files to a list file, sets the unix modes and
+ * makes the symbolic links. These are kept in the central directory at the
+ * end of the archive, so they are set after all files are unpacked, and
+ * an archive without the end of central directory record is taken as
+ * truncated.
+ * The free space is checked against the sizes from the local headers before
+ * every file is written.
+ * The listener may refuse the whole archive on the first conflicting entry.
+ * Files which existed before are moved aside, not overwritten, and are put
+ * back if the extraction fails or is cancelled.
+ */
+public class ZipExtractor {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final int S_IFMT		= 0170000;
+	private static final int S_IFLNK	= 0120000;
+
+	public interface Listener {
+		/*
+		 * Returns false to skip the file, or throws ConflictException to stop
+		 * unpacking, e.g. if the file belongs to another package
+		 */
+		boolean acceptEntry(String name) throws IOException;
+
+		/* Returns the free space in the directory or -1 if it is unknown */
+		long getFreeSpace(String dir);
+
+		void onProgress(long bytesRead, long bytesWritten);
+	}
+
+	public static class NoSpaceException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		private final long needed;
+		private final long available;
+
+		NoSpaceException(String name, long needed, long available) {
+			super("No space for " + name + ": need " + needed + ", available " + available);
+			this.needed = needed;
+			this.available = available;
+		}
+
+		public long getNeeded() {
+			return needed;
+		}
+
+		public long getAvailable() {
+			return available;
+		}
+	}
+
+	public static class ConflictException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		private final String name;
+		private final String owner;
+
+		public ConflictException(String name, String owner) {
+			super("File " + name + " belongs to " + owner);
+			this.name = name;
+			this.owner = owner;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getOwner() {
+			return owner;
+		}
+	}
+
+	private static final String BACKUP_SUFFIX = ".zipold";
+
+	private final String to;
+	private final String listFile;
+	private Listener listener = null;
+
+	private final Map<String, File> extracted = new LinkedHashMap<String, File>();
+	/* Files which existed before, moved aside until the archive is unpacked */
+	private final Map<File, File> backups = new LinkedHashMap<File, File>();
+	private long bytesWritten = 0;
+	private long freeSpace = -1;
+
+	/*
+	 * listFile may be null if no list is needed.
+	 */
+	public ZipExtractor(String to, String listFile) {
+		this.to = to;
+		this.listFile = listFile;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	public void extract(String file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			extract(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/*
+	 * Unpacks the archive read from the stream. On error the files unpacked
+	 * so far are removed.
+	 */
+	public void extract(InputStream in) throws IOException {
+		try {
+			unpack(new ZipArchiveInputStream(new BufferedInputStream(in, BUFFER_SIZE),
+					"UTF8", true, true));
+		} catch (IOException e) {
+			cancel();
+			throw e;
+		}
+	}
+
+	/*
+	 * Removes the unpacked files and the list file, and puts back the files
+	 * they replaced.
+	 */
+	public void cancel() {
+		for (File file: extracted.values()) {
+			file.delete();
+		}
+		extracted.clear();
+		for (Map.Entry<File, File> backup: backups.entrySet()) {
+			backup.getValue().renameTo(backup.getKey());
+		}
+		backups.clear();
+		if (listFile != null) {
+			new File(listFile).delete();
+		}
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	private void unpack(ZipArchiveInputStream zin) throws IOException {
+		BufferedWriter list = null;
+		if (listFile != null) {
+			list = new BufferedWriter(new FileWriter(listFile), 8192);
+		}
+		try {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			byte[] buf = new byte[BUFFER_SIZE];
+			freeSpace = getFreeSpace();
+			ZipArchiveEntry entry;
+			while ((entry = zin.getNextZipEntry()) != null) {
+				String name = entry.getName();
+				if (name.startsWith("/") || ("/" + name + "/").contains("/../")) {
+					throw new IOException("Bad file name in archive: " + name);
+				}
+				File file = new File(to, name);
+				if (entry.isDirectory()) {
+					file.mkdirs();
+					continue;
+				}
+				if (listener != null && !listener.acceptEntry(name)) {
+					continue;
+				}
+				if (entry.getSize() > 0) {
+					checkSpace(name, entry.getSize());
+				}
+				File dir = file.getParentFile();
+				if (!dir.exists() && !dir.mkdirs()) {
+					throw new IOException("Can't create directory " + dir);
+				}
+				// Don't write into running binaries and old links, move them aside
+				File backup = new File(dir, file.getName() + BACKUP_SUFFIX);
+				if (extracted.containsKey(name)) {
+					// Unpacked from an earlier entry of the same name
+					file.delete();
+				} else if (!file.isDirectory() && file.renameTo(backup)) {
+					backups.put(file, backup);
+				} else if (file.exists()) {
+					throw new IOException("Can't move " + file + " to " + backup);
+				}
+				extracted.put(name, file);
+				if (list != null) {
+					list.write(name);
+					list.newLine();
+				}
+				write(zin, file, name, buf, buffer);
+				if (entry.getTime() > 0) {
+					file.setLastModified(entry.getTime());
+				}
+			}
+			if (list != null) {
+				list.close();
+				list = null;
+			}
+			setAttributes(zin, buf);
+			for (File backup: backups.values()) {
+				backup.delete();
+			}
+			backups.clear();
+		} finally {
+			if (list != null) {
+				list.close();
+			}
+		}
+	}
+
+	private void write(ZipArchiveInputStream zin, File file, String name,
+			byte[] buf, ByteBuffer buffer) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			FileChannel channel = out.getChannel();
+			buffer.clear();
+			int n;
+			while ((n = zin.read(buf, 0, buf.length)) != -1) {
+				// Entries with data descriptor have no size in the local header
+				checkSpace(name, n);
+				int off = 0;
+				while (off < n) {
+					int len = Math.min(n - off, buffer.remaining());
+					buffer.put(buf, off, len);
+					off += len;
+					if (!buffer.hasRemaining()) {
+						flush(channel, buffer);
+					}
+				}
+				bytesWritten += n;
+				if (freeSpace >= 0) {
+					freeSpace -= n;
+				}
+				if (listener != null) {
+					listener.onProgress(zin.getBytesRead(), bytesWritten);
+				}
+			}
+			flush(channel, buffer);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private long getFreeSpace() {
+		return listener == null ? -1 : listener.getFreeSpace(to);
+	}
+
+	private void checkSpace(String name, long size) throws IOException {
+		if (freeSpace < 0 || size <= freeSpace) {
+			return;
+		}
+		// Other writers may have freed space meanwhile
+		freeSpace = getFreeSpace();
+		if (freeSpace >= 0 && size > freeSpace) {
+			throw new NoSpaceException(name, size, freeSpace);
+		}
+	}
+
+	/*
+	 * Sets the modes and makes the links from the central directory, once
+	 * the whole central directory has been read.
+	 */
+	private void setAttributes(ZipArchiveInputStream zin, byte[] buf) throws IOException {
+		Map<File, Integer> modes = new LinkedHashMap<File, Integer>();
+		ZipArchiveEntry entry;
+		while ((entry = zin.getNextCentralDirectoryEntry()) != null) {
+			File file = extracted.get(entry.getName());
+			int mode = entry.getUnixMode();
+			if (file != null && mode != 0) {
+				modes.put(file, mode);
+			}
+		}
+		if (!zin.hitEndOfCentralDirectory()) {
+			throw new IOException("Truncated archive, end of central directory not found");
+		}
+		for (Map.Entry<File, Integer> fileMode: modes.entrySet()) {
+			File file = fileMode.getKey();
+			int mode = fileMode.getValue();
+			if ((mode & S_IFMT) == S_IFLNK) {
+				String target = readLink(file, buf);
+				file.delete();
+				if (Utils.symlink(target, file.getPath()) != 0) {
+					throw new IOException("Can't create link " + file + " -> " + target);
+				}
+			} else {
+				Utils.chmod(file.getPath(), mode & 07777);
+			}
+		}
+	}
+
+	private static String readLink(File file, byte[] buf) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			int len = 0;
+			int n;
+			while (len < buf.length && (n = in.read(buf, len, buf.length - len)) != -1) {
+				len += n;
+			}
+			return new String(buf, 0, len, "UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+}
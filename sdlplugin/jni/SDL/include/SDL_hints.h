@@ -274,6 +274,32 @@ extern "C" {
 #define SDL_HINT_VIDEO_HIGHDPI_DISABLED "SDL_VIDEO_HIGHDPI_DISABLED"
 
 
+/**
+ *  \brief A variable that controls how many buffers of audio are queued for
+ *         the Java audio thread on Android.
+ *
+ *  More buffers make underruns less likely when the application is busy, at
+ *  the cost of latency.  The size of each buffer is the number of samples
+ *  asked for when opening the audio device.
+ *
+ *  The default value is "3", and values from "2" to "8" are allowed.  This
+ *  hint is read when the audio device is opened.
+ */
+#define SDL_HINT_ANDROID_AUDIO_BUFFERS "SDL_ANDROID_AUDIO_BUFFERS"
+
+
+/**
+ *  \brief A variable that limits how often accelerometer values are reported
+ *         on Android, in milliseconds.
+ *
+ *  Samples which arrive sooner are merged into the next report, which keeps
+ *  the latest values.
+ *
+ *  By default every new sample is reported.  This hint may be set at any time.
+ */
+#define SDL_HINT_ANDROID_ACCELEROMETER_INTERVAL "SDL_ANDROID_ACCELEROMETER_INTERVAL"
+
+
 /**
  *  \brief  An enumeration of hint priorities
  */
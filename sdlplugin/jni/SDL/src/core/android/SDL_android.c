@@ -22,6 +22,8 @@
 #include "SDL_stdinc.h"
 #include "SDL_assert.h"
 #include "SDL_log.h"
+#include "SDL_hints.h"
+#include "SDL_timer.h"
 
 #ifdef __ANDROID__
 
@@ -70,14 +72,27 @@ static jclass mActivityClass;
 /* method signatures */
 static jmethodID midGetNativeSurface;
 static jmethodID midFlipBuffers;
-static jmethodID midAudioInit;
-static jmethodID midAudioWriteShortBuffer;
-static jmethodID midAudioWriteByteBuffer;
+static jmethodID midAudioOpen;
+static jmethodID midAudioQueueBuffer;
 static jmethodID midAudioQuit;
+static jmethodID midInputGetEventBuffer;
+static jmethodID midInputSwapEvents;
 
 /* Accelerometer data storage */
 static float fLastAccelerometer[3];
 static bool bHasNewData;
+static Uint32 uLastAccelerometerTicks;
+
+/* Input events queued by SDLEventQueue on the Java side */
+#define INPUT_EVENT_KEY_DOWN 1
+#define INPUT_EVENT_KEY_UP 2
+#define INPUT_EVENT_TOUCH 3
+#define INPUT_EVENT_ACCEL 4
+#define INPUT_EVENT_SIZE 32
+#define INPUT_HEADER_SIZE 16
+
+static jobject inputEventBuffer = NULL;
+static Uint8 *inputEventAddress = NULL;
 
 /*******************************************************************************
                  Functions called by JNI
@@ -120,19 +135,22 @@ void SDL_Android_Init(JNIEnv* mEnv, jclass cls)
                                 "getNativeSurface","()Landroid/view/Surface;");
     midFlipBuffers = (*mEnv)->GetStaticMethodID(mEnv, mActivityClass,
                                 "flipBuffers","()V");
-    midAudioInit = (*mEnv)->GetStaticMethodID(mEnv, mActivityClass,
-                                "audioInit", "(IZZI)I");
-    midAudioWriteShortBuffer = (*mEnv)->GetStaticMethodID(mEnv, mActivityClass,
-                                "audioWriteShortBuffer", "([S)V");
-    midAudioWriteByteBuffer = (*mEnv)->GetStaticMethodID(mEnv, mActivityClass,
-                                "audioWriteByteBuffer", "([B)V");
+    midAudioOpen = (*mEnv)->GetStaticMethodID(mEnv, mActivityClass,
+                                "audioOpen", "(IZZII)Ljava/nio/ByteBuffer;");
+    midAudioQueueBuffer = (*mEnv)->GetStaticMethodID(mEnv, mActivityClass,
+                                "audioQueueBuffer", "()V");
     midAudioQuit = (*mEnv)->GetStaticMethodID(mEnv, mActivityClass,
                                 "audioQuit", "()V");
+    midInputGetEventBuffer = (*mEnv)->GetStaticMethodID(mEnv, mActivityClass,
+                                "inputGetEventBuffer", "()Ljava/nio/ByteBuffer;");
+    midInputSwapEvents = (*mEnv)->GetStaticMethodID(mEnv, mActivityClass,
+                                "inputSwapEvents", "()I");
 
     bHasNewData = false;
 
-    if(!midGetNativeSurface || !midFlipBuffers || !midAudioInit ||
-       !midAudioWriteShortBuffer || !midAudioWriteByteBuffer || !midAudioQuit) {
+    if(!midGetNativeSurface || !midFlipBuffers || !midAudioOpen ||
+       !midAudioQueueBuffer || !midAudioQuit ||
+       !midInputGetEventBuffer || !midInputSwapEvents) {
         __android_log_print(ANDROID_LOG_WARN, "SDL", "SDL: Couldn't locate Java callbacks, check that they're named and typed correctly");
     }
     __android_log_print(ANDROID_LOG_INFO, "SDL", "SDL_Android_Init() finished!");
@@ -409,18 +427,86 @@ SDL_bool Android_JNI_GetAccelerometerValues(float values[3])
 {
     int i;
     SDL_bool retval = SDL_FALSE;
+    const char *hint;
+    Uint32 now;
 
     if (bHasNewData) {
+        hint = SDL_GetHint(SDL_HINT_ANDROID_ACCELEROMETER_INTERVAL);
+        now = SDL_GetTicks();
+        if (hint && *hint && uLastAccelerometerTicks &&
+            !SDL_TICKS_PASSED(now, uLastAccelerometerTicks + SDL_atoi(hint))) {
+            /* Keep the values until the interval has passed */
+            return SDL_FALSE;
+        }
         for (i = 0; i < 3; ++i) {
             values[i] = fLastAccelerometer[i];
         }
         bHasNewData = false;
+        uLastAccelerometerTicks = now ? now : 1;
         retval = SDL_TRUE;
     }
 
     return retval;
 }
 
+/* Deliver the events queued on the Java side, called from the event loop */
+void Android_JNI_PollInputEvents()
+{
+    JNIEnv *env = Android_JNI_GetEnv();
+    const volatile Sint32 *header;
+    const Uint8 *event;
+    int capacity;
+    int count;
+    int i;
+
+    if (inputEventAddress == NULL) {
+        jobject buffer = (*env)->CallStaticObjectMethod(env, mActivityClass, midInputGetEventBuffer);
+        if (buffer == NULL) {
+            return;
+        }
+        inputEventBuffer = (*env)->NewGlobalRef(env, buffer);
+        (*env)->DeleteLocalRef(env, buffer);
+        inputEventAddress = (Uint8 *)(*env)->GetDirectBufferAddress(env, inputEventBuffer);
+        if (inputEventAddress == NULL) {
+            return;
+        }
+    }
+
+    /* Checking the pending count first saves the call when nothing happened */
+    header = (const volatile Sint32 *)inputEventAddress;
+    if (header[0] == 0) {
+        return;
+    }
+    count = (*env)->CallStaticIntMethod(env, mActivityClass, midInputSwapEvents);
+    capacity = header[2];
+    event = inputEventAddress + INPUT_HEADER_SIZE + header[1] * capacity * INPUT_EVENT_SIZE;
+
+    for (i = 0; i < count; ++i, event += INPUT_EVENT_SIZE) {
+        const Sint32 *args = (const Sint32 *)event;
+        const float *values = (const float *)event;
+
+        switch (args[0]) {
+        case INPUT_EVENT_KEY_DOWN:
+            Android_OnKeyDown(args[1]);
+            break;
+        case INPUT_EVENT_KEY_UP:
+            Android_OnKeyUp(args[1]);
+            break;
+        case INPUT_EVENT_TOUCH:
+            Android_OnTouch(args[1], args[2], args[3], values[4], values[5], values[6]);
+            break;
+        case INPUT_EVENT_ACCEL:
+            fLastAccelerometer[0] = values[1];
+            fLastAccelerometer[1] = values[2];
+            fLastAccelerometer[2] = values[3];
+            bHasNewData = true;
+            break;
+        default:
+            break;
+        }
+    }
+}
+
 static void Android_JNI_ThreadDestroyed(void* value) {
     /* The thread is being destroyed, detach it from the Java VM and set the mThreadKey value to NULL as required */
     JNIEnv *env = (JNIEnv*) value;
@@ -470,15 +556,31 @@ int Android_JNI_SetupThread(void) {
 
 /*
  * Audio support
+ *
+ * The Java side allocates one direct ByteBuffer holding audioBufferCount
+ * buffers of audioBufferSize bytes each, when the device is opened.  SDL
+ * mixes straight into the current buffer, and audioQueueBuffer() hands it
+ * to the Java audio thread, which writes it to the AudioTrack.  The call
+ * returns once the next buffer is free, so nothing is allocated or copied
+ * through JNI arrays while playing.
  */
-static jboolean audioBuffer16Bit = JNI_FALSE;
-static jboolean audioBufferStereo = JNI_FALSE;
+#define AUDIO_BUFFERS_DEFAULT 3
+#define AUDIO_BUFFERS_MIN 2
+#define AUDIO_BUFFERS_MAX 8
+
 static jobject audioBuffer = NULL;
-static void* audioBufferPinned = NULL;
+static Uint8 *audioBufferAddress = NULL;
+static int audioBufferSize = 0;
+static int audioBufferCount = 0;
+static int audioBufferCurrent = 0;
 
 int Android_JNI_OpenAudioDevice(int sampleRate, int is16Bit, int channelCount, int desiredBufferFrames)
 {
-    int audioBufferFrames;
+    const char *hint;
+    int bufferCount = AUDIO_BUFFERS_DEFAULT;
+    int frameSize;
+    jobject audioBufferLocal;
+    jlong capacity;
 
     JNIEnv *env = Android_JNI_GetEnv();
 
@@ -487,72 +589,61 @@ int Android_JNI_OpenAudioDevice(int sampleRate, int is16Bit, int channelCount, i
     }
     Android_JNI_SetupThread();
 
+    hint = SDL_GetHint(SDL_HINT_ANDROID_AUDIO_BUFFERS);
+    if (hint && *hint) {
+        bufferCount = SDL_atoi(hint);
+        if (bufferCount < AUDIO_BUFFERS_MIN) {
+            bufferCount = AUDIO_BUFFERS_MIN;
+        } else if (bufferCount > AUDIO_BUFFERS_MAX) {
+            bufferCount = AUDIO_BUFFERS_MAX;
+        }
+    }
+
     __android_log_print(ANDROID_LOG_VERBOSE, "SDL", "SDL audio: opening device");
-    audioBuffer16Bit = is16Bit;
-    audioBufferStereo = channelCount > 1;
 
-    if ((*env)->CallStaticIntMethod(env, mActivityClass, midAudioInit, sampleRate, audioBuffer16Bit, audioBufferStereo, desiredBufferFrames) != 0) {
+    audioBufferLocal = (*env)->CallStaticObjectMethod(env, mActivityClass, midAudioOpen, sampleRate, is16Bit ? JNI_TRUE : JNI_FALSE, channelCount > 1 ? JNI_TRUE : JNI_FALSE, desiredBufferFrames, bufferCount);
+    if (audioBufferLocal == NULL) {
         /* Error during audio initialization */
         __android_log_print(ANDROID_LOG_WARN, "SDL", "SDL audio: error on AudioTrack initialization!");
         return 0;
     }
 
-    /* Allocating the audio buffer from the Java side and passing it as the return value for audioInit no longer works on
-     * Android >= 4.2 due to a "stale global reference" error. So now we allocate this buffer directly from this side. */
+    audioBuffer = (*env)->NewGlobalRef(env, audioBufferLocal);
+    (*env)->DeleteLocalRef(env, audioBufferLocal);
 
-    if (is16Bit) {
-        jshortArray audioBufferLocal = (*env)->NewShortArray(env, desiredBufferFrames * (audioBufferStereo ? 2 : 1));
-        if (audioBufferLocal) {
-            audioBuffer = (*env)->NewGlobalRef(env, audioBufferLocal);
-            (*env)->DeleteLocalRef(env, audioBufferLocal);
-        }
-    }
-    else {
-        jbyteArray audioBufferLocal = (*env)->NewByteArray(env, desiredBufferFrames * (audioBufferStereo ? 2 : 1));
-        if (audioBufferLocal) {
-            audioBuffer = (*env)->NewGlobalRef(env, audioBufferLocal);
-            (*env)->DeleteLocalRef(env, audioBufferLocal);
-        }
-    }
+    frameSize = (is16Bit ? 2 : 1) * (channelCount > 1 ? 2 : 1);
+    audioBufferSize = desiredBufferFrames * frameSize;
+    audioBufferAddress = (Uint8 *)(*env)->GetDirectBufferAddress(env, audioBuffer);
+    capacity = (*env)->GetDirectBufferCapacity(env, audioBuffer);
 
-    if (audioBuffer == NULL) {
-        __android_log_print(ANDROID_LOG_WARN, "SDL", "SDL audio: could not allocate an audio buffer!");
+    if (audioBufferAddress == NULL || capacity < (jlong)audioBufferSize * bufferCount) {
+        __android_log_print(ANDROID_LOG_WARN, "SDL", "SDL audio: could not get the audio buffer!");
+        Android_JNI_CloseAudioDevice();
         return 0;
     }
 
-    jboolean isCopy = JNI_FALSE;
-    if (audioBuffer16Bit) {
-        audioBufferPinned = (*env)->GetShortArrayElements(env, (jshortArray)audioBuffer, &isCopy);
-        audioBufferFrames = (*env)->GetArrayLength(env, (jshortArray)audioBuffer);
-    } else {
-        audioBufferPinned = (*env)->GetByteArrayElements(env, (jbyteArray)audioBuffer, &isCopy);
-        audioBufferFrames = (*env)->GetArrayLength(env, (jbyteArray)audioBuffer);
-    }
-    if (audioBufferStereo) {
-        audioBufferFrames /= 2;
-    }
+    audioBufferCount = bufferCount;
+    audioBufferCurrent = 0;
 
-    return audioBufferFrames;
+    return desiredBufferFrames;
 }
 
 void * Android_JNI_GetAudioBuffer()
 {
-    return audioBufferPinned;
+    if (audioBufferAddress == NULL) {
+        return NULL;
+    }
+    return audioBufferAddress + audioBufferCurrent * audioBufferSize;
 }
 
 void Android_JNI_WriteAudioBuffer()
 {
     JNIEnv *mAudioEnv = Android_JNI_GetEnv();
 
-    if (audioBuffer16Bit) {
-        (*mAudioEnv)->ReleaseShortArrayElements(mAudioEnv, (jshortArray)audioBuffer, (jshort *)audioBufferPinned, JNI_COMMIT);
-        (*mAudioEnv)->CallStaticVoidMethod(mAudioEnv, mActivityClass, midAudioWriteShortBuffer, (jshortArray)audioBuffer);
-    } else {
-        (*mAudioEnv)->ReleaseByteArrayElements(mAudioEnv, (jbyteArray)audioBuffer, (jbyte *)audioBufferPinned, JNI_COMMIT);
-        (*mAudioEnv)->CallStaticVoidMethod(mAudioEnv, mActivityClass, midAudioWriteByteBuffer, (jbyteArray)audioBuffer);
-    }
+    /* Returns when the next buffer may be filled */
+    (*mAudioEnv)->CallStaticVoidMethod(mAudioEnv, mActivityClass, midAudioQueueBuffer);
 
-    /* JNI_COMMIT means the changes are committed to the VM but the buffer remains pinned */
+    audioBufferCurrent = (audioBufferCurrent + 1) % audioBufferCount;
 }
 
 void Android_JNI_CloseAudioDevice()
@@ -564,7 +655,7 @@ void Android_JNI_CloseAudioDevice()
     if (audioBuffer) {
         (*env)->DeleteGlobalRef(env, audioBuffer);
         audioBuffer = NULL;
-        audioBufferPinned = NULL;
+        audioBufferAddress = NULL;
     }
 }
 
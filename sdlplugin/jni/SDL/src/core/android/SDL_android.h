@@ -38,6 +38,7 @@ extern SDL_bool Android_JNI_DeleteContext(void); */
 extern void Android_JNI_SwapWindow();
 extern void Android_JNI_SetActivityTitle(const char *title);
 extern SDL_bool Android_JNI_GetAccelerometerValues(float values[3]);
+extern void Android_JNI_PollInputEvents();
 extern void Android_JNI_ShowTextInput(SDL_Rect *inputRect);
 extern void Android_JNI_HideTextInput();
 extern ANativeWindow* Android_JNI_GetNativeWindow(void);
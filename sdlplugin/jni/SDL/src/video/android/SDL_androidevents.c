@@ -28,6 +28,7 @@
 #include "SDL_androidevents.h"
 #include "SDL_events.h"
 #include "SDL_androidwindow.h"
+#include "../../core/android/SDL_android.h"
 
 void android_egl_context_backup();
 void android_egl_context_restore();
@@ -61,7 +62,8 @@ Android_PumpEvents(_THIS)
 #if SDL_ANDROID_BLOCK_ON_PAUSE
     static int isPausing = 0;
 #endif
-    /* No polling necessary */
+    /* Events gathered on the Java side are delivered here, once per pump */
+    Android_JNI_PollInputEvents();
 
     /*
      * Android_ResumeSem and Android_PauseSem are signaled from Java_org_libsdl_app_SDLActivity_nativePause and Java_org_libsdl_app_SDLActivity_nativeResume
@@ -1,12 +1,25 @@
 package com.pdaxrom.cctools.sdlplugin;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -20,6 +33,8 @@ public class Utils {
 	public static final int Lib_SDL_mixer	= 2;
 	public static final int Lib_SDL_net		= 3;
 	public static final int Lib_SDL_ttf		= 4;
+
+	private static final String SYNC_MANIFEST = ".sync";
 	
 	static {
 		System.loadLibrary("ccsdlplugin");
@@ -43,19 +58,131 @@ public class Utils {
 	                    new File(targetLocation, children[i]));
 	        }
 	    } else {
-	        InputStream in = new FileInputStream(sourceLocation);
-	        OutputStream out = new FileOutputStream(targetLocation);
-
-	        // Copy the bits from instream to outstream
-	        byte[] buf = new byte[1024*1024];
-	        int len;
-	        while ((len = in.read(buf)) > 0) {
-	            out.write(buf, 0, len);
-	        }
-	        in.close();
-	        out.close();
+	        copyFile(sourceLocation, targetLocation);
 	    }
 	}
+
+	public static void copyFile(File sourceLocation, File targetLocation) throws IOException {
+		FileInputStream in = new FileInputStream(sourceLocation);
+		try {
+			FileOutputStream out = new FileOutputStream(targetLocation);
+			try {
+				// Let the kernel move the bits, without a buffer in between
+				FileChannel inChannel = in.getChannel();
+				FileChannel outChannel = out.getChannel();
+				long size = inChannel.size();
+				long position = 0;
+				while (position < size) {
+					position += inChannel.transferTo(position, size - position, outChannel);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/*
+	 * Copy the files of sourceDir which changed since the last sync into
+	 * targetDir, several at a time, skipping the names in exclude.
+	 * What was copied is recorded in a manifest in targetDir, with the size
+	 * and time of each source file, so unchanged files are found without
+	 * reading them (times can't be kept on the sdcard). Files copied by an
+	 * earlier sync which are gone from sourceDir are deleted.
+	 * Returns the number of files copied.
+	 */
+	public static int syncDirectory(File sourceDir, File targetDir, Set<String> exclude) throws IOException {
+		File manifestFile = new File(targetDir, SYNC_MANIFEST);
+		Map<String, String> manifest = readManifest(manifestFile);
+		Map<String, String> newManifest = new HashMap<String, String>();
+		final List<File[]> copies = new ArrayList<File[]>();
+
+		File[] files = sourceDir.listFiles();
+		if (files == null) {
+			throw new IOException("Can't list " + sourceDir);
+		}
+		for (File file: files) {
+			String name = file.getName();
+			if (!file.isFile() || exclude.contains(name) || name.equals(SYNC_MANIFEST)) {
+				continue;
+			}
+			String stamp = file.length() + " " + file.lastModified();
+			File target = new File(targetDir, name);
+			if (!stamp.equals(manifest.remove(name)) || target.length() != file.length()) {
+				copies.add(new File[] { file, target });
+			}
+			newManifest.put(name, stamp);
+		}
+		for (String name: manifest.keySet()) {
+			Log.i(TAG, "Remove " + name);
+			new File(targetDir, name).delete();
+		}
+
+		if (!copies.isEmpty()) {
+			// Drop the manifest first, so an interrupted sync starts over
+			manifestFile.delete();
+			int threads = Math.min(copies.size(), Runtime.getRuntime().availableProcessors() + 1);
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			try {
+				List<Future<Void>> results = new ArrayList<Future<Void>>();
+				for (final File[] copy: copies) {
+					results.add(executor.submit(new Callable<Void>() {
+						public Void call() throws IOException {
+							Log.i(TAG, "Copy " + copy[0].getName());
+							copyFile(copy[0], copy[1]);
+							return null;
+						}
+					}));
+				}
+				for (Future<Void> result: results) {
+					result.get();
+				}
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause().toString());
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+		if (!copies.isEmpty() || !manifest.isEmpty() || !manifestFile.exists()) {
+			writeManifest(manifestFile, newManifest);
+		}
+		return copies.size();
+	}
+
+	private static Map<String, String> readManifest(File file) {
+		Map<String, String> manifest = new HashMap<String, String>();
+		try {
+			BufferedReader in = new BufferedReader(new FileReader(file));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					int i = line.indexOf('\t');
+					if (i > 0) {
+						manifest.put(line.substring(0, i), line.substring(i + 1));
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// No manifest yet, everything is copied
+		}
+		return manifest;
+	}
+
+	private static void writeManifest(File file, Map<String, String> manifest) throws IOException {
+		FileWriter out = new FileWriter(file);
+		try {
+			for (Map.Entry<String, String> entry: manifest.entrySet()) {
+				out.write(entry.getKey() + "\t" + entry.getValue() + "\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
 	
 	public static void deleteDirectory(File file) {
 		if (file.isDirectory()) {
@@ -3,6 +3,9 @@ package com.pdaxrom.cctools.sdlplugin;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.libsdl.app.SDLActivity;
 
@@ -41,47 +44,48 @@ public class sdlpluginActivity extends SDLActivity {
 
         if (!super.mIsPaused && getIntent().getExtras() == null) {
         	if (new File(sdCardDir).exists() && new File(sdCardDir).isDirectory()) {
-        		if (!new File(sdCardDir + "/SDL/include").exists() ||
-        				!new File(sdCardDir + "/SDL/lib").exists()) {
-        			Log.i(TAG, "Install dev files");
-        			new InstallDevFiles().execute();
-        		} else {
-        			aboutDialog(1);
-        		}
+        		// Also brings the libraries up to date after a plugin update
+        		new InstallDevFiles().execute();
         	} else {
         		aboutDialog(0);
         	}
         }
     }
     
+    /* Plugin libraries which are not for linking with */
+    private static final Set<String> PRIVATE_LIBS = new HashSet<String>(Arrays.asList(
+    		"libmain.so", "libccsdlplugin.so"));
+
     class InstallDevFiles extends AsyncTask <Void, String, Void> {
-    	@Override
-    	protected void onPreExecute() {
-    		super.onPreExecute();
-    		pd = ProgressDialog.show(getContext(), getString(R.string.app_name),
-    				getString(R.string.update_checking), true);
-    	}
-    	
     	@Override
     	protected void onProgressUpdate(String... values) {
     		super.onProgressUpdate(values);
-    		pd.setMessage(values[0]);
+    		// The dialog only comes up when there is something to install
+    		if (pd == null) {
+    			pd = ProgressDialog.show(getContext(), getString(R.string.app_name),
+    					values[0], true);
+    		} else {
+    			pd.setMessage(values[0]);
+    		}
     	}
     	
 		@Override
 		protected Void doInBackground(Void... params) {
 			try {
-				if (! (new File(sdCardDir + "/SDL/lib").exists())) {
-					new File(sdCardDir + "/SDL/lib").mkdirs();
-					Utils.copyDirectory(new File(getCacheDir().getParentFile().getAbsolutePath() + "/lib"),
-							new File(sdCardDir + "/SDL/lib"));
-					new File(sdCardDir + "/SDL/lib/libmain.so").delete();
-					new File(sdCardDir + "/SDL/lib/libccsdlplugin.so").delete();
+				File libDir = new File(sdCardDir + "/SDL/lib");
+				boolean newLibDir = !libDir.exists();
+				if (newLibDir) {
+					libDir.mkdirs();
+					publishProgress(getString(R.string.update_install_libs));
+				}
+				int copied = Utils.syncDirectory(new File(getCacheDir().getParentFile().getAbsolutePath() + "/lib"),
+						libDir, PRIVATE_LIBS);
+				Log.i(TAG, "Updated " + copied + " libraries");
+				if (newLibDir) {
 					String arch = Build.CPU_ABI;
 					if (arch.startsWith("mips")) {
 						arch = "mips";
 					}
-					publishProgress(getString(R.string.update_install_libs));
 					InputStream is = getAssets().open("sdlmain-" + arch + ".zip");
 					Utils.unpackZip(is, sdCardDir + "/SDL/lib");
 					is.close();
@@ -107,7 +111,10 @@ public class sdlpluginActivity extends SDLActivity {
 		@Override
 		protected void onPostExecute(Void result) {
 			super.onPostExecute(result);
-			pd.dismiss();
+			if (pd != null) {
+				pd.dismiss();
+				pd = null;
+			}
 			aboutDialog(1);
 		}
     }
@@ -1,6 +1,8 @@
 package org.libsdl.app;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 
 import com.pdaxrom.cctools.sdlplugin.Utils;
@@ -40,9 +42,20 @@ public class SDLActivity extends Activity {
     // This is what SDL runs in. It invokes SDL_main(), eventually
     protected static Thread mSDLThread;
 
+    // Touch, key and sensor events waiting for the SDL thread
+    protected static final SDLEventQueue mEventQueue = new SDLEventQueue();
+
     // Audio
     protected static Thread mAudioThread;
     protected static AudioTrack mAudioTrack;
+    protected static ByteBuffer mAudioBuffer;
+    protected static volatile int mAudioUnderruns;
+    private static final Object mAudioLock = new Object();
+    private static int mAudioBufferCount;
+    private static int mAudioBufferSize;
+    // Guarded by mAudioLock
+    private static int mAudioQueued;
+    private static boolean mAudioRunning;
 
     // Load the .so
     static {
@@ -369,6 +382,150 @@ public class SDLActivity extends Activity {
     }
 
     // Audio
+
+    /**
+     * Open the audio track and start the audio thread.
+     * @return a direct buffer holding bufferCount buffers of desiredFrames
+     * frames, which native code mixes into, or null on failure.
+     */
+    public static ByteBuffer audioOpen(int sampleRate, boolean is16Bit, boolean isStereo, int desiredFrames, int bufferCount) {
+        int channelConfig = isStereo ? AudioFormat.CHANNEL_CONFIGURATION_STEREO : AudioFormat.CHANNEL_CONFIGURATION_MONO;
+        int audioFormat = is16Bit ? AudioFormat.ENCODING_PCM_16BIT : AudioFormat.ENCODING_PCM_8BIT;
+        int frameSize = (isStereo ? 2 : 1) * (is16Bit ? 2 : 1);
+
+        Log.v(TAG, "SDL audio: wanted " + (isStereo ? "stereo" : "mono") + " " + (is16Bit ? "16-bit" : "8-bit") + " " + (sampleRate / 1000f) + "kHz, " + bufferCount + " x " + desiredFrames + " frames buffers");
+
+        audioQuit();
+
+        // The track must at least hold what is queued, so that writing the
+        // last queued buffer blocks rather than the mixer
+        int trackFrames = Math.max(desiredFrames * bufferCount, (AudioTrack.getMinBufferSize(sampleRate, channelConfig, audioFormat) + frameSize - 1) / frameSize);
+
+        mAudioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate,
+                channelConfig, audioFormat, trackFrames * frameSize, AudioTrack.MODE_STREAM);
+        if (mAudioTrack.getState() != AudioTrack.STATE_INITIALIZED) {
+            Log.e(TAG, "Failed during initialization of Audio Track");
+            mAudioTrack.release();
+            mAudioTrack = null;
+            return null;
+        }
+
+        mAudioBufferSize = desiredFrames * frameSize;
+        mAudioBufferCount = bufferCount;
+        mAudioBuffer = ByteBuffer.allocateDirect(mAudioBufferSize * bufferCount).order(ByteOrder.nativeOrder());
+        mAudioUnderruns = 0;
+        synchronized (mAudioLock) {
+            mAudioQueued = 0;
+            mAudioRunning = true;
+        }
+
+        mAudioTrack.play();
+        mAudioThread = new Thread(new AudioWriter(mAudioTrack, mAudioBuffer, mAudioBufferSize, bufferCount, frameSize), "SDLAudioThread");
+        mAudioThread.start();
+
+        Log.v(TAG, "SDL audio: got " + ((mAudioTrack.getChannelCount() >= 2) ? "stereo" : "mono") + " " + ((mAudioTrack.getAudioFormat() == AudioFormat.ENCODING_PCM_16BIT) ? "16-bit" : "8-bit") + " " + (mAudioTrack.getSampleRate() / 1000f) + "kHz, " + trackFrames + " frames track buffer");
+
+        return mAudioBuffer;
+    }
+
+    /**
+     * Queue the buffer native code has just mixed, and wait until the next
+     * one is free.
+     */
+    public static void audioQueueBuffer() {
+        synchronized (mAudioLock) {
+            mAudioQueued++;
+            mAudioLock.notifyAll();
+            while (mAudioRunning && mAudioQueued == mAudioBufferCount) {
+                try {
+                    mAudioLock.wait();
+                } catch (InterruptedException e) {
+                    // Nom nom
+                }
+            }
+        }
+    }
+
+    /**
+     * @return how many times the audio track ran out of data since the
+     * audio device was opened.
+     */
+    public static int audioGetUnderrunCount() {
+        return mAudioUnderruns;
+    }
+
+    /**
+     * Writes the queued buffers to the audio track in order.  Writes in
+     * stream mode block until the track has room, so the thread sleeps
+     * while the track plays.
+     */
+    static class AudioWriter implements Runnable {
+        private final AudioTrack mTrack;
+        private final ByteBuffer mBuffer;
+        private final byte[] mChunk;
+        private final int mBufferCount;
+        private final int mFrameSize;
+
+        AudioWriter(AudioTrack track, ByteBuffer buffer, int bufferSize, int bufferCount, int frameSize) {
+            mTrack = track;
+            mBuffer = buffer;
+            mChunk = new byte[bufferSize];
+            mBufferCount = bufferCount;
+            mFrameSize = frameSize;
+        }
+
+        @Override
+        public void run() {
+            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
+            int current = 0;
+            int framesWritten = 0;
+            while (true) {
+                synchronized (mAudioLock) {
+                    while (mAudioRunning && mAudioQueued == 0) {
+                        try {
+                            mAudioLock.wait();
+                        } catch (InterruptedException e) {
+                            // Nom nom
+                        }
+                    }
+                    if (!mAudioRunning) {
+                        return;
+                    }
+                }
+
+                // The track has played everything it was given
+                if (framesWritten > 0 && mTrack.getPlaybackHeadPosition() >= framesWritten) {
+                    mAudioUnderruns++;
+                }
+
+                // AudioTrack only takes arrays before API 21, so copy the
+                // buffer into the one array this thread owns
+                mBuffer.position(current * mChunk.length);
+                mBuffer.get(mChunk);
+                for (int i = 0; i < mChunk.length; ) {
+                    int result = mTrack.write(mChunk, i, mChunk.length - i);
+                    if (result <= 0) {
+                        // Stopped, or an error
+                        if (result < 0) {
+                            Log.w(TAG, "SDL audio: error return from write(byte)");
+                        }
+                        break;
+                    }
+                    i += result;
+                }
+                framesWritten += mChunk.length / mFrameSize;
+
+                synchronized (mAudioLock) {
+                    mAudioQueued--;
+                    mAudioLock.notifyAll();
+                }
+                current = (current + 1) % mBufferCount;
+            }
+        }
+    }
+
+    // Used by SDL libraries built before audioOpen(), which still pass
+    // arrays to audioWriteShortBuffer() and audioWriteByteBuffer()
     public static int audioInit(int sampleRate, boolean is16Bit, boolean isStereo, int desiredFrames) {
         int channelConfig = isStereo ? AudioFormat.CHANNEL_CONFIGURATION_STEREO : AudioFormat.CHANNEL_CONFIGURATION_MONO;
         int audioFormat = is16Bit ? AudioFormat.ENCODING_PCM_16BIT : AudioFormat.ENCODING_PCM_8BIT;
@@ -440,10 +597,28 @@ public class SDLActivity extends Activity {
     }
 
     public static void audioQuit() {
+        synchronized (mAudioLock) {
+            mAudioRunning = false;
+            mAudioLock.notifyAll();
+        }
         if (mAudioTrack != null) {
+            // Makes a write in progress return
             mAudioTrack.stop();
+        }
+        if (mAudioThread != null) {
+            try {
+                mAudioThread.join();
+            } catch (InterruptedException e) {
+                // Nom nom
+            }
+            mAudioThread = null;
+            Log.v(TAG, "SDL audio: " + mAudioUnderruns + " underruns");
+        }
+        if (mAudioTrack != null) {
+            mAudioTrack.release();
             mAudioTrack = null;
         }
+        mAudioBuffer = null;
     }
 
     // Input
@@ -463,6 +638,235 @@ public class SDLActivity extends Activity {
         }
         return Arrays.copyOf(filtered, used);
     }
+
+    /**
+     * @return the buffer events are queued in, see SDLEventQueue.
+     */
+    public static ByteBuffer inputGetEventBuffer() {
+        return mEventQueue.getBuffer();
+    }
+
+    /**
+     * Called by native code once per frame when events are pending.
+     * @return the number of events to read.
+     */
+    public static int inputSwapEvents() {
+        return mEventQueue.swap();
+    }
+}
+
+/**
+    Queue of input events for the SDL thread, gathered on the UI thread.
+
+    Events are written into one half of a direct buffer while native code
+    reads the other half, so a frame's worth of events costs one JNI call
+    instead of one per event. Each event takes EVENT_SIZE bytes, as native
+    order ints and floats: type, then the arguments of the onNative*()
+    method it stands for. The buffer starts with a header of ints: the
+    number of events pending (read by native code without locking, as a
+    hint), the half last swapped out, and the capacity of a half.
+
+    The UI thread never waits for the SDL thread. When a half fills up,
+    moves which a later event of the same pointer supersedes are dropped,
+    then the other moves and the accelerometer sample. Key and touch
+    down/up events are never dropped: if they still don't fit, they are
+    kept in order in an overflow list, which goes into the next half.
+*/
+class SDLEventQueue {
+    static final int EVENT_KEY_DOWN = 1;
+    static final int EVENT_KEY_UP = 2;
+    static final int EVENT_TOUCH = 3;
+    static final int EVENT_ACCEL = 4;
+
+    private static final int EVENT_SIZE = 32;
+    private static final int EVENT_INTS = EVENT_SIZE / 4;
+    private static final int HEADER_SIZE = 16;
+    private static final int CAPACITY = 512;
+
+    private final ByteBuffer mBuffer;
+    private int mHalf;
+    private int mCount;
+    // Index of the accelerometer event in the current half, or -1
+    private int mAccelEvent = -1;
+
+    // The event being added, as ints
+    private final int[] mEvent = new int[EVENT_INTS];
+    // Events which didn't fit in the current half, EVENT_INTS ints each
+    private int[] mOverflow = new int[0];
+    private int mOverflowCount;
+
+    SDLEventQueue() {
+        mBuffer = ByteBuffer.allocateDirect(HEADER_SIZE + 2 * CAPACITY * EVENT_SIZE).order(ByteOrder.nativeOrder());
+        mBuffer.putInt(8, CAPACITY);
+    }
+
+    ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    synchronized void addKey(int type, int keycode) {
+        int[] event = mEvent;
+        event[0] = type;
+        event[1] = keycode;
+        add(true);
+    }
+
+    /**
+     * Moves are dropped if there is no room for them, other touch events
+     * are always kept.
+     */
+    synchronized void addTouch(int touchDevId, int pointerFingerId, int action, float x, float y, float p) {
+        int[] event = mEvent;
+        event[0] = EVENT_TOUCH;
+        event[1] = touchDevId;
+        event[2] = pointerFingerId;
+        event[3] = action;
+        event[4] = Float.floatToRawIntBits(x);
+        event[5] = Float.floatToRawIntBits(y);
+        event[6] = Float.floatToRawIntBits(p);
+        add(action != MotionEvent.ACTION_MOVE);
+    }
+
+    /**
+     * Native code only keeps the latest values, so a sample replaces one
+     * which is still queued. It is dropped if there is no room for it.
+     */
+    synchronized void addAccel(float x, float y, float z) {
+        if (mAccelEvent >= 0) {
+            int offset = getOffset(mAccelEvent);
+            mBuffer.putFloat(offset + 4, x);
+            mBuffer.putFloat(offset + 8, y);
+            mBuffer.putFloat(offset + 12, z);
+            return;
+        }
+        int[] event = mEvent;
+        event[0] = EVENT_ACCEL;
+        event[1] = Float.floatToRawIntBits(x);
+        event[2] = Float.floatToRawIntBits(y);
+        event[3] = Float.floatToRawIntBits(z);
+        if (add(false)) {
+            mAccelEvent = mCount - 1;
+        }
+    }
+
+    synchronized int swap() {
+        int count = mCount;
+        mBuffer.putInt(4, mHalf);
+        mHalf ^= 1;
+        mAccelEvent = -1;
+
+        // Events which didn't fit go first into the new half
+        int moved = Math.min(mOverflowCount, CAPACITY);
+        for (int i = 0; i < moved; i++) {
+            put(i, mOverflow, i * EVENT_INTS);
+        }
+        mOverflowCount -= moved;
+        System.arraycopy(mOverflow, moved * EVENT_INTS, mOverflow, 0, mOverflowCount * EVENT_INTS);
+        mCount = moved;
+        mBuffer.putInt(0, mCount);
+        return count;
+    }
+
+    private int getOffset(int event) {
+        return HEADER_SIZE + (mHalf * CAPACITY + event) * EVENT_SIZE;
+    }
+
+    /* Add mEvent behind the queued events. Returns false if it was dropped. */
+    private boolean add(boolean keep) {
+        if (mOverflowCount == 0 && mCount == CAPACITY) {
+            makeRoom(false);
+            if (mCount == CAPACITY && keep) {
+                makeRoom(true);
+            }
+        }
+        if (mOverflowCount == 0 && mCount < CAPACITY) {
+            put(mCount++, mEvent, 0);
+            mBuffer.putInt(0, mCount);
+            return true;
+        }
+        if (!keep) {
+            return false;
+        }
+        if (mOverflow.length < (mOverflowCount + 1) * EVENT_INTS) {
+            int[] overflow = new int[Math.max(2 * mOverflow.length, CAPACITY * EVENT_INTS)];
+            System.arraycopy(mOverflow, 0, overflow, 0, mOverflowCount * EVENT_INTS);
+            mOverflow = overflow;
+        }
+        System.arraycopy(mEvent, 0, mOverflow, mOverflowCount * EVENT_INTS, EVENT_INTS);
+        mOverflowCount++;
+        return true;
+    }
+
+    private void put(int index, int[] event, int start) {
+        int offset = getOffset(index);
+        for (int i = 0; i < EVENT_INTS; i++) {
+            mBuffer.putInt(offset + 4 * i, event[start + i]);
+        }
+    }
+
+    private boolean isMove(int offset) {
+        return mBuffer.getInt(offset) == EVENT_TOUCH
+                && mBuffer.getInt(offset + 12) == MotionEvent.ACTION_MOVE;
+    }
+
+    /*
+     * Drop queued moves which are followed by another event of the same
+     * pointer or, if all is set, every move and the accelerometer sample.
+     * The other events keep their order.
+     */
+    private void makeRoom(boolean all) {
+        // Pointers seen after the event being looked at, as device << 32 | pointer
+        long[] seen = new long[8];
+        int seenCount = 0;
+        boolean[] drop = new boolean[mCount];
+        for (int i = mCount - 1; i >= 0; i--) {
+            int offset = getOffset(i);
+            int type = mBuffer.getInt(offset);
+            if (type == EVENT_ACCEL) {
+                drop[i] = all;
+                continue;
+            }
+            if (type != EVENT_TOUCH) {
+                continue;
+            }
+            long pointer = (long) mBuffer.getInt(offset + 4) << 32 | (mBuffer.getInt(offset + 8) & 0xffffffffL);
+            int j = 0;
+            while (j < seenCount && seen[j] != pointer) {
+                j++;
+            }
+            if (isMove(offset)) {
+                drop[i] = all || j < seenCount;
+            }
+            if (j == seenCount) {
+                if (seenCount == seen.length) {
+                    seen = Arrays.copyOf(seen, 2 * seenCount);
+                }
+                seen[seenCount++] = pointer;
+            }
+        }
+
+        int kept = 0;
+        int accelEvent = -1;
+        for (int i = 0; i < mCount; i++) {
+            if (drop[i]) {
+                continue;
+            }
+            if (i == mAccelEvent) {
+                accelEvent = kept;
+            }
+            if (kept != i) {
+                int from = getOffset(i);
+                int to = getOffset(kept);
+                for (int k = 0; k < EVENT_SIZE; k += 4) {
+                    mBuffer.putInt(to + k, mBuffer.getInt(from + k));
+                }
+            }
+            kept++;
+        }
+        mCount = kept;
+        mAccelEvent = accelEvent;
+        mBuffer.putInt(0, mCount);
+    }
 }
 
 /**
@@ -617,14 +1021,15 @@ class SDLSurface extends SurfaceView implements SurfaceHolder.Callback,
     @Override
     public boolean onKey(View  v, int keyCode, KeyEvent event) {
         
+        // Key events are queued in order with touch events
         if (event.getAction() == KeyEvent.ACTION_DOWN) {
             //Log.v("SDL", "key down: " + keyCode);
-            SDLActivity.onNativeKeyDown(keyCode);
+            SDLActivity.mEventQueue.addKey(SDLEventQueue.EVENT_KEY_DOWN, keyCode);
             return true;
         }
         else if (event.getAction() == KeyEvent.ACTION_UP) {
             //Log.v("SDL", "key up: " + keyCode);
-            SDLActivity.onNativeKeyUp(keyCode);
+            SDLActivity.mEventQueue.addKey(SDLEventQueue.EVENT_KEY_UP, keyCode);
             return true;
         }
         
@@ -641,22 +1046,29 @@ class SDLSurface extends SurfaceView implements SurfaceHolder.Callback,
              int pointerFingerId = event.getPointerId(actionPointerIndex);
              int action = (event.getAction() & MotionEvent.ACTION_MASK); /* API 8: event.getActionMasked(); */
 
-             float x = event.getX(actionPointerIndex) / mWidth;
-             float y = event.getY(actionPointerIndex) / mHeight;
-             float p = event.getPressure(actionPointerIndex);
-
-             if (action == MotionEvent.ACTION_MOVE && pointerCount > 1) {
-                // TODO send motion to every pointer if its position has
-                // changed since prev event.
+             if (action == MotionEvent.ACTION_MOVE) {
+                // Moves are batched: send the older samples first, then
+                // the current position of every pointer. When the queue
+                // is full, moves are coalesced or dropped; the next one
+                // catches up.
+                final int historySize = event.getHistorySize();
+                for (int h = 0; h < historySize; h++) {
+                    for (int i = 0; i < pointerCount; i++) {
+                        SDLActivity.mEventQueue.addTouch(touchDevId, event.getPointerId(i), action,
+                                event.getHistoricalX(i, h) / mWidth,
+                                event.getHistoricalY(i, h) / mHeight,
+                                event.getHistoricalPressure(i, h));
+                    }
+                }
                 for (int i = 0; i < pointerCount; i++) {
-                    pointerFingerId = event.getPointerId(i);
-                    x = event.getX(i) / mWidth;
-                    y = event.getY(i) / mHeight;
-                    p = event.getPressure(i);
-                    SDLActivity.onNativeTouch(touchDevId, pointerFingerId, action, x, y, p);
+                    SDLActivity.mEventQueue.addTouch(touchDevId, event.getPointerId(i), action,
+                            event.getX(i) / mWidth, event.getY(i) / mHeight, event.getPressure(i));
                 }
              } else {
-                SDLActivity.onNativeTouch(touchDevId, pointerFingerId, action, x, y, p);
+                float x = event.getX(actionPointerIndex) / mWidth;
+                float y = event.getY(actionPointerIndex) / mHeight;
+                float p = event.getPressure(actionPointerIndex);
+                SDLActivity.mEventQueue.addTouch(touchDevId, pointerFingerId, action, x, y, p);
              }
       return true;
    } 
@@ -701,9 +1113,10 @@ class SDLSurface extends SurfaceView implements SurfaceHolder.Callback,
                     y = event.values[1];
                     break;
             }
-            SDLActivity.onNativeAccel(-x / SensorManager.GRAVITY_EARTH,
-                                      y / SensorManager.GRAVITY_EARTH,
-                                      event.values[2] / SensorManager.GRAVITY_EARTH - 1);
+            x = -x / SensorManager.GRAVITY_EARTH;
+            y = y / SensorManager.GRAVITY_EARTH;
+            float z = event.values[2] / SensorManager.GRAVITY_EARTH - 1;
+            SDLActivity.mEventQueue.addAccel(x, y, z);
         }
     }
     